@@ -23,19 +23,21 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 public class CrashRecoveryHandler {
 
     private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
     private static final String LOGTAG = "BrowserCrashRecovery";
+    private static final String STATE_LOG = "browser_state.log";
+    // The whole state used to be written to this file every time
     private static final String STATE_FILE = "browser_state.parcel";
     private static final String RECOVERY_PREFERENCES = "browser_recovery_prefs";
     private static final String KEY_LAST_RECOVERED = "last_recovered";
@@ -61,6 +63,8 @@ public class CrashRecoveryHandler {
     private boolean mIsPreloading = false;
     private boolean mDidPreload = false;
     private Bundle mRecoveryState = null;
+    private CrashRecoveryLog mLog;
+    private long mLogStartTime;
 
     public static CrashRecoveryHandler initialize(Controller controller) {
         if (sInstance == null) {
@@ -79,6 +83,7 @@ public class CrashRecoveryHandler {
         mController = controller;
         mContext = mController.getActivity().getApplicationContext();
         mForegroundHandler = new Handler();
+        mLog = new CrashRecoveryLog(new File(mContext.getCacheDir(), STATE_LOG));
         mBackgroundHandler = new Handler(BackgroundHandler.getLooper()) {
 
             @Override
@@ -88,33 +93,27 @@ public class CrashRecoveryHandler {
                     if (LOGV_ENABLED) {
                         Log.v(LOGTAG, "Saving crash recovery state");
                     }
-                    Parcel p = Parcel.obtain();
                     try {
-                        Bundle state = (Bundle) msg.obj;
-                        state.writeToParcel(p, 0);
-                        File stateJournal = new File(mContext.getCacheDir(),
-                                STATE_FILE + ".journal");
-                        FileOutputStream fout = new FileOutputStream(stateJournal);
-                        fout.write(p.marshall());
-                        fout.close();
-                        File stateFile = new File(mContext.getCacheDir(),
-                                STATE_FILE);
-                        if (!stateJournal.renameTo(stateFile)) {
-                            // Failed to rename, try deleting the existing
-                            // file and try again
-                            stateFile.delete();
-                            stateJournal.renameTo(stateFile);
+                        if (mLogStartTime == 0) {
+                            mLogStartTime = SystemClock.uptimeMillis();
+                        }
+                        mLog.write((Bundle) msg.obj);
+                        if (LOGV_ENABLED) {
+                            long minutes = Math.max(1,
+                                    (SystemClock.uptimeMillis() - mLogStartTime) / 60000);
+                            Log.v(LOGTAG, "Crash recovery log: " + mLog.getBytesWritten()
+                                    + " bytes written, "
+                                    + mLog.getBytesWritten() / minutes + " bytes/min");
                         }
                     } catch (Throwable e) {
                         Log.i(LOGTAG, "Failed to save persistent state", e);
-                    } finally {
-                        p.recycle();
                     }
                     break;
                 case MSG_CLEAR_STATE:
                     if (LOGV_ENABLED) {
                         Log.v(LOGTAG, "Clearing crash recovery state");
                     }
+                    mLog.delete();
                     File state = new File(mContext.getCacheDir(), STATE_FILE);
                     if (state.exists()) {
                         state.delete();
@@ -184,6 +183,27 @@ public class CrashRecoveryHandler {
         if (!shouldRestore()) {
             return null;
         }
+        long start = SystemClock.uptimeMillis();
+        try {
+            Bundle state = mLog.read();
+            if (state != null) {
+                if (LOGV_ENABLED) {
+                    Log.v(LOGTAG, "Read crash recovery log in "
+                            + (SystemClock.uptimeMillis() - start) + "ms");
+                }
+                return state.isEmpty() ? null : state;
+            }
+        } catch (Throwable e) {
+            Log.w(LOGTAG, "Failed to recover state!", e);
+            return null;
+        }
+        return loadLegacyCrashState();
+    }
+
+    /**
+     * Loads the state saved by versions that wrote the whole state to a single parcel.
+     */
+    private Bundle loadLegacyCrashState() {
         Bundle state = null;
         Parcel parcel = Parcel.obtain();
         FileInputStream fin = null;
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * An append-only log of the state saved for crash recovery.
+ *
+ * Each entry of the saved state (one per tab, plus the tab order and the current tab) is
+ * kept as a separate compressed record. Writing a new state only appends records for the
+ * entries that changed since the last write, and removals for the entries that are gone.
+ * Once the log has grown to several times the size of the records still in use, it is
+ * rewritten with just those.
+ *
+ * Reading looks at every record header, but only decompresses the latest record for each
+ * entry. A record that was cut short by a crash while it was appended is ignored.
+ *
+ * Writing is not thread safe; all writes should come from the same thread.
+ */
+class CrashRecoveryLog {
+
+    private static final String LOGTAG = "CrashRecoveryLog";
+
+    private static final int MAGIC = 0x42524c47; // "BRLG"
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    // Rewrite the log when it is this many times the size of the records in use...
+    private static final int COMPACT_RATIO = 3;
+    // ...and at least this large
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+    // Checksum of the uncompressed value last written for each entry
+    private final HashMap<String, Long> mWrittenChecksums = new HashMap<String, Long>();
+    // Size of the record last written for each entry
+    private final HashMap<String, Integer> mRecordSizes = new HashMap<String, Integer>();
+    private long mLiveSize;
+    private long mLogSize;
+    // Whether this log has written the file yet. The first write replaces whatever an
+    // earlier process left there.
+    private boolean mStarted;
+
+    private long mBytesWritten;
+
+    public CrashRecoveryLog(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Writes the entries of the state that changed since the last write.
+     */
+    public void write(Bundle state) throws IOException {
+        LinkedHashMap<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+        HashMap<String, Long> checksums = new HashMap<String, Long>();
+        for (String key : state.keySet()) {
+            byte[] value = marshall(state.get(key));
+            values.put(key, value);
+            checksums.put(key, checksum(value));
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        HashMap<String, Integer> sizes = new HashMap<String, Integer>();
+        long liveSize = mLiveSize;
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            String key = entry.getKey();
+            Long checksum = checksums.get(key);
+            if (checksum.equals(mWrittenChecksums.get(key))) continue;
+            int size = writeRecord(out, key, entry.getValue(), checksum);
+            sizes.put(key, size);
+            liveSize += size - getRecordSize(key);
+        }
+        ArrayList<String> removed = new ArrayList<String>();
+        for (String key : mWrittenChecksums.keySet()) {
+            if (!values.containsKey(key)) {
+                out.writeByte(RECORD_REMOVE);
+                out.writeUTF(key);
+                removed.add(key);
+                liveSize -= getRecordSize(key);
+            }
+        }
+        out.flush();
+
+        long logSize = mLogSize + records.size();
+        if (!mStarted || logSize > Math.max(MIN_COMPACT_SIZE, COMPACT_RATIO * liveSize)) {
+            rewrite(values, checksums);
+            return;
+        }
+        if (records.size() == 0) return;
+
+        try {
+            FileOutputStream fout = new FileOutputStream(mFile, true);
+            try {
+                records.writeTo(fout);
+            } finally {
+                fout.close();
+            }
+        } catch (IOException e) {
+            // Part of a record may have reached the file, so start over with the next write
+            mStarted = false;
+            throw e;
+        }
+        mBytesWritten += records.size();
+        mLogSize = logSize;
+        mLiveSize = liveSize;
+        for (String key : removed) {
+            mWrittenChecksums.remove(key);
+            mRecordSizes.remove(key);
+        }
+        for (String key : sizes.keySet()) {
+            mWrittenChecksums.put(key, checksums.get(key));
+        }
+        mRecordSizes.putAll(sizes);
+    }
+
+    /**
+     * Replaces the log with one that only has the records for the given state.
+     */
+    private void rewrite(HashMap<String, byte[]> values, HashMap<String, Long> checksums)
+            throws IOException {
+        // Until the new log is in place, a failure leaves the next write to rewrite it again
+        mStarted = false;
+        mWrittenChecksums.clear();
+        mRecordSizes.clear();
+        mLiveSize = 0;
+        mLogSize = 0;
+        File journal = new File(mFile.getPath() + ".journal");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(journal)));
+        long size = 8;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                String key = entry.getKey();
+                Long checksum = checksums.get(key);
+                int recordSize = writeRecord(out, key, entry.getValue(), checksum);
+                mWrittenChecksums.put(key, checksum);
+                mRecordSizes.put(key, recordSize);
+                mLiveSize += recordSize;
+                size += recordSize;
+            }
+        } finally {
+            out.close();
+        }
+        if (!journal.renameTo(mFile)) {
+            // Failed to rename, try deleting the existing file and try again
+            mFile.delete();
+            journal.renameTo(mFile);
+        }
+        mLogSize = size;
+        mBytesWritten += size;
+        mStarted = true;
+    }
+
+    private int getRecordSize(String key) {
+        Integer size = mRecordSizes.get(key);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    private int writeRecord(DataOutputStream out, String key, byte[] value, long checksum)
+            throws IOException {
+        byte[] compressed = compress(value);
+        int start = out.size();
+        out.writeByte(RECORD_PUT);
+        out.writeUTF(key);
+        out.writeLong(checksum);
+        out.writeInt(value.length);
+        out.writeInt(compressed.length);
+        out.write(compressed);
+        return out.size() - start;
+    }
+
+    /**
+     * Deletes the log. The next write starts a new one.
+     */
+    public void delete() {
+        mFile.delete();
+        mWrittenChecksums.clear();
+        mRecordSizes.clear();
+        mLiveSize = 0;
+        mLogSize = 0;
+        mStarted = false;
+    }
+
+    /**
+     * Gets the total number of bytes written to the log by this object.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Reads the latest state from the log.
+     *
+     * @return The state, or {@code null} if there is no log.
+     */
+    public Bundle read() throws IOException {
+        RandomAccessFile in;
+        try {
+            in = new RandomAccessFile(mFile, "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(LOGTAG, "Unknown crash recovery log format");
+                return null;
+            }
+            // Offsets of the records for each entry, latest last
+            LinkedHashMap<String, ArrayList<Long>> offsets =
+                    new LinkedHashMap<String, ArrayList<Long>>();
+            final long length = in.length();
+            try {
+                while (in.getFilePointer() < length) {
+                    long offset = in.getFilePointer();
+                    byte type = in.readByte();
+                    String key = in.readUTF();
+                    if (type == RECORD_REMOVE) {
+                        offsets.remove(key);
+                        continue;
+                    } else if (type != RECORD_PUT) {
+                        Log.w(LOGTAG, "Bad record type " + type + " at " + offset);
+                        break;
+                    }
+                    in.readLong();
+                    in.readInt();
+                    int compressedLength = in.readInt();
+                    long end = in.getFilePointer() + compressedLength;
+                    if (compressedLength < 0 || end > length) {
+                        // Cut short while it was written
+                        break;
+                    }
+                    in.seek(end);
+                    ArrayList<Long> keyOffsets = offsets.get(key);
+                    if (keyOffsets == null) {
+                        keyOffsets = new ArrayList<Long>(1);
+                        offsets.put(key, keyOffsets);
+                    }
+                    keyOffsets.add(offset);
+                }
+            } catch (EOFException e) {
+                // The last record was cut short while it was written
+            }
+
+            Bundle state = new Bundle();
+            for (Map.Entry<String, ArrayList<Long>> entry : offsets.entrySet()) {
+                ArrayList<Long> keyOffsets = entry.getValue();
+                // Fall back to an older record if the latest one is damaged
+                for (int i = keyOffsets.size() - 1; i >= 0; i--) {
+                    if (readRecord(in, keyOffsets.get(i), state)) break;
+                }
+            }
+            return state;
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean readRecord(RandomAccessFile in, long offset, Bundle state)
+            throws IOException {
+        in.seek(offset);
+        in.readByte();
+        String key = in.readUTF();
+        long checksum = in.readLong();
+        byte[] value = new byte[in.readInt()];
+        byte[] compressed = new byte[in.readInt()];
+        in.readFully(compressed);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            if (inflater.inflate(value) != value.length || checksum(value) != checksum) {
+                Log.w(LOGTAG, "Damaged record for " + key);
+                return false;
+            }
+        } catch (DataFormatException e) {
+            Log.w(LOGTAG, "Damaged record for " + key, e);
+            return false;
+        } finally {
+            inflater.end();
+        }
+        return unmarshall(value, key, state);
+    }
+
+    private byte[] compress(byte[] value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(value.length / 2 + 16);
+        mDeflater.reset();
+        DeflaterOutputStream out = new DeflaterOutputStream(bos, mDeflater);
+        out.write(value);
+        out.finish();
+        return bos.toByteArray();
+    }
+
+    private static long checksum(byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(value);
+        return crc.getValue();
+    }
+
+    private static byte[] marshall(Object value) {
+        Parcel p = Parcel.obtain();
+        try {
+            p.writeValue(value);
+            return p.marshall();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private boolean unmarshall(byte[] data, String key, Bundle state) {
+        Parcel p = Parcel.obtain();
+        try {
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            Object value = p.readValue(getClass().getClassLoader());
+            // The saved state only has a few kinds of entries
+            if (value instanceof Bundle) {
+                state.putBundle(key, (Bundle) value);
+            } else if (value instanceof long[]) {
+                state.putLongArray(key, (long[]) value);
+            } else if (value instanceof Long) {
+                state.putLong(key, (Long) value);
+            } else if (value instanceof Integer) {
+                state.putInt(key, (Integer) value);
+            } else if (value instanceof Boolean) {
+                state.putBoolean(key, (Boolean) value);
+            } else if (value instanceof String) {
+                state.putString(key, (String) value);
+            } else if (value instanceof Parcelable) {
+                state.putParcelable(key, (Parcelable) value);
+            } else if (value instanceof Serializable) {
+                state.putSerializable(key, (Serializable) value);
+            } else {
+                Log.w(LOGTAG, "Cannot restore " + key + "=" + value);
+                return false;
+            }
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(LOGTAG, "Damaged record for " + key, e);
+            return false;
+        } finally {
+            p.recycle();
+        }
+    }
+}
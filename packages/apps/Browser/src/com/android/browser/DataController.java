@@ -17,42 +17,56 @@
 
 package com.android.browser;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.History;
 import android.util.Log;
 
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 
-import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
-import android.database.sqlite.SQLiteDatabaseLockedException;
 public class DataController {
     private static final String LOGTAG = "DataController";
     // Message IDs
-    private static final int HISTORY_UPDATE_VISITED = 100;
-    private static final int HISTORY_UPDATE_TITLE = 101;
-    private static final int QUERY_URL_IS_BOOKMARK = 200;
-    private static final int TAB_LOAD_THUMBNAIL = 201;
-    private static final int TAB_SAVE_THUMBNAIL = 202;
-    private static final int TAB_DELETE_THUMBNAIL = 203;
+    /* package */ static final int HISTORY_UPDATE_VISITED = 100;
+    /* package */ static final int HISTORY_UPDATE_TITLE = 101;
+    /* package */ static final int QUERY_URL_IS_BOOKMARK = 200;
+    /* package */ static final int TAB_LOAD_THUMBNAIL = 201;
+    /* package */ static final int TAB_SAVE_THUMBNAIL = 202;
+    /* package */ static final int TAB_DELETE_THUMBNAIL = 203;
+
+    // Thumbnails are saved once they have not changed for this long
+    /* package */ static final long SAVE_THUMBNAIL_DELAY = 2000;
+    // At most this many history updates are written in one transaction
+    /* package */ static final int MAX_HISTORY_BATCH = 100;
+    // History updates that failed to be written are tried again after this long...
+    /* package */ static final long HISTORY_RETRY_DELAY = 5000;
+    // ...this many times in all
+    /* package */ static final int MAX_HISTORY_ATTEMPTS = 3;
+
     private static DataController sInstance;
 
     private Context mContext;
     private DataControllerHandler mDataHandler;
     private Handler mCbHandler; // To respond on the UI thread
-    private ByteBuffer mBuffer; // to capture thumbnails
 
     /* package */ static interface OnQueryUrlIsBookmark {
         void onQueryUrlIsBookmark(String url, boolean isBookmark);
@@ -62,10 +76,18 @@ public class DataController {
         Object[] args;
     }
 
-    private static class DCMessage {
+    /* package */ static class DCMessage {
         int what;
         Object obj;
         Object replyTo;
+        // Others waiting for the reply to a merged bookmark query
+        ArrayList<Object> moreReplyTo;
+        // The number of visits a merged history update stands for
+        int count = 1;
+        // Not handled before this time, in uptimeMillis
+        long when;
+        // The number of times a history update has failed to be written
+        int attempts;
         DCMessage(int w, Object o) {
             what = w;
             obj = o;
@@ -131,9 +153,212 @@ public class DataController {
 
     // The standard Handler and Message classes don't allow the queue manipulation
     // we want (such as peeking). So we use our own queue.
+    //
+    // Requests for the same thing (the same URL, or the same tab) are merged while they
+    // wait, and are handled in order of priority: bookmark queries first, since the UI is
+    // waiting for them, and thumbnail saves last, once they have settled down.
+    //
+    // Thumbnail requests are keyed by tab id, and carry either the Tab or just its id.
+    /* package */ static class RequestQueue {
+        // Waiting requests by key, in order of arrival
+        private final LinkedHashMap<String, DCMessage> mMessageQueue
+                = new LinkedHashMap<String, DCMessage>();
+
+        void put(int what, Object obj, Object replyTo) {
+            String key = getKey(what, obj);
+            synchronized (mMessageQueue) {
+                DCMessage m = mMessageQueue.get(key);
+                if (m != null && merge(m, obj, replyTo)) {
+                    return;
+                }
+                if (what == TAB_DELETE_THUMBNAIL) {
+                    // Nothing left to save or load
+                    mMessageQueue.remove(getTabKey(TAB_SAVE_THUMBNAIL, getTabId(obj)));
+                    mMessageQueue.remove(getTabKey(TAB_LOAD_THUMBNAIL, getTabId(obj)));
+                } else if (what == TAB_LOAD_THUMBNAIL
+                        && mMessageQueue.containsKey(getKey(TAB_SAVE_THUMBNAIL, obj))) {
+                    // The tab has a newer thumbnail than the saved one
+                    return;
+                }
+                m = new DCMessage(what, obj);
+                m.replyTo = replyTo;
+                if (what == TAB_SAVE_THUMBNAIL) {
+                    m.when = SystemClock.uptimeMillis() + SAVE_THUMBNAIL_DELAY;
+                }
+                mMessageQueue.put(key, m);
+                mMessageQueue.notify();
+            }
+        }
+
+        /**
+         * Merges a new request into a waiting one with the same key.
+         *
+         * @return false if the new request should replace the waiting one instead.
+         */
+        private boolean merge(DCMessage m, Object obj, Object replyTo) {
+            switch (m.what) {
+                case HISTORY_UPDATE_VISITED:
+                    m.count++;
+                    return true;
+                case HISTORY_UPDATE_TITLE:
+                    // Only the latest title matters
+                    m.obj = obj;
+                    return true;
+                case QUERY_URL_IS_BOOKMARK:
+                    if (replyTo != m.replyTo) {
+                        if (m.moreReplyTo == null) {
+                            m.moreReplyTo = new ArrayList<Object>(1);
+                        }
+                        if (!m.moreReplyTo.contains(replyTo)) {
+                            m.moreReplyTo.add(replyTo);
+                        }
+                    }
+                    return true;
+                case TAB_SAVE_THUMBNAIL:
+                    // Start waiting again, at the back of the queue
+                    mMessageQueue.remove(getKey(m.what, obj));
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        private static String getKey(int what, Object obj) {
+            switch (what) {
+                case HISTORY_UPDATE_TITLE:
+                    return what + ":" + ((String[]) obj)[0];
+                case TAB_LOAD_THUMBNAIL:
+                case TAB_SAVE_THUMBNAIL:
+                case TAB_DELETE_THUMBNAIL:
+                    return getTabKey(what, getTabId(obj));
+                default:
+                    return what + ":" + obj;
+            }
+        }
+
+        private static long getTabId(Object obj) {
+            return obj instanceof Tab ? ((Tab) obj).getId() : (Long) obj;
+        }
+
+        private static String getTabKey(int what, long tabId) {
+            return what + ":" + tabId;
+        }
+
+        private static int getPriority(int what) {
+            switch (what) {
+                case QUERY_URL_IS_BOOKMARK:
+                    return 0;
+                case TAB_LOAD_THUMBNAIL:
+                case TAB_DELETE_THUMBNAIL:
+                    return 1;
+                case HISTORY_UPDATE_VISITED:
+                case HISTORY_UPDATE_TITLE:
+                    return 2;
+                default:
+                    return 3;
+            }
+        }
+
+        static boolean isHistoryUpdate(int what) {
+            return what == HISTORY_UPDATE_VISITED || what == HISTORY_UPDATE_TITLE;
+        }
+
+        /**
+         * Waits for the next request that is due, and removes it from the queue.
+         */
+        DCMessage take() throws InterruptedException {
+            synchronized (mMessageQueue) {
+                while (true) {
+                    long now = SystemClock.uptimeMillis();
+                    DCMessage next = poll(now);
+                    if (next != null) {
+                        return next;
+                    }
+                    long nextWhen = Long.MAX_VALUE;
+                    for (DCMessage m : mMessageQueue.values()) {
+                        nextWhen = Math.min(nextWhen, m.when);
+                    }
+                    if (nextWhen == Long.MAX_VALUE) {
+                        mMessageQueue.wait();
+                    } else {
+                        mMessageQueue.wait(nextWhen - now);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes the request that is due first at the given time, if any.
+         */
+        DCMessage poll(long now) {
+            synchronized (mMessageQueue) {
+                DCMessage next = null;
+                for (DCMessage m : mMessageQueue.values()) {
+                    if (m.when <= now && (next == null
+                            || getPriority(m.what) < getPriority(next.what))) {
+                        next = m;
+                    }
+                }
+                if (next != null) {
+                    mMessageQueue.remove(getKey(next.what, next.obj));
+                }
+                return next;
+            }
+        }
+
+        /**
+         * Removes the history updates that are due at the given time, so that they can be
+         * written together with the given one. Updates waiting to be retried stay queued.
+         */
+        ArrayList<DCMessage> takeHistoryUpdates(DCMessage first, long now) {
+            ArrayList<DCMessage> updates = new ArrayList<DCMessage>();
+            updates.add(first);
+            synchronized (mMessageQueue) {
+                Iterator<DCMessage> it = mMessageQueue.values().iterator();
+                while (it.hasNext() && updates.size() < MAX_HISTORY_BATCH) {
+                    DCMessage m = it.next();
+                    if (isHistoryUpdate(m.what) && m.when <= now) {
+                        updates.add(m);
+                        it.remove();
+                    }
+                }
+            }
+            return updates;
+        }
+
+        /**
+         * Puts back history updates that failed to be written, to be tried again later,
+         * merging them with any that have arrived since.
+         *
+         * @return the number of updates that have failed too often, and were dropped.
+         */
+        int retryHistoryUpdates(ArrayList<DCMessage> updates) {
+            int dropped = 0;
+            long when = SystemClock.uptimeMillis() + HISTORY_RETRY_DELAY;
+            synchronized (mMessageQueue) {
+                for (DCMessage m : updates) {
+                    if (++m.attempts >= MAX_HISTORY_ATTEMPTS) {
+                        dropped++;
+                        continue;
+                    }
+                    String key = getKey(m.what, m.obj);
+                    DCMessage newer = mMessageQueue.get(key);
+                    if (newer == null) {
+                        m.when = when;
+                        mMessageQueue.put(key, m);
+                    } else if (m.what == HISTORY_UPDATE_VISITED) {
+                        newer.count += m.count;
+                    }
+                    // A newer title replaces the one that failed
+                }
+                mMessageQueue.notify();
+            }
+            return dropped;
+        }
+    }
+
     class DataControllerHandler extends Thread {
-        private BlockingQueue<DCMessage> mMessageQueue
-                = new LinkedBlockingQueue<DCMessage>();
+        private final RequestQueue mQueue = new RequestQueue();
 
         public DataControllerHandler() {
             super("DataControllerHandler");
@@ -144,7 +369,19 @@ public class DataController {
             setPriority(Thread.MIN_PRIORITY);
             while (true) {
                 try {
-                    handleMessage(mMessageQueue.take());
+                    DCMessage msg = mQueue.take();
+                    if (RequestQueue.isHistoryUpdate(msg.what)) {
+                        ArrayList<DCMessage> updates = mQueue.takeHistoryUpdates(msg,
+                                SystemClock.uptimeMillis());
+                        if (!doUpdateHistory(updates)) {
+                            int dropped = mQueue.retryHistoryUpdates(updates);
+                            if (dropped > 0) {
+                                Log.w(LOGTAG, "Dropped " + dropped + " history updates");
+                            }
+                        }
+                    } else {
+                        handleMessage(msg);
+                    }
                 } catch (InterruptedException ex) {
                     break;
                 }
@@ -152,30 +389,17 @@ public class DataController {
         }
 
         void sendMessage(int what, Object obj) {
-            DCMessage m = new DCMessage(what, obj);
-            mMessageQueue.add(m);
+            sendMessage(what, obj, null);
         }
 
         void sendMessage(int what, Object obj, Object replyTo) {
-            DCMessage m = new DCMessage(what, obj);
-            m.replyTo = replyTo;
-            mMessageQueue.add(m);
+            mQueue.put(what, obj, replyTo);
         }
 
         private void handleMessage(DCMessage msg) {
             switch (msg.what) {
-            case HISTORY_UPDATE_VISITED:
-                doUpdateVisitedHistory((String) msg.obj);
-                break;
-            case HISTORY_UPDATE_TITLE:
-                String[] args = (String[]) msg.obj;
-                doUpdateHistoryTitle(args[0], args[1]);
-                break;
             case QUERY_URL_IS_BOOKMARK:
-                // TODO: Look for identical messages in the queue and remove them
-                // TODO: Also, look for partial matches and merge them (such as
-                //       multiple callbacks querying the same URL)
-                doQueryBookmarkStatus((String) msg.obj, msg.replyTo);
+                doQueryBookmarkStatus((String) msg.obj, msg);
                 break;
             case TAB_LOAD_THUMBNAIL:
                 doLoadThumbnail((Tab) msg.obj);
@@ -195,18 +419,22 @@ public class DataController {
         }
 
         private byte[] getCaptureBlob(Tab tab) {
+            Bitmap capture;
             synchronized (tab) {
-                Bitmap capture = tab.getScreenshot();
+                capture = tab.getScreenshot();
                 if (capture == null) {
                     return null;
                 }
-                if (mBuffer == null || mBuffer.limit() < capture.getByteCount()) {
-                    mBuffer = ByteBuffer.allocate(capture.getByteCount());
-                }
-                capture.copyPixelsToBuffer(mBuffer);
-                mBuffer.rewind();
-                return mBuffer.array();
+                // Don't hold up the UI thread capturing the tab while compressing
+                capture = capture.copy(capture.getConfig(), false);
+            }
+            if (capture == null) {
+                return null;
             }
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            capture.compress(Bitmap.CompressFormat.PNG, 100, os);
+            capture.recycle();
+            return os.toByteArray();
         }
 
         private void doSaveThumbnail(Tab tab) {
@@ -241,35 +469,102 @@ public class DataController {
             }
         }
 
-        private void doUpdateVisitedHistory(String url) {
+        /**
+         * Writes visits and title changes to history in a single transaction.
+         *
+         * @return false if nothing could be written, and the updates should be tried again.
+         */
+        private boolean doUpdateHistory(ArrayList<DCMessage> updates) {
+            LinkedHashMap<String, Integer> visits = new LinkedHashMap<String, Integer>();
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+            for (DCMessage m : updates) {
+                if (m.what == HISTORY_UPDATE_VISITED) {
+                    // The URL may have been visited again after its update was taken
+                    Integer count = visits.get((String) m.obj);
+                    visits.put((String) m.obj, count == null ? m.count : count + m.count);
+                }
+            }
             ContentResolver cr = mContext.getContentResolver();
+            try {
+                if (!visits.isEmpty()) {
+                    addVisitOperations(cr, visits, ops);
+                }
+                // After the visits, so that the titles of new entries are set too
+                for (DCMessage m : updates) {
+                    if (m.what == HISTORY_UPDATE_TITLE) {
+                        String[] args = (String[]) m.obj;
+                        ops.add(ContentProviderOperation.newUpdate(History.CONTENT_URI)
+                                .withSelection(History.URL + "=?", new String[] { args[0] })
+                                .withValue(History.TITLE, args[1])
+                                .build());
+                    }
+                }
+                cr.applyBatch(BrowserContract.AUTHORITY, ops);
+                return true;
+            } catch (RemoteException e) {
+                Log.e(LOGTAG, "Error updating history: " + e);
+            } catch (OperationApplicationException e) {
+                Log.e(LOGTAG, "Error updating history: " + e);
+            } catch (SQLiteException e) {
+                Log.e(LOGTAG, "Error updating history: " + e);
+            }
+            return false;
+        }
+
+        private void addVisitOperations(ContentResolver cr, HashMap<String, Integer> visits,
+                ArrayList<ContentProviderOperation> ops) {
+            // Look up the existing entries for all the URLs at once
+            HashMap<String, long[]> existing = new HashMap<String, long[]>();
+            String[] urls = visits.keySet().toArray(new String[visits.size()]);
+            StringBuilder selection = new StringBuilder(History.URL + " IN (");
+            for (int i = 0; i < urls.length; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(')');
             Cursor c = null;
             try {
-                c = cr.query(History.CONTENT_URI, new String[] { History._ID, History.VISITS },
-                        History.URL + "=?", new String[] { url }, null);
-                if (c.moveToFirst()) {
-                    ContentValues values = new ContentValues();
-                    values.put(History.VISITS, c.getInt(1) + 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0)),
-                            values, null, null);
-                } else {
-                    android.provider.Browser.truncateHistory(cr);
-                    ContentValues values = new ContentValues();
-                    values.put(History.URL, url);
-                    values.put(History.VISITS, 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    values.put(History.TITLE, url);
-                    values.put(History.DATE_CREATED, 0);
-                    values.put(History.USER_ENTERED, 0);
-                    cr.insert(History.CONTENT_URI, values);
+                c = cr.query(History.CONTENT_URI,
+                        new String[] { History._ID, History.VISITS, History.URL },
+                        selection.toString(), urls, null);
+                while (c.moveToNext()) {
+                    String url = c.getString(2);
+                    if (!existing.containsKey(url)) {
+                        existing.put(url, new long[] { c.getLong(0), c.getInt(1) });
+                    }
                 }
             } finally {
                 if (c != null) c.close();
             }
+
+            long now = System.currentTimeMillis();
+            boolean inserting = false;
+            for (String url : urls) {
+                int count = visits.get(url);
+                long[] entry = existing.get(url);
+                if (entry != null) {
+                    ops.add(ContentProviderOperation.newUpdate(
+                            ContentUris.withAppendedId(History.CONTENT_URI, entry[0]))
+                            .withValue(History.VISITS, entry[1] + count)
+                            .withValue(History.DATE_LAST_VISITED, now)
+                            .build());
+                } else {
+                    inserting = true;
+                    ops.add(ContentProviderOperation.newInsert(History.CONTENT_URI)
+                            .withValue(History.URL, url)
+                            .withValue(History.VISITS, count)
+                            .withValue(History.DATE_LAST_VISITED, now)
+                            .withValue(History.TITLE, url)
+                            .withValue(History.DATE_CREATED, 0)
+                            .withValue(History.USER_ENTERED, 0)
+                            .build());
+                }
+            }
+            if (inserting) {
+                android.provider.Browser.truncateHistory(cr);
+            }
         }
 
-        private void doQueryBookmarkStatus(String url, Object replyTo) {
+        private void doQueryBookmarkStatus(String url, DCMessage msg) {
             // Check to see if the site is bookmarked
             Cursor cursor = null;
             boolean isBookmark = false;
@@ -286,24 +581,19 @@ public class DataController {
             } finally {
                 if (cursor != null) cursor.close();
             }
+            reply(msg.replyTo, url, isBookmark);
+            if (msg.moreReplyTo != null) {
+                for (Object replyTo : msg.moreReplyTo) {
+                    reply(replyTo, url, isBookmark);
+                }
+            }
+        }
+
+        private void reply(Object replyTo, String url, boolean isBookmark) {
             CallbackContainer cc = new CallbackContainer();
             cc.replyTo = replyTo;
             cc.args = new Object[] { url, isBookmark };
             mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
         }
-
-        private void doUpdateHistoryTitle(String url, String title) {
-            try {
-                ContentResolver cr = mContext.getContentResolver();
-                ContentValues values = new ContentValues();
-                values.put(History.TITLE, title);
-                cr.update(History.CONTENT_URI, values, History.URL + "=?",
-                        new String[] { url });
-            } catch(SQLiteDatabaseLockedException e){
-                Log.e(LOGTAG,"SQLiteDatabase locked: "+e);
-            } catch(SQLiteException e){
-                Log.e(LOGTAG,"SQliteException: "+e);
-            }
-        }
     }
 }
@@ -479,6 +479,8 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
             ub.appendQueryParameter(BrowserContract.PARAM_LIMIT,
                     Integer.toString(Math.max(mLinesLandscape, mLinesPortrait)));
+            ub.appendQueryParameter(OmniboxSuggestions.QUERY_PARAMETER_FILTER,
+                    constraint.toString());
             mCursor =
                     mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
                             selection, (constraint != null) ? args : null, null);
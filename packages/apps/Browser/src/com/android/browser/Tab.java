@@ -35,6 +35,7 @@ import android.graphics.Paint;
 import android.graphics.Picture;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.net.http.SslError;
 import android.os.Bundle;
@@ -2231,8 +2232,20 @@ class Tab implements PictureListener {
     }
 
     void updateCaptureFromBlob(byte[] blob) {
+        // Thumbnails are saved compressed, but older ones may still be raw pixels
+        Bitmap saved = BitmapFactory.decodeByteArray(blob, 0, blob.length);
         synchronized (Tab.this) {
             if (mCapture == null) {
+                if (saved != null) {
+                    saved.recycle();
+                }
+                return;
+            }
+            if (saved != null) {
+                Canvas c = new Canvas(mCapture);
+                c.drawBitmap(saved, null,
+                        new Rect(0, 0, mCapture.getWidth(), mCapture.getHeight()), null);
+                saved.recycle();
                 return;
             }
             ByteBuffer buffer = ByteBuffer.wrap(blob);
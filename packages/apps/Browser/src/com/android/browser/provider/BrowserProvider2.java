@@ -90,6 +90,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String URL = "url";
         public static final String TITLE = "title";
         public static final String IS_BOOKMARK = "bookmark";
+
+        /**
+         * Query parameter with the text typed by the user. If given, only the suggestions
+         * with a word in their URL or title that starts with each word of the text are
+         * looked at, which is much faster than a LIKE selection on its own.
+         */
+        public static final String QUERY_PARAMETER_FILTER = "filter";
     }
 
     static final String TABLE_BOOKMARKS = "bookmarks";
@@ -100,6 +107,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String TABLE_SETTINGS = "settings";
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final String TABLE_THUMBNAILS = "thumbnails";
+    static final String TABLE_HISTORY_FTS = "history_fts";
+    static final String TABLE_BOOKMARKS_FTS = "bookmarks_fts";
 
     static final String TABLE_BOOKMARKS_JOIN_IMAGES = "bookmarks LEFT OUTER JOIN images " +
             "ON bookmarks.url = images." + Images.URL;
@@ -142,6 +151,14 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     private static final String SUGGEST_ORDER_BY =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " DESC";
 
+    private static final String SUGGEST_MATCH_ORDER_BY =
+            TABLE_HISTORY + "." + History.VISITS + " DESC, "
+            + TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " DESC";
+
+    private static final String DEFAULT_SORT_OMNIBOX_SUGGESTIONS =
+            OmniboxSuggestions.IS_BOOKMARK + " DESC, " + History.VISITS + " DESC, "
+            + History.DATE_LAST_VISITED + " DESC";
+
     private static final String IMAGE_PRUNE =
             "url_key NOT IN (SELECT url FROM bookmarks " +
             "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
@@ -384,7 +401,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 33;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
         }
@@ -457,12 +474,36 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
             enableSync(db);
             createOmniboxSuggestions(db);
+            createOmniboxIndex(db);
         }
 
         void createOmniboxSuggestions(SQLiteDatabase db) {
             db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
         }
 
+        /**
+         * Creates full text indexes of the URLs and titles of history and bookmarks, kept up
+         * to date by triggers, and fills them from the current contents of the tables.
+         */
+        void createOmniboxIndex(SQLiteDatabase db) {
+            createFtsIndex(db, TABLE_HISTORY, TABLE_HISTORY_FTS);
+            createFtsIndex(db, TABLE_BOOKMARKS, TABLE_BOOKMARKS_FTS);
+            // For joining the index matches back between history and bookmarks
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyUrlIndex ON " + TABLE_HISTORY +
+                    "(" + History.URL + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksUrlIndex ON " + TABLE_BOOKMARKS +
+                    "(" + Bookmarks.URL + ")");
+        }
+
+        private void createFtsIndex(SQLiteDatabase db, String table, String ftsTable) {
+            db.execSQL("DROP TABLE IF EXISTS " + ftsTable);
+            db.execSQL("CREATE VIRTUAL TABLE " + ftsTable + " USING fts3(url, title)");
+            db.execSQL(String.format(SQL_FILL_FTS_INDEX, table, ftsTable));
+            db.execSQL(String.format(SQL_CREATE_FTS_INSERT_TRIGGER, table, ftsTable));
+            db.execSQL(String.format(SQL_CREATE_FTS_UPDATE_TRIGGER, table, ftsTable));
+            db.execSQL(String.format(SQL_CREATE_FTS_DELETE_TRIGGER, table, ftsTable));
+        }
+
         void createThumbnails(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_THUMBNAILS + " (" +
                     Thumbnails._ID + " INTEGER PRIMARY KEY," +
@@ -594,6 +635,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Versions before 25 are recreated from scratch below
+            if (oldVersion < 33 && oldVersion >= 25) {
+                createOmniboxIndex(db);
+            }
             if (oldVersion < 32) {
                 createOmniboxSuggestions(db);
             }
@@ -1105,7 +1150,21 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case OMNIBOX_SUGGESTIONS: {
-                qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                String filter = uri.getQueryParameter(OmniboxSuggestions.QUERY_PARAMETER_FILTER);
+                String match = filter == null ? null : buildFtsMatch(filter);
+                if (match == null) {
+                    qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                    break;
+                }
+                // The same rows as the view, but only those that the index finds. The
+                // selection still decides which of them are returned.
+                qb.setTables("(" + SQL_SELECT_OMNIBOX_SUGGESTIONS_MATCHING + ")");
+                String[] matchArgs = new String[] { match, match };
+                selectionArgs = selectionArgs == null ? matchArgs
+                        : DatabaseUtils.appendSelectionArgs(matchArgs, selectionArgs);
+                if (sortOrder == null) {
+                    sortOrder = DEFAULT_SORT_OMNIBOX_SUGGESTIONS;
+                }
                 break;
             }
 
@@ -1121,10 +1180,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     }
 
     private Cursor doSuggestQuery(String selection, String[] selectionArgs, String limit) {
+        String orderBy = SUGGEST_ORDER_BY;
         if (TextUtils.isEmpty(selectionArgs[0])) {
             selection = ZERO_QUERY_SUGGEST_SELECTION;
             selectionArgs = null;
         } else {
+            String match = buildFtsMatch(selectionArgs[0]);
             String like = "%" + selectionArgs[0] + "%";
             if (selectionArgs[0].startsWith("http")
                     || selectionArgs[0].startsWith("file")) {
@@ -1146,15 +1207,58 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     + " IS NULL) AND (" + Bookmarks.IS_FOLDER + "=0 OR "
                     + Bookmarks.IS_FOLDER + " IS NULL)");
 
+            if (match != null) {
+                // Only look at the history entries that the index finds, instead of
+                // matching the LIKE patterns against all of history
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        SQL_WHERE_HISTORY_MATCHES);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { match, match });
+                orderBy = SUGGEST_MATCH_ORDER_BY;
+            }
         }
 
         Cursor c = mOpenHelper.getReadableDatabase().query(TABLE_BOOKMARKS_JOIN_HISTORY,
                 SUGGEST_PROJECTION, selection, selectionArgs, null, null,
-                SUGGEST_ORDER_BY, null);
+                orderBy, limit);
 
         return new SuggestionsCursor(c);
     }
 
+    /**
+     * Builds a full text query that matches text containing the words of the given text, in
+     * the same order, with the last one possibly incomplete. The text is split into words the
+     * same way as by the fts3 simple tokenizer, so any text that contains the given text
+     * starting at a word boundary is matched.
+     *
+     * @return The full text query, or {@code null} if the text does not contain any words.
+     */
+    @VisibleForTesting
+    static String buildFtsMatch(String text) {
+        StringBuilder match = new StringBuilder(text.length() + 3);
+        match.append('"');
+        boolean inWord = false;
+        boolean hasWords = false;
+        final int len = text.length();
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            // The simple tokenizer folds ASCII letters only, and treats all non-ASCII
+            // characters as parts of words
+            boolean isWordChar = c >= 0x80 || (c >= '0' && c <= '9')
+                    || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+            if (isWordChar) {
+                if (!inWord && hasWords) match.append(' ');
+                match.append(c >= 'A' && c <= 'Z' ? (char) (c - 'A' + 'a') : c);
+                inWord = true;
+                hasWords = true;
+            } else {
+                inWord = false;
+            }
+        }
+        if (!hasWords) return null;
+        return match.append("*\"").toString();
+    }
+
     private String[] createCombinedQuery(
             Uri uri, String[] projection, SQLiteQueryBuilder qb) {
         String[] args = null;
@@ -2208,6 +2312,53 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             + "    WHERE deleted = 0 AND folder = 0) "
             + "  ORDER BY bookmark DESC, visits DESC, date DESC ";
 
+    private static final String SQL_SELECT_OMNIBOX_SUGGESTIONS_MATCHING =
+            "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date"
+            + "  FROM bookmarks "
+            + "  WHERE deleted = 0 AND folder = 0 "
+            + "    AND _id IN (SELECT docid FROM bookmarks_fts WHERE bookmarks_fts MATCH ?) "
+            + "  UNION ALL "
+            + "  SELECT _id, url, title, 0 AS bookmark, visits, date "
+            + "  FROM history "
+            + "  WHERE _id IN (SELECT docid FROM history_fts WHERE history_fts MATCH ?) "
+            + "    AND url NOT IN (SELECT url FROM bookmarks"
+            + "      WHERE deleted = 0 AND folder = 0) ";
+
+    private static final String SQL_WHERE_HISTORY_MATCHES =
+            "history._id IN ( "
+            + "  SELECT docid FROM history_fts WHERE history_fts MATCH ? "
+            + "  UNION "
+            + "  SELECT h._id "
+            + "  FROM bookmarks_fts "
+            + "    JOIN bookmarks b ON b._id = bookmarks_fts.docid "
+            + "    JOIN history h ON h.url = b.url "
+            + "  WHERE bookmarks_fts MATCH ? "
+            + ")";
+
+    // Format arguments are the table and its full text index
+    private static final String SQL_FILL_FTS_INDEX =
+            "INSERT INTO %2$s (docid, url, title) "
+            + "  SELECT _id, url, title FROM %1$s";
+
+    private static final String SQL_CREATE_FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS %2$s_insert AFTER INSERT ON %1$s "
+            + "BEGIN "
+            + "  INSERT INTO %2$s (docid, url, title) VALUES (new._id, new.url, new.title); "
+            + "END";
+
+    private static final String SQL_CREATE_FTS_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS %2$s_update AFTER UPDATE OF url, title ON %1$s "
+            + "BEGIN "
+            + "  DELETE FROM %2$s WHERE docid = old._id; "
+            + "  INSERT INTO %2$s (docid, url, title) VALUES (new._id, new.url, new.title); "
+            + "END";
+
+    private static final String SQL_CREATE_FTS_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS %2$s_delete AFTER DELETE ON %1$s "
+            + "BEGIN "
+            + "  DELETE FROM %2$s WHERE docid = old._id; "
+            + "END";
+
     private static final String SQL_WHERE_ACCOUNT_HAS_BOOKMARKS =
             "0 < ( "
             + "SELECT count(*) "
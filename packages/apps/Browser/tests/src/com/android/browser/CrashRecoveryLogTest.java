@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+
+/**
+ * Tests for {@link CrashRecoveryLog}.
+ */
+@MediumTest
+public class CrashRecoveryLogTest extends AndroidTestCase {
+
+    private static final String TAG = "CrashRecoveryLogTest";
+
+    private static final int TAB_COUNT = 50;
+    // One backup every BACKUP_DELAY for a minute
+    private static final int BACKUPS_PER_MINUTE = 120;
+
+    private File mFile;
+    private CrashRecoveryLog mLog;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_browser_state.log");
+        mFile.delete();
+        mLog = new CrashRecoveryLog(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Creates a state like the one saved by {@link TabControl#saveState}.
+     */
+    private static Bundle createState(int tabCount, int version) {
+        Bundle state = new Bundle();
+        long[] ids = new long[tabCount];
+        for (int i = 0; i < tabCount; i++) {
+            ids[i] = i;
+            state.putBundle(Long.toString(i), createTab(i, version));
+        }
+        state.putLongArray("positions", ids);
+        state.putLong("current", 0);
+        return state;
+    }
+
+    private static Bundle createTab(int id, int version) {
+        Bundle tab = new Bundle();
+        tab.putLong("ID", id);
+        tab.putString("currentUrl", "http://www.example.com/page/" + id + "/" + version);
+        tab.putString("currentTitle", "Example page " + id + " version " + version);
+        tab.putBoolean("privateBrowsingEnabled", false);
+        // Stands in for the WebView back/forward list
+        byte[] history = new byte[4096];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = (byte) ((i * 31 + id + version) % 64);
+        }
+        tab.putByteArray("WEBVIEW_STATE", history);
+        return tab;
+    }
+
+    private static void assertTab(Bundle expected, Bundle observed) {
+        assertNotNull(observed);
+        assertEquals(expected.getLong("ID"), observed.getLong("ID"));
+        assertEquals(expected.getString("currentUrl"), observed.getString("currentUrl"));
+        assertEquals(expected.getString("currentTitle"), observed.getString("currentTitle"));
+        assertEquals(expected.getByteArray("WEBVIEW_STATE").length,
+                observed.getByteArray("WEBVIEW_STATE").length);
+    }
+
+    private static void assertState(Bundle expected, Bundle observed) {
+        assertNotNull(observed);
+        assertEquals(expected.keySet(), observed.keySet());
+        long[] positions = expected.getLongArray("positions");
+        assertEquals(positions.length, observed.getLongArray("positions").length);
+        for (long id : positions) {
+            String key = Long.toString(id);
+            assertTab(expected.getBundle(key), observed.getBundle(key));
+        }
+        assertEquals(expected.getLong("current"), observed.getLong("current"));
+    }
+
+    public void testReadWithoutLog() throws Exception {
+        assertNull(mLog.read());
+    }
+
+    public void testRoundTrip() throws Exception {
+        Bundle state = createState(3, 0);
+        state.putSerializable("lastActiveDate", Calendar.getInstance());
+        mLog.write(state);
+        Bundle read = new CrashRecoveryLog(mFile).read();
+        assertState(state, read);
+        assertEquals(state.getSerializable("lastActiveDate"),
+                read.getSerializable("lastActiveDate"));
+    }
+
+    public void testOnlyChangesAreWritten() throws Exception {
+        Bundle state = createState(10, 0);
+        mLog.write(state);
+        long written = mLog.getBytesWritten();
+
+        mLog.write(state);
+        assertEquals(written, mLog.getBytesWritten());
+
+        state.putBundle("3", createTab(3, 1));
+        mLog.write(state);
+        long changed = mLog.getBytesWritten() - written;
+        assertTrue(changed > 0);
+        assertTrue(changed < written / 5);
+        assertState(state, new CrashRecoveryLog(mFile).read());
+    }
+
+    public void testRemovedTab() throws Exception {
+        Bundle state = createState(3, 0);
+        mLog.write(state);
+        state.remove("1");
+        state.putLongArray("positions", new long[] { 0, 2 });
+        mLog.write(state);
+        Bundle read = new CrashRecoveryLog(mFile).read();
+        assertFalse(read.containsKey("1"));
+        assertState(state, read);
+    }
+
+    public void testNewLogStartsOver() throws Exception {
+        mLog.write(createState(5, 0));
+        Bundle state = createState(2, 1);
+        new CrashRecoveryLog(mFile).write(state);
+        assertState(state, new CrashRecoveryLog(mFile).read());
+    }
+
+    public void testDelete() throws Exception {
+        mLog.write(createState(2, 0));
+        mLog.delete();
+        assertNull(mLog.read());
+        Bundle state = createState(1, 1);
+        mLog.write(state);
+        assertState(state, mLog.read());
+    }
+
+    public void testTruncatedRecordIsIgnored() throws Exception {
+        Bundle state = createState(3, 0);
+        mLog.write(state);
+        long length = mFile.length();
+        Bundle changed = createState(3, 0);
+        changed.putBundle("2", createTab(2, 1));
+        mLog.write(changed);
+        assertTrue(mFile.length() > length + 10);
+
+        // Crash in the middle of appending the record
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(length + 10);
+        file.close();
+        assertState(state, new CrashRecoveryLog(mFile).read());
+    }
+
+    public void testFailedAppendRewritesLog() throws Exception {
+        mLog.write(createState(3, 0));
+        Bundle changed = createState(3, 0);
+        changed.putBundle("2", createTab(2, 1));
+        assertTrue(mFile.setWritable(false));
+        try {
+            mLog.write(changed);
+            fail("Appending to a read-only log should fail");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            mFile.setWritable(true);
+        }
+
+        // Leave part of a record behind, as a failure in the middle of the append would
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(file.length());
+        file.write(new byte[] { 1, 0 });
+        file.close();
+
+        long written = mLog.getBytesWritten();
+        mLog.write(changed);
+        assertEquals(mFile.length(), mLog.getBytesWritten() - written);
+        assertState(changed, new CrashRecoveryLog(mFile).read());
+    }
+
+    public void testLogIsCompacted() throws Exception {
+        Bundle state = createState(5, 0);
+        mLog.write(state);
+        long size = mFile.length();
+        for (int i = 1; i <= 1000; i++) {
+            state.putBundle("0", createTab(0, i));
+            mLog.write(state);
+        }
+        assertTrue(mFile.length() <= Math.max(64 * 1024, 4 * size));
+        assertState(state, new CrashRecoveryLog(mFile).read());
+    }
+
+    /**
+     * Logs the bytes written for a minute of backups of 50 tabs where one tab changes
+     * between backups, compared to writing the whole state each time, and the time it
+     * takes to read the state back.
+     */
+    public void testBenchmark() throws Exception {
+        Bundle state = createState(TAB_COUNT, 0);
+        for (int i = 0; i < BACKUPS_PER_MINUTE; i++) {
+            state.putBundle(Long.toString(i % TAB_COUNT), createTab(i % TAB_COUNT, i));
+            mLog.write(state);
+        }
+        Parcel p = Parcel.obtain();
+        state.writeToParcel(p, 0);
+        long parcelBytes = (long) p.dataSize() * BACKUPS_PER_MINUTE;
+        p.recycle();
+
+        long start = SystemClock.uptimeMillis();
+        Bundle read = new CrashRecoveryLog(mFile).read();
+        long readTime = SystemClock.uptimeMillis() - start;
+        assertState(state, read);
+
+        Log.i(TAG, TAB_COUNT + " tabs: log=" + mLog.getBytesWritten() + " parcel="
+                + parcelBytes + " bytes/min, file=" + mFile.length() + " bytes, read="
+                + readTime + "ms");
+        assertTrue(mLog.getBytesWritten() < parcelBytes);
+    }
+}
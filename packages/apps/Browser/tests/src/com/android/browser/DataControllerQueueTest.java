@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.DataController.DCMessage;
+import com.android.browser.DataController.RequestQueue;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the request queue of {@link DataController}.
+ */
+@SmallTest
+public class DataControllerQueueTest extends TestCase {
+
+    private RequestQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new RequestQueue();
+    }
+
+    private DCMessage pollNow() {
+        return mQueue.poll(SystemClock.uptimeMillis());
+    }
+
+    private ArrayList<DCMessage> takeHistoryUpdatesNow(DCMessage first) {
+        return mQueue.takeHistoryUpdates(first, SystemClock.uptimeMillis());
+    }
+
+    public void testVisitsToTheSameUrlAreMerged() {
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://a/", null);
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://b/", null);
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://a/", null);
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://a/", null);
+
+        DCMessage first = pollNow();
+        assertEquals("http://a/", first.obj);
+        assertEquals(3, first.count);
+        ArrayList<DCMessage> updates = takeHistoryUpdatesNow(first);
+        assertEquals(2, updates.size());
+        assertEquals("http://b/", updates.get(1).obj);
+        assertEquals(1, updates.get(1).count);
+        assertNull(pollNow());
+    }
+
+    public void testLatestTitleWins() {
+        mQueue.put(DataController.HISTORY_UPDATE_TITLE, new String[] { "http://a/", "One" }, null);
+        mQueue.put(DataController.HISTORY_UPDATE_TITLE, new String[] { "http://a/", "Two" }, null);
+
+        DCMessage m = pollNow();
+        assertEquals("Two", ((String[]) m.obj)[1]);
+        assertNull(pollNow());
+    }
+
+    public void testBookmarkQueriesShareOneLookup() {
+        Object first = new Object();
+        Object second = new Object();
+        mQueue.put(DataController.QUERY_URL_IS_BOOKMARK, "http://a/", first);
+        mQueue.put(DataController.QUERY_URL_IS_BOOKMARK, "http://a/", second);
+        mQueue.put(DataController.QUERY_URL_IS_BOOKMARK, "http://a/", second);
+
+        DCMessage m = pollNow();
+        assertSame(first, m.replyTo);
+        assertEquals(1, m.moreReplyTo.size());
+        assertSame(second, m.moreReplyTo.get(0));
+        assertNull(pollNow());
+    }
+
+    public void testPriority() {
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://a/", null);
+        mQueue.put(DataController.TAB_LOAD_THUMBNAIL, 1L, null);
+        mQueue.put(DataController.QUERY_URL_IS_BOOKMARK, "http://a/", new Object());
+
+        assertEquals(DataController.QUERY_URL_IS_BOOKMARK, pollNow().what);
+        assertEquals(DataController.TAB_LOAD_THUMBNAIL, pollNow().what);
+        assertEquals(DataController.HISTORY_UPDATE_VISITED, pollNow().what);
+        assertNull(pollNow());
+    }
+
+    public void testThumbnailSavesWaitUntilSettled() throws InterruptedException {
+        long beforeFirst = SystemClock.uptimeMillis();
+        mQueue.put(DataController.TAB_SAVE_THUMBNAIL, 1L, null);
+        long afterFirst = SystemClock.uptimeMillis();
+        assertNull(mQueue.poll(beforeFirst + DataController.SAVE_THUMBNAIL_DELAY - 1));
+
+        // Saving again starts the wait over
+        Thread.sleep(10);
+        mQueue.put(DataController.TAB_SAVE_THUMBNAIL, 1L, null);
+        long afterSecond = SystemClock.uptimeMillis();
+        assertNull(mQueue.poll(afterFirst + DataController.SAVE_THUMBNAIL_DELAY));
+
+        DCMessage m = mQueue.poll(afterSecond + DataController.SAVE_THUMBNAIL_DELAY);
+        assertEquals(DataController.TAB_SAVE_THUMBNAIL, m.what);
+        assertNull(mQueue.poll(Long.MAX_VALUE));
+    }
+
+    public void testLoadSkippedWhileSavePending() {
+        mQueue.put(DataController.TAB_SAVE_THUMBNAIL, 1L, null);
+        mQueue.put(DataController.TAB_LOAD_THUMBNAIL, 1L, null);
+
+        assertNull(pollNow());
+        assertEquals(DataController.TAB_SAVE_THUMBNAIL, mQueue.poll(Long.MAX_VALUE).what);
+        assertNull(mQueue.poll(Long.MAX_VALUE));
+    }
+
+    public void testDeleteCancelsPendingRequests() {
+        mQueue.put(DataController.TAB_LOAD_THUMBNAIL, 1L, null);
+        mQueue.put(DataController.TAB_SAVE_THUMBNAIL, 2L, null);
+        mQueue.put(DataController.TAB_SAVE_THUMBNAIL, 3L, null);
+        mQueue.put(DataController.TAB_DELETE_THUMBNAIL, 1L, null);
+        mQueue.put(DataController.TAB_DELETE_THUMBNAIL, 2L, null);
+
+        DCMessage m = mQueue.poll(Long.MAX_VALUE);
+        assertEquals(DataController.TAB_DELETE_THUMBNAIL, m.what);
+        assertEquals(1L, m.obj);
+        m = mQueue.poll(Long.MAX_VALUE);
+        assertEquals(DataController.TAB_DELETE_THUMBNAIL, m.what);
+        assertEquals(2L, m.obj);
+        // Only the other tab's thumbnail is still saved
+        m = mQueue.poll(Long.MAX_VALUE);
+        assertEquals(DataController.TAB_SAVE_THUMBNAIL, m.what);
+        assertEquals(3L, m.obj);
+        assertNull(mQueue.poll(Long.MAX_VALUE));
+    }
+
+    public void testFailedHistoryUpdatesAreRetried() {
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://a/", null);
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://a/", null);
+        ArrayList<DCMessage> updates = takeHistoryUpdatesNow(pollNow());
+
+        // Another visit arrives while the first two are being written
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://a/", null);
+        assertEquals(0, mQueue.retryHistoryUpdates(updates));
+        DCMessage m = pollNow();
+        assertEquals(3, m.count);
+        assertNull(pollNow());
+
+        // Without newer visits, the failed ones wait before being tried again
+        updates = takeHistoryUpdatesNow(m);
+        assertEquals(0, mQueue.retryHistoryUpdates(updates));
+        assertNull(pollNow());
+        m = mQueue.poll(Long.MAX_VALUE);
+        assertEquals(3, m.count);
+
+        // Until they have failed too often
+        updates = takeHistoryUpdatesNow(m);
+        for (int i = 2; i < DataController.MAX_HISTORY_ATTEMPTS; i++) {
+            assertEquals(0, mQueue.retryHistoryUpdates(updates));
+            updates = mQueue.takeHistoryUpdates(mQueue.poll(Long.MAX_VALUE), Long.MAX_VALUE);
+        }
+        assertEquals(1, mQueue.retryHistoryUpdates(updates));
+        assertNull(mQueue.poll(Long.MAX_VALUE));
+    }
+
+    public void testRetriedHistoryUpdatesAreNotBatchedEarly() {
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://a/", null);
+        ArrayList<DCMessage> updates = takeHistoryUpdatesNow(pollNow());
+        assertEquals(0, mQueue.retryHistoryUpdates(updates));
+
+        // A new update is written without the failed one, which is still waiting
+        mQueue.put(DataController.HISTORY_UPDATE_VISITED, "http://b/", null);
+        updates = takeHistoryUpdatesNow(pollNow());
+        assertEquals(1, updates.size());
+        assertEquals("http://b/", updates.get(0).obj);
+        assertNull(pollNow());
+        assertEquals("http://a/", mQueue.poll(Long.MAX_VALUE).obj);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.app.SearchManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BrowserContract;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashSet;
+
+@SmallTest
+public class BP2OmniboxSuggestionsTests extends BP2TestCaseHelper {
+
+    static final String[] PROJECTION = new String[] {
+            OmniboxSuggestions.URL,
+            OmniboxSuggestions.IS_BOOKMARK,
+    };
+
+    // The selections used by the URL bar
+    static final String SELECTION =
+            "(url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)";
+
+    private HashSet<String> queryOmnibox(String filter) {
+        String like = filter + "%";
+        String selection = SELECTION;
+        String[] args = new String[] {
+                "http://" + like, "http://www." + like, "https://" + like,
+                "https://www." + like, like };
+        if (like.startsWith("http")) {
+            selection = "url LIKE ?";
+            args = new String[] { like };
+        }
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(OmniboxSuggestions.QUERY_PARAMETER_FILTER, filter)
+                .build();
+        Cursor c = getMockContentResolver().query(uri, PROJECTION, selection, args, null);
+        HashSet<String> urls = new HashSet<String>();
+        try {
+            while (c.moveToNext()) {
+                urls.add(c.getString(0) + (c.getInt(1) == 1 ? " (bookmark)" : ""));
+            }
+        } finally {
+            c.close();
+        }
+        return urls;
+    }
+
+    private void assertOmnibox(String filter, String... expected) {
+        HashSet<String> urls = queryOmnibox(filter);
+        assertEquals(filter + ": " + urls, expected.length, urls.size());
+        for (String url : expected) {
+            assertTrue(filter + ": " + urls + " should contain " + url, urls.contains(url));
+        }
+    }
+
+    public void testMatchesUrlAndTitle() {
+        insertHistory("http://www.example.com/news", "Daily News");
+        insertHistory("https://other.org/", "Other");
+        assertOmnibox("exa", "http://www.example.com/news");
+        assertOmnibox("example.com/n", "http://www.example.com/news");
+        assertOmnibox("Dai", "http://www.example.com/news");
+        assertOmnibox("oth", "https://other.org/");
+        assertOmnibox("https://oth", "https://other.org/");
+        // Only prefixes of the URL or title match, just like with LIKE on its own
+        assertOmnibox("news");
+        assertOmnibox("ample");
+    }
+
+    public void testIndexFollowsUpdatesAndDeletes() {
+        Uri history = insertHistory("http://example.com/", "Daily News");
+        assertTrue(updateHistory(history, "http://example.org/", "Weekly Post"));
+        assertOmnibox("dai");
+        assertOmnibox("wee", "http://example.org/");
+        assertOmnibox("example.org", "http://example.org/");
+        assertOmnibox("example.com");
+
+        assertEquals(1, getMockContentResolver().delete(history, null, null));
+        assertOmnibox("wee");
+    }
+
+    public void testBookmarksComeFromBookmarks() {
+        Uri bookmark = insertBookmark("http://example.com/", "Stub");
+        insertHistory("http://example.com/", "Stub");
+        insertHistory("http://example.org/", "Stub too");
+        assertOmnibox("stub", "http://example.com/ (bookmark)", "http://example.org/");
+
+        assertTrue(updateBookmark(bookmark, "http://example.com/", "Renamed"));
+        assertOmnibox("ren", "http://example.com/ (bookmark)");
+    }
+
+    public void testNoWordsInFilter() {
+        insertHistory("http://example.com/", "-- Stub --");
+        // Nothing to look up in the index, so the selection alone decides
+        assertOmnibox("--", "http://example.com/");
+        assertOmnibox("./");
+    }
+
+    public void testSearchSuggestions() {
+        insertHistory("http://www.example.com/news", "Daily News");
+        insertBookmark("http://example.org/", "Bookmarked");
+        insertHistory("http://example.org/", "Visited");
+        Uri uri = Uri.withAppendedPath(BrowserContract.AUTHORITY_URI,
+                SearchManager.SUGGEST_URI_PATH_QUERY);
+        assertEquals(1, countSuggestions(uri, "news"));
+        assertEquals(2, countSuggestions(uri, "exam"));
+        // Bookmark titles are matched for history entries with the same URL
+        assertEquals(1, countSuggestions(uri, "bookm"));
+        assertEquals(0, countSuggestions(uri, "nothing"));
+    }
+
+    private int countSuggestions(Uri uri, String query) {
+        Cursor c = getMockContentResolver().query(uri, null, null, new String[] { query }, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
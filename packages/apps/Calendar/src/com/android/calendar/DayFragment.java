@@ -227,6 +227,7 @@ public class DayFragment extends Fragment implements CalendarController.EventHan
         if (mViewSwitcher == null) {
             return;
         }
+        EventLoader.clearCache();
         DayView view = (DayView) mViewSwitcher.getCurrentView();
         view.clearCachedEvents();
         view.reloadEvents();
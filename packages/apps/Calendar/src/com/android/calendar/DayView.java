@@ -293,6 +293,9 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
     private long mLastReloadMillis;
 
     private ArrayList<Event> mEvents = new ArrayList<Event>();
+    // Changes whenever mEvents is replaced, so that the layout is only computed again then
+    private int mEventsVersion;
+    private final EventLayout mEventLayout = new EventLayout();
     private ArrayList<Event> mAllDayEvents = new ArrayList<Event>();
     private StaticLayout[] mLayouts = null;
     private StaticLayout[] mAllDayLayouts = null;
@@ -1285,7 +1288,8 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
 
         final long minimumDurationMillis = (long)
                 (MIN_EVENT_HEIGHT * DateUtils.MINUTE_IN_MILLIS / (mCellHeight / 60.0f));
-        Event.computePositions(mEvents, minimumDurationMillis);
+        mEventLayout.layout(mEvents, mEventsVersion, mFirstJulianDay, mNumDays,
+                minimumDurationMillis);
 
         // Compute the top of our reachable view
         mMaxViewStartY = HOUR_GAP + 24 * (mCellHeight + HOUR_GAP) - mGridAreaHeight;
@@ -1993,6 +1997,7 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
         mEventLoader.loadEventsInBackground(mNumDays, events, mFirstJulianDay, new Runnable() {
             public void run() {
                 mEvents = events;
+                mEventsVersion++;
                 if (mAllDayEvents == null) {
                     mAllDayEvents = new ArrayList<Event>();
                 } else {
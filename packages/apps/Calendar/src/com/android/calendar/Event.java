@@ -34,7 +34,6 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 // TODO: should Event be Parcelable so it can be passed via Intents?
@@ -216,6 +215,17 @@ public class Event implements Cloneable {
      */
     public static void loadEvents(Context context, ArrayList<Event> events, int startDay, int days,
             int requestId, AtomicInteger sequenceNumber) {
+        loadEvents(context, events, events, startDay, days, requestId, sequenceNumber);
+    }
+
+    /**
+     * Loads <i>days</i> days worth of instances starting at <i>startDay</i>, putting the
+     * events that are displayed as all-day events into <i>alldayEvents</i>, after the
+     * other events if it is the same list as <i>events</i>.
+     */
+    public static void loadEvents(Context context, ArrayList<Event> events,
+            ArrayList<Event> alldayEvents, int startDay, int days, int requestId,
+            AtomicInteger sequenceNumber) {
 
         if (PROFILE) {
             Debug.startMethodTracing("loadEvents");
@@ -225,6 +235,7 @@ public class Event implements Cloneable {
         Cursor cAllday = null;
 
         events.clear();
+        alldayEvents.clear();
         try {
             int endDay = startDay + days - 1;
 
@@ -264,7 +275,7 @@ public class Event implements Cloneable {
             }
 
             buildEventsFromCursor(events, cEvents, context, startDay, endDay);
-            buildEventsFromCursor(events, cAllday, context, startDay, endDay);
+            buildEventsFromCursor(alldayEvents, cAllday, context, startDay, endDay);
 
         } finally {
             if (cEvents != null) {
@@ -427,106 +438,7 @@ public class Event implements Cloneable {
      */
     /* package */ static void computePositions(ArrayList<Event> eventsList,
             long minimumDurationMillis) {
-        if (eventsList == null) {
-            return;
-        }
-
-        // Compute the column positions separately for the all-day events
-        doComputePositions(eventsList, minimumDurationMillis, false);
-        doComputePositions(eventsList, minimumDurationMillis, true);
-    }
-
-    private static void doComputePositions(ArrayList<Event> eventsList,
-            long minimumDurationMillis, boolean doAlldayEvents) {
-        final ArrayList<Event> activeList = new ArrayList<Event>();
-        final ArrayList<Event> groupList = new ArrayList<Event>();
-
-        if (minimumDurationMillis < 0) {
-            minimumDurationMillis = 0;
-        }
-
-        long colMask = 0;
-        int maxCols = 0;
-        for (Event event : eventsList) {
-            // Process all-day events separately
-            if (event.drawAsAllday() != doAlldayEvents)
-                continue;
-
-           if (!doAlldayEvents) {
-                colMask = removeNonAlldayActiveEvents(
-                        event, activeList.iterator(), minimumDurationMillis, colMask);
-            } else {
-                colMask = removeAlldayActiveEvents(event, activeList.iterator(), colMask);
-            }
-
-            // If the active list is empty, then reset the max columns, clear
-            // the column bit mask, and empty the groupList.
-            if (activeList.isEmpty()) {
-                for (Event ev : groupList) {
-                    ev.setMaxColumns(maxCols);
-                }
-                maxCols = 0;
-                colMask = 0;
-                groupList.clear();
-            }
-
-            // Find the first empty column.  Empty columns are represented by
-            // zero bits in the column mask "colMask".
-            int col = findFirstZeroBit(colMask);
-            if (col == 64)
-                col = 63;
-            colMask |= (1L << col);
-            event.setColumn(col);
-            activeList.add(event);
-            groupList.add(event);
-            int len = activeList.size();
-            if (maxCols < len)
-                maxCols = len;
-        }
-        for (Event ev : groupList) {
-            ev.setMaxColumns(maxCols);
-        }
-    }
-
-    private static long removeAlldayActiveEvents(Event event, Iterator<Event> iter, long colMask) {
-        // Remove the inactive allday events. An event on the active list
-        // becomes inactive when the end day is less than the current event's
-        // start day.
-        while (iter.hasNext()) {
-            final Event active = iter.next();
-            if (active.endDay < event.startDay) {
-                colMask &= ~(1L << active.getColumn());
-                iter.remove();
-            }
-        }
-        return colMask;
-    }
-
-    private static long removeNonAlldayActiveEvents(
-            Event event, Iterator<Event> iter, long minDurationMillis, long colMask) {
-        long start = event.getStartMillis();
-        // Remove the inactive events. An event on the active list
-        // becomes inactive when its end time is less than or equal to
-        // the current event's start time.
-        while (iter.hasNext()) {
-            final Event active = iter.next();
-
-            final long duration = Math.max(
-                    active.getEndMillis() - active.getStartMillis(), minDurationMillis);
-            if ((active.getStartMillis() + duration) <= start) {
-                colMask &= ~(1L << active.getColumn());
-                iter.remove();
-            }
-        }
-        return colMask;
-    }
-
-    public static int findFirstZeroBit(long val) {
-        for (int ii = 0; ii < 64; ++ii) {
-            if ((val & (1L << ii)) == 0)
-                return ii;
-        }
-        return 64;
+        new EventLayout().computePositions(eventsList, minimumDurationMillis);
     }
 
     public final void dump() {
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of the events loaded for each Julian day, so that going back
+ * to days that were already shown does not query the instances again.
+ *
+ * Each day keeps the events that are drawn in the time grid and the events that are drawn
+ * as all-day events separately, as they are loaded by separate queries with different sort
+ * orders. An event that spans several days is in the bucket of each of them.
+ *
+ * The events are loaded for some query settings, such as the time zone, described by a key.
+ * Putting events for a different key drops the days cached for the old one. Clearing the
+ * cache bumps its generation, so that events that were being loaded before it was cleared
+ * are not put into it.
+ *
+ * This class is thread safe.
+ */
+public class EventDayCache {
+
+    /**
+     * begin ASC, end DESC, title ASC, as the time grid events are queried
+     */
+    private static final Comparator<Event> EVENT_ORDER = new Comparator<Event>() {
+        public int compare(Event a, Event b) {
+            if (a.startMillis != b.startMillis) {
+                return a.startMillis < b.startMillis ? -1 : 1;
+            }
+            if (a.endMillis != b.endMillis) {
+                return a.endMillis > b.endMillis ? -1 : 1;
+            }
+            return compareTitles(a, b);
+        }
+    };
+
+    /**
+     * startDay ASC, endDay DESC, title ASC, as the all-day events are queried
+     */
+    private static final Comparator<Event> ALLDAY_ORDER = new Comparator<Event>() {
+        public int compare(Event a, Event b) {
+            if (a.startDay != b.startDay) {
+                return a.startDay < b.startDay ? -1 : 1;
+            }
+            if (a.endDay != b.endDay) {
+                return a.endDay > b.endDay ? -1 : 1;
+            }
+            return compareTitles(a, b);
+        }
+    };
+
+    private static class Bucket {
+        final ArrayList<Event> mEvents = new ArrayList<Event>();
+        final ArrayList<Event> mAlldayEvents = new ArrayList<Event>();
+    }
+
+    private final int mMaxDays;
+    private final LinkedHashMap<Integer, Bucket> mBuckets;
+    private String mKey;
+    private int mGeneration;
+
+    /**
+     * @param maxDays the number of days to keep events for
+     */
+    public EventDayCache(int maxDays) {
+        mMaxDays = maxDays;
+        mBuckets = new LinkedHashMap<Integer, Bucket>(maxDays, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Bucket> eldest) {
+                return size() > mMaxDays;
+            }
+        };
+    }
+
+    /**
+     * Gets the generation to pass to {@link #put} for events that are loaded from now on.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Drops all the cached days, and any events that are being loaded.
+     */
+    public synchronized void clear() {
+        mBuckets.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Finds the first day in a range that is not cached.
+     *
+     * @return the day, or -1 if all the days are cached
+     */
+    public synchronized int findFirstMissingDay(int startDay, int endDay, String key) {
+        if (!key.equals(mKey)) {
+            return startDay;
+        }
+        for (int day = startDay; day <= endDay; day++) {
+            if (!mBuckets.containsKey(day)) {
+                return day;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the last day in a range that is not cached.
+     *
+     * @return the day, or -1 if all the days are cached
+     */
+    public synchronized int findLastMissingDay(int startDay, int endDay, String key) {
+        if (!key.equals(mKey)) {
+            return endDay;
+        }
+        for (int day = endDay; day >= startDay; day--) {
+            if (!mBuckets.containsKey(day)) {
+                return day;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Caches the events loaded for a range of days.
+     *
+     * @param events the events loaded for the time grid
+     * @param alldayEvents the events loaded for the all-day area
+     * @param generation the value of {@link #getGeneration} from before the events were loaded
+     * @return false if the cache was cleared since then, and the events were not cached
+     */
+    public synchronized boolean put(int startDay, int endDay, String key, int generation,
+            ArrayList<Event> events, ArrayList<Event> alldayEvents) {
+        if (generation != mGeneration) {
+            return false;
+        }
+        if (!key.equals(mKey)) {
+            mBuckets.clear();
+            mKey = key;
+        }
+        // Only keep the most recent days if there are more than fit
+        final int firstDay = Math.max(startDay, endDay - mMaxDays + 1);
+        final Bucket[] buckets = new Bucket[endDay - firstDay + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        addToBuckets(buckets, firstDay, events, false);
+        addToBuckets(buckets, firstDay, alldayEvents, true);
+        for (int i = 0; i < buckets.length; i++) {
+            mBuckets.put(firstDay + i, buckets[i]);
+        }
+        return true;
+    }
+
+    private static void addToBuckets(Bucket[] buckets, int firstDay, ArrayList<Event> events,
+            boolean allday) {
+        for (Event event : events) {
+            final int first = Math.max(event.startDay - firstDay, 0);
+            final int last = Math.min(event.endDay - firstDay, buckets.length - 1);
+            for (int i = first; i <= last; i++) {
+                if (allday) {
+                    buckets[i].mAlldayEvents.add(event);
+                } else {
+                    buckets[i].mEvents.add(event);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets copies of the events for a range of days, in the order that
+     * {@link Event#loadEvents} gives them in.
+     *
+     * @param events the list to put the events in; it is cleared first
+     * @return false if some of the days are not cached, and the list was not changed
+     */
+    public synchronized boolean getEvents(int startDay, int endDay, String key,
+            ArrayList<Event> events) {
+        if (findFirstMissingDay(startDay, endDay, key) != -1) {
+            return false;
+        }
+        final ArrayList<Event> timed = new ArrayList<Event>();
+        final ArrayList<Event> allday = new ArrayList<Event>();
+        // The same event is in the bucket of each day that it spans
+        final IdentityHashMap<Event, Boolean> seen = new IdentityHashMap<Event, Boolean>();
+        for (int day = startDay; day <= endDay; day++) {
+            final Bucket bucket = mBuckets.get(day);
+            collect(bucket.mEvents, seen, timed);
+            collect(bucket.mAlldayEvents, seen, allday);
+        }
+        // Days that were loaded separately have their own copies of the events that span them
+        removeDuplicates(timed);
+        removeDuplicates(allday);
+        Collections.sort(timed, EVENT_ORDER);
+        Collections.sort(allday, ALLDAY_ORDER);
+
+        events.clear();
+        events.ensureCapacity(timed.size() + allday.size());
+        copy(timed, events);
+        copy(allday, events);
+        return true;
+    }
+
+    private static void collect(ArrayList<Event> bucket, IdentityHashMap<Event, Boolean> seen,
+            ArrayList<Event> out) {
+        for (Event event : bucket) {
+            if (seen.put(event, Boolean.TRUE) == null) {
+                out.add(event);
+            }
+        }
+    }
+
+    private static void removeDuplicates(ArrayList<Event> events) {
+        final LinkedHashMap<String, Event> unique = new LinkedHashMap<String, Event>();
+        for (Event event : events) {
+            unique.put(event.id + "/" + event.startMillis + "/" + event.endMillis, event);
+        }
+        if (unique.size() != events.size()) {
+            events.clear();
+            events.addAll(unique.values());
+        }
+    }
+
+    /**
+     * Copies the events, so that each view can lay out its own events.
+     */
+    private static void copy(ArrayList<Event> events, ArrayList<Event> out) {
+        for (Event event : events) {
+            Event copy = Event.newInstance();
+            event.copyTo(copy);
+            out.add(copy);
+        }
+    }
+
+    private static int compareTitles(Event a, Event b) {
+        final String titleA = a.title == null ? "" : a.title.toString();
+        final String titleB = b.title == null ? "" : b.title.toString();
+        return titleA.compareTo(titleB);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import java.util.ArrayList;
+
+/**
+ * Assigns the columns that events are drawn in by the day and week views. See
+ * {@link Event#computePositions} for what the columns mean.
+ *
+ * The events are swept in order of their start. The events that are still active are kept
+ * in a heap ordered by end, so that the ones that have ended can be taken off the top, and
+ * the columns they free up are kept in a heap so that the lowest one is reused first. There
+ * is no limit on the number of columns.
+ *
+ * An instance remembers what it last laid out, so that redrawing or remeasuring a view does
+ * not lay out the same events again. Instances are not thread safe.
+ */
+public class EventLayout {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Active events: the end each one is active until, and its column, as a min-heap on end
+    private long[] mEnds = new long[INITIAL_CAPACITY];
+    private int[] mEndColumns = new int[INITIAL_CAPACITY];
+    private int mActiveCount;
+
+    // Free columns below mColumnCount, as a min-heap
+    private int[] mFreeColumns = new int[INITIAL_CAPACITY];
+    private int mFreeCount;
+    private int mColumnCount;
+
+    // What was laid out last
+    private ArrayList<Event> mEvents;
+    private int mEventsVersion;
+    private int mFirstJulianDay;
+    private int mNumDays;
+    private long mMinimumDurationMillis;
+
+    /**
+     * Lays out the events unless the same events were last laid out for the same days and
+     * minimum duration.
+     *
+     * @param events the events, sorted as for {@link Event#computePositions}
+     * @param eventsVersion changes whenever the events in the list change
+     * @param firstJulianDay the first day the events are shown for
+     * @param numDays the number of days the events are shown for
+     * @param minimumDurationMillis see {@link Event#computePositions}
+     * @return true if the events were laid out, false if the last layout was still valid
+     */
+    public boolean layout(ArrayList<Event> events, int eventsVersion, int firstJulianDay,
+            int numDays, long minimumDurationMillis) {
+        if (events == mEvents && eventsVersion == mEventsVersion
+                && firstJulianDay == mFirstJulianDay && numDays == mNumDays
+                && minimumDurationMillis == mMinimumDurationMillis) {
+            return false;
+        }
+        computePositions(events, minimumDurationMillis);
+        mEvents = events;
+        mEventsVersion = eventsVersion;
+        mFirstJulianDay = firstJulianDay;
+        mNumDays = numDays;
+        mMinimumDurationMillis = minimumDurationMillis;
+        return true;
+    }
+
+    /**
+     * Forgets the last layout, so that the next call to {@link #layout} lays out the events.
+     */
+    public void invalidate() {
+        mEvents = null;
+    }
+
+    /**
+     * Lays out the events. See {@link Event#computePositions}.
+     */
+    public void computePositions(ArrayList<Event> events, long minimumDurationMillis) {
+        if (events == null) {
+            return;
+        }
+        if (minimumDurationMillis < 0) {
+            minimumDurationMillis = 0;
+        }
+        // Compute the column positions separately for the all-day events
+        doComputePositions(events, minimumDurationMillis, false);
+        doComputePositions(events, minimumDurationMillis, true);
+    }
+
+    private void doComputePositions(ArrayList<Event> events, long minimumDurationMillis,
+            boolean doAlldayEvents) {
+        mActiveCount = 0;
+        mFreeCount = 0;
+        mColumnCount = 0;
+        int groupStart = 0;
+        int maxCols = 0;
+        final int count = events.size();
+        for (int i = 0; i < count; i++) {
+            final Event event = events.get(i);
+            // Process all-day events separately
+            if (event.drawAsAllday() != doAlldayEvents) {
+                continue;
+            }
+
+            // An event stops being active when it ends at or before the start of this one.
+            // All-day events stay active for the whole of their end day.
+            final long start;
+            final long end;
+            if (doAlldayEvents) {
+                start = event.startDay;
+                end = event.endDay + 1;
+            } else {
+                start = event.getStartMillis();
+                end = start + Math.max(event.getEndMillis() - start, minimumDurationMillis);
+            }
+            while (mActiveCount > 0 && mEnds[0] <= start) {
+                pushFreeColumn(popActive());
+            }
+
+            // If there are no active events, this starts a new group
+            if (mActiveCount == 0) {
+                setMaxColumns(events, groupStart, i, maxCols, doAlldayEvents);
+                groupStart = i;
+                maxCols = 0;
+                mFreeCount = 0;
+                mColumnCount = 0;
+            }
+
+            final int col = mFreeCount > 0 ? popFreeColumn() : mColumnCount++;
+            event.setColumn(col);
+            pushActive(end, col);
+            if (maxCols < mActiveCount) {
+                maxCols = mActiveCount;
+            }
+        }
+        setMaxColumns(events, groupStart, count, maxCols, doAlldayEvents);
+    }
+
+    private static void setMaxColumns(ArrayList<Event> events, int start, int end,
+            int maxCols, boolean doAlldayEvents) {
+        for (int i = start; i < end; i++) {
+            final Event event = events.get(i);
+            if (event.drawAsAllday() == doAlldayEvents) {
+                event.setMaxColumns(maxCols);
+            }
+        }
+    }
+
+    private void pushActive(long end, int col) {
+        if (mActiveCount == mEnds.length) {
+            long[] ends = new long[mActiveCount * 2];
+            System.arraycopy(mEnds, 0, ends, 0, mActiveCount);
+            mEnds = ends;
+            mEndColumns = grow(mEndColumns, mActiveCount * 2);
+        }
+        final long[] ends = mEnds;
+        final int[] cols = mEndColumns;
+        int pos = mActiveCount++;
+        while (pos > 0) {
+            int parent = (pos - 1) >> 1;
+            if (ends[parent] <= end) break;
+            ends[pos] = ends[parent];
+            cols[pos] = cols[parent];
+            pos = parent;
+        }
+        ends[pos] = end;
+        cols[pos] = col;
+    }
+
+    /**
+     * Removes the active event that ends first.
+     *
+     * @return its column
+     */
+    private int popActive() {
+        final long[] ends = mEnds;
+        final int[] cols = mEndColumns;
+        final int col = cols[0];
+        final int count = --mActiveCount;
+        final long end = ends[count];
+        final int lastCol = cols[count];
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= count) break;
+            if (child + 1 < count && ends[child + 1] < ends[child]) child++;
+            if (end <= ends[child]) break;
+            ends[pos] = ends[child];
+            cols[pos] = cols[child];
+            pos = child;
+        }
+        ends[pos] = end;
+        cols[pos] = lastCol;
+        return col;
+    }
+
+    private void pushFreeColumn(int col) {
+        if (mFreeCount == mFreeColumns.length) {
+            mFreeColumns = grow(mFreeColumns, mFreeCount * 2);
+        }
+        final int[] heap = mFreeColumns;
+        int pos = mFreeCount++;
+        while (pos > 0) {
+            int parent = (pos - 1) >> 1;
+            if (heap[parent] <= col) break;
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = col;
+    }
+
+    private int popFreeColumn() {
+        final int[] heap = mFreeColumns;
+        final int col = heap[0];
+        final int count = --mFreeCount;
+        final int last = heap[count];
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= count) break;
+            if (child + 1 < count && heap[child + 1] < heap[child]) child++;
+            if (last <= heap[child]) break;
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = last;
+        return col;
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[size];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -32,6 +32,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class EventLoader {
 
+    // Days of events kept for all the loaders, enough for a few weeks either side of a month
+    private static final int CACHED_DAYS = 62;
+    // Skipped requests are only loaded along with the next one up to this many days in all
+    private static final int MAX_QUERY_DAYS = 42;
+
+    private static final EventDayCache sDayCache = new EventDayCache(CACHED_DAYS);
+
     private Context mContext;
     private Handler mHandler = new Handler();
     private AtomicInteger mSequenceNumber = new AtomicInteger();
@@ -129,6 +136,10 @@ public class EventLoader {
         public ArrayList<Event> events;
         public Runnable successCallback;
         public Runnable cancelCallback;
+        // The days to query if some of them are not cached, including the days of
+        // requests that were skipped for this one
+        public int queryStartDay;
+        public int queryEndDay;
 
         public LoadEventsRequest(int id, int startDay, int numDays, ArrayList<Event> events,
                 final Runnable successCallback, final Runnable cancelCallback) {
@@ -138,14 +149,59 @@ public class EventLoader {
             this.events = events;
             this.successCallback = successCallback;
             this.cancelCallback = cancelCallback;
+            this.queryStartDay = startDay;
+            this.queryEndDay = startDay + numDays - 1;
+        }
+
+        /**
+         * Adds the days of a request that was skipped for this one to the days queried,
+         * if they overlap or are next to them.
+         */
+        public void mergeRange(LoadEventsRequest skipped) {
+            final int start = Math.min(queryStartDay, skipped.queryStartDay);
+            final int end = Math.max(queryEndDay, skipped.queryEndDay);
+            if (skipped.queryStartDay <= queryEndDay + 1
+                    && skipped.queryEndDay >= queryStartDay - 1
+                    && end - start + 1 <= MAX_QUERY_DAYS) {
+                queryStartDay = start;
+                queryEndDay = end;
+            }
         }
 
         public void processRequest(EventLoader eventLoader) {
-            Event.loadEvents(eventLoader.mContext, events, startDay,
-                    numDays, id, eventLoader.mSequenceNumber);
+            final AtomicInteger sequenceNumber = eventLoader.mSequenceNumber;
+            // Don't query for a request that is not the most recent one any more
+            if (id != sequenceNumber.get()) {
+                eventLoader.mHandler.post(cancelCallback);
+                return;
+            }
+
+            final int endDay = startDay + numDays - 1;
+            final String key = eventLoader.getCacheKey();
+            final EventDayCache cache = sDayCache;
+            if (!cache.getEvents(startDay, endDay, key, events)) {
+                // Query all the days that are not cached at once
+                final int generation = cache.getGeneration();
+                final int first = cache.findFirstMissingDay(queryStartDay, queryEndDay, key);
+                final int last = cache.findLastMissingDay(queryStartDay, queryEndDay, key);
+                final ArrayList<Event> loaded = new ArrayList<Event>();
+                final ArrayList<Event> loadedAllday = new ArrayList<Event>();
+                Event.loadEvents(eventLoader.mContext, loaded, loadedAllday, first,
+                        last - first + 1, id, sequenceNumber);
+                if (id != sequenceNumber.get()) {
+                    eventLoader.mHandler.post(cancelCallback);
+                    return;
+                }
+                if (!cache.put(first, last, key, generation, loaded, loadedAllday)
+                        || !cache.getEvents(startDay, endDay, key, events)) {
+                    // The cache was cleared while loading, or the days did not all fit
+                    Event.loadEvents(eventLoader.mContext, events, startDay,
+                            numDays, id, sequenceNumber);
+                }
+            }
 
             // Check if we are still the most recent request.
-            if (id == eventLoader.mSequenceNumber.get()) {
+            if (id == sequenceNumber.get()) {
                 eventLoader.mHandler.post(successCallback);
             } else {
                 eventLoader.mHandler.post(cancelCallback);
@@ -188,11 +244,19 @@ public class EventLoader {
                     // If there are a bunch of requests already waiting, then
                     // skip all but the most recent request.
                     while (!mQueue.isEmpty()) {
+                        LoadRequest next = mQueue.take();
+                        // Load the days of the skipped request along with the next one,
+                        // so that going back to them does not need another query
+                        if (request instanceof LoadEventsRequest
+                                && next instanceof LoadEventsRequest) {
+                            ((LoadEventsRequest) next).mergeRange((LoadEventsRequest) request);
+                        }
+
                         // Let the request know that it was skipped
                         request.skipRequest(mEventLoader);
 
                         // Skip to the next request
-                        request = mQueue.take();
+                        request = next;
                     }
 
                     if (request instanceof ShutdownRequest) {
@@ -212,6 +276,22 @@ public class EventLoader {
         mResolver = context.getContentResolver();
     }
 
+    /**
+     * Drops the events cached for all the loaders. Call this when the events change.
+     */
+    public static void clearCache() {
+        sDayCache.clear();
+    }
+
+    /**
+     * Describes the settings the events are loaded with.
+     */
+    private String getCacheKey() {
+        boolean hideDeclined = GeneralPreferences.getSharedPreferences(mContext).getBoolean(
+                GeneralPreferences.KEY_HIDE_DECLINED, false);
+        return Utils.getTimeZone(mContext, null) + "/" + hideDeclined;
+    }
+
     /**
      * Call this from the activity's onResume()
      */
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for verifying the events cached by {@link EventDayCache}
+ *
+ * You can run these tests with the following command:
+ * "adb shell am instrument -w -e class com.android.calendar.EventDayCacheTest
+ *          com.android.calendar.tests/android.test.InstrumentationTestRunner"
+ */
+public class EventDayCacheTest extends TestCase {
+    private static final int DAY = 2455928;
+    private static final long DAY_START = 1325376000000L;
+    private static final String KEY = "UTC/false";
+
+    private EventDayCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new EventDayCache(10);
+    }
+
+    private static Event createEvent(long id, int day, int startMinute, int endDay,
+            int endMinute) {
+        Event e = Event.newInstance();
+        e.id = id;
+        e.title = "Event " + id;
+        e.startDay = DAY + day;
+        e.startTime = startMinute;
+        e.endDay = DAY + endDay;
+        e.endTime = endMinute;
+        e.startMillis = DAY_START + day * DateUtils.DAY_IN_MILLIS
+                + startMinute * DateUtils.MINUTE_IN_MILLIS;
+        e.endMillis = DAY_START + endDay * DateUtils.DAY_IN_MILLIS
+                + endMinute * DateUtils.MINUTE_IN_MILLIS;
+        return e;
+    }
+
+    private static Event createAllDayEvent(long id, int day, int endDay) {
+        Event e = createEvent(id, day, 0, endDay + 1, 0);
+        e.allDay = true;
+        e.endDay = DAY + endDay;
+        return e;
+    }
+
+    private static ArrayList<Event> list(Event... events) {
+        ArrayList<Event> list = new ArrayList<Event>();
+        for (Event e : events) {
+            list.add(e);
+        }
+        return list;
+    }
+
+    private void put(int firstDay, int lastDay, ArrayList<Event> events,
+            ArrayList<Event> alldayEvents) {
+        assertTrue(mCache.put(DAY + firstDay, DAY + lastDay, KEY, mCache.getGeneration(),
+                events, alldayEvents));
+    }
+
+    private ArrayList<Event> get(int firstDay, int lastDay) {
+        ArrayList<Event> events = new ArrayList<Event>();
+        assertTrue(mCache.getEvents(DAY + firstDay, DAY + lastDay, KEY, events));
+        return events;
+    }
+
+    private static void assertIds(ArrayList<Event> events, long... ids) {
+        assertEquals(ids.length, events.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], events.get(i).id);
+        }
+    }
+
+    @SmallTest
+    public void testMissingDays() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        assertFalse(mCache.getEvents(DAY, DAY + 6, KEY, events));
+        put(2, 3, list(), list());
+        assertEquals(DAY, mCache.findFirstMissingDay(DAY, DAY + 6, KEY));
+        assertEquals(DAY + 6, mCache.findLastMissingDay(DAY, DAY + 6, KEY));
+        assertEquals(DAY + 4, mCache.findFirstMissingDay(DAY + 2, DAY + 6, KEY));
+        assertEquals(DAY + 1, mCache.findLastMissingDay(DAY, DAY + 3, KEY));
+        assertEquals(-1, mCache.findFirstMissingDay(DAY + 2, DAY + 3, KEY));
+        assertEquals(-1, mCache.findLastMissingDay(DAY + 2, DAY + 3, KEY));
+        assertFalse(mCache.getEvents(DAY, DAY + 3, KEY, events));
+        assertTrue(mCache.getEvents(DAY + 2, DAY + 3, KEY, events));
+    }
+
+    @SmallTest
+    public void testEventsAreSplitIntoDays() {
+        Event first = createEvent(1, 0, 600, 0, 660);
+        Event overnight = createEvent(2, 0, 1380, 1, 60);
+        Event second = createEvent(3, 1, 600, 1, 660);
+        Event allday = createAllDayEvent(4, 0, 1);
+        put(0, 1, list(first, overnight, second), list(allday));
+
+        assertIds(get(0, 0), 1, 2, 4);
+        assertIds(get(1, 1), 2, 3, 4);
+        assertIds(get(0, 1), 1, 2, 3, 4);
+    }
+
+    @SmallTest
+    public void testDaysLoadedSeparatelyAreMerged() {
+        // The overnight event is loaded for each day separately
+        put(0, 0, list(createEvent(1, 0, 600, 0, 660), createEvent(2, 0, 1380, 1, 60)),
+                list(createAllDayEvent(5, 0, 1)));
+        put(1, 1, list(createEvent(2, 0, 1380, 1, 60), createEvent(3, 1, 0, 1, 60),
+                createEvent(4, 1, 600, 1, 660)), list(createAllDayEvent(5, 0, 1),
+                createAllDayEvent(6, 1, 1)));
+
+        // Sorted by start, with all-day events last, as they are loaded
+        assertIds(get(0, 1), 1, 2, 3, 4, 5, 6);
+    }
+
+    @SmallTest
+    public void testEventsAreCopied() {
+        Event event = createEvent(1, 0, 600, 0, 660);
+        put(0, 0, list(event), list());
+        ArrayList<Event> first = get(0, 0);
+        ArrayList<Event> second = get(0, 0);
+        assertNotSame(event, first.get(0));
+        assertNotSame(first.get(0), second.get(0));
+        assertEquals(event.startMillis, first.get(0).startMillis);
+        assertEquals(event.title, first.get(0).title);
+    }
+
+    @SmallTest
+    public void testClearDropsLoadingEvents() {
+        int generation = mCache.getGeneration();
+        mCache.clear();
+        assertFalse(mCache.put(DAY, DAY, KEY, generation, list(), list()));
+        assertEquals(DAY, mCache.findFirstMissingDay(DAY, DAY, KEY));
+
+        put(0, 0, list(), list());
+        mCache.clear();
+        assertEquals(DAY, mCache.findFirstMissingDay(DAY, DAY, KEY));
+    }
+
+    @SmallTest
+    public void testDifferentKey() {
+        put(0, 0, list(), list());
+        assertEquals(DAY, mCache.findFirstMissingDay(DAY, DAY, "America/New_York/false"));
+        assertTrue(mCache.put(DAY + 1, DAY + 1, "America/New_York/false",
+                mCache.getGeneration(), list(), list()));
+        // The days for the old key are dropped
+        assertEquals(DAY, mCache.findFirstMissingDay(DAY, DAY + 1, KEY));
+        assertEquals(DAY, mCache.findFirstMissingDay(DAY, DAY + 1, "America/New_York/false"));
+    }
+
+    @SmallTest
+    public void testLeastRecentlyUsedDaysAreDropped() {
+        put(0, 6, list(), list());
+        // Use the first day, so that the second one is the least recently used
+        get(0, 0);
+        put(7, 10, list(), list());
+        assertEquals(DAY + 1, mCache.findFirstMissingDay(DAY, DAY + 10, KEY));
+        assertEquals(DAY + 1, mCache.findLastMissingDay(DAY, DAY + 10, KEY));
+
+        // More days than fit keeps the last ones
+        put(20, 39, list(), list());
+        assertEquals(DAY + 29, mCache.findLastMissingDay(DAY + 20, DAY + 39, KEY));
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for verifying the event columns computed by {@link EventLayout}
+ *
+ * You can run these tests with the following command:
+ * "adb shell am instrument -w -e class com.android.calendar.EventLayoutTest
+ *          com.android.calendar.tests/android.test.InstrumentationTestRunner"
+ */
+public class EventLayoutTest extends TestCase {
+    private static final String TAG = "EventLayoutTest";
+
+    private static final int JULIAN_DAY = 2455928;
+    private static final long DAY_START = 1325376000000L;
+    private static final long MINUTE = DateUtils.MINUTE_IN_MILLIS;
+    private static final long MIN_DURATION = 15 * MINUTE;
+
+    private static final Comparator<Event> EVENT_ORDER = new Comparator<Event>() {
+        public int compare(Event a, Event b) {
+            // begin ASC, end DESC, as the events are loaded
+            if (a.getStartMillis() != b.getStartMillis()) {
+                return a.getStartMillis() < b.getStartMillis() ? -1 : 1;
+            }
+            if (a.getEndMillis() != b.getEndMillis()) {
+                return a.getEndMillis() > b.getEndMillis() ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private static Event createEvent(long startMinute, long endMinute) {
+        Event e = Event.newInstance();
+        e.setStartMillis(DAY_START + startMinute * MINUTE);
+        e.setEndMillis(DAY_START + endMinute * MINUTE);
+        e.startDay = JULIAN_DAY;
+        e.endDay = JULIAN_DAY;
+        e.startTime = (int) startMinute;
+        e.endTime = (int) endMinute;
+        return e;
+    }
+
+    private static Event createAllDayEvent(int startDay, int endDay) {
+        Event e = Event.newInstance();
+        e.allDay = true;
+        e.startDay = JULIAN_DAY + startDay;
+        e.endDay = JULIAN_DAY + endDay;
+        e.setStartMillis(DAY_START + startDay * DateUtils.DAY_IN_MILLIS);
+        e.setEndMillis(DAY_START + (endDay + 1) * DateUtils.DAY_IN_MILLIS);
+        return e;
+    }
+
+    /**
+     * Creates a busy day of overlapping events, sorted as they are loaded.
+     */
+    private static ArrayList<Event> createEvents(Random random, int count, int maxOverlap) {
+        ArrayList<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < count; i++) {
+            long start = random.nextInt(24 * 60);
+            long duration = random.nextInt(maxOverlap) == 0 ? 0 : random.nextInt(120);
+            events.add(createEvent(start, start + duration));
+        }
+        Collections.sort(events, EVENT_ORDER);
+        for (int i = 0; i < count / 10; i++) {
+            int start = random.nextInt(7);
+            events.add(createAllDayEvent(start, start + random.nextInt(3)));
+        }
+        return events;
+    }
+
+    private static int[] getColumns(ArrayList<Event> events) {
+        int[] columns = new int[events.size() * 2];
+        for (int i = 0; i < events.size(); i++) {
+            columns[2 * i] = events.get(i).getColumn();
+            columns[2 * i + 1] = events.get(i).getMaxColumns();
+        }
+        return columns;
+    }
+
+    private static void assertColumns(int[] expected, int[] observed) {
+        assertEquals(expected.length, observed.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("event " + i / 2, expected[i], observed[i]);
+        }
+    }
+
+    @SmallTest
+    public void testNonOverlappingEvents() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(createEvent(60, 120));
+        events.add(createEvent(120, 180));
+        new EventLayout().computePositions(events, 0);
+        assertColumns(new int[] { 0, 1, 0, 1 }, getColumns(events));
+    }
+
+    @SmallTest
+    public void testOverlappingEvents() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(createEvent(60, 180));
+        events.add(createEvent(90, 120));
+        // Reuses the column of the second event
+        events.add(createEvent(120, 150));
+        events.add(createEvent(130, 140));
+        new EventLayout().computePositions(events, 0);
+        assertColumns(new int[] { 0, 3, 1, 3, 1, 3, 2, 3 }, getColumns(events));
+    }
+
+    @SmallTest
+    public void testMinimumDuration() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(createEvent(60, 61));
+        events.add(createEvent(62, 120));
+        new EventLayout().computePositions(events, MIN_DURATION);
+        assertColumns(new int[] { 0, 2, 1, 2 }, getColumns(events));
+    }
+
+    @SmallTest
+    public void testAllDayEvents() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(createAllDayEvent(0, 1));
+        events.add(createAllDayEvent(1, 1));
+        events.add(createAllDayEvent(2, 2));
+        new EventLayout().computePositions(events, 0);
+        assertColumns(new int[] { 0, 2, 1, 2, 0, 1 }, getColumns(events));
+    }
+
+    @SmallTest
+    public void testMoreThan64Columns() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 100; i++) {
+            events.add(createEvent(60, 120));
+        }
+        new EventLayout().computePositions(events, 0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, events.get(i).getColumn());
+            assertEquals(100, events.get(i).getMaxColumns());
+        }
+    }
+
+    @SmallTest
+    public void testSameAsBitmaskLayout() {
+        Random random = new Random(1);
+        EventLayout layout = new EventLayout();
+        for (int i = 0; i < 200; i++) {
+            // Keep fewer than 64 columns, which the bitmask layout could not handle
+            ArrayList<Event> events = createEvents(random, 1 + random.nextInt(60),
+                    1 + random.nextInt(5));
+            long minDuration = random.nextBoolean() ? 0 : MIN_DURATION;
+            bitmaskComputePositions(events, minDuration);
+            int[] expected = getColumns(events);
+            layout.computePositions(events, minDuration);
+            assertColumns(expected, getColumns(events));
+        }
+    }
+
+    @SmallTest
+    public void testLayoutIsCached() {
+        ArrayList<Event> events = createEvents(new Random(2), 50, 3);
+        EventLayout layout = new EventLayout();
+        assertTrue(layout.layout(events, 1, JULIAN_DAY, 7, MIN_DURATION));
+        assertFalse(layout.layout(events, 1, JULIAN_DAY, 7, MIN_DURATION));
+        assertTrue(layout.layout(events, 2, JULIAN_DAY, 7, MIN_DURATION));
+        assertTrue(layout.layout(events, 2, JULIAN_DAY + 7, 7, MIN_DURATION));
+        assertTrue(layout.layout(events, 2, JULIAN_DAY + 7, 7, 0));
+        assertTrue(layout.layout(new ArrayList<Event>(events), 2, JULIAN_DAY + 7, 7, 0));
+        layout.invalidate();
+        assertTrue(layout.layout(events, 2, JULIAN_DAY + 7, 7, 0));
+    }
+
+    /**
+     * Logs how long laying out a heavy shared calendar day takes compared to the bitmask
+     * layout.
+     */
+    @LargeTest
+    public void testBenchmark() {
+        final int rounds = 100;
+        ArrayList<Event> events = createEvents(new Random(3), 250, 4);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            bitmaskComputePositions(events, MIN_DURATION);
+        }
+        long bitmask = (System.nanoTime() - start) / rounds;
+
+        EventLayout layout = new EventLayout();
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            layout.computePositions(events, MIN_DURATION);
+        }
+        long sweep = (System.nanoTime() - start) / rounds;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            layout.layout(events, 1, JULIAN_DAY, 1, MIN_DURATION);
+        }
+        long cached = (System.nanoTime() - start) / rounds;
+
+        Log.i(TAG, events.size() + " events: bitmask=" + bitmask / 1000 + "us sweep="
+                + sweep / 1000 + "us cached=" + cached / 1000 + "us per layout");
+    }
+
+    /**
+     * The layout that was used before {@link EventLayout}, limited to 64 columns.
+     */
+    private static void bitmaskComputePositions(ArrayList<Event> eventsList,
+            long minimumDurationMillis) {
+        bitmaskComputePositions(eventsList, minimumDurationMillis, false);
+        bitmaskComputePositions(eventsList, minimumDurationMillis, true);
+    }
+
+    private static void bitmaskComputePositions(ArrayList<Event> eventsList,
+            long minimumDurationMillis, boolean doAlldayEvents) {
+        final ArrayList<Event> activeList = new ArrayList<Event>();
+        final ArrayList<Event> groupList = new ArrayList<Event>();
+        long colMask = 0;
+        int maxCols = 0;
+        for (Event event : eventsList) {
+            if (event.drawAsAllday() != doAlldayEvents) continue;
+            Iterator<Event> iter = activeList.iterator();
+            while (iter.hasNext()) {
+                final Event active = iter.next();
+                boolean ended;
+                if (doAlldayEvents) {
+                    ended = active.endDay < event.startDay;
+                } else {
+                    long duration = Math.max(active.getEndMillis() - active.getStartMillis(),
+                            minimumDurationMillis);
+                    ended = active.getStartMillis() + duration <= event.getStartMillis();
+                }
+                if (ended) {
+                    colMask &= ~(1L << active.getColumn());
+                    iter.remove();
+                }
+            }
+            if (activeList.isEmpty()) {
+                for (Event ev : groupList) {
+                    ev.setMaxColumns(maxCols);
+                }
+                maxCols = 0;
+                colMask = 0;
+                groupList.clear();
+            }
+            int col = 0;
+            while (col < 63 && (colMask & (1L << col)) != 0) {
+                col++;
+            }
+            colMask |= (1L << col);
+            event.setColumn(col);
+            activeList.add(event);
+            groupList.add(event);
+            maxCols = Math.max(maxCols, activeList.size());
+        }
+        for (Event ev : groupList) {
+            ev.setMaxColumns(maxCols);
+        }
+    }
+}
@@ -157,6 +157,20 @@ public abstract class Folder {
     public abstract void fetch(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException;
 
+    /**
+     * Fetches a different profile for each of the given messages; profiles[i] is fetched for
+     * messages[i].  The specified listener is notified as each fetch completes, once the data
+     * it asked for has been received.
+     * Note: Stores that can send several commands without waiting for each reply override this
+     * to pipeline the fetches; the default simply fetches the messages one at a time.
+     */
+    public void fetchEach(Message[] messages, FetchProfile[] profiles,
+            MessageRetrievalListener listener) throws MessagingException {
+        for (int i = 0; i < messages.length; i++) {
+            fetch(new Message[] { messages[i] }, profiles[i], listener);
+        }
+    }
+
     public abstract void delete(boolean recurse) throws MessagingException;
 
     public abstract String getName();
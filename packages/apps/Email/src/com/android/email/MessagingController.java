@@ -496,6 +496,16 @@ public class MessagingController implements Runnable {
         fp.clear();
         fp.add(FetchProfile.Item.STRUCTURE);
         remoteFolder.fetch(largeMessages.toArray(new Message[largeMessages.size()]), fp, null);
+        // The viewable parts of every message we got a structure for are requested together,
+        // so that stores which can pipeline commands don't wait on the server for each part.
+        // Each message is stored as soon as the last of its parts arrives, rather than after
+        // all of them, so that a dropped connection only loses the messages still in flight,
+        // and only those messages' parts are held in memory.
+        ArrayList<Message> structuredMessages = new ArrayList<Message>();
+        final HashMap<Message, Integer> partsToFetch = new HashMap<Message, Integer>();
+        final HashMap<Message, Integer> loadedFlags = new HashMap<Message, Integer>();
+        ArrayList<Message> partMessages = new ArrayList<Message>();
+        ArrayList<FetchProfile> partProfiles = new ArrayList<FetchProfile>();
         for (Message message : largeMessages) {
             if (message.getBody() == null) {
                 // POP doesn't support STRUCTURE mode, so we'll just do a partial download
@@ -527,25 +537,64 @@ public class MessagingController implements Runnable {
                 ArrayList<Part> viewables = new ArrayList<Part>();
                 ArrayList<Part> attachments = new ArrayList<Part>();
                 MimeUtility.collectParts(message, viewables, attachments);
-                // Download the viewables immediately
+                // Queue the viewables for immediate download
                 boolean syncEntireMail = true;
                 for (Part part : viewables) {
-                    fp.clear();
-                    fp.add(part);
+                    FetchProfile partProfile = new FetchProfile();
+                    partProfile.add(part);
                     if (part.getSize() > account.getSyncSize()) {
                         syncEntireMail = false;
                     }
-                    // TODO what happens if the network connection dies? We've got partial
-                    // messages with incorrect status stored.
-                    remoteFolder.fetch(new Message[] { message }, fp, null);
+                    partMessages.add(message);
+                    partProfiles.add(partProfile);
+                }
+                int flag = syncEntireMail ? EmailContent.Message.FLAG_LOADED_COMPLETE
+                        : EmailContent.Message.FLAG_LOADED_SYNC_SIZE_COMPLETE;
+                if (viewables.isEmpty()) {
+                    // Nothing to wait for; store it now and mark it fully loaded
+                    copyOneMessageToProvider(message, account, toMailbox, flag);
+                } else {
+                    structuredMessages.add(message);
+                    partsToFetch.put(message, viewables.size());
+                    loadedFlags.put(message, flag);
                 }
-                // Store the updated message locally and mark it fully loaded
-                copyOneMessageToProvider(message, account, toMailbox,
-                        syncEntireMail ? EmailContent.Message.FLAG_LOADED_COMPLETE
-                                : EmailContent.Message.FLAG_LOADED_SYNC_SIZE_COMPLETE);
             }
         }
+        remoteFolder.fetchEach(partMessages.toArray(new Message[partMessages.size()]),
+                partProfiles.toArray(new FetchProfile[partProfiles.size()]),
+                new MessageRetrievalListener() {
+                    public void messageRetrieved(Message message) {
+                        // Called once for each part whose body has been set; responses that
+                        // don't carry a requested part are not reported
+                        Integer remaining = partsToFetch.get(message);
+                        if (remaining == null) {
+                            return;
+                        } else if (remaining > 1) {
+                            partsToFetch.put(message, remaining - 1);
+                            return;
+                        }
+                        // That was the last part; store the updated message locally
+                        partsToFetch.remove(message);
+                        copyOneMessageToProvider(message, account, toMailbox,
+                                loadedFlags.get(message));
+                        // Don't hold on to the parts we've stored while the rest are fetched
+                        try {
+                            message.setBody(null);
+                        } catch (MessagingException e) {
+                            // Only means that we keep the parts a little longer
+                        }
+                    }
 
+                    @Override
+                    public void loadAttachmentProgress(int progress) {
+                    }
+        });
+        // Store any message the server didn't send all of the parts for, as we always have
+        for (Message message : structuredMessages) {
+            if (partsToFetch.containsKey(message)) {
+                copyOneMessageToProvider(message, account, toMailbox, loadedFlags.get(message));
+            }
+        }
     }
 
     public void downloadFlagAndEnvelope(final Account account, final Mailbox mailbox,
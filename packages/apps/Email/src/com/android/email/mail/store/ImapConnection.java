@@ -63,6 +63,9 @@ class ImapConnection {
     private static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
     Transport mTransport;
     private ImapResponseParser mParser;
+    /** Literals larger than this are stored in a temp file by the parser */
+    private int mLiteralKeepInMemoryThreshold =
+            ImapResponseParser.LITERAL_KEEP_IN_MEMORY_THRESHOLD;
     private ImapStore mImapStore;
     private String mUsername;
     private String mLoginPhrase;
@@ -214,6 +217,7 @@ class ImapConnection {
     private void createParser() {
         destroyResponses();
         mParser = new ImapResponseParser(mTransport.getInputStream(), mDiscourse);
+        mParser.setLiteralKeepInMemoryThreshold(mLiteralKeepInMemoryThreshold);
     }
 
     void destroyResponses() {
@@ -222,6 +226,25 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Changes the size above which literals in responses are stored in a temp file rather than
+     * in memory.
+     *
+     * @return the previous threshold
+     */
+    int setLiteralKeepInMemoryThreshold(int threshold) {
+        final int previous = mLiteralKeepInMemoryThreshold;
+        mLiteralKeepInMemoryThreshold = threshold;
+        if (mParser != null) {
+            mParser.setLiteralKeepInMemoryThreshold(threshold);
+        }
+        return previous;
+    }
+
+    int getMaxMemoryLiteralSizeForTest() {
+        return mParser != null ? mParser.getMaxMemoryLiteralSize() : 0;
+    }
+
     boolean isTransportOpenForTest() {
         return mTransport != null ? mTransport.isOpen() : false;
     }
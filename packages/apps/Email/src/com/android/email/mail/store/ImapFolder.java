@@ -60,13 +60,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 
 class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
+    /** Most UID FETCH commands {@link #fetchEach} keeps outstanding at once */
+    private static final int PIPELINED_FETCH_DEPTH = 8;
+    /** Literals larger than this are spooled to a temp file during {@link #fetchEach} */
+    private static final int PIPELINED_FETCH_LITERAL_THRESHOLD = 64 * 1024;
 
     private final ImapStore mStore;
     private final String mName;
@@ -149,6 +155,11 @@ class ImapFolder extends Folder {
         return mExists && mConnection != null;
     }
 
+    @VisibleForTesting
+    ImapConnection getConnectionForTest() {
+        return mConnection;
+    }
+
     @Override
     public OpenMode getMode() {
         return mMode;
@@ -520,30 +531,206 @@ class ImapFolder extends Folder {
         }
     }
 
+    @Override
+    public void fetchEach(Message[] messages, FetchProfile[] profiles,
+            MessageRetrievalListener listener) throws MessagingException {
+        try {
+            fetchPipelined(messages, profiles, listener);
+        } catch (RuntimeException e) { // Probably a parser error.
+            Log.w(Logging.LOG_TAG, "Exception detected: " + e.getMessage());
+            if (mConnection != null) {
+                mConnection.logLastDiscourse();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A single UID FETCH command: the messages it covers and what to do with the responses.
+     */
+    private static class FetchRequest {
+        final HashMap<String, Message> mMessageMap = new HashMap<String, Message>();
+        final FetchProfile mProfile;
+        final Part mFetchPart;
+        // The key the requested body or part comes back under, or null if none was requested
+        final String mBodyKey;
+        final String mCommand;
+        String mTag;
+
+        FetchRequest(Message[] messages, FetchProfile fp) {
+            for (Message m : messages) {
+                mMessageMap.put(m.getUid(), m);
+            }
+            mProfile = fp;
+            mFetchPart = fp.getFirstPart();
+            mBodyKey = getBodyKey(fp);
+            mCommand = String.format(ImapConstants.UID_FETCH + " %s (%s)",
+                    ImapStore.joinMessageUids(messages), getFetchFields(messages, fp));
+        }
+    }
+
     public void fetchInternal(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException {
         if (messages.length == 0) {
             return;
         }
         checkOpen();
-        HashMap<String, Message> messageMap = new HashMap<String, Message>();
-        for (Message m : messages) {
-            messageMap.put(m.getUid(), m);
+        final FetchRequest request = new FetchRequest(messages, fp);
+        try {
+            mConnection.sendCommand(request.mCommand, false);
+            ImapResponse response;
+            do {
+                response = null;
+                try {
+                    response = mConnection.readResponse();
+                    handleFetchResponse(request, response, listener);
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    /**
+     * Fetches profiles[i] for messages[i], keeping up to {@link #PIPELINED_FETCH_DEPTH} UID FETCH
+     * commands outstanding instead of waiting for each tagged response before sending the next.
+     *
+     * While the fetch is running, any literal larger than
+     * {@link #PIPELINED_FETCH_LITERAL_THRESHOLD} is spooled from the socket to a temp file and
+     * decoded from there, so the memory used does not depend on the size of the messages.
+     */
+    private void fetchPipelined(Message[] messages, FetchProfile[] profiles,
+            MessageRetrievalListener listener) throws MessagingException {
+        if (messages.length == 0) {
+            return;
+        }
+        checkOpen();
+        final LinkedList<FetchRequest> pending = new LinkedList<FetchRequest>();
+        for (int i = 0; i < messages.length; i++) {
+            pending.add(new FetchRequest(new Message[] { messages[i] }, profiles[i]));
         }
+        final LinkedList<FetchRequest> outstanding = new LinkedList<FetchRequest>();
+        final int previousThreshold =
+                mConnection.setLiteralKeepInMemoryThreshold(PIPELINED_FETCH_LITERAL_THRESHOLD);
+        try {
+            while (!pending.isEmpty() || !outstanding.isEmpty()) {
+                while (!pending.isEmpty() && outstanding.size() < PIPELINED_FETCH_DEPTH) {
+                    final FetchRequest request = pending.removeFirst();
+                    request.mTag = mConnection.sendCommand(request.mCommand, false);
+                    outstanding.add(request);
+                }
+                try {
+                    final ImapResponse response = mConnection.readResponse();
+                    if (response.isTagged()) {
+                        removeRequest(outstanding, response.getTag());
+                    } else {
+                        final FetchRequest request = findRequest(outstanding, response);
+                        if (request != null) {
+                            handleFetchResponse(request, response, listener);
+                        }
+                    }
+                } finally {
+                    destroyResponses();
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            if (mConnection != null) {
+                mConnection.setLiteralKeepInMemoryThreshold(previousThreshold);
+            }
+        }
+    }
 
-        /*
-         * Figure out what command we are going to run:
-         * FLAGS     - UID FETCH (FLAGS)
-         * ENVELOPE  - UID FETCH (INTERNALDATE UID RFC822.SIZE FLAGS BODY.PEEK[
-         *                            HEADER.FIELDS (date subject from content-type to cc)])
-         * STRUCTURE - UID FETCH (BODYSTRUCTURE)
-         * BODY_SANE - UID FETCH (BODY.PEEK[]<0.N>) where N = max bytes returned
-         * BODY      - UID FETCH (BODY.PEEK[])
-         * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID
-         * Part_SANE - UID FETCH (BODY.PEEK[ID]<0.N>) where ID = mime part ID and N = max bytes returned
-         *           - this is add for sync size.
-         */
+    /**
+     * Removes the command the tagged response completes.  A tag we didn't send is taken to
+     * complete the oldest command, so that a confused server can't stall the fetch.
+     */
+    private static void removeRequest(LinkedList<FetchRequest> outstanding, String tag) {
+        for (Iterator<FetchRequest> i = outstanding.iterator(); i.hasNext(); ) {
+            if (i.next().mTag.equals(tag)) {
+                i.remove();
+                return;
+            }
+        }
+        outstanding.removeFirst();
+    }
 
+    /**
+     * Untagged responses carry no tag, so attribute a FETCH response to the oldest outstanding
+     * command (servers answer pipelined FETCHes in order) that asked for its message and for
+     * the data it carries. Several commands may ask for different parts of the same message,
+     * and the server may also send FETCH responses of its own, such as flag changes made by
+     * another client.
+     *
+     * @return the command, or null if the response doesn't answer any of them
+     */
+    private static FetchRequest findRequest(LinkedList<FetchRequest> outstanding,
+            ImapResponse response) {
+        if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+            return null;
+        }
+        final ImapList fetchList = response.getListOrEmpty(2);
+        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+        for (FetchRequest request : outstanding) {
+            if (request.mMessageMap.containsKey(uid) && (request.mBodyKey == null
+                    || getBodyOrNull(fetchList, request.mBodyKey) != null)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the key a FETCH response carries the body or part requested by {@code fp} under,
+     *     such as "BODY[]" or "BODY[1.2]", or null if it requests neither
+     */
+    private static String getBodyKey(FetchProfile fp) {
+        final Part fetchPart = fp.getFirstPart();
+        if (fetchPart != null) {
+            String[] partIds =
+                    fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            if (partIds != null) {
+                return ImapConstants.BODY + "[" + partIds[0] + "]";
+            }
+        }
+        if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
+            return ImapConstants.BODY + "[]";
+        }
+        return null;
+    }
+
+    /**
+     * Finds the body keyed exactly by {@code key}, or by {@code key} followed by an origin
+     * octet such as "BODY[1]<0>".  "BODY[1.2]" is not taken for "BODY[1]".
+     *
+     * @return the body, or null if the response doesn't carry it
+     */
+    private static ImapString getBodyOrNull(ImapList fetchList, String key) {
+        final String partialKey = key + "<";
+        for (int i = 1; i < fetchList.size(); i += 2) {
+            if (fetchList.is(i - 1, key) || fetchList.is(i - 1, partialKey, true)) {
+                return fetchList.getStringOrEmpty(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Figure out what command we are going to run:
+     * FLAGS     - UID FETCH (FLAGS)
+     * ENVELOPE  - UID FETCH (INTERNALDATE UID RFC822.SIZE FLAGS BODY.PEEK[
+     *                            HEADER.FIELDS (date subject from content-type to cc)])
+     * STRUCTURE - UID FETCH (BODYSTRUCTURE)
+     * BODY_SANE - UID FETCH (BODY.PEEK[]<0.N>) where N = max bytes returned
+     * BODY      - UID FETCH (BODY.PEEK[])
+     * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID
+     * Part_SANE - UID FETCH (BODY.PEEK[ID]<0.N>) where ID = mime part ID and N = max bytes returned
+     *           - this is add for sync size.
+     */
+    private static String getFetchFields(Message[] messages, FetchProfile fp) {
         final LinkedHashSet<String> fetchFields = new LinkedHashSet<String>();
         int syncSize = messages[0].getNeedSyncSize();
         fetchFields.add(ImapConstants.UID);
@@ -587,99 +774,97 @@ class ImapFolder extends Folder {
             }
         }
 
-        try {
-            mConnection.sendCommand(String.format(
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
-            ImapResponse response;
-            int messageNumber = 0;
-            do {
-                response = null;
-                try {
-                    response = mConnection.readResponse();
+        return Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
+    }
 
-                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
-                    }
-                    final ImapList fetchList = response.getListOrEmpty(2);
-                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                            .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
-
-                    ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
-
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
-                    }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                if (Logging.LOGD) {
-                                    Log.v(Logging.LOG_TAG, "Error handling message", e);
-                                }
-                                message.setBody(null);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
-                    }
-                    if (fetchPart != null && fetchPart.getSize() > 0) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String contentTransferEncoding = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
-
-                        fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                fetchPart.getSize(), listener));
-                    }
+    /**
+     * Applies one response to a FETCH command to the message it is about.
+     */
+    private void handleFetchResponse(FetchRequest request, ImapResponse response,
+            MessageRetrievalListener listener) throws IOException, MessagingException {
+        if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+            return; // Ignore
+        }
+        final ImapList fetchList = response.getListOrEmpty(2);
+        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+        if (TextUtils.isEmpty(uid)) return;
+
+        ImapMessage message = (ImapMessage) request.mMessageMap.get(uid);
+        if (message == null) return;
+
+        // A response without the body or part we asked for, such as a flag change the server
+        // sends on its own, must not be taken for an empty one
+        final ImapString body = request.mBodyKey == null ? null
+                : getBodyOrNull(fetchList, request.mBodyKey);
+        if (request.mBodyKey != null && body == null) return;
 
-                    if (listener != null) {
-                        listener.messageRetrieved(message);
+        final FetchProfile fp = request.mProfile;
+        final Part fetchPart = request.mFetchPart;
+
+        if (fp.contains(FetchProfile.Item.FLAGS)) {
+            final ImapList flags =
+                fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+            for (int i = 0, count = flags.size(); i < count; i++) {
+                final ImapString flag = flags.getStringOrEmpty(i);
+                if (flag.is(ImapConstants.FLAG_DELETED)) {
+                    message.setFlagInternal(Flag.DELETED, true);
+                } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                    message.setFlagInternal(Flag.ANSWERED, true);
+                } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                    message.setFlagInternal(Flag.SEEN, true);
+                } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                    message.setFlagInternal(Flag.FLAGGED, true);
+                }
+            }
+        }
+        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+            final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.INTERNALDATE).getDateOrNull();
+            final int size = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.RFC822_SIZE).getNumberOrZero();
+            final String header = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.BODY_BRACKET_HEADER, true).getString();
+
+            message.setInternalDate(internalDate);
+            message.setSize(size);
+            message.parse(Utility.streamFromAsciiString(header));
+        }
+        if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+            ImapList bs = fetchList.getKeyedListOrEmpty(
+                    ImapConstants.BODYSTRUCTURE);
+            if (!bs.isEmpty()) {
+                try {
+                    parseBodyStructure(bs, message, ImapConstants.TEXT);
+                } catch (MessagingException e) {
+                    if (Logging.LOGD) {
+                        Log.v(Logging.LOG_TAG, "Error handling message", e);
                     }
-                } finally {
-                    destroyResponses();
+                    message.setBody(null);
                 }
-            } while (!response.isTagged());
-        } catch (IOException ioe) {
-            throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
+        if (fp.contains(FetchProfile.Item.BODY)
+                || fp.contains(FetchProfile.Item.BODY_SANE)) {
+            // Body is keyed by "BODY[]...".
+            // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
+            // TODO Should we accept "RFC822" as well??
+            ImapString messageBody = getBodyOrNull(fetchList, ImapConstants.BODY + "[]");
+            if (messageBody == null) {
+                messageBody = ImapString.EMPTY;
+            }
+            InputStream bodyStream = messageBody.getAsStream();
+            message.parse(bodyStream);
+        }
+        if (fetchPart != null && fetchPart.getSize() > 0 && body != null) {
+            InputStream bodyStream = body.getAsStream();
+            String contentTransferEncoding = fetchPart.getHeader(
+                    MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
+
+            fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
+                    fetchPart.getSize(), listener));
+        }
+        if (listener != null) {
+            listener.messageRetrieved(message);
         }
     }
 
@@ -40,7 +40,7 @@ public class ImapResponseParser {
     /**
      * Literal larger than this will be stored in temp file.
      */
-    private static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
+    public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
     /** Input stream */
     private final PeekableInputStream mIn;
@@ -52,7 +52,10 @@ public class ImapResponseParser {
      */
     private final DiscourseLogger mDiscourseLogger;
 
-    private final int mLiteralKeepInMemoryThreshold;
+    private int mLiteralKeepInMemoryThreshold;
+
+    /** Size of the largest literal kept in memory so far; for tests. */
+    private int mMaxMemoryLiteralSize;
 
     /** StringBuilder used by readUntil() */
     private final StringBuilder mBufferReadUntil = new StringBuilder();
@@ -97,6 +100,25 @@ public class ImapResponseParser {
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
 
+    /**
+     * Changes the size above which literals are stored in a temp file rather than in memory.
+     * Takes effect from the next literal read.
+     *
+     * @return the previous threshold
+     */
+    public int setLiteralKeepInMemoryThreshold(int literalKeepInMemoryThreshold) {
+        final int previous = mLiteralKeepInMemoryThreshold;
+        mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
+        return previous;
+    }
+
+    /**
+     * @return the size of the largest literal this parser has kept in memory.
+     */
+    public int getMaxMemoryLiteralSize() {
+        return mMaxMemoryLiteralSize;
+    }
+
     private static IOException newEOSException() {
         final String message = "End of stream reached";
         if (Email.DEBUG) {
@@ -444,6 +466,7 @@ public class ImapResponseParser {
         if (size > mLiteralKeepInMemoryThreshold) {
             return new ImapTempFileLiteral(in);
         } else {
+            mMaxMemoryLiteralSize = Math.max(mMaxMemoryLiteralSize, size);
             return new ImapMemoryLiteral(in);
         }
     }
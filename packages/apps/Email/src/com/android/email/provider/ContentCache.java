@@ -34,6 +34,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An LRU cache for EmailContent (Account, HostAuth, Mailbox, and Message, thus far).  The intended
@@ -68,10 +70,16 @@ import java.util.Set;
  * 2. Update the row: db.update(...);
  * 3. Unlock the row in the cache, passing in the new values: cache.unlock(id, values);
  *
- * Synchronization note: All of the public methods in ContentCache are synchronized (i.e. on the
- * cache itself) except for methods that are solely used for debugging and do not modify the cache.
- * All references to ContentCache that are external to the ContentCache class MUST synchronize on
- * the ContentCache instance (e.g. CachedCursor.close())
+ * Synchronization note: Rows are guarded by stripe locks, chosen by the hash of the row id. A
+ * cache created with the three-argument constructor has a single stripe, so that all of its
+ * public methods (except those solely used for debugging) are serialized as if they were
+ * synchronized on the cache itself. A concurrent cache has several stripes, so that operations on
+ * rows in different stripes proceed in parallel; invalidating the entire cache takes each stripe
+ * in turn. Tokens and row locks are kept per stripe, and LRU eviction is shared. Cursors evicted
+ * from a concurrent cache are closed later, under the lock of their own stripe, so that a reader
+ * of that row never sees its cursor closed underneath it. All references to ContentCache that are
+ * external to the ContentCache class MUST hold the stripe lock for the row
+ * (e.g. CachedCursor.close())
  */
 public final class ContentCache {
     private static final boolean DEBUG_CACHE = false;  // DO NOT CHECK IN TRUE
@@ -82,6 +90,9 @@ public final class ContentCache {
     // If false, reads will not use the cache; this is intended for debugging only
     private static final boolean READ_CACHE_ENABLED = true;  // DO NOT CHECK IN FALSE
 
+    // Number of stripes used by a concurrent cache
+    private static final int CONCURRENT_STRIPE_COUNT = 8;
+
     // Count of non-cacheable queries (debug only)
     private static int sNotCacheable = 0;
     // A map of queries that aren't cacheable (debug only)
@@ -95,10 +106,10 @@ public final class ContentCache {
     // tend to be closed quickly after use.  The value, for each cursor, is its reference count
     /*package*/ static final CounterMap<Cursor> sActiveCursors = new CounterMap<Cursor>(24);
 
-    // A set of locked content id's
-    private final CounterMap<String> mLockMap = new CounterMap<String>(4);
-    // A set of active tokens
-    /*package*/ TokenList mTokenList;
+    // The locks guarding rows, along with their tokens, locked ids and statistics
+    private final Stripe[] mStripes;
+    // Cursors evicted from a concurrent cache, waiting to be closed; null for a single stripe
+    private final ConcurrentLinkedQueue<EvictedCursor> mEvictedCursors;
 
     // The name of the cache (used for logging)
     private final String mName;
@@ -107,8 +118,6 @@ public final class ContentCache {
     private final String[] mBaseProjection;
     // The tag used for logging
     private final String mLogTag;
-    // Cache statistics
-    private final Statistics mStats;
     /** If {@code true}, lock the cache for all writes */
     private static boolean sLockCache;
 
@@ -234,6 +243,37 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * The lock for a subset of rows, along with the state that is guarded by it
+     */
+    private static final class Stripe extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+        // A set of active tokens
+        private final TokenList mTokenList;
+        // A set of locked content id's
+        private final CounterMap<String> mLockMap = new CounterMap<String>(4);
+        // Statistics for rows in this stripe
+        private final Statistics mStats;
+
+        private Stripe(String name) {
+            mTokenList = new TokenList(name);
+            mStats = new Statistics(name);
+        }
+    }
+
+    /**
+     * A cursor that was evicted from the cache, along with the id it was cached for
+     */
+    private static final class EvictedCursor {
+        private final String mId;
+        private final Cursor mCursor;
+
+        private EvictedCursor(String id, Cursor cursor) {
+            mId = id;
+            mCursor = cursor;
+        }
+    }
+
     /**
      * A CacheToken is an opaque object that must be passed into putCursor in order to attempt to
      * write into the cache.  The token becomes invalidated by any intervening write to the cached
@@ -305,11 +345,14 @@ public final class ContentCache {
          */
         @Override
         public void close() {
-            synchronized(mCache) {
+            Stripe stripe = mCache.lockStripe(mId);
+            try {
                 int count = sActiveCursors.subtract(mCursor);
                 if ((count == 0) && mCache.mLruCache.get(mId) != (mCursor)) {
                     super.close();
                 }
+            } finally {
+                stripe.unlock();
             }
             isClosed = true;
         }
@@ -408,13 +451,30 @@ public final class ContentCache {
      * @param maxSize the maximum number of content cursors to cache
      */
     public ContentCache(String name, String[] baseProjection, int maxSize) {
+        this(name, baseProjection, maxSize, false);
+    }
+
+    /**
+     * Public constructor
+     * @param name the name of the cache (used for logging)
+     * @param baseProjection the projection used for cached cursors; queries whose columns are not
+     *  included in baseProjection will always generate a cache miss
+     * @param maxSize the maximum number of content cursors to cache
+     * @param concurrent whether rows are guarded by striped locks, rather than a single lock for
+     *  the entire cache
+     */
+    public ContentCache(String name, String[] baseProjection, int maxSize, boolean concurrent) {
         mName = name;
         mLruCache = new LruCache<String, Cursor>(maxSize) {
             @Override
             protected void entryRemoved(
                     boolean evicted, String key, Cursor oldValue, Cursor newValue) {
-                // Close this cursor if it's no longer being used
-                if (evicted && !sActiveCursors.contains(oldValue)) {
+                if (!evicted) return;
+                if (mEvictedCursors != null) {
+                    // We may be holding the lock of another stripe; close it later
+                    mEvictedCursors.add(new EvictedCursor(key, oldValue));
+                } else if (!sActiveCursors.contains(oldValue)) {
+                    // Close this cursor if it's no longer being used
                     oldValue.close();
                 }
             }
@@ -422,8 +482,46 @@ public final class ContentCache {
         mBaseProjection = baseProjection;
         mLogTag = "ContentCache-" + name;
         sContentCaches.add(this);
-        mTokenList = new TokenList(mName);
-        mStats = new Statistics(this);
+        mStripes = new Stripe[concurrent ? CONCURRENT_STRIPE_COUNT : 1];
+        for (int i = 0; i < mStripes.length; i++) {
+            mStripes[i] = new Stripe(mName);
+        }
+        mEvictedCursors = concurrent ? new ConcurrentLinkedQueue<EvictedCursor>() : null;
+    }
+
+    /**
+     * Lock and return the stripe guarding the given row, counting the acquisition as contended if
+     * another thread holds the lock
+     */
+    private Stripe lockStripe(String id) {
+        int hash = id.hashCode();
+        // Spread the hash; ids are mostly short decimal strings
+        hash ^= (hash >>> 16) ^ (hash >>> 8);
+        Stripe stripe = mStripes[(hash & 0x7fffffff) % mStripes.length];
+        if (!stripe.tryLock()) {
+            stripe.lock();
+            stripe.mStats.mContentionCount++;
+        }
+        return stripe;
+    }
+
+    /**
+     * Close cursors that were evicted from a concurrent cache and are no longer in use. Must be
+     * called without holding any stripe lock.
+     */
+    private void closeEvictedCursors() {
+        if (mEvictedCursors == null) return;
+        EvictedCursor evicted;
+        while ((evicted = mEvictedCursors.poll()) != null) {
+            Stripe stripe = lockStripe(evicted.mId);
+            try {
+                if (!sActiveCursors.contains(evicted.mCursor)) {
+                    evicted.mCursor.close();
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
     }
 
     /**
@@ -441,13 +539,18 @@ public final class ContentCache {
      * @param id the id of the record
      * @return a CacheToken needed in order to write data for the record back to the cache
      */
-    public synchronized CacheToken getCacheToken(String id) {
-        // If another thread is already writing the data, return an invalid token
-        CacheToken token = mTokenList.add(id);
-        if (mLockMap.contains(id)) {
-            token.invalidate();
+    public CacheToken getCacheToken(String id) {
+        Stripe stripe = lockStripe(id);
+        try {
+            // If another thread is already writing the data, return an invalid token
+            CacheToken token = stripe.mTokenList.add(id);
+            if (stripe.mLockMap.contains(id)) {
+                token.invalidate();
+            }
+            return token;
+        } finally {
+            stripe.unlock();
         }
-        return token;
     }
 
     public int size() {
@@ -476,16 +579,19 @@ public final class ContentCache {
         // to prevent deadlock with a writing thread (which might, for example, be calling into
         // CachedCursor.invalidate)
         c.moveToPosition(0);
-        return putCursorImpl(c, id, projection, token);
+        Cursor result = putCursorImpl(c, id, projection, token);
+        closeEvictedCursors();
+        return result;
     }
-    public synchronized Cursor putCursorImpl(Cursor c, String id, String[] projection,
+    public Cursor putCursorImpl(Cursor c, String id, String[] projection,
             CacheToken token) {
+        Stripe stripe = lockStripe(id);
         try {
             if (!token.isValid()) {
                 if (Email.DEBUG && DEBUG_CACHE) {
                     Log.d(mLogTag, "============ Stale token for " + id);
                 }
-                mStats.mStaleCount++;
+                stripe.mStats.mStaleCount++;
                 return c;
             }
             if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
@@ -495,14 +601,15 @@ public final class ContentCache {
                 // If we've already cached this cursor, invalidate the older one
                 Cursor existingCursor = get(id);
                 if (existingCursor != null) {
-                   unlockImpl(id, null, false);
+                   unlockImpl(stripe, id, null, false);
                 }
                 mLruCache.put(id, c);
                 return new CachedCursor(c, this, id);
             }
             return c;
         } finally {
-            mTokenList.remove(token);
+            stripe.mTokenList.remove(token);
+            stripe.unlock();
         }
     }
 
@@ -512,33 +619,42 @@ public final class ContentCache {
      * @param projection the requested projection for a query
      * @return a cursor based on cached values, or null if the row is not cached
      */
-    public synchronized Cursor getCachedCursor(String id, String[] projection) {
-        if (Email.DEBUG && DEBUG_STATISTICS) {
-            // Every 200 calls to getCursor, report cache statistics
-            dumpOnCount(200);
-        }
-        if (projection == mBaseProjection) {
-            return getCachedCursorImpl(id);
-        } else {
-            return getMatrixCursor(id, projection);
+    public Cursor getCachedCursor(String id, String[] projection) {
+        boolean dump = false;
+        Stripe stripe = lockStripe(id);
+        try {
+            if (Email.DEBUG && DEBUG_STATISTICS) {
+                // Every 200 calls to getCursor, report cache statistics
+                dump = (++stripe.mStats.mOpCount % 200) == 0;
+            }
+            if (projection == mBaseProjection) {
+                return getCachedCursorImpl(stripe, id);
+            } else {
+                return getMatrixCursor(stripe, id, projection);
+            }
+        } finally {
+            stripe.unlock();
+            if (dump) {
+                dumpStats();
+            }
         }
     }
 
-    private CachedCursor getCachedCursorImpl(String id) {
+    private CachedCursor getCachedCursorImpl(Stripe stripe, String id) {
         Cursor c = get(id);
         if (c != null) {
-            mStats.mHitCount++;
+            stripe.mStats.mHitCount++;
             return new CachedCursor(c, this, id);
         }
-        mStats.mMissCount++;
+        stripe.mStats.mMissCount++;
         return null;
     }
 
-    private MatrixCursor getMatrixCursor(String id, String[] projection) {
-        return getMatrixCursor(id, projection, null);
+    private MatrixCursor getMatrixCursor(Stripe stripe, String id, String[] projection) {
+        return getMatrixCursor(stripe, id, projection, null);
     }
 
-    private MatrixCursor getMatrixCursor(String id, String[] projection,
+    private MatrixCursor getMatrixCursor(Stripe stripe, String id, String[] projection,
             ContentValues values) {
         Cursor c = get(id);
         if (c != null) {
@@ -556,7 +672,7 @@ public final class ContentCache {
             for (String column: projection) {
                 int columnIndex = c.getColumnIndex(column);
                 if (columnIndex < 0) {
-                    mStats.mProjectionMissCount++;
+                    stripe.mStats.mProjectionMissCount++;
                     return null;
                 } else {
                     String value;
@@ -578,10 +694,10 @@ public final class ContentCache {
                 return null;
             }
             mc.addRow(row);
-            mStats.mHitCount++;
+            stripe.mStats.mHitCount++;
             return mc;
         }
-        mStats.mMissCount++;
+        stripe.mStats.mMissCount++;
         return null;
     }
 
@@ -589,14 +705,19 @@ public final class ContentCache {
      * Lock a given row, such that no new valid CacheTokens can be created for the passed-in id.
      * @param id the id of the row to lock
      */
-    public synchronized void lock(String id) {
-        // Prevent new valid tokens from being created
-        mLockMap.add(id);
-        // Invalidate current tokens
-        int count = mTokenList.invalidateTokens(id);
-        if (Email.DEBUG && DEBUG_TOKENS) {
-            Log.d(mTokenList.mLogTag, "============ Lock invalidated " + count +
-                    " tokens for: " + id);
+    public void lock(String id) {
+        Stripe stripe = lockStripe(id);
+        try {
+            // Prevent new valid tokens from being created
+            stripe.mLockMap.add(id);
+            // Invalidate current tokens
+            int count = stripe.mTokenList.invalidateTokens(id);
+            if (Email.DEBUG && DEBUG_TOKENS) {
+                Log.d(stripe.mTokenList.mLogTag, "============ Lock invalidated " + count +
+                        " tokens for: " + id);
+            }
+        } finally {
+            stripe.unlock();
         }
     }
 
@@ -604,8 +725,8 @@ public final class ContentCache {
      * Unlock a given row, allowing new valid CacheTokens to be created for the passed-in id.
      * @param id the id of the item whose cursor is cached
      */
-    public synchronized void unlock(String id) {
-        unlockImpl(id, null, true);
+    public void unlock(String id) {
+        unlock(id, null);
     }
 
     /**
@@ -615,8 +736,14 @@ public final class ContentCache {
      * @param id the id of the item whose cursor is cached
      * @param values updated values for this row
      */
-    public synchronized void unlock(String id, ContentValues values) {
-        unlockImpl(id, values, true);
+    public void unlock(String id, ContentValues values) {
+        Stripe stripe = lockStripe(id);
+        try {
+            unlockImpl(stripe, id, values, true);
+        } finally {
+            stripe.unlock();
+        }
+        closeEvictedCursors();
     }
 
     /**
@@ -624,18 +751,20 @@ public final class ContentCache {
      * then closes the previously cached one (if any, and if not in use)
      * If values are not passed in, removes the row from cache
      * If the row was locked, unlock it
+     * Must be called with the stripe for the row locked
+     * @param stripe the stripe guarding the row
      * @param id the id of the row
      * @param values new ContentValues for the row (or null if row should simply be removed)
      * @param wasLocked whether or not the row was locked; if so, the lock will be removed
      */
-    private void unlockImpl(String id, ContentValues values, boolean wasLocked) {
+    private void unlockImpl(Stripe stripe, String id, ContentValues values, boolean wasLocked) {
         Cursor c = get(id);
         if (c != null) {
             if (Email.DEBUG && DEBUG_CACHE) {
                 Log.d(mLogTag, "=========== Unlocking cache for: " + id);
             }
             if (values != null && !sLockCache) {
-                MatrixCursor cursor = getMatrixCursor(id, mBaseProjection, values);
+                MatrixCursor cursor = getMatrixCursor(stripe, id, mBaseProjection, values);
                 if (cursor != null) {
                     if (Email.DEBUG && DEBUG_CACHE) {
                         Log.d(mLogTag, "=========== Recaching with new values: " + id);
@@ -654,14 +783,14 @@ public final class ContentCache {
             }
         }
         if (wasLocked) {
-            mLockMap.subtract(id);
+            stripe.mLockMap.subtract(id);
         }
     }
 
     /**
      * Invalidate the entire cache, without logging
      */
-    public synchronized void invalidate() {
+    public void invalidate() {
         invalidate(null, null, null);
     }
 
@@ -673,37 +802,85 @@ public final class ContentCache {
      * @param uri the uri causing the invalidate (or null)
      * @param selection the selection used with the uri (or null)
      */
-    public synchronized void invalidate(String operation, Uri uri, String selection) {
+    public void invalidate(String operation, Uri uri, String selection) {
         if (DEBUG_CACHE && (operation != null)) {
             Log.d(mLogTag, "============ INVALIDATED BY " + operation + ": " + uri +
                     ", SELECTION: " + selection);
         }
-        mStats.mInvalidateCount++;
-        // Close all cached cursors that are no longer in use
-        mLruCache.evictAll();
-        // Invalidate all current tokens
-        mTokenList.invalidate();
+        // Take each stripe in turn; any token taken before we reach its stripe is invalidated,
+        // and anything cached with such a token is evicted below
+        final int last = mStripes.length - 1;
+        for (int i = 0; i <= last; i++) {
+            Stripe stripe = mStripes[i];
+            stripe.lock();
+            try {
+                if (i == 0) {
+                    stripe.mStats.mInvalidateCount++;
+                }
+                // Invalidate all current tokens
+                stripe.mTokenList.invalidate();
+                if (i == last) {
+                    // Close all cached cursors that are no longer in use
+                    mLruCache.evictAll();
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+        closeEvictedCursors();
     }
 
     // Debugging code below
 
-    private void dumpOnCount(int num) {
-        mStats.mOpCount++;
-        if ((mStats.mOpCount % num) == 0) {
-            dumpStats();
+    /*package*/ void recordQueryTime(Cursor c, long nanoTime) {
+        // Timing statistics are kept with the first stripe
+        Stripe stripe = mStripes[0];
+        stripe.lock();
+        try {
+            if (c instanceof CachedCursor) {
+                stripe.mStats.hitTimes += nanoTime;
+                stripe.mStats.hits++;
+            } else {
+                if (c.getCount() == 1) {
+                    stripe.mStats.missTimes += nanoTime;
+                    stripe.mStats.miss++;
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Return the number of outstanding tokens
+     */
+    /*package*/ int getTokenCount() {
+        int count = 0;
+        for (Stripe stripe: mStripes) {
+            stripe.lock();
+            try {
+                count += stripe.mTokenList.size();
+            } finally {
+                stripe.unlock();
+            }
         }
+        return count;
     }
 
-    /*package*/ void recordQueryTime(Cursor c, long nanoTime) {
-        if (c instanceof CachedCursor) {
-            mStats.hitTimes += nanoTime;
-            mStats.hits++;
-        } else {
-            if (c.getCount() == 1) {
-                mStats.missTimes += nanoTime;
-                mStats.miss++;
+    /**
+     * Return a snapshot of the statistics of this cache, summed over all of its stripes
+     */
+    /*package*/ Statistics getStatistics() {
+        Statistics stats = new Statistics(this);
+        for (Stripe stripe: mStripes) {
+            stripe.lock();
+            try {
+                stats.addStatistics(stripe.mStats);
+            } finally {
+                stripe.unlock();
             }
         }
+        return stats;
     }
 
     public static synchronized void notCacheable(Uri uri, String selection) {
@@ -774,6 +951,8 @@ public final class ContentCache {
         private int mProjectionMissCount = 0;
         // Incremented whenever the entire cache is invalidated
         private int mInvalidateCount = 0;
+        // Incremented whenever a thread has to wait for the lock guarding a row
+        private int mContentionCount = 0;
         // Count of operations put/get
         private int mOpCount = 0;
         // The following are for timing statistics
@@ -796,21 +975,40 @@ public final class ContentCache {
             mName = name;
         }
 
+        private void addStatistics(Statistics stats) {
+            mHitCount += stats.mHitCount;
+            mMissCount += stats.mMissCount;
+            mProjectionMissCount += stats.mProjectionMissCount;
+            mStaleCount += stats.mStaleCount;
+            mInvalidateCount += stats.mInvalidateCount;
+            mContentionCount += stats.mContentionCount;
+            mOpCount += stats.mOpCount;
+            hitTimes += stats.hitTimes;
+            missTimes += stats.missTimes;
+            hits += stats.hits;
+            miss += stats.miss;
+        }
+
         private void addCacheStatistics(ContentCache cache) {
             if (cache != null) {
-                mHitCount += cache.mStats.mHitCount;
-                mMissCount += cache.mStats.mMissCount;
-                mProjectionMissCount += cache.mStats.mProjectionMissCount;
-                mStaleCount += cache.mStats.mStaleCount;
-                hitTimes += cache.mStats.hitTimes;
-                missTimes += cache.mStats.missTimes;
-                hits += cache.mStats.hits;
-                miss += cache.mStats.miss;
+                addStatistics(cache.getStatistics());
                 mCursorCount += cache.size();
-                mTokenCount += cache.mTokenList.size();
+                mTokenCount += cache.getTokenCount();
             }
         }
 
+        /*package*/ int getHitCount() {
+            return mHitCount;
+        }
+
+        /*package*/ int getMissCount() {
+            return mMissCount + mProjectionMissCount;
+        }
+
+        /*package*/ int getContentionCount() {
+            return mContentionCount;
+        }
+
         private void append(StringBuilder sb, String name, Object value) {
             sb.append(", ");
             sb.append(name);
@@ -828,7 +1026,8 @@ public final class ContentCache {
             append(sb, "Hits", mHitCount);
             append(sb, "Misses", mMissCount + mProjectionMissCount);
             append(sb, "Inval", mInvalidateCount);
-            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.mTokenList.size());
+            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.getTokenCount());
+            append(sb, "Contended", mContentionCount);
             append(sb, "Hit%", mHitCount * 100 / totalTries);
             append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
             append(sb, "Miss time", missTimes / 1000000.0 / miss);
@@ -841,7 +1040,7 @@ public final class ContentCache {
 
         for (ContentCache cache: sContentCaches) {
             if (cache != null) {
-                Log.d(cache.mName, cache.mStats.toString());
+                Log.d(cache.mName, cache.getStatistics().toString());
                 totals.addCacheStatistics(cache);
             }
         }
@@ -130,17 +130,18 @@ public class EmailProvider extends ContentProvider implements OnAccountsUpdateLi
     private static final int NUM_ALWAYS_CACHED_MAILBOXES = 6;
 
     // We'll cache the following four tables; sizes are best estimates of effective values
+    // The caches use striped locks, as sync threads and the UI query them concurrently
     private final ContentCache mCacheAccount =
-        new ContentCache("Account", Account.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS);
+        new ContentCache("Account", Account.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS, true);
     private final ContentCache mCacheHostAuth =
-        new ContentCache("HostAuth", HostAuth.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS * 2);
+        new ContentCache("HostAuth", HostAuth.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS * 2, true);
     /*package*/ final ContentCache mCacheMailbox =
         new ContentCache("Mailbox", Mailbox.CONTENT_PROJECTION,
-                MAX_CACHED_ACCOUNTS * (NUM_ALWAYS_CACHED_MAILBOXES + 2));
+                MAX_CACHED_ACCOUNTS * (NUM_ALWAYS_CACHED_MAILBOXES + 2), true);
     private final ContentCache mCacheMessage =
-        new ContentCache("Message", Message.CONTENT_PROJECTION, 8);
+        new ContentCache("Message", Message.CONTENT_PROJECTION, 8, true);
     private final ContentCache mCachePolicy =
-        new ContentCache("Policy", Policy.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS);
+        new ContentCache("Policy", Policy.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS, true);
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 3
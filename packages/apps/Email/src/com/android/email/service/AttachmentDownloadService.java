@@ -30,6 +30,7 @@ import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
@@ -53,6 +54,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -82,11 +84,14 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // Maximum prefetch storage (also 25% of total memory)
     private static final float PREFETCH_MAXIMUM_ATTACHMENT_STORAGE = 0.25F;
 
-    // We can try various values here; I think 2 is completely reasonable as a first pass
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
+    // Downloads for different accounts run in parallel, up to this many in total
+    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 4;
     // Limit on the number of simultaneous downloads per account
     // Note that a limit of 1 is currently enforced by both Services (MailService and Controller)
     private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 1;
+    // Limit on the number of simultaneous background (prefetch) downloads, so that prefetching
+    // doesn't take all of the available bandwidth; one slot is always left for user requests
+    private static final int MAX_SIMULTANEOUS_PREFETCHES = 2;
     // Limit on the number of attachments we'll check for background download
     private static final int MAX_ATTACHMENTS_TO_CHECK = 25;
 
@@ -247,6 +252,15 @@ public class AttachmentDownloadService extends Service implements Runnable {
         /*package*/ final ConcurrentHashMap<Long, DownloadRequest> mDownloadsInProgress =
             new ConcurrentHashMap<Long, DownloadRequest>();
 
+        // Download metrics, reported by dump()
+        private int mStartedCount;
+        private int mPrefetchCount;
+        private int mSucceededCount;
+        private int mFailedCount;
+        private int mRetryCount;
+        private long mBytesDownloaded;
+        private long mDownloadTime;
+
         /**
          * onChange is called by the AttachmentReceiver upon receipt of a valid notification from
          * EmailProvider that an attachment has been inserted or modified.  It's not strictly
@@ -319,7 +333,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
             }
 
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
-            // First, start up any required downloads, in priority order
+            // First, start up any required downloads, in priority order; downloads for different
+            // accounts run side by side, each account being limited separately
             while (iterator.hasNext() &&
                     (mDownloadsInProgress.size() < MAX_SIMULTANEOUS_DOWNLOADS)) {
                 DownloadRequest req = iterator.next();
@@ -346,51 +361,99 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 return;
             }
             // Then, try opportunistic download of appropriate attachments
-            int backgroundDownloads = MAX_SIMULTANEOUS_DOWNLOADS - mDownloadsInProgress.size();
-            // Always leave one slot for user requested download
-            if (backgroundDownloads > (MAX_SIMULTANEOUS_DOWNLOADS - 1)) {
-                // We'll load up the newest 25 attachments that aren't loaded or queued
-                Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
-                        MAX_ATTACHMENTS_TO_CHECK);
-                Cursor c = mContext.getContentResolver().query(lookupUri, AttachmentInfo.PROJECTION,
-                        EmailContent.Attachment.PRECACHE_INBOX_SELECTION,
-                        null, Attachment.RECORD_ID + " DESC");
-                File cacheDir = mContext.getCacheDir();
-                try {
-                    while (c.moveToNext()) {
-                        long accountKey = c.getLong(AttachmentInfo.COLUMN_ACCOUNT_KEY);
-                        long id = c.getLong(AttachmentInfo.COLUMN_ID);
+            prefetchAttachments();
+        }
+
+        /**
+         * Start opportunistic downloads of the newest inbox attachments that aren't loaded or
+         * queued. Accounts that are already at their download limit are left out of the lookup,
+         * and each account is admitted at most once per pass (subject to canPrefetchForAccount),
+         * so that the attachments of one busy account can't starve those of the others. The
+         * number of prefetches is bounded, and one download slot is always left for user requests.
+         */
+        private void prefetchAttachments() {
+            int slots = Math.min(MAX_SIMULTANEOUS_DOWNLOADS - 1 - mDownloadsInProgress.size(),
+                    MAX_SIMULTANEOUS_PREFETCHES - prefetchesInProgress());
+            if (slots <= 0) return;
+
+            String selection = EmailContent.Attachment.PRECACHE_INBOX_SELECTION;
+            HashSet<Long> busyAccounts = new HashSet<Long>();
+            for (DownloadRequest req: mDownloadsInProgress.values()) {
+                if (downloadsForAccount(req.accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
+                    busyAccounts.add(req.accountId);
+                }
+            }
+            if (!busyAccounts.isEmpty()) {
+                selection += " AND " + Attachment.ACCOUNT_KEY + " NOT IN (" +
+                        TextUtils.join(",", busyAccounts) + ")";
+            }
+            // Whether each account we come across can prefetch; this checks storage, so we only
+            // want to do it once per pass
+            HashMap<Long, Boolean> accountAdmission = new HashMap<Long, Boolean>();
+
+            // We'll load up the newest 25 attachments that aren't loaded or queued
+            Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
+                    MAX_ATTACHMENTS_TO_CHECK);
+            Cursor c = mContext.getContentResolver().query(lookupUri, AttachmentInfo.PROJECTION,
+                    selection, null, Attachment.RECORD_ID + " DESC");
+            File cacheDir = mContext.getCacheDir();
+            try {
+                while (slots > 0 && c.moveToNext()) {
+                    long accountKey = c.getLong(AttachmentInfo.COLUMN_ACCOUNT_KEY);
+                    long id = c.getLong(AttachmentInfo.COLUMN_ID);
+                    Boolean canPrefetch = accountAdmission.get(accountKey);
+                    if (canPrefetch == null) {
                         Account account = Account.restoreAccountWithId(mContext, accountKey);
                         if (account == null) {
                             // Clean up this orphaned attachment; there's no point in keeping it
                             // around; then try to find another one
                             EmailContent.delete(mContext, Attachment.CONTENT_URI, id);
-                        } else if (canPrefetchForAccount(account, cacheDir)) {
-                            // Check that the attachment meets system requirements for download
-                            AttachmentInfo info = new AttachmentInfo(mContext, c);
-                            if (info.isEligibleForDownload()) {
-                                Attachment att = Attachment.restoreAttachmentWithId(mContext, id);
-                                if (att != null) {
-                                    Integer tryCount;
-                                    tryCount = mAttachmentFailureMap.get(att.mId);
-                                    if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
-                                        // move onto the next attachment
-                                        continue;
-                                    }
-                                    // Start this download and we're done
-                                    DownloadRequest req = new DownloadRequest(mContext, att);
-                                    mDownloadSet.tryStartDownload(req);
-                                    break;
-                                }
+                            continue;
+                        }
+                        canPrefetch = canPrefetchForAccount(account, cacheDir);
+                        accountAdmission.put(accountKey, canPrefetch);
+                    }
+                    if (!canPrefetch || downloadsForAccount(accountKey) >=
+                            MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
+                        continue;
+                    }
+                    // Check that the attachment meets system requirements for download
+                    AttachmentInfo info = new AttachmentInfo(mContext, c);
+                    if (info.isEligibleForDownload()) {
+                        Attachment att = Attachment.restoreAttachmentWithId(mContext, id);
+                        if (att != null) {
+                            Integer tryCount;
+                            tryCount = mAttachmentFailureMap.get(att.mId);
+                            if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
+                                // move onto the next attachment
+                                continue;
+                            }
+                            // Start this download and move on to the next account
+                            DownloadRequest req = new DownloadRequest(mContext, att);
+                            if (mDownloadSet.tryStartDownload(req)) {
+                                slots--;
                             }
                         }
                     }
-                } finally {
-                    c.close();
                 }
+            } finally {
+                c.close();
             }
         }
 
+        /**
+         * Count the number of background (prefetch) downloads in progress
+         */
+        private int prefetchesInProgress() {
+            int count = 0;
+            for (DownloadRequest req: mDownloadsInProgress.values()) {
+                if (req.priority == PRIORITY_NONE) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
         /**
          * Count the number of running downloads in progress for this account
          * @param accountId the id of the account
@@ -487,6 +550,10 @@ public class AttachmentDownloadService extends Service implements Runnable {
             req.startTime = System.currentTimeMillis();
             req.inProgress = true;
             mDownloadsInProgress.put(req.attachmentId, req);
+            mStartedCount++;
+            if (req.priority == PRIORITY_NONE) {
+                mPrefetchCount++;
+            }
             EmailServiceProxy proxy =
                 new EmailServiceProxy(mContext, intent, mServiceCallback);
             proxy.loadAttachment(req.attachmentId, req.priority != PRIORITY_FOREGROUND);
@@ -518,7 +585,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
          */
         /*package*/ synchronized void endDownload(long attachmentId, int statusCode) {
             // Say we're no longer downloading this
-            mDownloadsInProgress.remove(attachmentId);
+            DownloadRequest inProgressReq = mDownloadsInProgress.remove(attachmentId);
 
             // TODO: This code is conservative and treats connection issues as failures.
             // Since we have no mechanism to throttle reconnection attempts, it makes
@@ -538,6 +605,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
             DownloadRequest req = mDownloadSet.findDownloadRequest(attachmentId);
             if (statusCode == EmailServiceStatus.CONNECTION_ERROR) {
+                mRetryCount++;
                 // If this needs to be retried, just process the queue again
                 if (Email.DEBUG) {
                     Log.d(TAG, "== The download for attachment #" + attachmentId +
@@ -566,6 +634,15 @@ public class AttachmentDownloadService extends Service implements Runnable {
             }
 
             Attachment attachment = Attachment.restoreAttachmentWithId(mContext, attachmentId);
+            if (statusCode != EmailServiceStatus.SUCCESS) {
+                mFailedCount++;
+            } else {
+                mSucceededCount++;
+                if (attachment != null && inProgressReq != null) {
+                    mBytesDownloaded += attachment.mSize;
+                    mDownloadTime += System.currentTimeMillis() - inProgressReq.startTime;
+                }
+            }
             if (attachment != null) {
                 long accountId = attachment.mAccountKey;
                 // Update our attachment storage for this account
@@ -622,6 +699,33 @@ public class AttachmentDownloadService extends Service implements Runnable {
             // Process the queue
             kick();
         }
+
+        /**
+         * Print queue depth and download throughput, overall and per account
+         */
+        /*package*/ synchronized void dumpMetrics(PrintWriter pw) {
+            HashMap<Long, Integer> queued = new HashMap<Long, Integer>();
+            for (DownloadRequest req: mDownloadsInProgress.values()) {
+                queued.put(req.accountId, 0);
+            }
+            for (DownloadRequest req: this) {
+                Integer count = queued.get(req.accountId);
+                queued.put(req.accountId, count == null ? 1 : count + 1);
+            }
+            pw.println("  Queue depth: " + size() + ", in progress: " +
+                    mDownloadsInProgress.size() + " (" + prefetchesInProgress() + " prefetch)");
+            for (Long accountId: queued.keySet()) {
+                pw.println("    Account: " + accountId + ", queued: " + queued.get(accountId) +
+                        ", in progress: " + downloadsForAccount(accountId));
+            }
+            pw.println("  Started: " + mStartedCount + " (" + mPrefetchCount + " prefetch)" +
+                    ", succeeded: " + mSucceededCount + ", failed: " + mFailedCount +
+                    ", retried: " + mRetryCount);
+            pw.println("  Downloaded: " + mBytesDownloaded + " bytes in " +
+                    (mDownloadTime / 1000L) + "s of download time" +
+                    (mDownloadTime > 0 ? ", " + (mBytesDownloaded * 1000L / mDownloadTime) +
+                    " bytes/s" : ""));
+        }
     }
 
     /**
@@ -967,6 +1071,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
         pw.println("AttachmentDownloadService");
         long time = System.currentTimeMillis();
         synchronized(mDownloadSet) {
+            mDownloadSet.dumpMetrics(pw);
             pw.println("  Queue, " + mDownloadSet.size() + " entries");
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
             // First, start up any required downloads, in priority order
@@ -1055,6 +1055,151 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * Fetches a large attachment from each of several messages, first one message at a time as
+     * MessagingController used to, then with {@link ImapFolder#fetchEach}, and compares the
+     * round trips to the server and the largest literal held in memory.
+     */
+    public void testFetchEachPipelined() throws Exception {
+        final int messageCount = 3;
+        final int literalSize = 100 * 1024; // base64 "A"s; above the pipelined threshold
+        final StringBuilder sb = new StringBuilder(literalSize + 1);
+        for (int i = 0; i < literalSize; i++) {
+            sb.append('A');
+        }
+        final String literal = sb.append(')').toString();
+
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message[] messages = new Message[messageCount];
+        final String[] structures = new String[messageCount + 1];
+        for (int i = 0; i < messageCount; i++) {
+            messages[i] = mFolder.createMessage(Integer.toString(i + 1));
+            structures[i] = "* " + (i + 1) + " fETCH (uID " + (i + 1) + " bODYSTRUCTURE" +
+                    " ((\"tEXT\" \"PLAIN\" (\"cHARSET\" \"iSO-8859-1\") CID nIL \"7bIT\"" +
+                    " 18 3 NIL NIL NIL)(\"IMAGE\" \"PNG\" (\"nAME\" \"device.png\") NIL NIL" +
+                    " \"bASE64\" " + literalSize + " NIL (\"aTTACHMENT\"" +
+                    " (\"fILENAME\" \"device.png\")) NIL) \"mIXED\"))";
+        }
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.STRUCTURE);
+        structures[messageCount] = getNextTag(false) + " OK SUCCESS";
+        mock.expect(getNextTag(false) + " UID FETCH 1,2,3 \\(UID BODYSTRUCTURE\\)", structures);
+        getNextTag(true);
+        mFolder.fetch(messages, fp, null);
+
+        final FetchProfile[] profiles = new FetchProfile[messageCount];
+        for (int i = 0; i < messageCount; i++) {
+            profiles[i] = new FetchProfile();
+            profiles[i].add(((MimeMultipart) messages[i].getBody()).getBodyPart(1));
+        }
+
+        // Pipelined: every command is sent before the first response is read
+        for (int i = 0; i < messageCount; i++) {
+            expectPartFetch(mock, i + 1, literal);
+        }
+        int roundTrips = mock.getRoundTripCount();
+        mFolder.fetchEach(messages, profiles, null);
+        final int pipelinedRoundTrips = mock.getRoundTripCount() - roundTrips;
+        final int pipelinedMaxLiteral = mFolder.getConnectionForTest()
+                .getMaxMemoryLiteralSizeForTest();
+        for (int i = 0; i < messageCount; i++) {
+            assertEquals(literalSize / 4 * 3, IOUtils.toByteArray(
+                    profiles[i].getFirstPart().getBody().getInputStream()).length);
+        }
+
+        // One message at a time
+        for (int i = 0; i < messageCount; i++) {
+            expectPartFetch(mock, i + 1, literal);
+        }
+        roundTrips = mock.getRoundTripCount();
+        for (int i = 0; i < messageCount; i++) {
+            mFolder.fetch(new Message[] { messages[i] }, profiles[i], null);
+        }
+        final int sequentialRoundTrips = mock.getRoundTripCount() - roundTrips;
+        final int sequentialMaxLiteral = mFolder.getConnectionForTest()
+                .getMaxMemoryLiteralSizeForTest();
+
+        assertEquals(1, pipelinedRoundTrips);
+        assertEquals(messageCount, sequentialRoundTrips);
+        assertTrue("pipelined kept " + pipelinedMaxLiteral + " bytes in memory",
+                pipelinedMaxLiteral < literalSize);
+        assertEquals(literalSize, sequentialMaxLiteral);
+    }
+
+    /**
+     * Expects a UID FETCH of the second part of a message, answered with the given literal.
+     * Unlike most of the expectations here, the response is tagged with the command's own tag,
+     * as pipelined responses are matched to their commands by tag.
+     */
+    private void expectPartFetch(MockTransport mock, int uid, String literal) {
+        final String tag = getNextTag(false);
+        mock.expect(tag + " UID FETCH " + uid + " \\(UID BODY.PEEK\\[2\\]\\)", new String[] {
+                "* " + uid + " fETCH (uID " + uid + " bODY[2] {" + (literal.length() - 1) + "}",
+                literal,
+                tag + " oK SUCCESS"});
+        getNextTag(true);
+    }
+
+    /**
+     * Fetches two parts of the same message with {@link ImapFolder#fetchEach}.  Each response is
+     * routed by the part it carries, and a FETCH response the server sends on its own, without
+     * either part, is ignored.
+     */
+    public void testFetchEachRoutesResponsesByPart() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.STRUCTURE);
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODYSTRUCTURE\\)", new String[] {
+                "* 1 fETCH (uID 1 bODYSTRUCTURE" +
+                " ((\"IMAGE\" \"PNG\" (\"nAME\" \"one.png\") NIL NIL \"bASE64\" 4 NIL NIL NIL)" +
+                "(\"IMAGE\" \"PNG\" (\"nAME\" \"two.png\") NIL NIL \"bASE64\" 4 NIL NIL NIL)" +
+                " \"mIXED\"))",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message }, fp, null);
+
+        final MimeMultipart body = (MimeMultipart) message.getBody();
+        final FetchProfile[] profiles = new FetchProfile[2];
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i] = new FetchProfile();
+            profiles[i].add(body.getBodyPart(i));
+        }
+        final String firstTag = getNextTag(false);
+        mock.expect(firstTag + " UID FETCH 1 \\(UID BODY.PEEK\\[1\\]\\)", new String[] {
+                "* 1 fETCH (uID 1 fLAGS (\\Seen))",
+                "* 1 fETCH (uID 1 bODY[2] {4}",
+                "ZGVm)", // def in base64
+                "* 1 fETCH (uID 1 bODY[1] {4}",
+                "YWJj)", // abc in base64
+                firstTag + " oK SUCCESS"});
+        getNextTag(true);
+        final String secondTag = getNextTag(false);
+        mock.expect(secondTag + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)", new String[] {
+                secondTag + " oK SUCCESS"});
+        getNextTag(true);
+        final int[] retrieved = new int[1];
+        mFolder.fetchEach(new Message[] { message, message }, profiles,
+                new Folder.MessageRetrievalListener() {
+                    public void messageRetrieved(Message m) {
+                        retrieved[0]++;
+                    }
+
+                    public void loadAttachmentProgress(int progress) {
+                    }
+                });
+
+        assertEquals(2, retrieved[0]);
+        assertEquals("abc", Utility.fromUtf8(
+                IOUtils.toByteArray(body.getBodyPart(0).getBody().getInputStream())));
+        assertEquals("def", Utility.fromUtf8(
+                IOUtils.toByteArray(body.getBodyPart(1).getBody().getInputStream())));
+    }
+
     /**
      * Test for proper operations on servers that return "NIL" for empty message bodies.
      */
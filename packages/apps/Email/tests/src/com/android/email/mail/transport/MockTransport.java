@@ -54,6 +54,10 @@ public class MockTransport implements Transport {
 
     private ArrayList<String> mQueuedInput = new ArrayList<String>();
 
+    /** Number of times the client has read after writing, i.e. waited on the "server" */
+    private int mRoundTripCount;
+    private boolean mWrittenSinceRead;
+
     private static class Transaction {
         public static final int ACTION_INJECT_TEXT = 0;
         public static final int ACTION_CLIENT_CLOSE = 1;
@@ -147,6 +151,13 @@ public class MockTransport implements Transport {
         mPairs.add(new Transaction(Transaction.ACTION_START_TLS));
     }
 
+    /**
+     * @return the number of times the code under test read a response after sending something.
+     */
+    public int getRoundTripCount() {
+        return mRoundTripCount;
+    }
+
     private void sendResponse(Transaction pair) {
         switch (pair.mAction) {
             case Transaction.ACTION_INJECT_TEXT:
@@ -283,6 +294,10 @@ public class MockTransport implements Transport {
     @Override
     public String readLine() throws IOException {
         SmtpSenderUnitTests.assertTrue(mOpen);
+        if (mWrittenSinceRead) {
+            mWrittenSinceRead = false;
+            mRoundTripCount++;
+        }
         if (!mInputOpen) {
             throw new IOException("Reading from MockTransport with closed input");
         }
@@ -342,6 +357,7 @@ public class MockTransport implements Transport {
             Log.d(LOG_TAG, ">>> " + s);
         }
         SmtpSenderUnitTests.assertTrue(mOpen);
+        mWrittenSinceRead = true;
         SmtpSenderUnitTests.assertTrue("Overflow writing to MockTransport: Getting " + s,
                 0 != mPairs.size());
         Transaction pair = mPairs.remove(0);
@@ -31,6 +31,10 @@ import android.database.CursorWrapper;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests of ContentCache
@@ -296,4 +300,114 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
         assertTrue(underlyingCursor.isClosed());
     }
+
+    public void testConcurrentCacheCloseEvictedCursor() {
+        // Create a concurrent cache of size 1
+        ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 1, true);
+        Cursor cursor1 = getOneRowCursor();
+        Cursor cachedCursor1 =
+            cache.putCursor(cursor1, "1", SIMPLE_PROJECTION, cache.getCacheToken("1"));
+        assertTrue(cachedCursor1 instanceof CachedCursor);
+
+        // Evict "1" while its cursor is in use; it must stay open until closed
+        Cursor cursor2 = getOneRowCursor();
+        cache.putCursor(cursor2, "2", SIMPLE_PROJECTION, cache.getCacheToken("2")).close();
+        assertNull(cache.getCachedCursor("1", SIMPLE_PROJECTION));
+        assertFalse(cursor1.isClosed());
+        cachedCursor1.close();
+        assertTrue(cursor1.isClosed());
+
+        // Evict "2", which isn't in use; it is closed right away
+        cache.putCursor(getOneRowCursor(), "3", SIMPLE_PROJECTION, cache.getCacheToken("3"));
+        assertTrue(cursor2.isClosed());
+    }
+
+    public void testConcurrentCacheTokens() {
+        ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 8, true);
+        // Tokens for rows in (most likely) different stripes
+        CacheToken token1 = cache.getCacheToken("1");
+        CacheToken token2 = cache.getCacheToken("2");
+        CacheToken token3 = cache.getCacheToken("3");
+        // Locking a row invalidates only that row's token
+        cache.lock("1");
+        assertFalse(token1.isValid());
+        assertTrue(token2.isValid());
+        // New tokens for a locked row are invalid
+        assertFalse(cache.getCacheToken("1").isValid());
+        cache.unlock("1");
+        assertTrue(cache.getCacheToken("1").isValid());
+        // Invalidating the cache invalidates every token
+        cache.invalidate();
+        assertFalse(token2.isValid());
+        assertFalse(token3.isValid());
+    }
+
+    private static final int STRESS_THREADS = 8;
+    private static final int STRESS_ITERATIONS = 2000;
+    private static final int STRESS_ROWS = 32;
+
+    /**
+     * Have several threads read, write, and invalidate rows, and return the cache statistics
+     */
+    private ContentCache.Statistics stressCache(final ContentCache cache)
+            throws InterruptedException {
+        final AtomicInteger gets = new AtomicInteger();
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[STRESS_THREADS];
+        for (int i = 0; i < STRESS_THREADS; i++) {
+            final Random random = new Random(i);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < STRESS_ITERATIONS; j++) {
+                            String id = Integer.toString(random.nextInt(STRESS_ROWS));
+                            int op = random.nextInt(100);
+                            if (op < 80) {
+                                gets.incrementAndGet();
+                                Cursor c = cache.getCachedCursor(id, SIMPLE_PROJECTION);
+                                if (c == null) {
+                                    c = cache.putCursor(getOneRowCursor(), id, SIMPLE_PROJECTION,
+                                            cache.getCacheToken(id));
+                                }
+                                assertFalse(c.isClosed());
+                                c.moveToFirst();
+                                assertEquals(SIMPLE_ROW[0], c.getString(0));
+                                c.close();
+                            } else if (op < 99) {
+                                cache.lock(id);
+                                cache.unlock(id);
+                            } else {
+                                cache.invalidate();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+        ContentCache.Statistics stats = cache.getStatistics();
+        assertEquals(gets.get(), stats.getHitCount() + stats.getMissCount());
+        return stats;
+    }
+
+    public void testConcurrentCacheStress() throws InterruptedException {
+        // SIMPLE_PROJECTION is also the base projection, so all hits come back as CachedCursors
+        ContentCache.Statistics single =
+            stressCache(new ContentCache("Single", SIMPLE_PROJECTION, STRESS_ROWS / 2));
+        ContentCache.Statistics striped =
+            stressCache(new ContentCache("Striped", SIMPLE_PROJECTION, STRESS_ROWS / 2, true));
+        Log.d("ContentCacheTests", single.toString());
+        Log.d("ContentCacheTests", striped.toString());
+    }
 }
@@ -160,6 +160,46 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att4.mId));
     }
 
+    /**
+     * Downloads for different accounts run at the same time, while each account is still limited
+     * to a single download
+     */
+    public void testDownloadsAcrossAccounts() {
+        Account account2 = ProviderTestUtils.setupAccount("account2", true, mMockContext);
+        Mailbox mailbox2 = ProviderTestUtils.setupMailbox("mailbox2", account2.mId, true,
+                mMockContext);
+        mService.addServiceIntentForTest(account2.mId, new Intent(mContext,
+                NullEmailService.class));
+        Message message1 = ProviderTestUtils.setupMessage("message1", mAccountId, mMailboxId,
+                false, true, mMockContext);
+        Message message2 = ProviderTestUtils.setupMessage("message2", account2.mId, mailbox2.mId,
+                false, true, mMockContext);
+        Attachment att1 = ProviderTestUtils.setupAttachment(message1.mId, "filename1", 1000,
+                Attachment.FLAG_DOWNLOAD_USER_REQUEST, true, mMockContext);
+        Attachment att2 = ProviderTestUtils.setupAttachment(message1.mId, "filename2", 1000,
+                Attachment.FLAG_DOWNLOAD_USER_REQUEST, true, mMockContext);
+        Attachment att3 = ProviderTestUtils.setupAttachment(message2.mId, "filename3", 1000,
+                Attachment.FLAG_DOWNLOAD_FORWARD, true, mMockContext);
+        mDownloadSet.onChange(mMockContext, att1);
+        mDownloadSet.onChange(mMockContext, att2);
+        mDownloadSet.onChange(mMockContext, att3);
+
+        // The first download for each account starts, despite att3's lower priority
+        mDownloadSet.createWatchdogPendingIntent(mContext);
+        mDownloadSet.processQueue();
+        assertEquals(2, mDownloadSet.mDownloadsInProgress.size());
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att1.mId));
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att3.mId));
+        assertEquals(1, mDownloadSet.downloadsForAccount(mAccountId));
+        assertEquals(1, mDownloadSet.downloadsForAccount(account2.mId));
+
+        // Once the first account's download is done, its next one starts
+        mDownloadSet.endDownload(att1.mId, EmailServiceStatus.SUCCESS);
+        mDownloadSet.processQueue();
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att2.mId));
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att3.mId));
+    }
+
     /**
      * A mock file directory containing a single (Mock)File.  The total space, usable space, and
      * length of the single file can be set
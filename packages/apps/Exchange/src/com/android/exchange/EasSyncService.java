@@ -23,6 +23,8 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Entity;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Build;
@@ -163,9 +165,10 @@ public class EasSyncService extends AbstractSyncService {
      * short and we lose efficiency/battery life.
      *
      * If we ever have to drop the ping timeout, we'll never increase it again.  There's no point
-     * going into hysteresis; the NAT timeout isn't going to change without a change in connection,
-     * which will cause the sync service to be restarted at the starting heartbeat and going through
-     * the process again.
+     * going into hysteresis; the NAT timeout isn't going to change without a change in connection.
+     * What we've learned is remembered per account and network (see sLearnedHeartbeats), so when
+     * the sync service is restarted on a network it has seen before, it starts at the heartbeat
+     * that worked there rather than going through the process again.
      */
     static private final int PING_MINUTES = 60; // in seconds
     static private final int PING_FUDGE_LOW = 10;
@@ -231,6 +234,26 @@ public class EasSyncService extends AbstractSyncService {
     private int mPingHighWaterMark = 0;
     // Whether we've ever lowered the heartbeat
     /*package*/ boolean mPingHeartbeatDropped = false;
+    // The key into sLearnedHeartbeats for the network the ping loop is running on
+    private String mHeartbeatKey = null;
+    // Notified when a pushed mailbox finishes syncing while the ping loop waits for it
+    private final Object mPingWaitLock = new Object();
+
+    /**
+     * The ping heartbeat state learned on one network for one account
+     */
+    /*package*/ static class LearnedHeartbeat {
+        int mHeartbeat;
+        int mMinHeartbeat;
+        int mMaxHeartbeat;
+        int mForceHeartbeat;
+        int mHighWaterMark;
+        boolean mDropped;
+    }
+
+    // Learned heartbeats, keyed by account and network (see getHeartbeatKey)
+    private static final HashMap<String, LearnedHeartbeat> sLearnedHeartbeats =
+        new HashMap<String, LearnedHeartbeat>();
     // Whether a POST was aborted due to alarm (watchdog alarm)
     private boolean mPostAborted = false;
     // Whether a POST was aborted due to reset
@@ -275,8 +298,10 @@ public class EasSyncService extends AbstractSyncService {
     @Override
     public boolean alarm() {
         HttpPost post;
-        if (mThread == null) return true;
-        String threadName = mThread.getName();
+        // Read mThread once; a SyncScheduler worker that finishes with us sets it to null
+        Thread thread = mThread;
+        if (thread == null) return true;
+        String threadName = thread.getName();
 
         // Synchronize here so that we are guaranteed to have valid mPendingPost and mPostLock
         // executePostWithTimeout (which executes the HttpPost) also uses this lock
@@ -312,23 +337,26 @@ public class EasSyncService extends AbstractSyncService {
         } catch (InterruptedException e) {
         }
 
-        State s = mThread.getState();
+        State s = thread.getState();
         if (Eas.USER_LOG) {
             userLog(threadName + ": State = " + s.name());
         }
 
         synchronized (getSynchronizer()) {
-            // If the thread is still hanging around and the same post is pending, let's try to
-            // stop the thread with an interrupt.
-            if ((s != State.TERMINATED) && (mPendingPost != null) && (mPendingPost == post)) {
-                mStop = true;
-                mThread.interrupt();
-                userLog("Interrupting...");
-                // Let the caller know we had to interrupt the thread
-                return false;
+            // If the thread is gone or the post has finished, we're done
+            if ((s == State.TERMINATED) || (mPendingPost == null) || (mPendingPost != post)) {
+                // Let the caller know that the alarm was handled normally
+                return true;
             }
+            mStop = true;
+        }
+        // Otherwise, let's try to stop the thread with an interrupt, as long as it's still ours;
+        // a pooled worker never terminates, but may have moved on to another mailbox
+        if (ExchangeService.interruptServiceThread(this, thread)) {
+            userLog("Interrupting...");
+            // Let the caller know we had to interrupt the thread
+            return false;
         }
-        // Let the caller know that the alarm was handled normally
         return true;
     }
 
@@ -1971,6 +1999,7 @@ public class EasSyncService extends AbstractSyncService {
                     // If we're sending an illegal heartbeat, reset either the min or the max to
                     // that heartbeat
                     resetHeartbeats(e.mLegalHeartbeat);
+                    saveHeartbeats(mHeartbeatKey);
                 } finally {
                     Thread.currentThread().setName(threadName);
                 }
@@ -2057,6 +2086,77 @@ public class EasSyncService extends AbstractSyncService {
         mPingHeartbeatDropped = false;
     }
 
+    /**
+     * Returns the key under which heartbeats learned on the given network are kept; NAT timeouts
+     * differ between carriers (APNs) and wifi networks (SSIDs), so both are part of the key
+     */
+    /*package*/ static String getHeartbeatKey(long accountId, NetworkInfo info) {
+        if (info == null) return null;
+        return accountId + "/" + info.getType() + "/" + info.getExtraInfo();
+    }
+
+    /**
+     * Start from the heartbeats previously learned under the given key, if any
+     */
+    /*package*/ void restoreHeartbeats(String key) {
+        if (key == null) return;
+        synchronized (sLearnedHeartbeats) {
+            LearnedHeartbeat learned = sLearnedHeartbeats.get(key);
+            if (learned == null) return;
+            mPingHeartbeat = learned.mHeartbeat;
+            mPingMinHeartbeat = learned.mMinHeartbeat;
+            mPingMaxHeartbeat = learned.mMaxHeartbeat;
+            mPingForceHeartbeat = learned.mForceHeartbeat;
+            mPingHighWaterMark = learned.mHighWaterMark;
+            mPingHeartbeatDropped = learned.mDropped;
+        }
+        userLog("Restored ping heartbeat ", mPingHeartbeat, "s for " + key);
+    }
+
+    /**
+     * Remember our current heartbeats under the given key
+     */
+    /*package*/ void saveHeartbeats(String key) {
+        if (key == null) return;
+        synchronized (sLearnedHeartbeats) {
+            LearnedHeartbeat learned = sLearnedHeartbeats.get(key);
+            if (learned == null) {
+                learned = new LearnedHeartbeat();
+                sLearnedHeartbeats.put(key, learned);
+            }
+            learned.mHeartbeat = mPingHeartbeat;
+            learned.mMinHeartbeat = mPingMinHeartbeat;
+            learned.mMaxHeartbeat = mPingMaxHeartbeat;
+            learned.mForceHeartbeat = mPingForceHeartbeat;
+            learned.mHighWaterMark = mPingHighWaterMark;
+            learned.mDropped = mPingHeartbeatDropped;
+        }
+    }
+
+    /**
+     * Called by ExchangeService when one of our pushed mailboxes is done syncing, so that a ping
+     * loop waiting for it can send the Ping right away
+     */
+    /*package*/ void wakePingLoop() {
+        synchronized (mPingWaitLock) {
+            mPingWaitLock.notify();
+        }
+    }
+
+    /**
+     * Wait up to the given time for wakePingLoop. Only a wakeup that arrives during the wait
+     * ends it early; one sent while the loop was doing something else is not remembered.
+     */
+    private void waitForPingLoopWakeup(long ms) {
+        synchronized (mPingWaitLock) {
+            try {
+                mPingWaitLock.wait(ms);
+            } catch (InterruptedException e) {
+                // Fine; we'll just look at our mailboxes again
+            }
+        }
+    }
+
     private void pushFallback(long mailboxId) {
         Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mailboxId);
         if (mailbox == null) {
@@ -2091,8 +2191,26 @@ public class EasSyncService extends AbstractSyncService {
 
     private void runPingLoop() throws IOException, StaleFolderListException,
             IllegalHeartbeatException, CommandStatusException {
+        ConnectivityManager cm =
+            (ConnectivityManager)mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        String heartbeatKey = getHeartbeatKey(mAccount.mId, cm.getActiveNetworkInfo());
+        if (heartbeatKey != null && !heartbeatKey.equals(mHeartbeatKey)) {
+            // New network (or first time through); pick up whatever we learned there before
+            saveHeartbeats(mHeartbeatKey);
+            restoreHeartbeats(heartbeatKey);
+            mHeartbeatKey = heartbeatKey;
+        }
         int pingHeartbeat = mPingHeartbeat;
         userLog("runPingLoop");
+        try {
+            runPingLoop(pingHeartbeat);
+        } finally {
+            saveHeartbeats(mHeartbeatKey);
+        }
+    }
+
+    private void runPingLoop(int pingHeartbeat) throws IOException, StaleFolderListException,
+            IllegalHeartbeatException, CommandStatusException {
         // Do push for all sync services here
         long endTime = System.currentTimeMillis() + (30*MINUTES);
         HashMap<String, Integer> pingErrorMap = new HashMap<String, Integer>();
@@ -2225,7 +2343,9 @@ public class EasSyncService extends AbstractSyncService {
                                 // not at the maximum, try increasing timeout by two minutes
                                 if (pingResult == PROTOCOL_PING_STATUS_COMPLETED && !forcePing) {
                                     if (pingHeartbeat > mPingHighWaterMark) {
+                                        // Remember the longest heartbeat known to get through
                                         mPingHighWaterMark = pingHeartbeat;
+                                        mPingHeartbeat = pingHeartbeat;
                                         userLog("Setting high water mark at: ", mPingHighWaterMark);
                                     }
                                     if ((pingHeartbeat < mPingMaxHeartbeat) &&
@@ -2270,6 +2390,7 @@ public class EasSyncService extends AbstractSyncService {
                             if (pingHeartbeat < mPingMinHeartbeat) {
                                 pingHeartbeat = mPingMinHeartbeat;
                             }
+                            mPingHeartbeat = pingHeartbeat;
                             userLog("Decreased ping heartbeat to ", pingHeartbeat, "s");
                         } else if (mPostAborted) {
                             // There's no point in throwing here; this can happen in two cases
@@ -2299,8 +2420,11 @@ public class EasSyncService extends AbstractSyncService {
                 sleep(60*SECONDS, true);
             } else if (pushCount > 0) {
                 // If we want to Ping, but can't just yet, wait a little bit
-                // TODO Change sleep to wait and use notify from ExchangeService when a sync ends
-                sleep(2*SECONDS, false);
+                // ExchangeService wakes us as soon as a pushed mailbox finishes syncing, so that
+                // we go straight back into the Ping once the changed folders have been synced
+                // Every wait counts toward forcing the Ping, however it ended, so that boxes
+                // that keep syncing can't hold it off indefinitely
+                waitForPingLoopWakeup(2*SECONDS);
                 pingWaitCount++;
                 //userLog("pingLoop waited 2s for: ", (pushCount - canPushCount), " box(es)");
             } else if (uninitCount > 0) {
@@ -2509,8 +2633,7 @@ public class EasSyncService extends AbstractSyncService {
             }
 
             s.end().end().end().done();
-            EasResponse resp = sendHttpClientPost("Sync", new ByteArrayEntity(s.toByteArray()),
-                    timeout);
+            EasResponse resp = sendHttpClientPost("Sync", s.toHttpEntity(), timeout);
             try {
                 int code = resp.getStatus();
                 if (code == HttpStatus.SC_OK) {
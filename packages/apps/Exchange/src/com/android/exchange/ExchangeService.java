@@ -85,7 +85,9 @@ import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -180,6 +182,10 @@ public class ExchangeService extends Service implements Runnable {
 
     private static final int MAX_CLIENT_CONNECTION_MANAGER_SHUTDOWNS = 1;
 
+    // Whether mailbox syncs run on the bounded, per-account SyncScheduler rather than a thread
+    // per mailbox; account mailboxes (which hold the Ping) always get their own thread
+    private static final boolean USE_SYNC_SCHEDULER = true;
+
     // We synchronize on this for all actions affecting the service and error maps
     private static final Object sSyncLock = new Object();
     // All threads can use this lock to wait for connectivity
@@ -189,6 +195,13 @@ public class ExchangeService extends Service implements Runnable {
     // Keeps track of running services (by mailbox id)
     private final HashMap<Long, AbstractSyncService> mServiceMap =
         new HashMap<Long, AbstractSyncService>();
+    // Runs mailbox syncs when USE_SYNC_SCHEDULER is set
+    private final SyncScheduler mSyncScheduler = USE_SYNC_SCHEDULER ?
+            new SyncScheduler(new SyncScheduler.Listener() {
+                public void onTaskFinished(Runnable task) {
+                    onScheduledSyncFinished((AbstractSyncService)task);
+                }
+            }) : null;
     // Keeps track of services whose last sync ended with an error (by mailbox id)
     /*package*/ ConcurrentHashMap<Long, SyncError> mSyncErrorMap =
         new ConcurrentHashMap<Long, SyncError>();
@@ -1137,6 +1150,26 @@ public class ExchangeService extends Service implements Runnable {
         static public final int DIED = 1;
         static public final int SYNC = 2;
         static public final int IDLE = 3;
+        static public final int QUEUED = 4;
+    }
+
+    /**
+     * Returns the SyncStatus of the service for the given mailbox
+     * NOTE: This method MUST be called while holding sSyncLock!
+     */
+    private int getSyncStatus(long mailboxId) {
+        AbstractSyncService svc = mServiceMap.get(mailboxId);
+        if (svc == null) {
+            return SyncStatus.NOT_RUNNING;
+        }
+        Thread thread = svc.mThread;
+        if (thread == null) {
+            // Not picked up by a thread yet
+            return SyncStatus.QUEUED;
+        } else if (!thread.isAlive()) {
+            return SyncStatus.DIED;
+        }
+        return SyncStatus.SYNC;
     }
 
     /*package*/ class SyncError {
@@ -1350,10 +1383,7 @@ public class ExchangeService extends Service implements Runnable {
                         AbstractSyncService svc = mServiceMap.get(mid);
                         if (svc != null) {
                             svc.stop();
-                            Thread t = svc.mThread;
-                            if (t != null) {
-                                t.interrupt();
-                            }
+                            interruptServiceThread(svc, svc.mThread);
                         }
                         deletedBoxes.add(mid);
                     }
@@ -1677,9 +1707,24 @@ public class ExchangeService extends Service implements Runnable {
         synchronized (sSyncLock) {
             String mailboxName = m.mDisplayName;
             String accountName = service.mAccount.mDisplayName;
-            Thread thread = new Thread(service, mailboxName + "[" + accountName + "]");
-            log("Starting thread for " + mailboxName + " in account " + accountName);
-            thread.start();
+            String threadName = mailboxName + "[" + accountName + "]";
+            if (mSyncScheduler != null && m.mType != Mailbox.TYPE_EAS_ACCOUNT_MAILBOX) {
+                // User requests and changes reported by a Ping jump the queue; anything else
+                // waits its turn, or is retried on a later pass through checkMailboxes if the
+                // account's queue is full
+                boolean urgent = service.mSyncReason >= SYNC_CALLBACK_START ||
+                        service.mSyncReason == SYNC_PING || service.hasPendingRequests();
+                if (!mSyncScheduler.submit(m.mAccountKey, threadName, service, urgent)) {
+                    log("Sync queue full; deferring " + mailboxName + " in account " +
+                            accountName);
+                    return;
+                }
+                log("Queued sync for " + mailboxName + " in account " + accountName);
+            } else {
+                Thread thread = new Thread(service, threadName);
+                log("Starting thread for " + mailboxName + " in account " + accountName);
+                thread.start();
+            }
             mServiceMap.put(m.mId, service);
             runAwake(m.mId);
             if ((m.mServerId != null) && !m.mServerId.startsWith(Eas.ACCOUNT_MAILBOX_PREFIX)) {
@@ -1688,6 +1733,43 @@ public class ExchangeService extends Service implements Runnable {
         }
     }
 
+    /**
+     * Called on a SyncScheduler worker after a service has run; with no thread of its own to die,
+     * the service is released here if it didn't release itself through done()
+     */
+    private void onScheduledSyncFinished(AbstractSyncService svc) {
+        synchronized (sSyncLock) {
+            synchronized (svc.getSynchronizer()) {
+                // The worker moves on to other services; don't let stop() interrupt those
+                svc.mThread = null;
+            }
+            if (mServiceMap.get(svc.mMailboxId) == svc) {
+                releaseMailbox(svc.mMailboxId);
+                kick("scheduled sync finished");
+            }
+        }
+    }
+
+    /**
+     * Interrupts the thread running a service, but only while the service is still bound to it;
+     * a SyncScheduler worker goes on to run other services, which mustn't be interrupted
+     * @param svc the service
+     * @param thread the thread the caller found running the service
+     * @return true if the thread was interrupted
+     */
+    /*package*/ static boolean interruptServiceThread(AbstractSyncService svc, Thread thread) {
+        synchronized (sSyncLock) {
+            // onScheduledSyncFinished unbinds the service holding both of these locks
+            synchronized (svc.getSynchronizer()) {
+                if (thread == null || svc.mThread != thread) {
+                    return false;
+                }
+                thread.interrupt();
+                return true;
+            }
+        }
+    }
+
     /**
      * Stop any ping in progress for the given account
      * @param accountId
@@ -1755,9 +1837,7 @@ public class ExchangeService extends Service implements Runnable {
                 if (svc != null) {
                     log("Stopping " + svc.mAccount.mDisplayName + '/' + svc.mMailbox.mDisplayName);
                     svc.stop();
-                    if (svc.mThread != null) {
-                        svc.mThread.interrupt();
-                    }
+                    interruptServiceThread(svc, svc.mThread);
                 }
                 releaseWakeLock(mailboxId);
             }
@@ -1928,6 +2008,22 @@ public class ExchangeService extends Service implements Runnable {
             }});
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        String[] statusNames = {"not running", "died", "sync", "idle", "queued"};
+        pw.println("Sync services:");
+        synchronized (sSyncLock) {
+            for (long mailboxId : mServiceMap.keySet()) {
+                AbstractSyncService svc = mServiceMap.get(mailboxId);
+                pw.println("  " + svc.mAccount.mDisplayName + '/' + svc.mMailboxName + " ("
+                        + mailboxId + "): " + statusNames[getSyncStatus(mailboxId)]);
+            }
+        }
+        if (mSyncScheduler != null) {
+            mSyncScheduler.dump(pw);
+        }
+    }
+
     void maybeStartExchangeServiceThread() {
         // Start our thread...
         // See if there are any EAS accounts; otherwise, just go away
@@ -2122,8 +2218,28 @@ public class ExchangeService extends Service implements Runnable {
      * @param mailboxId the id of the mailbox to be released
      */
     private void releaseMailbox(long mailboxId) {
-        mServiceMap.remove(mailboxId);
+        AbstractSyncService svc = mServiceMap.remove(mailboxId);
         releaseWakeLock(mailboxId);
+        if (svc != null) {
+            wakePingLoop(svc.mMailbox);
+        }
+    }
+
+    /**
+     * Let the account mailbox know that one of its mailboxes is no longer syncing; if its ping
+     * loop is waiting for that mailbox, it can send the Ping without further delay
+     * NOTE: This method MUST be called while holding sSyncLock!
+     */
+    private void wakePingLoop(Mailbox m) {
+        if (m == null || m.mType == Mailbox.TYPE_EAS_ACCOUNT_MAILBOX) return;
+        for (AbstractSyncService svc : mServiceMap.values()) {
+            Mailbox box = svc.mMailbox;
+            if (box != null && box.mType == Mailbox.TYPE_EAS_ACCOUNT_MAILBOX &&
+                    box.mAccountKey == m.mAccountKey && svc instanceof EasSyncService) {
+                ((EasSyncService)svc).wakePingLoop();
+                return;
+            }
+        }
     }
 
     /**
@@ -2256,11 +2372,17 @@ public class ExchangeService extends Service implements Runnable {
             // If so, stop them or remove them from the map
             for (Long mailboxId: deletedMailboxes) {
                 AbstractSyncService svc = mServiceMap.get(mailboxId);
-                if (svc == null || svc.mThread == null) {
+                Thread thread = svc == null ? null : svc.mThread;
+                if (thread == null) {
+                    // A service without a thread may still be queued, or about to start; make
+                    // sure it never syncs the deleted mailbox
+                    if (svc != null && (mSyncScheduler == null || !mSyncScheduler.remove(svc))) {
+                        svc.stop();
+                    }
                     releaseMailbox(mailboxId);
                     continue;
                 } else {
-                    boolean alive = svc.mThread.isAlive();
+                    boolean alive = thread.isAlive();
                     log("Deleted mailbox: " + svc.mMailboxName);
                     if (alive) {
                         stopManualSync(mailboxId);
@@ -2509,7 +2631,7 @@ public class ExchangeService extends Service implements Runnable {
             if (svc != null) {
                 log("Stopping sync for " + svc.mMailboxName);
                 svc.stop();
-                svc.mThread.interrupt();
+                interruptServiceThread(svc, svc.mThread);
                 exchangeService.releaseWakeLock(mailboxId);
             }
         }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Runs sync tasks on a small, bounded set of worker threads per account.
+ *
+ * Each account gets its own FIFO queue and at most {@link #MAX_ACTIVE_SYNCS_PER_ACCOUNT} worker
+ * threads, so one account with many folders can neither starve another account nor create a
+ * thread per folder. Workers are started on demand and exit as soon as their account's queue is
+ * empty. Urgent (user-requested) tasks go to the front of the queue; other tasks are refused
+ * once {@link #MAX_QUEUED_SYNCS_PER_ACCOUNT} are waiting, and it is up to the caller to try
+ * again later.
+ */
+public class SyncScheduler {
+    private static final String TAG = "SyncScheduler";
+
+    /*package*/ static final int MAX_ACTIVE_SYNCS_PER_ACCOUNT = 3;
+    /*package*/ static final int MAX_QUEUED_SYNCS_PER_ACCOUNT = 25;
+
+    /**
+     * Told about every task once it has run, on the worker thread that ran it.
+     */
+    public interface Listener {
+        public void onTaskFinished(Runnable task);
+    }
+
+    private static class Task {
+        final Runnable mRunnable;
+        final String mName;
+        final long mQueuedTime;
+
+        Task(Runnable runnable, String name) {
+            mRunnable = runnable;
+            mName = name;
+            mQueuedTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static class AccountQueue {
+        final LinkedList<Task> mTasks = new LinkedList<Task>();
+        int mActive = 0;
+        int mWorkers = 0;
+        int mCompleted = 0;
+        int mRejected = 0;
+        long mTotalWaitTime = 0;
+        long mTotalRunTime = 0;
+    }
+
+    private final HashMap<Long, AccountQueue> mQueues = new HashMap<Long, AccountQueue>();
+    private final Listener mListener;
+    private final int mMaxActive;
+    private final int mMaxQueued;
+
+    public SyncScheduler(Listener listener) {
+        this(listener, MAX_ACTIVE_SYNCS_PER_ACCOUNT, MAX_QUEUED_SYNCS_PER_ACCOUNT);
+    }
+
+    /*package*/ SyncScheduler(Listener listener, int maxActive, int maxQueued) {
+        mListener = listener;
+        mMaxActive = maxActive;
+        mMaxQueued = maxQueued;
+    }
+
+    /**
+     * Queue a task to run for the given account.
+     *
+     * @param accountId the account the task belongs to
+     * @param name the name given to the worker thread while it runs the task
+     * @param task the task to run
+     * @param urgent whether the task should jump the queue (and ignore its limit)
+     * @return true if the task was queued; false if the account's queue is full
+     */
+    public synchronized boolean submit(long accountId, String name, Runnable task,
+            boolean urgent) {
+        AccountQueue queue = getQueue(accountId);
+        if (urgent) {
+            queue.mTasks.addFirst(new Task(task, name));
+        } else if (queue.mTasks.size() < mMaxQueued) {
+            queue.mTasks.addLast(new Task(task, name));
+        } else {
+            queue.mRejected++;
+            return false;
+        }
+        if (queue.mWorkers < mMaxActive) {
+            queue.mWorkers++;
+            new Worker(accountId, queue).start();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the task is still waiting for a worker
+     */
+    public synchronized boolean isQueued(Runnable task) {
+        for (AccountQueue queue : mQueues.values()) {
+            for (Task t : queue.mTasks) {
+                if (t.mRunnable == task) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes a task off its queue, if it's still waiting for a worker
+     * @return true if the task was removed, and so will not be run
+     */
+    public synchronized boolean remove(Runnable task) {
+        for (AccountQueue queue : mQueues.values()) {
+            for (Iterator<Task> it = queue.mTasks.iterator(); it.hasNext(); ) {
+                if (it.next().mRunnable == task) {
+                    it.remove();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private AccountQueue getQueue(long accountId) {
+        AccountQueue queue = mQueues.get(accountId);
+        if (queue == null) {
+            queue = new AccountQueue();
+            mQueues.put(accountId, queue);
+        }
+        return queue;
+    }
+
+    private synchronized Task nextTask(AccountQueue queue, Task finished, long runTime) {
+        if (finished != null) {
+            queue.mActive--;
+            queue.mCompleted++;
+            queue.mTotalRunTime += runTime;
+        }
+        Task task = queue.mTasks.poll();
+        if (task == null) {
+            queue.mWorkers--;
+            return null;
+        }
+        queue.mActive++;
+        queue.mTotalWaitTime += SystemClock.elapsedRealtime() - task.mQueuedTime;
+        return task;
+    }
+
+    private class Worker extends Thread {
+        private final AccountQueue mQueue;
+
+        Worker(long accountId, AccountQueue queue) {
+            super("SyncScheduler[" + accountId + "]");
+            mQueue = queue;
+        }
+
+        @Override
+        public void run() {
+            String idleName = getName();
+            Task task = nextTask(mQueue, null, 0);
+            while (task != null) {
+                setName(task.mName);
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    task.mRunnable.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Sync task " + task.mName + " failed", e);
+                }
+                long runTime = SystemClock.elapsedRealtime() - start;
+                if (mListener != null) {
+                    mListener.onTaskFinished(task.mRunnable);
+                }
+                // An interrupt meant for the finished task must not reach the next one
+                Thread.interrupted();
+                setName(idleName);
+                task = nextTask(mQueue, task, runTime);
+            }
+        }
+    }
+
+    /*package*/ synchronized int getActiveCount(long accountId) {
+        AccountQueue queue = mQueues.get(accountId);
+        return queue == null ? 0 : queue.mActive;
+    }
+
+    /*package*/ synchronized int getQueuedCount(long accountId) {
+        AccountQueue queue = mQueues.get(accountId);
+        return queue == null ? 0 : queue.mTasks.size();
+    }
+
+    /*package*/ synchronized int getCompletedCount(long accountId) {
+        AccountQueue queue = mQueues.get(accountId);
+        return queue == null ? 0 : queue.mCompleted;
+    }
+
+    /*package*/ synchronized int getRejectedCount(long accountId) {
+        AccountQueue queue = mQueues.get(accountId);
+        return queue == null ? 0 : queue.mRejected;
+    }
+
+    private static void dumpQueue(PrintWriter pw, String name, int active, int queued,
+            int completed, int rejected, long waitTime, long runTime) {
+        pw.println("  " + name + ": active=" + active + " queued=" + queued
+                + " completed=" + completed + " rejected=" + rejected
+                + " avgWait=" + (completed == 0 ? 0 : waitTime / completed) + "ms"
+                + " avgRun=" + (completed == 0 ? 0 : runTime / completed) + "ms");
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Sync scheduler (max " + mMaxActive + " active, " + mMaxQueued
+                + " queued per account):");
+        int active = 0, queued = 0, completed = 0, rejected = 0;
+        long waitTime = 0, runTime = 0;
+        for (Long accountId : mQueues.keySet()) {
+            AccountQueue queue = mQueues.get(accountId);
+            dumpQueue(pw, "Account " + accountId, queue.mActive, queue.mTasks.size(),
+                    queue.mCompleted, queue.mRejected, queue.mTotalWaitTime,
+                    queue.mTotalRunTime);
+            active += queue.mActive;
+            queued += queue.mTasks.size();
+            completed += queue.mCompleted;
+            rejected += queue.mRejected;
+            waitTime += queue.mTotalWaitTime;
+            runTime += queue.mTotalRunTime;
+        }
+        dumpQueue(pw, "Total", active, queued, completed, rejected, waitTime, runTime);
+    }
+}
@@ -37,6 +37,9 @@ import android.os.TransactionTooLargeException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Parent class of all sync adapters (EasMailbox, EasCalendar, and EasContacts)
@@ -54,6 +57,11 @@ public abstract class AbstractSyncAdapter {
 
     private static final long SEPARATOR_ID = Long.MAX_VALUE;
 
+    // The number of pending Operations in a StreamingOperations list at which we commit them (at
+    // the next separator) rather than waiting for the end of the sync window
+    @VisibleForTesting
+    static final int STREAMING_COMMIT_THRESHOLD = 200;
+
     public Mailbox mMailbox;
     public EasSyncService mService;
     public Context mContext;
@@ -208,6 +216,119 @@ public abstract class AbstractSyncAdapter {
         }
     }
 
+    /**
+     * StreamingOperations is a list of Operations that commits itself in chunks while the sync
+     * window is still being parsed.  Once STREAMING_COMMIT_THRESHOLD Operations are pending, the
+     * next separator (see addSeparatorOperation) hands everything up to and including it to a
+     * background thread, which applies it while the parser moves on to the next items; chunks are
+     * applied in order.  safeExecute then waits for those chunks and applies the rest.
+     *
+     * Indices into the list (for get, set and remove) and back reference offsets stay what they
+     * would be if nothing had been committed, so adapters that remember positions in the list
+     * don't need to know about the commits.  Only positions after the last separator can be used
+     * this way, which matches the existing rule that back references never cross a separator.
+     *
+     * NOTE: As with the split batches in safeExecute, a sync window that is committed in chunks
+     * loses its atomicity; a failure part way through leaves the earlier chunks in the provider,
+     * and the window is sent again with the same sync key.  Adapters using this class must
+     * therefore handle an Add for an item they already have.  Chunks are only committed in
+     * windows big enough to risk a too-large binder transaction.
+     */
+    protected class StreamingOperations extends ArrayList<Operation> {
+        private static final long serialVersionUID = 1L;
+        private final String mAuthority;
+        // The number of Operations handed to the committer (i.e. the index of our first element)
+        private int mBase = 0;
+        private ExecutorService mCommitter = null;
+        private volatile RemoteException mCommitException = null;
+
+        public StreamingOperations(String authority) {
+            mAuthority = authority;
+        }
+
+        @Override
+        public Operation get(int index) {
+            return super.get(index - mBase);
+        }
+
+        @Override
+        public Operation set(int index, Operation op) {
+            return super.set(index - mBase, op);
+        }
+
+        @Override
+        public Operation remove(int index) {
+            return super.remove(index - mBase);
+        }
+
+        /**
+         * @return the number of Operations that have been handed off to be committed
+         */
+        public int getCommittedCount() {
+            return mBase;
+        }
+
+        /**
+         * Hand all pending Operations to the committer; the list must end with a separator
+         */
+        private void commitPending() {
+            if (isEmpty()) return;
+            final ArrayList<Operation> chunk = new ArrayList<Operation>(this);
+            final int base = mBase;
+            mBase += size();
+            clear();
+            if (mCommitter == null) {
+                mCommitter = Executors.newSingleThreadExecutor();
+            }
+            mService.userLog("Committing ", chunk.size(), " CPO's while parsing");
+            mCommitter.execute(new Runnable() {
+                public void run() {
+                    // Once a chunk has failed, the rest are pointless
+                    if (mCommitException != null) return;
+                    try {
+                        safeExecute(mAuthority, chunk, base);
+                    } catch (RemoteException e) {
+                        mCommitException = e;
+                    }
+                }
+            });
+        }
+
+        /**
+         * Wait for the chunks handed to the committer to be applied
+         * @throws RemoteException if any of them failed
+         */
+        private void waitForCommits() throws RemoteException {
+            if (mCommitter != null) {
+                mCommitter.shutdown();
+                try {
+                    while (!mCommitter.awaitTermination(1, TimeUnit.MINUTES)) {
+                        mService.userLog("Waiting for CPO commits...");
+                    }
+                } catch (InterruptedException e) {
+                    mCommitter.shutdownNow();
+                    throw new RemoteException();
+                } finally {
+                    mCommitter = null;
+                }
+            }
+            if (mCommitException != null) {
+                throw mCommitException;
+            }
+        }
+
+        /**
+         * Let the committer thread go once it has applied the chunks already handed to it; this
+         * must be called when a sync window is abandoned, since waitForCommits won't be
+         */
+        public void shutdown() {
+            if (mCommitter != null) {
+                mCommitter.shutdown();
+                mCommitter = null;
+            }
+        }
+    }
+
     /**
      * We apply the batch of CPO's here.  We synchronize on the service to avoid thread-nasties,
      * and we just return quickly if the service has already been stopped.
@@ -265,11 +386,11 @@ public abstract class AbstractSyncAdapter {
      * Apply the list of CPO's in the provider and copy the "mini" result into our full result array
      */
     private void applyAndCopyResults(String authority, ArrayList<Operation> mini,
-            ContentProviderResult[] result, int offset) throws RemoteException {
+            ContentProviderResult[] result, int offset, int base) throws RemoteException {
         // Empty lists are ok; we just ignore them
         if (mini.isEmpty()) return;
         try {
-            ContentProviderResult[] miniResult = applyBatch(authority, mini, offset);
+            ContentProviderResult[] miniResult = applyBatch(authority, mini, base + offset);
             // Copy the results from this mini-batch into our results array
             System.arraycopy(miniResult, 0, result, offset, miniResult.length);
         } catch (OperationApplicationException e) {
@@ -291,11 +412,27 @@ public abstract class AbstractSyncAdapter {
      */
     protected ContentProviderResult[] safeExecute(String authority, ArrayList<Operation> ops)
             throws RemoteException {
+        int base = 0;
+        if (ops instanceof StreamingOperations) {
+            // Let the chunks we've already committed finish first
+            StreamingOperations streamingOps = (StreamingOperations)ops;
+            streamingOps.waitForCommits();
+            base = streamingOps.getCommittedCount();
+        }
+        return safeExecute(authority, ops, base);
+    }
+
+    /**
+     * Execute a list of Operations whose first element was at index base when the back reference
+     * offsets were set
+     */
+    private ContentProviderResult[] safeExecute(String authority, ArrayList<Operation> ops,
+            int base) throws RemoteException {
         mService.userLog("Try to execute ", ops.size(), " CPO's for " + authority);
         ContentProviderResult[] result = null;
         try {
             // Try to execute the whole thing
-            return applyBatch(authority, ops, 0);
+            return applyBatch(authority, ops, base);
         } catch (TransactionTooLargeException e) {
             // Nope; split into smaller chunks, demarcated by the separator operation
             mService.userLog("Transaction too large; spliting!");
@@ -308,7 +445,7 @@ public abstract class AbstractSyncAdapter {
                 if (op.mSeparator) {
                     try {
                         mService.userLog("Try mini-batch of ", mini.size(), " CPO's");
-                        applyAndCopyResults(authority, mini, result, offset);
+                        applyAndCopyResults(authority, mini, result, offset, base);
                         mini.clear();
                         // Save away the offset here; this will need to be subtracted out of the
                         // value originally set by the adapter
@@ -326,7 +463,7 @@ public abstract class AbstractSyncAdapter {
             // Check out what's left; if it's more than just a separator, apply the batch
             int miniSize = mini.size();
             if ((miniSize > 0) && !(miniSize == 1 && mini.get(0).mSeparator)) {
-                applyAndCopyResults(authority, mini, result, offset);
+                applyAndCopyResults(authority, mini, result, offset, base);
             }
         } catch (RemoteException e) {
             throw e;
@@ -344,6 +481,10 @@ public abstract class AbstractSyncAdapter {
                 ContentProviderOperation.newDelete(ContentUris.withAppendedId(uri, SEPARATOR_ID)));
         op.mSeparator = true;
         ops.add(op);
+        // This is a safe place to commit what we have, if we're streaming and have enough
+        if (ops instanceof StreamingOperations && ops.size() >= STREAMING_COMMIT_THRESHOLD) {
+            ((StreamingOperations)ops).commitPending();
+        }
     }
 }
 
@@ -150,7 +150,8 @@ public class CalendarSyncAdapter extends AbstractSyncAdapter {
     // The number 500 has been determined empirically; 1500 CPOs appears to be the limit before
     // binder failures occur, but we need room at any point for additional events/exceptions so
     // we set our limit at 1/3 of the apparent maximum for extra safety
-    // TODO Find a better solution to this workaround
+    // Since CalendarOperations commits in chunks as it goes, this only counts the CPO's not yet
+    // committed, so it's only reached within a single, very large, event
     private static final int MAX_OPS_BEFORE_EXCEPTION_ATTENDEE_REDACTION = 500;
 
     private long mCalendarId = -1;
@@ -236,7 +237,12 @@ public class CalendarSyncAdapter extends AbstractSyncAdapter {
     @Override
     public boolean parse(InputStream is) throws IOException, CommandStatusException {
         EasCalendarSyncParser p = new EasCalendarSyncParser(is, this);
-        return p.parse();
+        try {
+            return p.parse();
+        } finally {
+            // If the window failed to parse, don't leave the committer thread behind
+            p.mOps.shutdown();
+        }
     }
 
     public static Uri asSyncAdapter(Uri uri, String account, String accountType) {
@@ -440,8 +446,10 @@ public class CalendarSyncAdapter extends AbstractSyncAdapter {
             boolean organizerAdded = false;
 
             while (nextTag(Tags.SYNC_APPLICATION_DATA) != END) {
-                if (update && firstTag) {
-                    // Find the event that's being updated
+                if (firstTag) {
+                    // Find the event that's being updated.  We look for an added event, too,
+                    // since it may have been committed by an earlier, failed, attempt to sync
+                    // this window (see StreamingOperations)
                     Cursor c = getServerIdCursor(serverId);
                     long id = -1;
                     try {
@@ -453,10 +461,10 @@ public class CalendarSyncAdapter extends AbstractSyncAdapter {
                     }
                     if (id > 0) {
                         // DTSTAMP can come first, and we simply need to track it
-                        if (tag == Tags.CALENDAR_DTSTAMP) {
+                        if (update && tag == Tags.CALENDAR_DTSTAMP) {
                             dtStamp = getValue();
                             continue;
-                        } else if (tag == Tags.CALENDAR_ATTENDEES) {
+                        } else if (update && tag == Tags.CALENDAR_ATTENDEES) {
                             // This is an attendees-only update; just
                             // delete/re-add attendees
                             mBindArgument[0] = Long.toString(id);
@@ -473,14 +481,14 @@ public class CalendarSyncAdapter extends AbstractSyncAdapter {
                             eventOffset = ops.newEvent(PLACEHOLDER_OPERATION);
                         }
                     } else {
-                        // The changed item isn't found. We'll treat this as a new item
+                        // Add a placeholder event so that associated tables can reference
+                        // this as a back reference.  We add the event at the end of the method
                         eventOffset = ops.newEvent(PLACEHOLDER_OPERATION);
-                        userLog(TAG, "Changed item not found; treating as new.");
+                        if (update) {
+                            // The changed item isn't found. We'll treat this as a new item
+                            userLog(TAG, "Changed item not found; treating as new.");
+                        }
                     }
-                } else if (firstTag) {
-                    // Add a placeholder event so that associated tables can reference
-                    // this as a back reference.  We add the event at the end of the method
-                   eventOffset = ops.newEvent(PLACEHOLDER_OPERATION);
                 }
                 firstTag = false;
                 switch (tag) {
@@ -1345,12 +1353,16 @@ public class CalendarSyncAdapter extends AbstractSyncAdapter {
         }
     }
 
-    protected class CalendarOperations extends ArrayList<Operation> {
+    protected class CalendarOperations extends StreamingOperations {
         private static final long serialVersionUID = 1L;
         public int mCount = 0;
         private ContentProviderResult[] mResults = null;
         private int mEventStart = 0;
 
+        public CalendarOperations() {
+            super(CalendarContract.AUTHORITY);
+        }
+
         @Override
         public boolean add(Operation op) {
             super.add(op);
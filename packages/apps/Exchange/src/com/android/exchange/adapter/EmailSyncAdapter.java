@@ -594,8 +594,9 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
                                 Base64.encodeToString(getValueBytes(), Base64.URL_SAFE);
                         break;
                     case Tags.EMAIL2_CONVERSATION_INDEX:
-                        // Ignore this byte array since we're not constructing a tree.
-                        getValueBytes();
+                        // Ignore this byte array since we're not constructing a tree; the
+                        // parser skips the unread value without copying it.
+                        getValueStream();
                         break;
                     case Tags.EMAIL2_LAST_VERB_EXECUTED:
                         int val = getValueInt();
@@ -25,6 +25,7 @@ import com.android.exchange.EasException;
 import com.android.exchange.utility.FileLogger;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -59,9 +60,29 @@ public abstract class Parser {
 
     private ArrayList<Integer> captureArray;
 
+    // Size of the read-ahead buffer used in buffered mode
+    private static final int BUFFER_SIZE = 4096;
+
+    // Inline strings up to this many bytes are looked up in the intern table before decoding
+    private static final int MAX_INTERN_LENGTH = 24;
+    private static final int INTERN_TABLE_SIZE = 128;
+
+    // Scratch space above this size is released after use instead of being kept for reuse
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 16 * 1024;
+
+    // Whether new parsers read through a reusable buffer; see setBufferedInputEnabled()
+    private static boolean sBufferedInput = true;
+
     // The input stream for this parser
     private InputStream in;
 
+    // The buffer wrapped around the input stream in buffered mode; this is also "in", so that
+    // parsers chained with Parser(Parser) and users of getInput() share its read-ahead
+    private InputBuffer buffer;
+
+    // The stream handed out by getValueStream(); unread bytes are skipped by the next getNext()
+    private OpaqueInputStream opaqueStream;
+
     // The current tag depth
     private int depth;
 
@@ -111,6 +132,126 @@ public abstract class Parser {
     // The value read, as bytes
     public byte[] bytes;
 
+    /**
+     * Read-ahead buffer over the parser's input. Bytes are decoded straight out of {@link #buf};
+     * the scratch array and the intern table are reused for the lifetime of the stream.
+     */
+    private static final class InputBuffer extends InputStream {
+        private final InputStream mIn;
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int pos = 0;
+        int limit = 0;
+
+        // Holds inline strings that span buffer refills
+        byte[] scratch;
+
+        // Recently decoded short strings, and the bytes they were decoded from
+        final String[] internStrings = new String[INTERN_TABLE_SIZE];
+        final byte[][] internBytes = new byte[INTERN_TABLE_SIZE][];
+
+        InputBuffer(InputStream in) {
+            mIn = in;
+        }
+
+        /**
+         * Refills the buffer; returns false at end of stream. Only call when pos == limit.
+         */
+        boolean fill() throws IOException {
+            final int count = mIn.read(buf, 0, buf.length);
+            if (count <= 0) {
+                pos = limit = 0;
+                return false;
+            }
+            pos = 0;
+            limit = count;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill()) return EOF_BYTE;
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (pos == limit) {
+                // Large reads bypass the buffer altogether
+                if (length >= buf.length) return mIn.read(b, offset, length);
+                if (!fill()) return -1;
+            }
+            final int count = Math.min(length, limit - pos);
+            System.arraycopy(buf, pos, b, offset, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) return 0;
+            final int buffered = limit - pos;
+            if (buffered > 0) {
+                final int count = (int)Math.min(n, buffered);
+                pos += count;
+                return count;
+            }
+            return mIn.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (limit - pos) + mIn.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /**
+     * The value of an OPAQUE tag, read directly from the parser's input.
+     */
+    private final class OpaqueInputStream extends InputStream {
+        int remaining;
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return EOF_BYTE;
+            final int i = readByte();
+            remaining--;
+            return i;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+            final int count = in.read(b, offset, Math.min(length, remaining));
+            if (count < 0) throw new EofException();
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return remaining;
+        }
+
+        void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                final long skipped = in.skip(remaining);
+                if (skipped > 0) {
+                    remaining -= skipped;
+                } else {
+                    // skip() may legitimately return 0; fall back to reading
+                    readByte();
+                    remaining--;
+                }
+            }
+        }
+    }
+
     /**
      * Generated when the parser comes to EOF prematurely during parsing (i.e. in error)
      */
@@ -175,6 +316,15 @@ public abstract class Parser {
         logging = Eas.PARSER_LOG;
     }
 
+    /**
+     * Chooses whether parsers created from now on read their input through a reusable buffer
+     * (the default) or one byte at a time from the underlying stream.
+     */
+    @VisibleForTesting
+    static void setBufferedInputEnabled(boolean enabled) {
+        sBufferedInput = enabled;
+    }
+
     /**
      * Set the debug state of the parser.  When debugging is on, every token is logged (Log.v) to
      * the console.
@@ -235,6 +385,33 @@ public abstract class Parser {
         return bytes;
     }
 
+    /**
+     * Return the value of the current tag, which must be OPAQUE, as a stream that reads directly
+     * from the parser's input without copying the whole value into memory.  The stream is only
+     * valid until the parser is next advanced; any bytes left unread are skipped at that point,
+     * as is the END of the current tag.
+     *
+     * @return the value of the current tag as a stream
+     * @throws IOException
+     */
+    public InputStream getValueStream() throws IOException {
+        getNext(false, true);
+        if (type == END) {
+            // No value given, just <Foo/>
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (opaqueStream != null) {
+            return opaqueStream;
+        }
+        // An inline string where opaque data was expected; hand out its bytes
+        final String val = text;
+        getNext(false);
+        if (type != END || val == null) {
+            throw new IOException("No END found!");
+        }
+        return new ByteArrayInputStream(val.getBytes("UTF-8"));
+    }
+
     /**
      * Return the value of the current tag, as a String.  Note that the result of this call is
      * indeterminate, and possibly null, if the value of the tag is not an immediate string
@@ -360,7 +537,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public void setInput(InputStream in, boolean initialize) throws IOException {
-        this.in = in;
+        setInputStream(in);
         if ((in != null) && initialize) {
             // If we fail on the very first byte, report an empty stream
             try {
@@ -377,7 +554,7 @@ public abstract class Parser {
 
     @VisibleForTesting
     void resetInput(InputStream in) {
-        this.in = in;
+        setInputStream(in);
         try {
             // Read leading zero
             read();
@@ -385,6 +562,19 @@ public abstract class Parser {
         }
     }
 
+    private void setInputStream(InputStream in) {
+        if (in instanceof InputBuffer) {
+            // Chained parser; share the existing buffer
+            buffer = (InputBuffer)in;
+        } else if (in != null && sBufferedInput) {
+            buffer = new InputBuffer(in);
+            in = buffer;
+        } else {
+            buffer = null;
+        }
+        this.in = in;
+    }
+
     void log(String str) {
         int cr = str.indexOf('\n');
         if (cr > 0) {
@@ -437,6 +627,24 @@ public abstract class Parser {
      * @throws IOException
      */
     private final int getNext(boolean asInt) throws IOException {
+        return getNext(asInt, false);
+    }
+
+    /**
+     * Return the next piece of data from the stream, as getNext(boolean) does.
+     *
+     * @param opaqueAsStream whether an OPAQUE value should be left in the stream and exposed
+     * through opaqueStream rather than being copied into bytes
+     */
+    private final int getNext(boolean asInt, boolean opaqueAsStream) throws IOException {
+        if (opaqueStream != null) {
+            // Finish the value handed out by getValueStream(), including the END of its tag
+            opaqueStream.skipRemaining();
+            opaqueStream = null;
+            if (getNext(false) != END) {
+                throw new IOException("No END found!");
+            }
+        }
         if (noContent) {
             nameArray[depth--] = null;
             type = END;
@@ -491,9 +699,13 @@ public abstract class Parser {
             case Wbxml.OPAQUE:
                 // Integer length + opaque data
                 int length = readInt();
-                bytes = new byte[length];
-                for (int i = 0; i < length; i++) {
-                    bytes[i] = (byte)readByte();
+                if (opaqueAsStream) {
+                    bytes = null;
+                    opaqueStream = new OpaqueInputStream();
+                    opaqueStream.remaining = length;
+                } else {
+                    bytes = new byte[length];
+                    readFully(bytes, length);
                 }
                 if (logging) {
                     name = tagTable[startTag - TAG_BASE];
@@ -529,6 +741,26 @@ public abstract class Parser {
         return i;
     }
 
+    /**
+     * Read exactly length bytes into the given array
+     */
+    private void readFully(byte[] b, int length) throws IOException {
+        if (capture || LOG_VERBOSE) {
+            for (int i = 0; i < length; i++) {
+                b[i] = (byte)readByte();
+            }
+            return;
+        }
+        int offset = 0;
+        while (offset < length) {
+            final int count = in.read(b, offset, length - offset);
+            if (count < 0) {
+                throw new EofException();
+            }
+            offset += count;
+        }
+    }
+
     private int nextId() throws IOException {
         if (nextId == NOT_FETCHED) {
             nextId = read();
@@ -588,6 +820,9 @@ public abstract class Parser {
      * @throws IOException
      */
     private String readInlineString() throws IOException {
+        if (buffer != null && !capture && !LOG_VERBOSE) {
+            return readBufferedInlineString();
+        }
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
         while (true) {
             int i = read();
@@ -603,4 +838,83 @@ public abstract class Parser {
         outputStream.close();
         return res;
     }
+
+    /**
+     * Read an inline string straight out of the input buffer; only the parts of strings that
+     * span a buffer refill are copied into the (reused) scratch array.
+     */
+    private String readBufferedInlineString() throws IOException {
+        final InputBuffer b = buffer;
+        int scratchLength = 0;
+        while (true) {
+            final byte[] buf = b.buf;
+            final int start = b.pos;
+            final int limit = b.limit;
+            for (int i = start; i < limit; i++) {
+                if (buf[i] == 0) {
+                    b.pos = i + 1;
+                    if (scratchLength == 0) {
+                        return decodeString(b, buf, start, i - start);
+                    }
+                    scratchLength = appendToScratch(b, scratchLength, buf, start, i - start);
+                    final String res = decodeString(b, b.scratch, 0, scratchLength);
+                    if (b.scratch.length > MAX_RETAINED_SCRATCH_SIZE) {
+                        b.scratch = null;
+                    }
+                    return res;
+                }
+            }
+            scratchLength = appendToScratch(b, scratchLength, buf, start, limit - start);
+            b.pos = limit;
+            if (!b.fill()) {
+                throw new EofException();
+            }
+        }
+    }
+
+    private static int appendToScratch(InputBuffer b, int scratchLength, byte[] src, int offset,
+            int length) {
+        final int newLength = scratchLength + length;
+        if (b.scratch == null || b.scratch.length < newLength) {
+            final byte[] newScratch = new byte[Math.max(newLength, BUFFER_SIZE) * 2];
+            if (scratchLength > 0) {
+                System.arraycopy(b.scratch, 0, newScratch, 0, scratchLength);
+            }
+            b.scratch = newScratch;
+        }
+        System.arraycopy(src, offset, b.scratch, scratchLength, length);
+        return newLength;
+    }
+
+    /**
+     * Decode UTF-8 bytes; short strings, which in EAS are mostly repeated values such as flags,
+     * classes and status codes, are shared through the intern table.
+     */
+    private static String decodeString(InputBuffer b, byte[] src, int offset, int length)
+            throws IOException {
+        if (length > MAX_INTERN_LENGTH) {
+            return new String(src, offset, length, "UTF-8");
+        }
+        int hash = length;
+        for (int i = offset; i < offset + length; i++) {
+            hash = hash * 31 + src[i];
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (INTERN_TABLE_SIZE - 1);
+        final byte[] cachedBytes = b.internBytes[slot];
+        if (cachedBytes != null && cachedBytes.length == length) {
+            int i = 0;
+            while (i < length && cachedBytes[i] == src[offset + i]) {
+                i++;
+            }
+            if (i == length) {
+                return b.internStrings[slot];
+            }
+        }
+        final String res = new String(src, offset, length, "UTF-8");
+        final byte[] newBytes = new byte[length];
+        System.arraycopy(src, offset, newBytes, 0, length);
+        b.internBytes[slot] = newBytes;
+        b.internStrings[slot] = res;
+        return res;
+    }
 }
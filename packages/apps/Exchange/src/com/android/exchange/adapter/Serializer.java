@@ -30,17 +30,47 @@ import com.android.exchange.Eas;
 import com.android.exchange.utility.FileLogger;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.ByteArrayOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 
+/**
+ * Writes WBXML into a chunked buffer.
+ *
+ * A Serializer created with an OutputStream streams its output: bytes are collected in a single
+ * pooled chunk that is written through to the stream whenever it fills up, and the chunk goes
+ * back to the pool in {@link #done()}. This keeps the footprint of large requests, such as
+ * messages with attachments being sent, at one chunk regardless of the request size.
+ *
+ * Otherwise, the output is kept in memory as a list of chunks, and can be retrieved with
+ * {@link #toByteArray()} or sent without further copies through {@link #toHttpEntity()}.
+ */
 public class Serializer {
     private static final String TAG = "Serializer";
-    private static final int BUFFER_SIZE = 16*1024;
+    private static final int CHUNK_SIZE = 4*1024;
+    private static final int MIN_CHUNK_SIZE = 256;
+    private static final int MAX_POOLED_CHUNKS = 4;
     private static final int NOT_PENDING = -1;
 
+    // Forces the first write after done() to pick up a new chunk
+    private static final byte[] NO_CHUNK = new byte[0];
+    // Chunks released by streaming serializers, ready for reuse
+    private static final ArrayList<byte[]> sChunkPool = new ArrayList<byte[]>(MAX_POOLED_CHUNKS);
+
+    // The stream we write through to, or null if we keep the output in memory
     private final OutputStream mOutput;
+    // All chunks of in-memory output, the last of which is mChunk; null when streaming
+    private final ArrayList<byte[]> mChunks;
+    private byte[] mChunk;
+    private int mChunkCount;
+    // Bytes in the chunks of mChunks that precede mChunk
+    private int mFullChunksSize;
+
     private int mPendingTag = NOT_PENDING;
     private int mDepth;
     private String[] mNameStack = new String[20];
@@ -48,7 +78,7 @@ public class Serializer {
     private boolean mLogging = Log.isLoggable(TAG, Log.VERBOSE);
 
     public Serializer() throws IOException {
-        this(new ByteArrayOutputStream(), true);
+        this(null, true);
     }
 
     public Serializer(OutputStream os) throws IOException {
@@ -57,24 +87,75 @@ public class Serializer {
 
     @VisibleForTesting
     public Serializer(boolean startDocument) throws IOException {
-        this(new ByteArrayOutputStream(), startDocument);
+        this(null, startDocument);
     }
 
     /**
      * Base constructor
-     * @param outputStream the stream we're serializing to
+     * @param outputStream the stream we're serializing to, or null to keep the output in memory
      * @param startDocument whether or not to start a document
-     * @param _logging whether or not to log our output
      * @throws IOException
      */
     public Serializer(OutputStream outputStream, boolean startDocument) throws IOException {
         super();
         mOutput = outputStream;
+        if (outputStream == null) {
+            mChunks = new ArrayList<byte[]>();
+            mChunk = new byte[MIN_CHUNK_SIZE];
+            mChunks.add(mChunk);
+        } else {
+            mChunks = null;
+            mChunk = obtainChunk();
+        }
         if (startDocument) {
             startDocument();
         } else {
-            mOutput.write(0);
+            write(0);
+        }
+    }
+
+    private static byte[] obtainChunk() {
+        synchronized (sChunkPool) {
+            final int size = sChunkPool.size();
+            if (size > 0) {
+                return sChunkPool.remove(size - 1);
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    private static void releaseChunk(byte[] chunk) {
+        synchronized (sChunkPool) {
+            if (sChunkPool.size() < MAX_POOLED_CHUNKS) {
+                sChunkPool.add(chunk);
+            }
+        }
+    }
+
+    /**
+     * Called when mChunk is full; either writes it through to the output stream or starts a new
+     * in-memory chunk. In-memory chunks grow with the output so that small requests stay small.
+     */
+    private void nextChunk() throws IOException {
+        if (mOutput != null) {
+            if (mChunk == NO_CHUNK) {
+                mChunk = obtainChunk();
+            } else {
+                mOutput.write(mChunk, 0, mChunkCount);
+            }
+        } else {
+            mFullChunksSize += mChunkCount;
+            mChunk = new byte[Math.min(CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, mFullChunksSize))];
+            mChunks.add(mChunk);
         }
+        mChunkCount = 0;
+    }
+
+    private void write(int b) throws IOException {
+        if (mChunkCount == mChunk.length) {
+            nextChunk();
+        }
+        mChunk[mChunkCount++] = (byte)b;
     }
 
     void log(String str) {
@@ -92,14 +173,22 @@ public class Serializer {
         if (mDepth != 0) {
             throw new IOException("Done received with unclosed tags");
         }
-        mOutput.flush();
+        if (mOutput != null) {
+            if (mChunk != NO_CHUNK) {
+                mOutput.write(mChunk, 0, mChunkCount);
+                releaseChunk(mChunk);
+                mChunk = NO_CHUNK;
+                mChunkCount = 0;
+            }
+            mOutput.flush();
+        }
     }
 
     public void startDocument() throws IOException{
-        mOutput.write(0x03); // version 1.3
-        mOutput.write(0x01); // unknown or missing public identifier
-        mOutput.write(106);  // UTF-8
-        mOutput.write(0);    // 0 length string array
+        write(0x03); // version 1.3
+        write(0x01); // unknown or missing public identifier
+        write(106);  // UTF-8
+        write(0);    // 0 length string array
     }
 
     public void checkPendingTag(boolean degenerated) throws IOException {
@@ -110,11 +199,11 @@ public class Serializer {
         int tag = mPendingTag & Tags.PAGE_MASK;
         if (page != mTagPage) {
             mTagPage = page;
-            mOutput.write(Wbxml.SWITCH_PAGE);
-            mOutput.write(page);
+            write(Wbxml.SWITCH_PAGE);
+            write(page);
         }
 
-        mOutput.write(degenerated ? tag : tag | Wbxml.WITH_CONTENT);
+        write(degenerated ? tag : tag | Wbxml.WITH_CONTENT);
         if (mLogging) {
             String name = Tags.pages[page][tag - 5];
             mNameStack[mDepth] = name;
@@ -134,7 +223,7 @@ public class Serializer {
         if (mPendingTag >= 0) {
             checkPendingTag(true);
         } else {
-            mOutput.write(Wbxml.END);
+            write(Wbxml.END);
             if (mLogging) {
                 log("</" + mNameStack[mDepth] + '>');
             }
@@ -164,8 +253,8 @@ public class Serializer {
             Log.e(TAG, "Writing null text for pending tag: " + mPendingTag);
         }
         checkPendingTag(false);
-        mOutput.write(Wbxml.STR_I);
-        writeLiteralString(mOutput, text);
+        write(Wbxml.STR_I);
+        writeLiteralString(text);
         if (mLogging) {
             log(text);
         }
@@ -174,19 +263,22 @@ public class Serializer {
 
     public Serializer opaque(InputStream is, int length) throws IOException {
         checkPendingTag(false);
-        mOutput.write(Wbxml.OPAQUE);
-        writeInteger(mOutput, length);
+        write(Wbxml.OPAQUE);
+        writeInteger(length);
         if (mLogging) {
             log("Opaque, length: " + length);
         }
-        // Now write out the opaque data in batches
-        byte[] buffer = new byte[BUFFER_SIZE];
+        // Now read the opaque data straight into our chunks
         while (length > 0) {
-            int bytesRead = is.read(buffer, 0, (int)Math.min(BUFFER_SIZE, length));
+            if (mChunkCount == mChunk.length) {
+                nextChunk();
+            }
+            int bytesRead = is.read(mChunk, mChunkCount, Math.min(mChunk.length - mChunkCount,
+                    length));
             if (bytesRead == -1) {
                 break;
             }
-            mOutput.write(buffer, 0, bytesRead);
+            mChunkCount += bytesRead;
             length -= bytesRead;
         }
         return this;
@@ -194,33 +286,56 @@ public class Serializer {
 
     public Serializer opaqueWithoutData(int length) throws IOException {
         checkPendingTag(false);
-        mOutput.write(Wbxml.OPAQUE);
-        writeInteger(mOutput, length);
+        write(Wbxml.OPAQUE);
+        writeInteger(length);
         return this;
     }
 
-    void writeInteger(OutputStream out, int i) throws IOException {
-        byte[] buf = new byte[5];
-        int idx = 0;
-
-        do {
-            buf[idx++] = (byte) (i & 0x7f);
-            i = i >> 7;
-        } while (i != 0);
-
-        while (idx > 1) {
-            out.write(buf[--idx] | 0x80);
-        }
-        out.write(buf[0]);
+    void writeInteger(int i) throws IOException {
         if (mLogging) {
             log(Integer.toString(i));
         }
+        // Multi-byte integer: 7 bits per byte, most significant first, high bit on all but last
+        int shift = 0;
+        while ((i >>> shift) > 0x7f) {
+            shift += 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            write(((i >>> shift) & 0x7f) | 0x80);
+        }
+        write(i & 0x7f);
     }
 
-    void writeLiteralString(OutputStream out, String s) throws IOException {
-        byte[] data = s.getBytes("UTF-8");
-        out.write(data);
-        out.write(0);
+    /**
+     * Writes the string as UTF-8 followed by a 0 terminator, encoding straight into our chunks
+     * rather than through an intermediate byte array. As with String.getBytes, unpaired
+     * surrogates are written as '?'.
+     */
+    void writeLiteralString(String s) throws IOException {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                write(0xc0 | (c >> 6));
+                write(0x80 | (c & 0x3f));
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                write(0xe0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3f));
+                write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                write(0xf0 | (codePoint >> 18));
+                write(0x80 | ((codePoint >> 12) & 0x3f));
+                write(0x80 | ((codePoint >> 6) & 0x3f));
+                write(0x80 | (codePoint & 0x3f));
+            } else {
+                write('?');
+            }
+        }
+        write(0);
     }
 
     void writeStringValue (ContentValues cv, String key, int tag) throws IOException {
@@ -232,19 +347,94 @@ public class Serializer {
         }
     }
 
+    /**
+     * Returns the number of bytes written so far; only valid for in-memory output
+     */
+    public int size() {
+        if (mChunks == null) {
+            throw new IllegalStateException();
+        }
+        return mFullChunksSize + mChunkCount;
+    }
+
+    /**
+     * Writes the in-memory output to the given stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (mChunks == null) {
+            throw new IllegalStateException();
+        }
+        // All chunks but the last one are full
+        final int last = mChunks.size() - 1;
+        for (int i = 0; i < last; i++) {
+            final byte[] chunk = mChunks.get(i);
+            out.write(chunk, 0, chunk.length);
+        }
+        out.write(mChunk, 0, mChunkCount);
+    }
+
+    /**
+     * Returns a repeatable entity that writes the in-memory output directly from our chunks
+     */
+    public HttpEntity toHttpEntity() {
+        if (mChunks == null) {
+            throw new IllegalStateException();
+        }
+        return new SerializerEntity(this);
+    }
+
     @Override
     public String toString() {
-        if (mOutput instanceof ByteArrayOutputStream) {
-            return ((ByteArrayOutputStream)mOutput).toString();
-        }
-        throw new IllegalStateException();
+        return new String(toByteArray());
     }
 
     public byte[] toByteArray() {
-        if (mOutput instanceof ByteArrayOutputStream) {
-            return ((ByteArrayOutputStream)mOutput).toByteArray();
+        final byte[] bytes = new byte[size()];
+        int offset = 0;
+        final int last = mChunks.size() - 1;
+        for (int i = 0; i < last; i++) {
+            final byte[] chunk = mChunks.get(i);
+            System.arraycopy(chunk, 0, bytes, offset, chunk.length);
+            offset += chunk.length;
         }
-        throw new IllegalStateException();
+        System.arraycopy(mChunk, 0, bytes, offset, mChunkCount);
+        return bytes;
     }
 
+    private static class SerializerEntity extends AbstractHttpEntity {
+        private final Serializer mSerializer;
+
+        SerializerEntity(Serializer serializer) {
+            mSerializer = serializer;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mSerializer.size();
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(mSerializer.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            if (outstream == null) {
+                throw new IllegalArgumentException("Output stream may not be null");
+            }
+            mSerializer.writeTo(outstream);
+            outstream.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
 }
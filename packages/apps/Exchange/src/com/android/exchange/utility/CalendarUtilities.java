@@ -60,8 +60,8 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CalendarUtilities {
 
@@ -123,9 +123,15 @@ public class CalendarUtilities {
         MSFT_TIME_ZONE_DAYLIGHT_BIAS_OFFSET + MSFT_LONG_SIZE;
 
     // TimeZone cache; we parse/decode as little as possible, because the process is quite slow
-    private static HashMap<String, TimeZone> sTimeZoneCache = new HashMap<String, TimeZone>();
+    private static final ConcurrentHashMap<String, TimeZone> sTimeZoneCache =
+        new ConcurrentHashMap<String, TimeZone>();
+    // TimeZone index by TZI signature (see getTziSignature); servers send the same time zone with
+    // different (e.g. localized) names, and those all share a single lookup
+    private static final ConcurrentHashMap<String, TimeZone> sTimeZoneSignatureIndex =
+        new ConcurrentHashMap<String, TimeZone>();
     // TZI string cache; we keep around our encoded TimeZoneInformation strings
-    private static HashMap<TimeZone, String> sTziStringCache = new HashMap<TimeZone, String>();
+    private static final ConcurrentHashMap<TimeZone, String> sTziStringCache =
+        new ConcurrentHashMap<TimeZone, String>();
 
     private static final TimeZone UTC_TIMEZONE = TimeZone.getTimeZone("UTC");
     // Default, Popup
@@ -230,6 +236,7 @@ public class CalendarUtilities {
     @VisibleForTesting
     static void clearTimeZoneCache() {
         sTimeZoneCache.clear();
+        sTimeZoneSignatureIndex.clear();
     }
 
     static void putRuleIntoTimeZoneInformation(byte[] bytes, int offset, RRule rrule, int hour,
@@ -748,7 +755,12 @@ public class CalendarUtilities {
             if (Eas.USER_LOG) {
                 ExchangeService.log(TAG, " Using cached TimeZone " + timeZone.getID());
             }
-        } else {
+            return timeZone;
+        }
+        // Otherwise, see whether we've already matched a string with the same signature
+        String signature = getTziSignature(timeZoneString, precision);
+        timeZone = sTimeZoneSignatureIndex.get(signature);
+        if (timeZone == null) {
             timeZone = tziStringToTimeZoneImpl(timeZoneString, precision);
             if (timeZone == null) {
                 // If we don't find a match, we just return the current TimeZone.  In theory, this
@@ -756,11 +768,47 @@ public class CalendarUtilities {
                 ExchangeService.alwaysLog("TimeZone not found using default: " + timeZoneString);
                 timeZone = TimeZone.getDefault();
             }
-            sTimeZoneCache.put(timeZoneString, timeZone);
+            sTimeZoneSignatureIndex.put(signature, timeZone);
+        } else if (Eas.USER_LOG) {
+            ExchangeService.log(TAG, " Using indexed TimeZone " + timeZone.getID());
         }
+        sTimeZoneCache.put(timeZoneString, timeZone);
         return timeZone;
     }
 
+    /**
+     * Returns the part of a TZI string that tziStringToTimeZoneImpl looks at: the bias, the
+     * standard and daylight transition rules, and the daylight savings.  The names and the
+     * standard bias are ignored, as is the year of each rule (we always check the current year)
+     * @param timeZoneString the String read from the server
+     * @param precision the number of milliseconds of precision in TimeZone determination
+     * @return a String that is equal for all TZI strings that map to the same TimeZone
+     */
+    @VisibleForTesting
+    static String getTziSignature(String timeZoneString, int precision) {
+        byte[] timeZoneBytes = Base64.decode(timeZoneString, Base64.DEFAULT);
+        StringBuilder sb = new StringBuilder(48);
+        sb.append(getLong(timeZoneBytes, MSFT_TIME_ZONE_BIAS_OFFSET));
+        if (getWord(timeZoneBytes,
+                MSFT_TIME_ZONE_STANDARD_DATE_OFFSET + MSFT_SYSTEMTIME_MONTH) == 0) {
+            // No DST; nothing else is looked at
+            return sb.toString();
+        }
+        appendSystemTimeRule(sb, timeZoneBytes, MSFT_TIME_ZONE_STANDARD_DATE_OFFSET);
+        appendSystemTimeRule(sb, timeZoneBytes, MSFT_TIME_ZONE_DAYLIGHT_DATE_OFFSET);
+        sb.append('/').append(getLong(timeZoneBytes, MSFT_TIME_ZONE_DAYLIGHT_BIAS_OFFSET));
+        sb.append('/').append(precision);
+        return sb.toString();
+    }
+
+    private static void appendSystemTimeRule(StringBuilder sb, byte[] bytes, int offset) {
+        sb.append('/').append(getWord(bytes, offset + MSFT_SYSTEMTIME_MONTH));
+        sb.append(',').append(getWord(bytes, offset + MSFT_SYSTEMTIME_DAY_OF_WEEK));
+        sb.append(',').append(getWord(bytes, offset + MSFT_SYSTEMTIME_DAY));
+        sb.append(',').append(getWord(bytes, offset + MSFT_SYSTEMTIME_HOUR));
+        sb.append(',').append(getWord(bytes, offset + MSFT_SYSTEMTIME_MINUTE));
+    }
+
     /**
      * The standard entry to EAS time zone conversion, using one minute as the precision
      */
@@ -170,4 +170,32 @@ public class EasSyncServiceTests extends AndroidTestCase {
         assertEquals(100, svc.mPingForceHeartbeat);
         assertFalse(svc.mPingHeartbeatDropped);
     }
+
+    public void testLearnedHeartbeats() {
+        EasSyncService svc = new EasSyncService();
+        svc.mPingMaxHeartbeat = 1000;
+        svc.mPingMinHeartbeat = 200;
+        svc.mPingHeartbeat = 650;
+        svc.mPingForceHeartbeat = 150;
+        svc.mPingHeartbeatDropped = true;
+        svc.saveHeartbeats("test/1/wifi");
+
+        // Another service on the same network starts where the first one left off
+        EasSyncService other = new EasSyncService();
+        other.restoreHeartbeats("test/1/wifi");
+        assertEquals(200, other.mPingMinHeartbeat);
+        assertEquals(1000, other.mPingMaxHeartbeat);
+        assertEquals(650, other.mPingHeartbeat);
+        assertEquals(150, other.mPingForceHeartbeat);
+        assertTrue(other.mPingHeartbeatDropped);
+
+        // Nothing is known about another network
+        EasSyncService fresh = new EasSyncService();
+        int startingHeartbeat = fresh.mPingHeartbeat;
+        fresh.restoreHeartbeats("test/1/mobile");
+        assertEquals(startingHeartbeat, fresh.mPingHeartbeat);
+        assertFalse(fresh.mPingHeartbeatDropped);
+        fresh.restoreHeartbeats(null);
+        assertEquals(startingHeartbeat, fresh.mPingHeartbeat);
+    }
 }
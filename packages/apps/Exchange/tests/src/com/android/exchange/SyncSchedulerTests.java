@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.SyncSchedulerTests exchange
+ */
+@SmallTest
+public class SyncSchedulerTests extends AndroidTestCase {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /**
+     * Blocks until the gate is opened, recording the order in which tasks ran.
+     */
+    private static class GatedTask implements Runnable {
+        private final String mName;
+        private final CountDownLatch mGate;
+        private final ArrayList<String> mLog;
+
+        GatedTask(String name, CountDownLatch gate, ArrayList<String> log) {
+            mName = name;
+            mGate = gate;
+            mLog = log;
+        }
+
+        public void run() {
+            synchronized (mLog) {
+                mLog.add(mName);
+            }
+            try {
+                mGate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Just finish
+            }
+        }
+    }
+
+    private static class FinishedListener implements SyncScheduler.Listener {
+        final CountDownLatch mFinished;
+
+        FinishedListener(int count) {
+            mFinished = new CountDownLatch(count);
+        }
+
+        public void onTaskFinished(Runnable task) {
+            mFinished.countDown();
+        }
+    }
+
+    private static void waitForActive(SyncScheduler scheduler, long accountId, int count)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (scheduler.getActiveCount(accountId) < count) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void waitForCompleted(SyncScheduler scheduler, long accountId, int count)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (scheduler.getCompletedCount(accountId) < count) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testBoundedPerAccount() throws InterruptedException {
+        FinishedListener listener = new FinishedListener(7);
+        SyncScheduler scheduler = new SyncScheduler(listener, 2, 10);
+        CountDownLatch gate = new CountDownLatch(1);
+        ArrayList<String> log = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(scheduler.submit(1, "a" + i, new GatedTask("a" + i, gate, log), false));
+        }
+        assertTrue(scheduler.submit(2, "b0", new GatedTask("b0", gate, log), false));
+        assertTrue(scheduler.submit(2, "b1", new GatedTask("b1", gate, log), false));
+
+        // A busy account doesn't hold up another one
+        waitForActive(scheduler, 1, 2);
+        waitForActive(scheduler, 2, 2);
+        assertEquals(2, scheduler.getActiveCount(1));
+        assertEquals(3, scheduler.getQueuedCount(1));
+        assertEquals(0, scheduler.getQueuedCount(2));
+
+        gate.countDown();
+        assertTrue(listener.mFinished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        waitForCompleted(scheduler, 1, 5);
+        waitForCompleted(scheduler, 2, 2);
+        assertEquals(0, scheduler.getActiveCount(1));
+    }
+
+    public void testUrgentFirstAndBackpressure() throws InterruptedException {
+        FinishedListener listener = new FinishedListener(4);
+        SyncScheduler scheduler = new SyncScheduler(listener, 1, 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        ArrayList<String> log = new ArrayList<String>();
+        assertTrue(scheduler.submit(1, "first", new GatedTask("first", gate, log), false));
+        waitForActive(scheduler, 1, 1);
+        assertTrue(scheduler.submit(1, "second", new GatedTask("second", gate, log), false));
+        assertTrue(scheduler.submit(1, "third", new GatedTask("third", gate, log), false));
+
+        // The queue is full; only user requests get in, at the front
+        GatedTask rejected = new GatedTask("rejected", gate, log);
+        assertFalse(scheduler.submit(1, "rejected", rejected, false));
+        assertFalse(scheduler.isQueued(rejected));
+        assertEquals(1, scheduler.getRejectedCount(1));
+        assertTrue(scheduler.submit(1, "urgent", new GatedTask("urgent", gate, log), true));
+        assertEquals(3, scheduler.getQueuedCount(1));
+
+        gate.countDown();
+        assertTrue(listener.mFinished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        synchronized (log) {
+            assertEquals("[first, urgent, second, third]", log.toString());
+        }
+    }
+
+    public void testRemove() throws InterruptedException {
+        FinishedListener listener = new FinishedListener(2);
+        SyncScheduler scheduler = new SyncScheduler(listener, 1, 10);
+        CountDownLatch gate = new CountDownLatch(1);
+        ArrayList<String> log = new ArrayList<String>();
+        GatedTask running = new GatedTask("running", gate, log);
+        GatedTask removed = new GatedTask("removed", gate, log);
+        assertTrue(scheduler.submit(1, "running", running, false));
+        waitForActive(scheduler, 1, 1);
+        assertTrue(scheduler.submit(1, "removed", removed, false));
+        assertTrue(scheduler.submit(1, "last", new GatedTask("last", gate, log), false));
+
+        // Only a task that's still waiting can be taken off the queue
+        assertFalse(scheduler.remove(running));
+        assertTrue(scheduler.remove(removed));
+        assertFalse(scheduler.isQueued(removed));
+        assertFalse(scheduler.remove(removed));
+
+        gate.countDown();
+        assertTrue(listener.mFinished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        synchronized (log) {
+            assertEquals("[running, last]", log.toString());
+        }
+    }
+
+    public void testInterruptDoesNotLeak() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final boolean[] interrupted = new boolean[1];
+        FinishedListener listener = new FinishedListener(2);
+        SyncScheduler scheduler = new SyncScheduler(listener, 1, 10);
+        scheduler.submit(1, "self", new Runnable() {
+            public void run() {
+                started.countDown();
+                // As if stop() had interrupted us after we were done
+                Thread.currentThread().interrupt();
+            }
+        }, false);
+        scheduler.submit(1, "next", new Runnable() {
+            public void run() {
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        }, false);
+        assertTrue(listener.mFinished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(started.getCount() == 0);
+        assertFalse(interrupted[0]);
+    }
+
+    public void testDump() throws InterruptedException {
+        SyncScheduler scheduler = new SyncScheduler(null);
+        scheduler.submit(7, "task", new Runnable() {
+            public void run() {
+            }
+        }, false);
+        waitForCompleted(scheduler, 7, 1);
+        StringWriter sw = new StringWriter();
+        scheduler.dump(new PrintWriter(sw));
+        String dump = sw.toString();
+        assertTrue(dump, dump.contains("Account 7: active="));
+        assertTrue(dump, dump.contains("Total: active=0 queued=0"));
+    }
+}
@@ -384,6 +384,35 @@ public class CalendarSyncAdapterTests extends SyncAdapterTestCase<CalendarSyncAd
         assertEquals(0, countInsertOperationsForTable(p.mOps, "extendedproperties"));
     }
 
+    public void testStreamingOperations() throws RemoteException {
+        CalendarSyncAdapter adapter = getTestSyncAdapter(CalendarSyncAdapter.class);
+        // Nothing reaches the provider once the service has been stopped
+        adapter.mService.stop();
+        CalendarOperations ops = adapter.new CalendarOperations();
+        int count = 0;
+        while (ops.getCommittedCount() == 0) {
+            assertEquals(count, ops.newEvent(
+                    new Operation(ContentProviderOperation.newInsert(Events.CONTENT_URI))));
+            ops.newAttendee(new ContentValues());
+            adapter.addSeparatorOperation(ops, Events.CONTENT_URI);
+            count += 3;
+        }
+        // Everything up to the last separator was handed off, and nothing before
+        assertTrue(count >= AbstractSyncAdapter.STREAMING_COMMIT_THRESHOLD);
+        assertEquals(count, ops.getCommittedCount());
+        assertTrue(ops.isEmpty());
+
+        // Positions and back references keep counting from the start of the sync window
+        int eventStart = ops.newEvent(
+                new Operation(ContentProviderOperation.newInsert(Events.CONTENT_URI)));
+        assertEquals(count, eventStart);
+        ops.newAttendee(new ContentValues());
+        assertEquals(eventStart, ops.get(eventStart + 1).mOffset);
+        ops.remove(eventStart + 1);
+        assertEquals(1, ops.size());
+        adapter.safeExecute(MockProvider.AUTHORITY, ops);
+    }
+
     public void testAddEventRedactedAttendees() throws IOException {
         TestEvent event = new TestEvent();
         event.setupPreAttendees();
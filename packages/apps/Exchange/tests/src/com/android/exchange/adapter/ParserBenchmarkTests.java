@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Replays a large Sync response through the parser with and without buffered input, checking
+ * that both see the same data and logging how long each takes.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.ParserBenchmarkTests exchange
+ */
+@LargeTest
+public class ParserBenchmarkTests extends AndroidTestCase {
+    private static final String TAG = "ParserBenchmarkTests";
+    private static final int ITEM_COUNT = 3000;
+    private static final int ROUNDS = 5;
+    // Roughly what a socket hands back per read
+    private static final int NETWORK_CHUNK_SIZE = 1460;
+
+    /**
+     * Walks a Sync response, folding every value into a checksum.
+     */
+    private static class ChecksumParser extends Parser {
+        private final boolean mStreamOpaque;
+        long mChecksum = 0;
+
+        ChecksumParser(InputStream in, boolean streamOpaque) throws IOException {
+            super(in);
+            mStreamOpaque = streamOpaque;
+        }
+
+        @Override
+        public boolean parse() throws IOException {
+            if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
+                throw new IOException();
+            }
+            while (nextTag(Tags.SYNC_SYNC) != END) {
+                if (tag == Tags.SYNC_ADD) {
+                    parseAdd();
+                } else {
+                    skipTag();
+                }
+            }
+            return false;
+        }
+
+        private void parseAdd() throws IOException {
+            while (nextTag(Tags.SYNC_ADD) != END) {
+                if (tag == Tags.SYNC_SERVER_ID) {
+                    mChecksum = mChecksum * 31 + getValue().hashCode();
+                } else if (tag == Tags.SYNC_APPLICATION_DATA) {
+                    parseApplicationData();
+                } else {
+                    skipTag();
+                }
+            }
+        }
+
+        private void parseApplicationData() throws IOException {
+            while (nextTag(Tags.SYNC_APPLICATION_DATA) != END) {
+                if (tag == Tags.EMAIL2_CONVERSATION_INDEX) {
+                    if (mStreamOpaque) {
+                        final InputStream in = getValueStream();
+                        int b;
+                        while ((b = in.read()) >= 0) {
+                            mChecksum = mChecksum * 31 + b;
+                        }
+                    } else {
+                        for (byte b : getValueBytes()) {
+                            mChecksum = mChecksum * 31 + (b & 0xFF);
+                        }
+                    }
+                } else {
+                    mChecksum = mChecksum * 31 + getValue().hashCode();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands out at most NETWORK_CHUNK_SIZE bytes per read, like a socket stream.
+     */
+    private static class ChunkedInputStream extends FilterInputStream {
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            return super.read(b, offset, Math.min(length, NETWORK_CHUNK_SIZE));
+        }
+    }
+
+    private static byte[] createSyncResponse() throws IOException {
+        final Random random = new Random(0);
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+        s.data(Tags.SYNC_SYNC_KEY, "123456789").data(Tags.SYNC_COLLECTION_ID, "5");
+        s.start(Tags.SYNC_COMMANDS);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            s.start(Tags.SYNC_ADD).data(Tags.SYNC_SERVER_ID, "5:" + i);
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            s.data(Tags.EMAIL_TO, "\"Test User\" <test@example.com>");
+            s.data(Tags.EMAIL_FROM, "\"Sender " + random.nextInt(50) + "\" <sender@example.com>");
+            s.data(Tags.EMAIL_SUBJECT, "Subject of message " + i);
+            s.data(Tags.EMAIL_DATE_RECEIVED, "2012-01-02T23:00:01.000Z");
+            s.data(Tags.EMAIL_READ, random.nextBoolean() ? "1" : "0");
+            s.data(Tags.EMAIL_MESSAGE_CLASS, "IPM.Note");
+            final byte[] index = new byte[5 + random.nextInt(40)];
+            random.nextBytes(index);
+            s.start(Tags.EMAIL2_CONVERSATION_INDEX);
+            s.opaque(new ByteArrayInputStream(index), index.length);
+            s.end();
+            final StringBuilder body = new StringBuilder();
+            final int bodyLength = random.nextInt(4000);
+            while (body.length() < bodyLength) {
+                body.append("Lorem ipsum dolor sit amet ");
+            }
+            s.data(Tags.EMAIL_BODY, body.toString());
+            s.end().end(); // SYNC_APPLICATION_DATA, SYNC_ADD
+        }
+        s.end().end().end().end().done();
+        return s.toByteArray();
+    }
+
+    private static long parse(byte[] data, boolean buffered, boolean streamOpaque)
+            throws IOException {
+        Parser.setBufferedInputEnabled(buffered);
+        try {
+            final ChecksumParser parser = new ChecksumParser(
+                    new ChunkedInputStream(new ByteArrayInputStream(data)), streamOpaque);
+            parser.parse();
+            return parser.mChecksum;
+        } finally {
+            Parser.setBufferedInputEnabled(true);
+        }
+    }
+
+    private static long time(byte[] data, boolean buffered, boolean streamOpaque)
+            throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            final long start = System.nanoTime();
+            parse(data, buffered, streamOpaque);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000000;
+    }
+
+    public void testBufferedParserMatchesUnbuffered() throws IOException {
+        final byte[] data = createSyncResponse();
+        final long expected = parse(data, false, false);
+        assertEquals(expected, parse(data, true, false));
+        assertEquals(expected, parse(data, true, true));
+    }
+
+    public void testBenchmark() throws IOException {
+        final byte[] data = createSyncResponse();
+        final long unbuffered = time(data, false, false);
+        final long buffered = time(data, true, false);
+        final long streamed = time(data, true, true);
+        Log.i(TAG, data.length + " bytes, " + ITEM_COUNT + " items: unbuffered=" + unbuffered
+                + "ms buffered=" + buffered + "ms buffered+opaque stream=" + streamed + "ms");
+    }
+}
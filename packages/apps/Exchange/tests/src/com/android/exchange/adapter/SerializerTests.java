@@ -21,6 +21,7 @@ import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /** You can run this entire test case with:
@@ -91,4 +92,54 @@ public class SerializerTests extends AndroidTestCase {
         // Make sure we get what's expected
         MoreAsserts.assertEquals("Serializer mismatch", bytes, expectedBytes);
     }
+
+    private static void writeLargeDocument(Serializer s) throws IOException {
+        // Opaque data and strings that span several chunks, plus non-ASCII text
+        byte[] opaque = new byte[50000];
+        for (int i = 0; i < opaque.length; i++) {
+            opaque[i] = (byte)i;
+        }
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 10000) {
+            sb.append("abc \u00e9\u20ac\ud83d\ude00 ");
+        }
+        s.start(Tags.COMPOSE_SEND_MAIL);
+        s.data(Tags.COMPOSE_CLIENT_ID, sb.toString());
+        s.start(Tags.COMPOSE_MIME);
+        s.opaque(new ByteArrayInputStream(opaque), opaque.length);
+        s.end();  // COMPOSE_MIME
+        s.end();  // COMPOSE_SEND_MAIL
+        s.done(); // DOCUMENT
+    }
+
+    // The streaming and in-memory serializers must produce the same bytes
+    public void testStreamingSerializer() throws IOException {
+        Serializer s = new Serializer();
+        writeLargeDocument(s);
+        byte[] bytes = s.toByteArray();
+        assertEquals(bytes.length, s.size());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        s.writeTo(os);
+        MoreAsserts.assertEquals("writeTo mismatch", bytes, os.toByteArray());
+
+        // Run twice so that the second serializer works on a recycled chunk
+        for (int i = 0; i < 2; i++) {
+            os = new ByteArrayOutputStream();
+            writeLargeDocument(new Serializer(os));
+            MoreAsserts.assertEquals("Streaming mismatch", bytes, os.toByteArray());
+        }
+    }
+
+    public void testLiteralString() throws IOException {
+        String text = "a\u00e9\u20ac\ud83d\ude00\ud83d";
+        Serializer s = new Serializer(false);
+        s.text(text);
+        byte[] bytes = s.toByteArray();
+        byte[] expected = text.getBytes("UTF-8");
+        assertEquals(expected.length + 3, bytes.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], bytes[i + 2]);
+        }
+        assertEquals(0, bytes[bytes.length - 1]);
+    }
 }
@@ -22,6 +22,7 @@ import android.content.res.Resources;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.Events;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Base64;
 import android.util.Log;
 
 import com.android.emailcommon.mail.Address;
@@ -172,6 +173,32 @@ public class CalendarUtilitiesTests extends SyncAdapterTestCase<CalendarSyncAdap
         assertEquals(azTime.getOffset(now), tz.getOffset(now));
     }
 
+    public void testTziSignature() {
+        // Renaming the zones doesn't change the signature (or the TimeZone we find)
+        byte[] bytes = Base64.decode(AMERICA_DAWSON_TIME, Base64.DEFAULT);
+        for (int i = 0; i < 64; i++) {
+            bytes[CalendarUtilities.MSFT_TIME_ZONE_STANDARD_NAME_OFFSET + i] = 0;
+            bytes[CalendarUtilities.MSFT_TIME_ZONE_DAYLIGHT_NAME_OFFSET + i] = 0;
+        }
+        String unnamed = Base64.encodeToString(bytes, Base64.NO_WRAP);
+        int precision = CalendarUtilities.STANDARD_DST_PRECISION;
+        assertEquals(CalendarUtilities.getTziSignature(AMERICA_DAWSON_TIME, precision),
+                CalendarUtilities.getTziSignature(unnamed, precision));
+        CalendarUtilities.clearTimeZoneCache();
+        assertEquals("America/Dawson",
+                CalendarUtilities.tziStringToTimeZone(AMERICA_DAWSON_TIME).getID());
+        assertEquals("America/Dawson", CalendarUtilities.tziStringToTimeZone(unnamed).getID());
+
+        // But different rules, biases, and precisions do
+        assertFalse(CalendarUtilities.getTziSignature(AMERICA_DAWSON_TIME, precision).equals(
+                CalendarUtilities.getTziSignature(AUSTRALIA_ACT_TIME, precision)));
+        assertFalse(CalendarUtilities.getTziSignature(ARIZONA_TIME, precision).equals(
+                CalendarUtilities.getTziSignature(HAWAII_TIME, precision)));
+        assertFalse(CalendarUtilities.getTziSignature(LENIENT_EASTERN_TIME, precision).equals(
+                CalendarUtilities.getTziSignature(LENIENT_EASTERN_TIME,
+                        CalendarUtilities.LENIENT_DST_PRECISION)));
+    }
+
     public void testGenerateEasDayOfWeek() {
         String byDay = "TU,WE,SA";
         // TU = 4, WE = 8; SA = 64;
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+/**
+ * Converts the TZI strings of a sample of time zones back to TimeZones, the way a Calendar sync
+ * with many events does, and logs how long the uncached search, the first (indexing) pass, and
+ * later passes take.  Each zone is sent under several names, as different servers would.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.utility.TimeZoneBenchmarkTests exchange
+ */
+@LargeTest
+public class TimeZoneBenchmarkTests extends AndroidTestCase {
+    private static final String TAG = "TimeZoneBenchmarkTests";
+    // Every n-th available time zone is used
+    private static final int ZONE_STRIDE = 8;
+    private static final int NAMES_PER_ZONE = 4;
+    private static final int ROUNDS = 20;
+
+    private ArrayList<String> mTziStrings;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTziStrings = new ArrayList<String>();
+        String[] ids = TimeZone.getAvailableIDs();
+        for (int i = 0; i < ids.length; i += ZONE_STRIDE) {
+            String tziString =
+                CalendarUtilities.timeZoneToTziStringImpl(TimeZone.getTimeZone(ids[i]));
+            byte[] bytes = Base64.decode(tziString, Base64.DEFAULT);
+            for (int j = 0; j < NAMES_PER_ZONE; j++) {
+                // Give the standard time a different name each time
+                bytes[CalendarUtilities.MSFT_TIME_ZONE_STANDARD_NAME_OFFSET] = (byte)('A' + j);
+                mTziStrings.add(Base64.encodeToString(bytes, Base64.NO_WRAP));
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CalendarUtilities.clearTimeZoneCache();
+        super.tearDown();
+    }
+
+    public void testIndexMatchesSearch() {
+        CalendarUtilities.clearTimeZoneCache();
+        for (String tziString : mTziStrings) {
+            TimeZone expected = CalendarUtilities.tziStringToTimeZoneImpl(tziString,
+                    CalendarUtilities.STANDARD_DST_PRECISION);
+            TimeZone indexed = CalendarUtilities.tziStringToTimeZone(tziString);
+            if (expected == null) {
+                assertEquals(TimeZone.getDefault().getID(), indexed.getID());
+            } else {
+                assertEquals(expected.getID(), indexed.getID());
+            }
+        }
+    }
+
+    public void testBenchmark() {
+        long start = System.nanoTime();
+        for (String tziString : mTziStrings) {
+            CalendarUtilities.tziStringToTimeZoneImpl(tziString,
+                    CalendarUtilities.STANDARD_DST_PRECISION);
+        }
+        long search = (System.nanoTime() - start) / mTziStrings.size();
+
+        CalendarUtilities.clearTimeZoneCache();
+        start = System.nanoTime();
+        for (String tziString : mTziStrings) {
+            CalendarUtilities.tziStringToTimeZone(tziString);
+        }
+        long firstPass = (System.nanoTime() - start) / mTziStrings.size();
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String tziString : mTziStrings) {
+                CalendarUtilities.tziStringToTimeZone(tziString);
+            }
+        }
+        long warm = (System.nanoTime() - start) / (ROUNDS * mTziStrings.size());
+
+        Log.i(TAG, mTziStrings.size() + " TZI strings: search=" + search / 1000
+                + "us first pass=" + firstPass / 1000 + "us cached=" + warm + "ns per string");
+    }
+}
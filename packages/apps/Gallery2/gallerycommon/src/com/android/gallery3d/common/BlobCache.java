@@ -52,9 +52,21 @@
 // [20] Blob
 //
 // Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// support concurrent use by multiple threads, unless it is created in
+// concurrent mode. In that mode lookups read the mapped index and read the
+// data files through handles of their own, so they don't wait for the writer
+// and lookups in different regions run in parallel. Those reads are not
+// interruptible, so an interrupted thread can't close the files for everyone
+// as it would with a FileChannel. Inserts, and the copying of looked up blobs
+// from the inactive region, are serialized through a single writer lock. A
+// lookup that runs while the regions are flipped may miss, but the blob
+// headers and checksums make sure it never returns the wrong data. The file
+// format is the same in both modes.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
+// public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+//         int version, boolean concurrent) throws IOException;
+// public boolean isConcurrent();
 // public void insert(long key, byte[] data) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
@@ -74,6 +86,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.Adler32;
 
 public class BlobCache implements Closeable {
@@ -110,7 +123,8 @@ public class BlobCache implements Closeable {
 
     private int mMaxEntries;
     private int mMaxBytes;
-    private int mActiveRegion;
+    // Volatile so that concurrent lookups see a consistent region.
+    private volatile int mActiveRegion;
     private int mActiveEntries;
     private int mActiveBytes;
     private int mVersion;
@@ -123,6 +137,13 @@ public class BlobCache implements Closeable {
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
 
+    // Only used in concurrent mode.
+    private final boolean mConcurrent;
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    // Read-only handles used by lookups, locked while one seeks and reads.
+    private RandomAccessFile mReadFile0;
+    private RandomAccessFile mReadFile1;
+
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
     // The ".0" file and the ".1" file each stores data for a region. Each of
@@ -136,10 +157,22 @@ public class BlobCache implements Closeable {
 
     public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
             int version) throws IOException {
+        this(path, maxEntries, maxBytes, reset, version, false);
+    }
+
+    // If "concurrent" is true, lookup() can be called from several threads at
+    // once, and concurrently with insert(); see the comment at the top.
+    public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+            int version, boolean concurrent) throws IOException {
         mIndexFile = new RandomAccessFile(path + ".idx", "rw");
         mDataFile0 = new RandomAccessFile(path + ".0", "rw");
         mDataFile1 = new RandomAccessFile(path + ".1", "rw");
         mVersion = version;
+        mConcurrent = concurrent;
+        if (concurrent) {
+            mReadFile0 = new RandomAccessFile(path + ".0", "r");
+            mReadFile1 = new RandomAccessFile(path + ".1", "r");
+        }
 
         if (!reset && loadIndex()) {
             return;
@@ -153,6 +186,11 @@ public class BlobCache implements Closeable {
         }
     }
 
+    // Returns true if the cache was created in concurrent mode.
+    public boolean isConcurrent() {
+        return mConcurrent;
+    }
+
     // Delete the files associated with the given path previously created
     // by the BlobCache constructor.
     public static void deleteFiles(String path) {
@@ -173,8 +211,13 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        if (mConcurrent) mWriteLock.lock();
+        try {
+            syncAll();
+            closeAll();
+        } finally {
+            if (mConcurrent) mWriteLock.unlock();
+        }
     }
 
     private void closeAll() {
@@ -182,6 +225,8 @@ public class BlobCache implements Closeable {
         closeSilently(mIndexFile);
         closeSilently(mDataFile0);
         closeSilently(mDataFile1);
+        closeSilently(mReadFile0);
+        closeSilently(mReadFile1);
     }
 
     // Returns true if loading index is successful. After this method is called,
@@ -359,6 +404,19 @@ public class BlobCache implements Closeable {
 
     // Inserts a (key, data) pair into the cache.
     public void insert(long key, byte[] data) throws IOException {
+        if (!mConcurrent) {
+            insertLocked(key, data);
+            return;
+        }
+        mWriteLock.lock();
+        try {
+            insertLocked(key, data);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private void insertLocked(long key, byte[] data) throws IOException {
         if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + data.length > mMaxBytes) {
             throw new RuntimeException("blob is too large!");
         }
@@ -409,10 +467,11 @@ public class BlobCache implements Closeable {
     // accepting LookupRequest to avoid repeated memory allocation.
     private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = mConcurrent ? new LookupRequest() : mLookupRequest;
+        req.key = key;
+        req.buffer = null;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
@@ -429,6 +488,8 @@ public class BlobCache implements Closeable {
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
     public boolean lookup(LookupRequest req) throws IOException {
+        if (mConcurrent) return lookupConcurrent(req);
+
         // Look up in the active region first.
         if (lookupInternal(req.key, mActiveHashStart)) {
             if (getBlob(mActiveDataFile, mFileOffset, req)) {
@@ -467,6 +528,138 @@ public class BlobCache implements Closeable {
         return false;
     }
 
+    // The concurrent version of lookup(LookupRequest). It does not touch any
+    // of the fields the writer uses, except under mWriteLock.
+    private boolean lookupConcurrent(LookupRequest req) {
+        // Look up in the active region first.
+        final int activeRegion = mActiveRegion;
+        int fileOffset = findBlobOffset(req.key, getHashStart(activeRegion));
+        if (fileOffset != 0
+                && readBlob(getReadFile(activeRegion), fileOffset, req)) {
+            return true;
+        }
+
+        // Look up in the inactive region.
+        final int inactiveRegion = 1 - activeRegion;
+        fileOffset = findBlobOffset(req.key, getHashStart(inactiveRegion));
+        if (fileOffset == 0
+                || !readBlob(getReadFile(inactiveRegion), fileOffset, req)) {
+            return false;
+        }
+
+        // Copy it over to the active file. This is only an optimization, so
+        // skip it rather than wait if an insert is in progress.
+        if (!mWriteLock.tryLock()) return true;
+        try {
+            if (mActiveRegion == activeRegion
+                    && !lookupInternal(req.key, mActiveHashStart)
+                    && mActiveBytes + BLOB_HEADER_SIZE + req.length <= mMaxBytes
+                    && mActiveEntries * 2 < mMaxEntries) {
+                insertInternal(req.key, req.buffer, req.length);
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                updateIndexHeader();
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mWriteLock.unlock();
+        }
+        return true;
+    }
+
+    private int getHashStart(int region) {
+        return INDEX_HEADER_SIZE + region * mMaxEntries * 12;
+    }
+
+    private RandomAccessFile getReadFile(int region) {
+        return (region == 0) ? mReadFile0 : mReadFile1;
+    }
+
+    // Like lookupInternal(), but only reads the index. Returns the file offset
+    // of the blob, or 0 if the key is not in the specified hash region.
+    private int findBlobOffset(long key, int hashStart) {
+        int slot = (int) (key % mMaxEntries);
+        if (slot < 0) slot += mMaxEntries;
+        for (int i = 0; i < mMaxEntries; i++) {
+            int offset = hashStart + slot * 12;
+            int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            if (candidateOffset == 0) {
+                return 0;
+            } else if (mIndexBuffer.getLong(offset) == key) {
+                return candidateOffset;
+            }
+            if (++slot >= mMaxEntries) {
+                slot = 0;
+            }
+        }
+        return 0;
+    }
+
+    // Like getBlob(), but reads through the lookup handle of the region and
+    // uses no shared buffers, so it can run in several threads at once and
+    // while the writer appends.
+    private boolean readBlob(RandomAccessFile file, int offset, LookupRequest req) {
+        try {
+            byte[] header = new byte[BLOB_HEADER_SIZE];
+            if (!readFully(file, header, BLOB_HEADER_SIZE, offset)) {
+                Log.w(TAG, "cannot read blob header");
+                return false;
+            }
+            long blobKey = readLong(header, BH_KEY);
+            if (blobKey != req.key) {
+                Log.w(TAG, "blob key does not match: " + blobKey);
+                return false;
+            }
+            int sum = readInt(header, BH_CHECKSUM);
+            int blobOffset = readInt(header, BH_OFFSET);
+            if (blobOffset != offset) {
+                Log.w(TAG, "blob offset does not match: " + blobOffset);
+                return false;
+            }
+            int length = readInt(header, BH_LENGTH);
+            if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE) {
+                Log.w(TAG, "invalid blob length: " + length);
+                return false;
+            }
+            if (req.buffer == null || req.buffer.length < length) {
+                req.buffer = new byte[length];
+            }
+
+            byte[] blob = req.buffer;
+            req.length = length;
+
+            if (!readFully(file, blob, length,
+                    offset + BLOB_HEADER_SIZE)) {
+                Log.w(TAG, "cannot read blob data");
+                return false;
+            }
+            Adler32 adler32 = new Adler32();
+            adler32.update(blob, 0, length);
+            if ((int) adler32.getValue() != sum) {
+                Log.w(TAG, "blob checksum does not match: " + sum);
+                return false;
+            }
+            return true;
+        } catch (Throwable t)  {
+            Log.e(TAG, "readBlob failed.", t);
+            return false;
+        }
+    }
+
+    private static boolean readFully(RandomAccessFile file, byte[] buf,
+            int length, long position) throws IOException {
+        synchronized (file) {
+            file.seek(position);
+            int n = 0;
+            while (n < length) {
+                int count = file.read(buf, n, length - n);
+                if (count < 0) return false;
+                n += count;
+            }
+        }
+        return true;
+    }
 
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
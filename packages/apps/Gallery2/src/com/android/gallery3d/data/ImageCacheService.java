@@ -38,9 +38,16 @@ public class ImageCacheService {
     private BlobCache mCache;
 
     public ImageCacheService(Context context) {
+        // The cache is opened in concurrent mode so that ImageCacheRequest jobs
+        // running on different ThreadPool workers don't wait on each other.
         mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
                 IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-                IMAGE_CACHE_VERSION);
+                IMAGE_CACHE_VERSION, true);
+    }
+
+    // For testing only.
+    ImageCacheService(BlobCache cache) {
+        mCache = cache;
     }
 
     public static class ImageData {
@@ -56,10 +63,7 @@ public class ImageCacheService {
         byte[] key = makeKey(path, type);
         long cacheKey = Utils.crc64Long(key);
         try {
-            byte[] value = null;
-            synchronized (mCache) {
-                value = mCache.lookup(cacheKey);
-            }
+            byte[] value = lookup(cacheKey);
             if (value == null) return null;
             if (isSameKey(key, value)) {
                 int offset = key.length;
@@ -77,12 +81,29 @@ public class ImageCacheService {
         ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
         buffer.put(key);
         buffer.put(value);
+        try {
+            insert(cacheKey, buffer.array());
+        } catch (IOException ex) {
+            // ignore.
+        }
+    }
+
+    // A cache in concurrent mode does its own locking; otherwise all access
+    // is serialized on the cache.
+    private byte[] lookup(long cacheKey) throws IOException {
+        if (mCache.isConcurrent()) return mCache.lookup(cacheKey);
         synchronized (mCache) {
-            try {
-                mCache.insert(cacheKey, buffer.array());
-            } catch (IOException ex) {
-                // ignore.
-            }
+            return mCache.lookup(cacheKey);
+        }
+    }
+
+    private void insert(long cacheKey, byte[] value) throws IOException {
+        if (mCache.isConcurrent()) {
+            mCache.insert(cacheKey, value);
+            return;
+        }
+        synchronized (mCache) {
+            mCache.insert(cacheKey, value);
         }
     }
 
@@ -27,7 +27,10 @@ import android.util.Log;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class BlobCacheTest extends AndroidTestCase {
     private static final String TAG = "BlobCacheTest";
@@ -714,6 +717,117 @@ public class BlobCacheTest extends AndroidTestCase {
         bc.close();
     }
 
+    @MediumTest
+    public void testConcurrentModeCompatible() throws IOException {
+        BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, true);
+        genData(DATA_0, 123);
+        bc.insert(KEY_0, DATA_0);
+        bc.close();
+
+        // A cache written in the default mode can be read in concurrent mode,
+        // and the other way round.
+        bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, false, 0, true);
+        assertTrue(bc.isConcurrent());
+        assertSameData(DATA_0, bc.lookup(KEY_0));
+        genData(DATA_1, 456);
+        bc.insert(KEY_1, DATA_1);
+        bc.close();
+
+        bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, false);
+        assertSameData(DATA_0, bc.lookup(KEY_0));
+        assertSameData(DATA_1, bc.lookup(KEY_1));
+        assertEquals(2, bc.getActiveCount());
+        bc.close();
+    }
+
+    @LargeTest
+    public void testConcurrentLookup() throws Exception {
+        final int keyCount = 200;
+        final int readerCount = 6;
+        final BlobCache bc = new BlobCache(TEST_FILE_NAME, 50, 3000, true, 0, true);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicIntegerArray hits = new AtomicIntegerArray(readerCount);
+        byte[] data = new byte[16];
+        for (int key = 0; key < keyCount; key++) {
+            genData(data, key);
+            bc.insert(key, data);
+        }
+
+        // The regions flip many times while the readers run; every hit must
+        // still return the data inserted for its key.
+        Thread[] readers = new Thread[readerCount];
+        for (int i = 0; i < readerCount; i++) {
+            final int seed = i;
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    byte[] expected = new byte[16];
+                    try {
+                        for (int j = 0; j < 20000; j++) {
+                            int key = rand.nextInt(keyCount);
+                            byte[] data = bc.lookup(key);
+                            if (data == null) continue;
+                            genData(expected, key);
+                            if (!Arrays.equals(expected, data)) failed.set(true);
+                            hits.incrementAndGet(seed);
+                        }
+                    } catch (IOException ex) {
+                        failed.set(true);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (int i = 0; i < 20 * keyCount; i++) {
+            int key = i % keyCount;
+            genData(data, key);
+            bc.insert(key, data);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertFalse(failed.get());
+        Log.v(TAG, "concurrent lookup hits = " + hits);
+        // Every reader found some of the keys, and got their data
+        for (int i = 0; i < readerCount; i++) {
+            assertTrue(hits.get(i) > 0);
+        }
+        // The last key inserted is still there once the readers are done
+        genData(data, keyCount - 1);
+        assertSameData(data, bc.lookup(keyCount - 1));
+        bc.close();
+    }
+
+    @MediumTest
+    public void testConcurrentLookupFromInterruptedThread() throws Exception {
+        final BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, true, 0, true);
+        genData(DATA_0, 123);
+        bc.insert(KEY_0, DATA_0);
+
+        // Pool workers may be left interrupted. Their lookups must work, and
+        // must not break the cache for the other threads.
+        final byte[][] result = new byte[1][];
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                interrupt();
+                try {
+                    result[0] = bc.lookup(KEY_0);
+                } catch (IOException ex) {
+                    failed.set(true);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        assertFalse(failed.get());
+        assertSameData(DATA_0, result[0]);
+        assertSameData(DATA_0, bc.lookup(KEY_0));
+        bc.close();
+    }
+
     private void genData(byte[] data, int seed) {
         for(int i = 0; i < data.length; i++) {
             data[i] = (byte) (seed * i);
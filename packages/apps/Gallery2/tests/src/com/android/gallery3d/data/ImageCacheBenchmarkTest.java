@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.common.BitmapUtils;
+import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs cache-hit ImageCacheRequest jobs on 4 and 8 threads against a serialized
+// and a concurrent BlobCache, and logs the lookup throughput of each.
+@LargeTest
+public class ImageCacheBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "ImageCacheBenchmarkTest";
+
+    private static final int ITEM_COUNT = 500;
+    private static final int JOB_COUNT = 4000;
+    private static final int MAX_ENTRIES = 2 * ITEM_COUNT + 100;
+    private static final int MAX_BYTES = 16 * 1024 * 1024;
+
+    private static class CachedRequest extends ImageCacheRequest {
+        public CachedRequest(GalleryApp application, Path path) {
+            super(application, path, MediaItem.TYPE_MICROTHUMBNAIL,
+                    MediaItem.MICROTHUMBNAIL_TARGET_SIZE);
+        }
+
+        @Override
+        public Bitmap onDecodeOriginal(JobContext jc, int targetSize) {
+            // Everything is in the cache.
+            return null;
+        }
+    }
+
+    private static class App extends GalleryAppStub {
+        private final ImageCacheService mService;
+
+        App(ImageCacheService service) {
+            mService = service;
+        }
+
+        @Override
+        public ImageCacheService getImageCacheService() {
+            return mService;
+        }
+    }
+
+    private String mCachePath;
+    private Path[] mPaths;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCachePath = getContext().getCacheDir().getAbsolutePath() + "/benchmark";
+        mPaths = new Path[ITEM_COUNT];
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            mPaths[i] = Path.fromString("/benchmark/item/" + i);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BlobCache.deleteFiles(mCachePath);
+        super.tearDown();
+    }
+
+    private BlobCache createCache(boolean concurrent) throws IOException {
+        BlobCache cache = new BlobCache(mCachePath, MAX_ENTRIES, MAX_BYTES, true,
+                0, concurrent);
+        ImageCacheService service = new ImageCacheService(cache);
+        Bitmap bitmap = Bitmap.createBitmap(MediaItem.MICROTHUMBNAIL_TARGET_SIZE,
+                MediaItem.MICROTHUMBNAIL_TARGET_SIZE, Bitmap.Config.ARGB_8888);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            bitmap.eraseColor(Color.rgb(i, 255 - i, i * 7));
+            service.putImageData(mPaths[i], MediaItem.TYPE_MICROTHUMBNAIL,
+                    BitmapUtils.compressBitmap(bitmap));
+        }
+        bitmap.recycle();
+        return cache;
+    }
+
+    // Returns the number of jobs per second.
+    private float runJobs(BlobCache cache, int threadCount) throws Exception {
+        final GalleryApp app = new App(new ImageCacheService(cache));
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            ArrayList<Callable<Bitmap>> jobs = new ArrayList<Callable<Bitmap>>(JOB_COUNT);
+            for (int i = 0; i < JOB_COUNT; i++) {
+                final CachedRequest request = new CachedRequest(app, mPaths[i % ITEM_COUNT]);
+                jobs.add(new Callable<Bitmap>() {
+                    public Bitmap call() {
+                        return request.run(ThreadPool.JOB_CONTEXT_STUB);
+                    }
+                });
+            }
+            long t0 = System.nanoTime();
+            ArrayList<Bitmap> results = new ArrayList<Bitmap>(JOB_COUNT);
+            for (Future<Bitmap> future : executor.invokeAll(jobs)) {
+                results.add(future.get());
+            }
+            long delta = System.nanoTime() - t0;
+            for (Bitmap bitmap : results) {
+                assertNotNull(bitmap);
+                bitmap.recycle();
+            }
+            return JOB_COUNT * 1e9f / delta;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runBenchmark(boolean concurrent) throws Exception {
+        BlobCache cache = createCache(concurrent);
+        try {
+            runJobs(cache, 4); // warm up
+            for (int threadCount = 4; threadCount <= 8; threadCount += 4) {
+                Log.v(TAG, (concurrent ? "concurrent" : "serialized") + " cache, "
+                        + threadCount + " threads: " + runJobs(cache, threadCount)
+                        + " jobs/s");
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testSerializedCache() throws Exception {
+        runBenchmark(false);
+    }
+
+    public void testConcurrentCache() throws Exception {
+        runBenchmark(true);
+    }
+}
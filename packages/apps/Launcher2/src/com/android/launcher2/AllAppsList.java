@@ -109,8 +109,9 @@ class AllAppsList {
                 data.remove(i);
             }
         }
-        // This is more aggressive than it needs to be.
-        mIconCache.flush();
+        // The saved icons of the package are dropped by LauncherModel if it was uninstalled;
+        // if it is only unavailable they are still good for when it comes back.
+        mIconCache.removePackage(packageName);
     }
 
     /**
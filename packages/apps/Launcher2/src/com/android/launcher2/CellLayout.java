@@ -79,10 +79,11 @@ public class CellLayout extends ViewGroup {
     // return an (x, y) value from helper functions. Do NOT use them to maintain other state.
     private final int[] mTmpXY = new int[2];
     private final int[] mTmpPoint = new int[2];
+    private final int[] mTmpIgnoredCells = new int[4];
     private final PointF mTmpPointF = new PointF();
     int[] mTempLocation = new int[2];
 
-    boolean[][] mOccupied;
+    CellOccupancy mOccupied;
     private boolean mLastDownOnOccupiedCell = false;
 
     private OnTouchListener mInterceptTouchListener;
@@ -161,7 +162,7 @@ public class CellLayout extends ViewGroup {
         mMaxGap = a.getDimensionPixelSize(R.styleable.CellLayout_maxGap, 0);
         mCountX = LauncherModel.getCellCountX();
         mCountY = LauncherModel.getCellCountY();
-        mOccupied = new boolean[mCountX][mCountY];
+        mOccupied = new CellOccupancy(mCountX, mCountY);
 
         a.recycle();
 
@@ -289,7 +290,7 @@ public class CellLayout extends ViewGroup {
     public void setGridSize(int x, int y) {
         mCountX = x;
         mCountY = y;
-        mOccupied = new boolean[mCountX][mCountY];
+        mOccupied.setSize(mCountX, mCountY);
         requestLayout();
     }
 
@@ -959,7 +960,7 @@ public class CellLayout extends ViewGroup {
     public boolean animateChildToPosition(final View child, int cellX, int cellY, int duration,
             int delay) {
         CellLayoutChildren clc = getChildrenLayout();
-        if (clc.indexOfChild(child) != -1 && !mOccupied[cellX][cellY]) {
+        if (clc.indexOfChild(child) != -1 && !mOccupied.isOccupied(cellX, cellY)) {
             final LayoutParams lp = (LayoutParams) child.getLayoutParams();
             final ItemInfo info = (ItemInfo) child.getTag();
 
@@ -971,8 +972,8 @@ public class CellLayout extends ViewGroup {
 
             int oldX = lp.x;
             int oldY = lp.y;
-            mOccupied[lp.cellX][lp.cellY] = false;
-            mOccupied[cellX][cellY] = true;
+            mOccupied.set(lp.cellX, lp.cellY, false);
+            mOccupied.set(cellX, cellY, true);
 
             lp.isLockedToGrid = true;
             lp.cellX = info.cellX = cellX;
@@ -1163,8 +1164,8 @@ public class CellLayout extends ViewGroup {
      */
     int[] findNearestArea(int pixelX, int pixelY, int spanX, int spanY, View ignoreView,
             boolean ignoreOccupied, int[] result) {
-        // mark space take by ignoreView as available (method checks if ignoreView is null)
-        markCellsAsUnoccupiedForView(ignoreView);
+        // treat the space taken by ignoreView as available (method checks if ignoreView is null)
+        final int[] ignore = getIgnoredCells(ignoreView, mTmpIgnoredCells);
 
         // For items with a spanX / spanY > 1, the passed in point (pixelX, pixelY) corresponds
         // to the center of the item, but we are searching based on the top-left cell, so
@@ -1178,22 +1179,15 @@ public class CellLayout extends ViewGroup {
 
         final int countX = mCountX;
         final int countY = mCountY;
-        final boolean[][] occupied = mOccupied;
+        final CellOccupancy occupied = mOccupied;
 
         for (int y = 0; y < countY - (spanY - 1); y++) {
-            inner:
+            // Find all the columns in this row the span fits at in one go
+            final long origins = ignoreOccupied ? occupied.getVacantOrigins(y, spanX, spanY,
+                    ignore[0], ignore[1], ignore[2], ignore[3]) : -1L;
             for (int x = 0; x < countX - (spanX - 1); x++) {
-                if (ignoreOccupied) {
-                    for (int i = 0; i < spanX; i++) {
-                        for (int j = 0; j < spanY; j++) {
-                            if (occupied[x + i][y + j]) {
-                                // small optimization: we can skip to after the column we
-                                // just found an occupied cell
-                                x += i;
-                                continue inner;
-                            }
-                        }
-                    }
+                if ((origins & (1L << x)) == 0) {
+                    continue;
                 }
                 final int[] cellXY = mTmpXY;
                 cellToCenterPoint(x, y, cellXY);
@@ -1207,8 +1201,6 @@ public class CellLayout extends ViewGroup {
                 }
             }
         }
-        // re-mark space taken by ignoreView as occupied
-        markCellsAsOccupiedForView(ignoreView);
 
         // Return -1, -1 if no suitable location found
         if (bestDistance == Double.MAX_VALUE) {
@@ -1312,8 +1304,8 @@ public class CellLayout extends ViewGroup {
      */
     boolean findCellForSpanThatIntersectsIgnoring(int[] cellXY, int spanX, int spanY,
             int intersectX, int intersectY, View ignoreView) {
-        // mark space take by ignoreView as available (method checks if ignoreView is null)
-        markCellsAsUnoccupiedForView(ignoreView);
+        // treat the space taken by ignoreView as available (method checks if ignoreView is null)
+        final int[] ignore = getIgnoredCells(ignoreView, mTmpIgnoredCells);
 
         boolean foundCell = false;
         while (true) {
@@ -1335,17 +1327,11 @@ public class CellLayout extends ViewGroup {
             }
 
             for (int y = startY; y < endY && !foundCell; y++) {
-                inner:
+                final long origins = mOccupied.getVacantOrigins(y, spanX, spanY,
+                        ignore[0], ignore[1], ignore[2], ignore[3]);
                 for (int x = startX; x < endX; x++) {
-                    for (int i = 0; i < spanX; i++) {
-                        for (int j = 0; j < spanY; j++) {
-                            if (mOccupied[x + i][y + j]) {
-                                // small optimization: we can skip to after the column we just found
-                                // an occupied cell
-                                x += i;
-                                continue inner;
-                            }
-                        }
+                    if ((origins & (1L << x)) == 0) {
+                        continue;
                     }
                     if (cellXY != null) {
                         cellXY[0] = x;
@@ -1366,11 +1352,26 @@ public class CellLayout extends ViewGroup {
             }
         }
 
-        // re-mark space taken by ignoreView as occupied
-        markCellsAsOccupiedForView(ignoreView);
         return foundCell;
     }
 
+    /**
+     * Gets the cells taken by a view, as x, y, spanX and spanY, or an empty span if there is no
+     * view or it is not in this layout.
+     */
+    private int[] getIgnoredCells(View ignoreView, int[] cells) {
+        if (ignoreView == null || ignoreView.getParent() != mChildren) {
+            cells[0] = cells[1] = cells[2] = cells[3] = 0;
+        } else {
+            final LayoutParams lp = (LayoutParams) ignoreView.getLayoutParams();
+            cells[0] = lp.cellX;
+            cells[1] = lp.cellY;
+            cells[2] = lp.cellHSpan;
+            cells[3] = lp.cellVSpan;
+        }
+        return cells;
+    }
+
     /**
      * A drag event has begun over this layout.
      * It may have begun over this layout (in which case onDragChild is called first),
@@ -1524,40 +1525,11 @@ public class CellLayout extends ViewGroup {
      * @return True if a vacant cell was found
      */
     public boolean getVacantCell(int[] vacant, int spanX, int spanY) {
-
-        return findVacantCell(vacant, spanX, spanY, mCountX, mCountY, mOccupied);
-    }
-
-    static boolean findVacantCell(int[] vacant, int spanX, int spanY,
-            int xCount, int yCount, boolean[][] occupied) {
-
-        for (int y = 0; y < yCount; y++) {
-            for (int x = 0; x < xCount; x++) {
-                boolean available = !occupied[x][y];
-out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
-                    for (int j = y; j < y + spanY - 1 && y < yCount; j++) {
-                        available = available && !occupied[i][j];
-                        if (!available) break out;
-                    }
-                }
-
-                if (available) {
-                    vacant[0] = x;
-                    vacant[1] = y;
-                    return true;
-                }
-            }
-        }
-
-        return false;
+        return mOccupied.findVacantCell(vacant, spanX, spanY);
     }
 
     private void clearOccupiedCells() {
-        for (int x = 0; x < mCountX; x++) {
-            for (int y = 0; y < mCountY; y++) {
-                mOccupied[x][y] = false;
-            }
-        }
+        mOccupied.clear();
     }
 
     /**
@@ -1573,7 +1545,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
         for (int x = lp.cellX - 1; x >= 0; x--) {
             flag = false;
             for (int y = lp.cellY; y < lp.cellY + lp.cellVSpan; y++) {
-                if (mOccupied[x][y]) flag = true;
+                if (mOccupied.isOccupied(x, y)) flag = true;
             }
             if (flag) break;
             expandability[AppWidgetResizeFrame.LEFT]++;
@@ -1583,7 +1555,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
         for (int y = lp.cellY - 1; y >= 0; y--) {
             flag = false;
             for (int x = lp.cellX; x < lp.cellX + lp.cellHSpan; x++) {
-                if (mOccupied[x][y]) flag = true;
+                if (mOccupied.isOccupied(x, y)) flag = true;
             }
             if (flag) break;
             expandability[AppWidgetResizeFrame.TOP]++;
@@ -1593,7 +1565,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
         for (int x = lp.cellX + lp.cellHSpan; x < mCountX; x++) {
             flag = false;
             for (int y = lp.cellY; y < lp.cellY + lp.cellVSpan; y++) {
-                if (mOccupied[x][y]) flag = true;
+                if (mOccupied.isOccupied(x, y)) flag = true;
             }
             if (flag) break;
             expandability[AppWidgetResizeFrame.RIGHT]++;
@@ -1603,7 +1575,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
         for (int y = lp.cellY + lp.cellVSpan; y < mCountY; y++) {
             flag = false;
             for (int x = lp.cellX; x < lp.cellX + lp.cellHSpan; x++) {
-                if (mOccupied[x][y]) flag = true;
+                if (mOccupied.isOccupied(x, y)) flag = true;
             }
             if (flag) break;
             expandability[AppWidgetResizeFrame.BOTTOM]++;
@@ -1629,11 +1601,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
     }
 
     private void markCellsForView(int cellX, int cellY, int spanX, int spanY, boolean value) {
-        for (int x = cellX; x < cellX + spanX && x < mCountX; x++) {
-            for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
-                mOccupied[x][y] = value;
-            }
-        }
+        mOccupied.mark(cellX, cellY, spanX, spanY, value);
     }
 
     public int getDesiredWidth() {
@@ -1648,7 +1616,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
 
     public boolean isOccupied(int x, int y) {
         if (x < mCountX && y < mCountY) {
-            return mOccupied[x][y];
+            return mOccupied.isOccupied(x, y);
         } else {
             throw new RuntimeException("Position exceeds the bound of this CellLayout");
         }
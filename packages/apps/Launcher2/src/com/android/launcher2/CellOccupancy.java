@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+/**
+ * Tracks which cells of a {@link CellLayout} are occupied.
+ *
+ * Each row is kept as a bitset, so the columns at which a span fits in a row are found with a
+ * few word operations rather than by checking each origin in turn; see
+ * {@link #getVacantOrigins}. Queries can treat one rectangle as vacant, such as the cells of
+ * the item being dragged, without changing the occupancy.
+ */
+public class CellOccupancy {
+    /**
+     * The most columns a grid can have, one for each bit of a row
+     */
+    public static final int MAX_COUNT_X = 64;
+
+    private int mCountX;
+    private int mCountY;
+    private long[] mRows;
+
+    public CellOccupancy(int countX, int countY) {
+        setSize(countX, countY);
+    }
+
+    /**
+     * Resizes the grid and marks all of its cells as vacant.
+     */
+    public void setSize(int countX, int countY) {
+        if (countX > MAX_COUNT_X) {
+            throw new IllegalArgumentException("At most " + MAX_COUNT_X + " columns are supported");
+        }
+        mCountX = countX;
+        mCountY = countY;
+        mRows = new long[countY];
+    }
+
+    public int getCountX() {
+        return mCountX;
+    }
+
+    public int getCountY() {
+        return mCountY;
+    }
+
+    /**
+     * Makes this a copy of another occupancy.
+     */
+    public void copyFrom(CellOccupancy other) {
+        if (mCountX != other.mCountX || mCountY != other.mCountY) {
+            setSize(other.mCountX, other.mCountY);
+        }
+        System.arraycopy(other.mRows, 0, mRows, 0, mRows.length);
+    }
+
+    public boolean isOccupied(int x, int y) {
+        return (mRows[y] & (1L << x)) != 0;
+    }
+
+    public void set(int x, int y, boolean occupied) {
+        if (occupied) {
+            mRows[y] |= 1L << x;
+        } else {
+            mRows[y] &= ~(1L << x);
+        }
+    }
+
+    /**
+     * Marks a rectangle of cells, clipped to the grid.
+     */
+    public void mark(int cellX, int cellY, int spanX, int spanY, boolean occupied) {
+        final int endX = Math.min(cellX + spanX, mCountX);
+        final int endY = Math.min(cellY + spanY, mCountY);
+        if (cellX < 0 || cellY < 0 || cellX >= endX || cellY >= endY) {
+            return;
+        }
+        final long mask = columns(cellX, endX - cellX);
+        for (int y = cellY; y < endY; y++) {
+            mRows[y] = occupied ? mRows[y] | mask : mRows[y] & ~mask;
+        }
+    }
+
+    /**
+     * Marks all the cells as vacant.
+     */
+    public void clear() {
+        for (int i = 0; i < mRows.length; i++) {
+            mRows[i] = 0;
+        }
+    }
+
+    /**
+     * Moves the cells of an item, as if it were dropped somewhere else. This can be used on a
+     * copy of the occupancy, made with {@link #copyFrom}, to find out whether a reorder would fit.
+     *
+     * @return false if the destination is not vacant, and nothing was moved
+     */
+    public boolean move(int cellX, int cellY, int spanX, int spanY, int newCellX, int newCellY) {
+        if (newCellX < 0 || newCellX >= mCountX) {
+            return false;
+        }
+        final long origins = getVacantOrigins(newCellY, spanX, spanY, cellX, cellY, spanX, spanY);
+        if ((origins & (1L << newCellX)) == 0) {
+            return false;
+        }
+        mark(cellX, cellY, spanX, spanY, false);
+        mark(newCellX, newCellY, spanX, spanY, true);
+        return true;
+    }
+
+    /**
+     * Finds the columns at which a rectangle starting in a row would be vacant.
+     *
+     * @param y The row the rectangle starts in
+     * @return A bitset with bit x set if the rectangle at (x, y) lies within the grid and none
+     *         of its cells outside the ignored rectangle are occupied
+     */
+    public long getVacantOrigins(int y, int spanX, int spanY,
+            int ignoreX, int ignoreY, int ignoreSpanX, int ignoreSpanY) {
+        if (y < 0 || spanX <= 0 || spanY <= 0 || spanX > mCountX || y + spanY > mCountY) {
+            return 0;
+        }
+        final long ignored = ignoreSpanY > 0 ? columns(ignoreX, ignoreSpanX) : 0;
+        long used = 0;
+        for (int j = y; j < y + spanY; j++) {
+            final boolean ignoreRow = j >= ignoreY && j < ignoreY + ignoreSpanY;
+            used |= ignoreRow ? mRows[j] & ~ignored : mRows[j];
+        }
+        // An origin is vacant if none of the spanX columns starting at it are used
+        long origins = ~used & columns(0, mCountX - spanX + 1);
+        for (int i = 1; i < spanX && origins != 0; i++) {
+            origins &= ~(used >>> i);
+        }
+        return origins;
+    }
+
+    /**
+     * Finds the first rectangle, in reading order, that is vacant.
+     *
+     * @param vacant Holds the x and y coordinate of the vacant cell
+     * @return True if a vacant cell was found
+     */
+    public boolean findVacantCell(int[] vacant, int spanX, int spanY) {
+        for (int y = 0; y + spanY <= mCountY; y++) {
+            final long origins = getVacantOrigins(y, spanX, spanY, 0, 0, 0, 0);
+            if (origins != 0) {
+                vacant[0] = Long.numberOfTrailingZeros(origins);
+                vacant[1] = y;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A mask of the columns from x, clipped to the grid
+     */
+    private static long columns(int x, int count) {
+        final int start = Math.max(x, 0);
+        final int end = Math.min(x + count, MAX_COUNT_X);
+        if (start >= end) {
+            return 0;
+        }
+        final int bits = end - start;
+        return (bits == MAX_COUNT_X ? -1L : (1L << bits) - 1) << start;
+    }
+}
@@ -17,16 +17,29 @@
 package com.android.launcher2;
 
 import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
+import android.util.Log;
 
+import com.android.launcher2.LauncherSettings.Icons;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import android.os.SystemProperties;
 import java.io.InputStream;
 import java.util.zip.ZipFile;
@@ -46,6 +59,26 @@ public class IconCache {
         public String title;
     }
 
+    /**
+     * An icon and title saved in the launcher database, not yet decoded.
+     */
+    private static class PersistedEntry {
+        public long lastUpdated;
+        public String title;
+        public byte[] icon;
+    }
+
+    /**
+     * An icon and title loaded from a package, still to be saved in the launcher database.
+     */
+    private static class PendingWrite {
+        public ComponentName componentName;
+        public long lastUpdated;
+        public String version;
+        public String title;
+        public Bitmap icon;
+    }
+
     private final Bitmap mDefaultIcon;
     private final LauncherApplication mContext;
     private final PackageManager mPackageManager;
@@ -53,6 +86,14 @@ public class IconCache {
             new HashMap<ComponentName, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
     private int mIconDpi;
 
+    // Icons and titles saved by earlier runs, by flattened component name, for the locale,
+    // density and theme in mPersistedVersion. Only used while mPersistedVersion is set.
+    private final HashMap<String, PersistedEntry> mPersisted =
+            new HashMap<String, PersistedEntry>();
+    private String mPersistedVersion;
+    // Entries loaded from the packages that are still to be saved
+    private final ArrayList<PendingWrite> mPendingWrites = new ArrayList<PendingWrite>();
+
     public IconCache(LauncherApplication context) {
         mContext = context;
         mPackageManager = context.getPackageManager();
@@ -157,15 +198,215 @@ public class IconCache {
         }
     }
 
+    /**
+     * Remove any records for the activities of the supplied package.
+     */
+    public void removePackage(String packageName) {
+        synchronized (mCache) {
+            Iterator<ComponentName> it = mCache.keySet().iterator();
+            while (it.hasNext()) {
+                if (packageName.equals(it.next().getPackageName())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
     /**
      * Empty out the cache.
      */
     public void flush() {
         synchronized (mCache) {
             mCache.clear();
+            // The locale or theme may have changed; don't use the saved icons until they
+            // have been read again for the new ones.
+            mPersisted.clear();
+            mPersistedVersion = null;
+            mPendingWrites.clear();
+        }
+    }
+
+    /**
+     * Describes what the icons and titles depend on other than the package.
+     */
+    private String getPersistedVersion() {
+        return Locale.getDefault().toString() + "/" + mIconDpi + "/"
+                + SystemProperties.get("persist.sys.qrd_theme.current", "default");
+    }
+
+    /**
+     * Reads the icons and titles saved by earlier runs, if they have not been read since
+     * the cache was last flushed. Does disk I/O, so call this from a worker thread.
+     */
+    public void loadPersistentCache() {
+        final String version = getPersistedVersion();
+        synchronized (mCache) {
+            if (version.equals(mPersistedVersion)) {
+                return;
+            }
+        }
+
+        final HashMap<String, PersistedEntry> entries = new HashMap<String, PersistedEntry>();
+        final ContentResolver cr = mContext.getContentResolver();
+        Cursor c = null;
+        try {
+            c = cr.query(Icons.CONTENT_URI, new String[] {
+                    Icons.COMPONENT, Icons.LAST_UPDATED, Icons.TITLE, Icons.ICON },
+                    Icons.VERSION + "=?", new String[] { version }, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    PersistedEntry entry = new PersistedEntry();
+                    entry.lastUpdated = c.getLong(1);
+                    entry.title = c.getString(2);
+                    entry.icon = c.getBlob(3);
+                    entries.put(c.getString(0), entry);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read saved icons", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        synchronized (mCache) {
+            mPersisted.clear();
+            mPersisted.putAll(entries);
+            mPersistedVersion = version;
+        }
+    }
+
+    /**
+     * Puts the saved titles of the activities that have not changed since into the label
+     * cache, so that sorting them does not need to load their labels.
+     */
+    public void getPersistedTitles(List<ResolveInfo> infos,
+            HashMap<Object, CharSequence> labelCache) {
+        synchronized (mCache) {
+            if (mPersistedVersion == null) {
+                return;
+            }
+            for (ResolveInfo info : infos) {
+                ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+                if (labelCache.containsKey(key)) {
+                    continue;
+                }
+                PersistedEntry entry = getPersistedLocked(key, info);
+                if (entry != null) {
+                    labelCache.put(key, entry.title);
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the icons and titles that were loaded from the packages since this was last
+     * called. Does disk I/O, so call this from a worker thread.
+     */
+    public void savePersistentCache() {
+        final PendingWrite[] writes;
+        synchronized (mCache) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            writes = mPendingWrites.toArray(new PendingWrite[mPendingWrites.size()]);
+            mPendingWrites.clear();
+        }
+        // Encoding the icons is slow, so it is done here rather than while holding the lock
+        final ArrayList<ContentValues> values = new ArrayList<ContentValues>(writes.length);
+        for (PendingWrite write : writes) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!write.icon.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                continue;
+            }
+            ContentValues v = new ContentValues();
+            v.put(Icons.COMPONENT, write.componentName.flattenToString());
+            v.put(Icons.PACKAGE_NAME, write.componentName.getPackageName());
+            v.put(Icons.LAST_UPDATED, write.lastUpdated);
+            v.put(Icons.VERSION, write.version);
+            v.put(Icons.TITLE, write.title);
+            v.put(Icons.ICON, out.toByteArray());
+            values.add(v);
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        try {
+            mContext.getContentResolver().bulkInsert(Icons.CONTENT_URI,
+                    values.toArray(new ContentValues[values.size()]));
+        } catch (Exception e) {
+            Log.w(TAG, "Could not save icons", e);
         }
     }
 
+    /**
+     * Drops the saved icons and titles of a package that was added, updated or removed.
+     * Does disk I/O, so call this from a worker thread.
+     */
+    public void removePersisted(String packageName) {
+        synchronized (mCache) {
+            Iterator<String> it = mPersisted.keySet().iterator();
+            while (it.hasNext()) {
+                ComponentName component = ComponentName.unflattenFromString(it.next());
+                if (component == null || packageName.equals(component.getPackageName())) {
+                    it.remove();
+                }
+            }
+            Iterator<PendingWrite> pending = mPendingWrites.iterator();
+            while (pending.hasNext()) {
+                if (packageName.equals(pending.next().componentName.getPackageName())) {
+                    pending.remove();
+                }
+            }
+        }
+        try {
+            mContext.getContentResolver().delete(Icons.CONTENT_URI,
+                    Icons.PACKAGE_NAME + "=?", new String[] { packageName });
+        } catch (Exception e) {
+            Log.w(TAG, "Could not remove saved icons for " + packageName, e);
+        }
+    }
+
+    private static long getLastUpdated(ResolveInfo info) {
+        final String sourceDir = info.activityInfo.applicationInfo.sourceDir;
+        return sourceDir == null ? 0 : new File(sourceDir).lastModified();
+    }
+
+    /**
+     * @return The saved entry for the activity, if it was saved for the same version of
+     *      its package.
+     */
+    private PersistedEntry getPersistedLocked(ComponentName componentName, ResolveInfo info) {
+        if (mPersistedVersion == null) {
+            return null;
+        }
+        PersistedEntry entry = mPersisted.get(componentName.flattenToString());
+        if (entry == null || entry.title == null || entry.icon == null) {
+            return null;
+        }
+        final long lastUpdated = getLastUpdated(info);
+        if (lastUpdated == 0 || lastUpdated != entry.lastUpdated) {
+            return null;
+        }
+        return entry;
+    }
+
+    private void queueWriteLocked(ComponentName componentName, ResolveInfo info,
+            CacheEntry entry) {
+        final long lastUpdated = getLastUpdated(info);
+        if (mPersistedVersion == null || lastUpdated == 0) {
+            return;
+        }
+        PendingWrite write = new PendingWrite();
+        write.componentName = componentName;
+        write.lastUpdated = lastUpdated;
+        write.version = mPersistedVersion;
+        write.title = entry.title;
+        write.icon = entry.icon;
+        mPendingWrites.add(write);
+    }
+
     /**
      * Fill in "application" with the icon and label for "info."
      */
@@ -218,6 +459,21 @@ public class IconCache {
             mCache.put(componentName, entry);
 
             ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+            PersistedEntry persisted = getPersistedLocked(componentName, info);
+            if (persisted != null) {
+                entry.icon = BitmapFactory.decodeByteArray(persisted.icon, 0,
+                        persisted.icon.length);
+                if (entry.icon != null) {
+                    entry.title = persisted.title;
+                    // The bitmap is cached now, so the encoded copy is no longer needed
+                    mPersisted.remove(componentName.flattenToString());
+                    if (labelCache != null && !labelCache.containsKey(key)) {
+                        labelCache.put(key, entry.title);
+                    }
+                    return entry;
+                }
+            }
+
             if (labelCache != null && labelCache.containsKey(key)) {
                 entry.title = labelCache.get(key).toString();
             } else {
@@ -263,6 +519,8 @@ public class IconCache {
             if (entry.icon == null)
             	entry.icon = Utilities.createIconBitmap(
                     getFullResIcon(info), mContext);
+
+            queueWriteLocked(componentName, info, entry);
         }
         return entry;
     }
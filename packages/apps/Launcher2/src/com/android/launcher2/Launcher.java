@@ -2175,6 +2175,7 @@ public final class Launcher extends Activity
                     } else {
                         lockAllApps();
                         mWorkspaceLoading = true;
+                        mModel.invalidateWorkspaceBinding();
                         mModel.startLoader(Launcher.this, false);
                     }
                 }
@@ -3038,6 +3039,22 @@ public final class Launcher extends Activity
         workspace.requestLayout();
     }
 
+    /**
+     * Remove the views of items that were removed from the database, or changed, since they
+     * were bound.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    public void bindItemsRemoved(ArrayList<ItemInfo> items) {
+        setLoadOnResume();
+
+        final Folder openFolder = mWorkspace.getOpenFolder();
+        if (openFolder != null && items.contains(openFolder.getInfo())) {
+            closeFolder();
+        }
+        mWorkspace.removeItemViews(items);
+    }
+
     /**
      * Implementation of the method from LauncherModel.Callbacks.
      */
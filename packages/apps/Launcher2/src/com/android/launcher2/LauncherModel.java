@@ -46,6 +46,7 @@ import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.launcher.R;
@@ -58,6 +59,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import android.os.SystemProperties;
 import android.app.WallpaperManager;
@@ -123,8 +125,18 @@ public class LauncherModel extends BroadcastReceiver {
     // sDbIconCache is the set of ItemInfos that need to have their icons updated in the database
     static final HashMap<Object, byte[]> sDbIconCache = new HashMap<Object, byte[]>();
 
+    // The items directly on the home screen that were added or removed by loading the workspace
+    // again, and have not been bound since. Items that changed are removed and added again.
+    private final ArrayList<ItemInfo> mItemsToBind = new ArrayList<ItemInfo>();
+    private final ArrayList<ItemInfo> mItemsToUnbind = new ArrayList<ItemInfo>();
+
     // </ only access in worker thread >
 
+    // The callbacks that the whole workspace was last bound to, or null if binding has started
+    // again since. Only the items in mItemsToBind and mItemsToUnbind have to be bound to them.
+    // Guarded by mLock.
+    private WeakReference<Callbacks> mWorkspaceBoundCallbacks;
+
     private IconCache mIconCache;
     private Bitmap mDefaultIcon;
 
@@ -138,6 +150,7 @@ public class LauncherModel extends BroadcastReceiver {
         public int getCurrentWorkspaceScreen();
         public void startBinding();
         public void bindItems(ArrayList<ItemInfo> shortcuts, int start, int end);
+        public void bindItemsRemoved(ArrayList<ItemInfo> items);
         public void bindFolders(HashMap<Long,FolderInfo> folders);
         public void finishBindingItems();
         public void bindAppWidget(LauncherAppWidgetInfo info);
@@ -457,13 +470,18 @@ public class LauncherModel extends BroadcastReceiver {
         final ContentResolver cr = context.getContentResolver();
         item.onAddToDatabase(values);
 
-        LauncherApplication app = (LauncherApplication) context.getApplicationContext();
+        final LauncherApplication app = (LauncherApplication) context.getApplicationContext();
         item.id = app.getLauncherProvider().generateNewId();
         values.put(LauncherSettings.Favorites._ID, item.id);
         item.updateValuesWithCoordinates(values, item.cellX, item.cellY);
 
         Runnable r = new Runnable() {
             public void run() {
+                if (notify) {
+                    // The launcher hasn't added a view for this item itself, so the loader that
+                    // the notification starts has to bind everything again
+                    app.getModel().invalidateWorkspaceBinding();
+                }
                 cr.insert(notify ? LauncherSettings.Favorites.CONTENT_URI :
                         LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
 
@@ -799,6 +817,17 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Makes the next loader bind all of the workspace items again, rather than only the ones
+     * that changed, for when the launcher is missing some of the views it was bound to, or the
+     * items were added to the model without it knowing.
+     */
+    public void invalidateWorkspaceBinding() {
+        synchronized (mLock) {
+            mWorkspaceBoundCallbacks = null;
+        }
+    }
+
     public boolean isAllAppsLoaded() {
         return mAllAppsLoaded;
     }
@@ -833,6 +862,7 @@ public class LauncherModel extends BroadcastReceiver {
                 Log.d(TAG, "loadAndBindWorkspace mWorkspaceLoaded=" + mWorkspaceLoaded);
             }
 
+            boolean loaded = false;
             if (!mWorkspaceLoaded) {
                 loadWorkspace();
                 synchronized (LoaderTask.this) {
@@ -841,10 +871,11 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                     mWorkspaceLoaded = true;
                 }
+                loaded = true;
             }
 
             // Bind the workspace
-            bindWorkspace();
+            bindWorkspace(loaded);
         }
 
         private void waitForIdle() {
@@ -897,6 +928,16 @@ public class LauncherModel extends BroadcastReceiver {
                     android.os.Process.setThreadPriority(mIsLaunching
                             ? Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND);
                 }
+
+                // Read the icons saved by earlier runs, so that they don't all have to be
+                // loaded from their packages again
+                final long iconTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                mIconCache.loadPersistentCache();
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "reading saved icons took "
+                            + (SystemClock.uptimeMillis() - iconTime) + "ms");
+                }
+
                 if (loadWorkspaceFirst) {
                     if (DEBUG_LOADERS) Log.d(TAG, "step 1: loading workspace");
                     loadAndBindWorkspace();
@@ -942,6 +983,9 @@ public class LauncherModel extends BroadcastReceiver {
             }
             sDbIconCache.clear();
 
+            // Save the icons that had to be loaded from their packages for the next run
+            mIconCache.savePersistentCache();
+
             // Clear out this reference, otherwise we end up holding it until all of the
             // callback runnables are done.
             mContext = null;
@@ -1047,6 +1091,12 @@ public class LauncherModel extends BroadcastReceiver {
             final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
             final boolean isSafeMode = manager.isSafeMode();
 
+            // Keep what was loaded before, so that the items that have not changed, and the
+            // views bound to them, can be kept
+            final HashMap<Long, ItemInfo> oldItems = new HashMap<Long, ItemInfo>(sItemsIdMap);
+            final ArrayList<ItemInfo> oldBoundItems = new ArrayList<ItemInfo>(sWorkspaceItems);
+            oldBoundItems.addAll(sAppWidgets);
+
             sWorkspaceItems.clear();
             sAppWidgets.clear();
             sFolders.clear();
@@ -1265,6 +1315,16 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             }
 
+            if (mStopped) {
+                // Only some of the items were loaded, so the launcher has to be bound to all of
+                // them again once they are
+                synchronized (mLock) {
+                    mWorkspaceBoundCallbacks = null;
+                }
+            } else {
+                keepUnchangedItems(oldItems, oldBoundItems);
+            }
+
             if (DEBUG_LOADERS) {
                 Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
                 Log.d(TAG, "workspace layout: ");
@@ -1283,10 +1343,178 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
+        /**
+         * Replaces the items that were just loaded with the ones loaded before wherever they
+         * have not changed, and works out which items directly on the home screen have to be
+         * bound or unbound.
+         *
+         * @param oldItems sItemsIdMap from before the items were loaded
+         * @param oldBoundItems sWorkspaceItems and sAppWidgets from before the items were loaded
+         */
+        private void keepUnchangedItems(HashMap<Long, ItemInfo> oldItems,
+                ArrayList<ItemInfo> oldBoundItems) {
+            // Folders are kept along with their contents, or not at all
+            for (FolderInfo folder : new ArrayList<FolderInfo>(sFolders.values())) {
+                final ItemInfo old = oldItems.get(folder.id);
+                if (old != null && isSameItem(old, folder)) {
+                    final FolderInfo oldFolder = (FolderInfo) old;
+                    sFolders.put(oldFolder.id, oldFolder);
+                    keepItem(folder, oldFolder);
+                    for (int i = 0; i < oldFolder.contents.size(); i++) {
+                        keepItem(folder.contents.get(i), oldFolder.contents.get(i));
+                    }
+                    final int index = sWorkspaceItems.indexOf(folder);
+                    if (index >= 0) {
+                        sWorkspaceItems.set(index, oldFolder);
+                    }
+                }
+            }
+            for (int i = 0; i < sWorkspaceItems.size(); i++) {
+                final ItemInfo item = sWorkspaceItems.get(i);
+                final ItemInfo old = oldItems.get(item.id);
+                if (item instanceof ShortcutInfo && old != null && isSameItem(old, item)) {
+                    keepItem(item, old);
+                    sWorkspaceItems.set(i, old);
+                }
+            }
+            for (int i = 0; i < sAppWidgets.size(); i++) {
+                final LauncherAppWidgetInfo widget = sAppWidgets.get(i);
+                final ItemInfo old = oldItems.get(widget.id);
+                if (old != null && isSameItem(old, widget)) {
+                    keepItem(widget, old);
+                    sAppWidgets.set(i, (LauncherAppWidgetInfo) old);
+                }
+            }
+
+            // These are added to what has not been bound yet since earlier loads
+            final HashSet<ItemInfo> boundItems = new HashSet<ItemInfo>(sWorkspaceItems);
+            boundItems.addAll(sAppWidgets);
+            for (ItemInfo item : oldBoundItems) {
+                if (!boundItems.contains(item) && !mItemsToBind.remove(item)) {
+                    mItemsToUnbind.add(item);
+                }
+            }
+            boundItems.clear();
+            boundItems.addAll(oldBoundItems);
+            for (ItemInfo item : sWorkspaceItems) {
+                if (!boundItems.contains(item)) {
+                    mItemsToBind.add(item);
+                }
+            }
+            for (ItemInfo item : sAppWidgets) {
+                if (!boundItems.contains(item)) {
+                    mItemsToBind.add(item);
+                }
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "workspace items to bind: " + mItemsToBind.size() + ", to unbind: "
+                        + mItemsToUnbind.size());
+            }
+        }
+
+        /**
+         * Puts an item that was loaded before in the place of the one that was just loaded.
+         */
+        private void keepItem(ItemInfo loaded, ItemInfo old) {
+            sItemsIdMap.put(old.id, old);
+            final byte[] data = sDbIconCache.remove(loaded);
+            if (data != null) {
+                sDbIconCache.put(old, data);
+            }
+        }
+
+        /**
+         * @return true if an item that was loaded before looks and behaves the same as the one
+         *         that was just loaded from the same row
+         */
+        private boolean isSameItem(ItemInfo old, ItemInfo item) {
+            if (old.getClass() != item.getClass() || old.itemType != item.itemType
+                    || old.container != item.container || old.screen != item.screen
+                    || old.cellX != item.cellX || old.cellY != item.cellY
+                    || old.spanX != item.spanX || old.spanY != item.spanY) {
+                return false;
+            }
+            if (item instanceof ShortcutInfo) {
+                final ShortcutInfo a = (ShortcutInfo) old;
+                final ShortcutInfo b = (ShortcutInfo) item;
+                if (!TextUtils.equals(a.title, b.title) || a.customIcon != b.customIcon
+                        || a.usingFallbackIcon != b.usingFallbackIcon) {
+                    return false;
+                }
+                if (a.intent == null ? b.intent != null
+                        : b.intent == null || !a.intent.toUri(0).equals(b.intent.toUri(0))) {
+                    return false;
+                }
+                final Bitmap iconA = a.getIcon(mIconCache);
+                final Bitmap iconB = b.getIcon(mIconCache);
+                return iconA == iconB || (iconA != null && iconB != null && iconA.sameAs(iconB));
+            } else if (item instanceof FolderInfo) {
+                final FolderInfo a = (FolderInfo) old;
+                final FolderInfo b = (FolderInfo) item;
+                if (!TextUtils.equals(a.title, b.title) || a.contents.size() != b.contents.size()) {
+                    return false;
+                }
+                for (int i = 0; i < a.contents.size(); i++) {
+                    final ShortcutInfo contentA = a.contents.get(i);
+                    final ShortcutInfo contentB = b.contents.get(i);
+                    if (contentA.id != contentB.id || !isSameItem(contentA, contentB)) {
+                        return false;
+                    }
+                }
+                return true;
+            } else if (item instanceof LauncherAppWidgetInfo) {
+                return ((LauncherAppWidgetInfo) old).appWidgetId
+                        == ((LauncherAppWidgetInfo) item).appWidgetId;
+            }
+            return true;
+        }
+
+        /**
+         * Posts the items in chunks, the ones on the current screen and in the hotseat first.
+         */
+        private void bindItemsInChunks(final Callbacks oldCallbacks, ArrayList<ItemInfo> items,
+                int currentScreen) {
+            final ArrayList<ItemInfo> ordered = new ArrayList<ItemInfo>(items.size());
+            for (ItemInfo item : items) {
+                if (isOnCurrentScreen(item, currentScreen)) {
+                    ordered.add(item);
+                }
+            }
+            for (ItemInfo item : items) {
+                if (!isOnCurrentScreen(item, currentScreen)) {
+                    ordered.add(item);
+                }
+            }
+            final int N = ordered.size();
+            for (int i=0; i<N; i+=ITEMS_CHUNK) {
+                final int start = i;
+                final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindItems(ordered, start, start+chunkSize);
+                        }
+                    }
+                });
+            }
+        }
+
+        private boolean isOnCurrentScreen(ItemInfo item, int currentScreen) {
+            return item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                    || item.screen == currentScreen;
+        }
+
         /**
          * Read everything out of our database.
+         *
+         * @param loaded Whether this task loaded the workspace. If the launcher still shows
+         *        everything that was last bound to it, only the items the load found to have
+         *        changed are bound; if the task didn't load, nothing is bound again. Changes
+         *        the launcher doesn't know about, such as addItemToDatabase with notify set,
+         *        invalidate the binding so that everything is bound instead.
          */
-        private void bindWorkspace() {
+        private void bindWorkspace(boolean loaded) {
             final long t = SystemClock.uptimeMillis();
 
             // Don't use these two variables in any of the callback runnables.
@@ -1298,33 +1526,73 @@ public class LauncherModel extends BroadcastReceiver {
                 return;
             }
 
+            // WARNING: this is calling into the workspace from the background thread,
+            // but since getCurrentScreen() just returns the int, we should be okay.  This
+            // is just a hint for the order, and if it's wrong, we'll be okay.
+            // TODO: instead, we should have that push the current screen into here.
+            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+
+            // If the launcher still shows everything that was last bound to it, only the items
+            // that were added, removed or changed since have to be bound. Without a load, such
+            // as on resume after a package changed, none have been.
+            final boolean incremental;
+            synchronized (mLock) {
+                incremental = mWorkspaceBoundCallbacks != null
+                        && mWorkspaceBoundCallbacks.get() == oldCallbacks;
+                mWorkspaceBoundCallbacks = null;
+            }
+
             int N;
-            // Tell the workspace that we're about to start firing items at it
-            mHandler.post(new Runnable() {
-                public void run() {
-                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                    if (callbacks != null) {
-                        callbacks.startBinding();
+            final ArrayList<ItemInfo> workspaceItems;
+            final ArrayList<LauncherAppWidgetInfo> appWidgets;
+            if (incremental) {
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "binding " + mItemsToBind.size() + " and unbinding "
+                            + mItemsToUnbind.size() + " workspace items");
+                }
+                workspaceItems = new ArrayList<ItemInfo>();
+                appWidgets = new ArrayList<LauncherAppWidgetInfo>();
+                for (ItemInfo item : mItemsToBind) {
+                    if (item instanceof LauncherAppWidgetInfo) {
+                        appWidgets.add((LauncherAppWidgetInfo) item);
+                    } else {
+                        workspaceItems.add(item);
                     }
                 }
-            });
-
-            final ArrayList<ItemInfo> workspaceItems = unbindWorkspaceItemsOnMainThread();
-
-            // Add the items to the workspace.
-            N = workspaceItems.size();
-            for (int i=0; i<N; i+=ITEMS_CHUNK) {
-                final int start = i;
-                final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
+                if (mItemsToUnbind.size() > 0) {
+                    final ArrayList<ItemInfo> removed = new ArrayList<ItemInfo>(mItemsToUnbind);
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                            if (callbacks != null) {
+                                callbacks.bindItemsRemoved(removed);
+                            }
+                            for (ItemInfo item : removed) {
+                                item.unbind();
+                            }
+                        }
+                    });
+                }
+            } else {
+                // Tell the workspace that we're about to start firing items at it
                 mHandler.post(new Runnable() {
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                         if (callbacks != null) {
-                            callbacks.bindItems(workspaceItems, start, start+chunkSize);
+                            callbacks.startBinding();
                         }
                     }
                 });
+
+                workspaceItems = unbindWorkspaceItemsOnMainThread();
+                appWidgets = new ArrayList<LauncherAppWidgetInfo>(sAppWidgets);
             }
+            mItemsToBind.clear();
+            mItemsToUnbind.clear();
+
+            // Add the items to the workspace.
+            bindItemsInChunks(oldCallbacks, workspaceItems, currentScreen);
+
             // Ensure that we don't use the same folders data structure on the main thread
             final HashMap<Long, FolderInfo> folders = new HashMap<Long, FolderInfo>(sFolders);
             mHandler.post(new Runnable() {
@@ -1344,15 +1612,10 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             });
             // Bind the widgets, one at a time.
-            // WARNING: this is calling into the workspace from the background thread,
-            // but since getCurrentScreen() just returns the int, we should be okay.  This
-            // is just a hint for the order, and if it's wrong, we'll be okay.
-            // TODO: instead, we should have that push the current screen into here.
-            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
-            N = sAppWidgets.size();
+            N = appWidgets.size();
             // once for the current screen
             for (int i=0; i<N; i++) {
-                final LauncherAppWidgetInfo widget = sAppWidgets.get(i);
+                final LauncherAppWidgetInfo widget = appWidgets.get(i);
                 if (widget.screen == currentScreen) {
                     mHandler.post(new Runnable() {
                         public void run() {
@@ -1366,7 +1629,7 @@ public class LauncherModel extends BroadcastReceiver {
             }
             // once for the other screens
             for (int i=0; i<N; i++) {
-                final LauncherAppWidgetInfo widget = sAppWidgets.get(i);
+                final LauncherAppWidgetInfo widget = appWidgets.get(i);
                 if (widget.screen != currentScreen) {
                     mHandler.post(new Runnable() {
                         public void run() {
@@ -1384,6 +1647,10 @@ public class LauncherModel extends BroadcastReceiver {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
                         callbacks.finishBindingItems();
+                        // Everything was bound, so later loads only have to bind what changes
+                        synchronized (mLock) {
+                            mWorkspaceBoundCallbacks = new WeakReference<Callbacks>(callbacks);
+                        }
                     }
                 }
             });
@@ -1481,6 +1748,8 @@ public class LauncherModel extends BroadcastReceiver {
                     if (DEBUG_LOADERS) {
                         Log.d(TAG, "queryIntentActivities got " + N + " apps");
                     }
+                    // Sort by the saved titles where they are still valid
+                    mIconCache.getPersistedTitles(apps, mLabelCache);
                     if (N == 0) {
                         // There are no apps?!?
                         return;
@@ -1591,6 +1860,13 @@ public class LauncherModel extends BroadcastReceiver {
 
             final String[] packages = mPackages;
             final int N = packages.length;
+            if (mOp != OP_UNAVAILABLE) {
+                // The saved icons are also checked against the time the package file was
+                // last modified, but don't rely on that alone
+                for (int i=0; i<N; i++) {
+                    mIconCache.removePersisted(packages[i]);
+                }
+            }
             switch (mOp) {
                 case OP_ADD:
                     for (int i=0; i<N; i++) {
@@ -1632,6 +1908,7 @@ public class LauncherModel extends BroadcastReceiver {
                 modified = mAllAppsList.modified;
                 mAllAppsList.modified = new ArrayList<ApplicationInfo>();
             }
+            mIconCache.savePersistentCache();
 
             final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
             if (callbacks == null) {
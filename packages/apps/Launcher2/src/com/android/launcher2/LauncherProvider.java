@@ -74,13 +74,14 @@ public class LauncherProvider extends ContentProvider {
 
     private static final String DATABASE_NAME = "launcher.db";
 
-    private static final int DATABASE_VERSION = 10;
+    private static final int DATABASE_VERSION = 11;
 
     static final String AUTHORITY = "com.android.launcher2.settings";
 
     static final String TABLE_FAVORITES = "favorites";
     static final String PARAMETER_NOTIFY = "notify";
     static final String LAUNCHERINFO = "launcher_info";
+    static final String TABLE_ICONS = "icons";
 
     /**
      * {@link Uri} triggered at any registered {@link android.database.ContentObserver} when
@@ -288,6 +289,8 @@ public class LauncherProvider extends ContentProvider {
                     "launch_count INTEGER DEFAULT 0" +
                     ");");
 
+            createIconsTable(db);
+
             // Database was just created, so wipe any previous widgets
             if (mAppWidgetHost != null) {
                 mAppWidgetHost.deleteHost();
@@ -513,20 +516,42 @@ public class LauncherProvider extends ContentProvider {
                 version = 10;
             }
 
+            if (version < 11) {
+                createIconsTable(db);
+                version = 11;
+            }
+
             if (version != DATABASE_VERSION) {
                 Log.w(TAG, "Destroying all old data.");
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES);
                 db.execSQL("DROP TABLE IF EXISTS " + LAUNCHERINFO);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
                 onCreate(db);
             }
         }
 
+        private void createIconsTable(SQLiteDatabase db) {
+            // The reset URI recreates the other tables but keeps this one
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_ICONS + " (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "component TEXT UNIQUE ON CONFLICT REPLACE," +
+                    "package_name TEXT," +
+                    "last_updated INTEGER," +
+                    "version TEXT," +
+                    "title TEXT," +
+                    "icon BLOB" +
+                    ");");
+        }
+
         @Override
         public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             Log.i(TAG,"Down grade version from " + oldVersion+" to " + newVersion);
             if (oldVersion > 9 && newVersion <= 9) {
                 db.execSQL("DROP TABLE IF EXISTS " + LAUNCHERINFO);
             }
+            if (oldVersion > 10 && newVersion <= 10) {
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
+            }
         }
 
         private boolean updateContactsShortcuts(SQLiteDatabase db) {
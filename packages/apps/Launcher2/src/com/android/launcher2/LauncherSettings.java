@@ -247,4 +247,48 @@ class LauncherSettings {
 
         static final String LAUNCH_COUNT = "launch_count";
     }
+
+    /**
+     * Icons and titles of applications, kept so that they do not have to be loaded from
+     * the packages again each time the launcher starts.
+     */
+    static final class Icons {
+        static final Uri CONTENT_URI = Uri.parse("content://" +
+                LauncherProvider.AUTHORITY + "/" + LauncherProvider.TABLE_ICONS +
+                "?" + LauncherProvider.PARAMETER_NOTIFY + "=false");
+
+        /**
+         * The flattened component name of the activity.
+         * <P>Type: TEXT</P>
+         */
+        static final String COMPONENT = "component";
+
+        /**
+         * <P>Type: TEXT</P>
+         */
+        static final String PACKAGE_NAME = "package_name";
+
+        /**
+         * The time the package was last updated when the icon was loaded.
+         * <P>Type: INTEGER</P>
+         */
+        static final String LAST_UPDATED = "last_updated";
+
+        /**
+         * Describes the locale, density and theme the icon and title were loaded for.
+         * <P>Type: TEXT</P>
+         */
+        static final String VERSION = "version";
+
+        /**
+         * <P>Type: TEXT</P>
+         */
+        static final String TITLE = "title";
+
+        /**
+         * The icon bitmap, as a PNG.
+         * <P>Type: BLOB</P>
+         */
+        static final String ICON = "icon";
+    }
 }
@@ -3455,6 +3455,47 @@ public class Workspace extends SmoothPagedView
         }
     }
 
+    /**
+     * Removes the views bound to items, without changing the DB.
+     */
+    void removeItemViews(final ArrayList<ItemInfo> items) {
+        final HashSet<ItemInfo> itemSet = new HashSet<ItemInfo>(items);
+        final ArrayList<View> childrenToRemove = new ArrayList<View>();
+
+        ArrayList<CellLayout> cellLayouts = getWorkspaceAndHotseatCellLayouts();
+        for (final CellLayout layoutParent: cellLayouts) {
+            final ViewGroup layout = layoutParent.getChildrenLayout();
+            childrenToRemove.clear();
+
+            int childCount = layout.getChildCount();
+            for (int j = 0; j < childCount; j++) {
+                final View view = layout.getChildAt(j);
+                if (itemSet.contains(view.getTag())) {
+                    childrenToRemove.add(view);
+                }
+            }
+
+            childCount = childrenToRemove.size();
+            for (int j = 0; j < childCount; j++) {
+                View child = childrenToRemove.get(j);
+                // Note: We can not remove the view directly from CellLayoutChildren as this
+                // does not re-mark the spaces as unoccupied.
+                layoutParent.removeViewInLayout(child);
+                if (child instanceof DropTarget) {
+                    mDragController.removeDropTarget((DropTarget)child);
+                }
+                if (child.getTag() instanceof LauncherAppWidgetInfo) {
+                    mLauncher.removeWidgetToAutoAdvance(child);
+                }
+            }
+
+            if (childCount > 0) {
+                layout.requestLayout();
+                layout.invalidate();
+            }
+        }
+    }
+
     void updateShortcuts(ArrayList<ApplicationInfo> apps) {
         ArrayList<CellLayoutChildren> childrenLayouts = getWorkspaceAndHotseatCellLayoutChildren();
         for (CellLayoutChildren layout: childrenLayouts) {
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2.stress;
+
+import com.android.launcher2.CellOccupancy;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares searching for vacant spans in a {@link CellOccupancy} with checking every cell of
+ * each span, on large tablet grids filled with 4x4 widgets.
+ */
+public class CellOccupancyBenchmark extends TestCase {
+
+    private static final int COUNT_X = 16;
+    private static final int COUNT_Y = 12;
+    private static final int WIDGETS = 8;
+    private static final int ROUNDS = 200;
+    private static final String LOG_TAG = "CellOccupancyBenchmark";
+
+    private final Random mRandom = new Random(1);
+    private final boolean[][] mCells = new boolean[COUNT_X][COUNT_Y];
+    private final CellOccupancy mOccupancy = new CellOccupancy(COUNT_X, COUNT_Y);
+
+    /**
+     * Drops 4x4 widgets where they fit, and fills some of the remaining cells with icons.
+     */
+    private void fill() {
+        mOccupancy.clear();
+        for (int x = 0; x < COUNT_X; x++) {
+            for (int y = 0; y < COUNT_Y; y++) {
+                mCells[x][y] = false;
+            }
+        }
+        for (int i = 0; i < WIDGETS; i++) {
+            int x = mRandom.nextInt(COUNT_X - 3);
+            int y = mRandom.nextInt(COUNT_Y - 3);
+            if (isVacant(x, y, 4, 4)) {
+                mark(x, y, 4, 4);
+            }
+        }
+        for (int i = 0; i < COUNT_X * COUNT_Y / 4; i++) {
+            int x = mRandom.nextInt(COUNT_X);
+            int y = mRandom.nextInt(COUNT_Y);
+            mark(x, y, 1, 1);
+        }
+    }
+
+    private void mark(int cellX, int cellY, int spanX, int spanY) {
+        mOccupancy.mark(cellX, cellY, spanX, spanY, true);
+        for (int x = cellX; x < cellX + spanX; x++) {
+            for (int y = cellY; y < cellY + spanY; y++) {
+                mCells[x][y] = true;
+            }
+        }
+    }
+
+    private boolean isVacant(int cellX, int cellY, int spanX, int spanY) {
+        for (int x = cellX; x < cellX + spanX; x++) {
+            for (int y = cellY; y < cellY + spanY; y++) {
+                if (mCells[x][y]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the origin nearest a cell, as CellLayout.findNearestArea did, checking every cell.
+     */
+    private int findNearest(int targetX, int targetY, int spanX, int spanY) {
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int y = 0; y <= COUNT_Y - spanY; y++) {
+            for (int x = 0; x <= COUNT_X - spanX; x++) {
+                if (!isVacant(x, y, spanX, spanY)) continue;
+                int distance = (x - targetX) * (x - targetX) + (y - targetY) * (y - targetY);
+                if (distance <= bestDistance) {
+                    bestDistance = distance;
+                    best = y * COUNT_X + x;
+                }
+            }
+        }
+        return best;
+    }
+
+    private int findNearestInOccupancy(int targetX, int targetY, int spanX, int spanY) {
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int y = 0; y <= COUNT_Y - spanY; y++) {
+            final long origins = mOccupancy.getVacantOrigins(y, spanX, spanY, 0, 0, 0, 0);
+            for (int x = 0; x <= COUNT_X - spanX; x++) {
+                if ((origins & (1L << x)) == 0) continue;
+                int distance = (x - targetX) * (x - targetX) + (y - targetY) * (y - targetY);
+                if (distance <= bestDistance) {
+                    bestDistance = distance;
+                    best = y * COUNT_X + x;
+                }
+            }
+        }
+        return best;
+    }
+
+    @LargeTest
+    public void testFindNearestVacantArea() {
+        long cells = 0;
+        long occupancy = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            fill();
+            // A drag over the grid queries the same occupancy for every move event
+            for (int move = 0; move < 20; move++) {
+                int targetX = mRandom.nextInt(COUNT_X);
+                int targetY = mRandom.nextInt(COUNT_Y);
+                int span = 1 + mRandom.nextInt(4);
+
+                long start = System.nanoTime();
+                int expected = findNearest(targetX, targetY, span, span);
+                cells += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                int observed = findNearestInOccupancy(targetX, targetY, span, span);
+                occupancy += System.nanoTime() - start;
+
+                assertEquals(expected, observed);
+            }
+        }
+        Log.i(LOG_TAG, COUNT_X + "x" + COUNT_Y + " grid, nearest vacant area: cells="
+                + cells / ROUNDS / 1000 + "us occupancy=" + occupancy / ROUNDS / 1000
+                + "us per drag");
+    }
+
+    @LargeTest
+    public void testSimulatedReorderLeavesOccupancyUnchanged() {
+        fill();
+        CellOccupancy copy = new CellOccupancy(1, 1);
+        copy.copyFrom(mOccupancy);
+        int[] vacant = new int[2];
+        if (copy.findVacantCell(vacant, 1, 1)) {
+            // Move the icon at the first occupied cell into the vacant one
+            for (int i = 0; i < COUNT_X * COUNT_Y; i++) {
+                int x = i % COUNT_X;
+                int y = i / COUNT_X;
+                if (copy.isOccupied(x, y)) {
+                    assertTrue(copy.move(x, y, 1, 1, vacant[0], vacant[1]));
+                    assertFalse(copy.isOccupied(x, y));
+                    assertTrue(copy.isOccupied(vacant[0], vacant[1]));
+                    break;
+                }
+            }
+        }
+        for (int x = 0; x < COUNT_X; x++) {
+            for (int y = 0; y < COUNT_Y; y++) {
+                assertEquals(mCells[x][y], mOccupancy.isOccupied(x, y));
+            }
+        }
+    }
+}
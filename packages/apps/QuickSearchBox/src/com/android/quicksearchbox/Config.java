@@ -44,6 +44,9 @@ public class Config {
     private static final int MAX_RESULTS_PER_SOURCE = 50;
     private static final long SOURCE_TIMEOUT_MILLIS = 10000;
 
+    private static final int CORPUS_RESULT_CACHE_SIZE = 64;
+    private static final long CORPUS_RESULT_CACHE_TIMEOUT_MILLIS = 30 * SECOND_MILLIS;
+
     private static final int QUERY_THREAD_PRIORITY =
             Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE;
 
@@ -78,6 +81,7 @@ public class Config {
     private HashSet<String> mDefaultCorpora;
     private HashSet<String> mHiddenCorpora;
     private HashSet<String> mDefaultCorporaSuggestUris;
+    private HashSet<String> mPrefixFilterableCorpora;
 
     /**
      * Creates a new config that uses hard-coded default values.
@@ -148,6 +152,17 @@ public class Config {
         return mHiddenCorpora.contains(corpusName);
     }
 
+    /**
+     * Checks if the results for a query to the given corpus can be found by filtering its
+     * complete results for a prefix of the query, instead of querying it again.
+     */
+    public synchronized boolean isCorpusPrefixFilterable(Corpus corpus) {
+        if (mPrefixFilterableCorpora == null) {
+            mPrefixFilterableCorpora = loadResourceStringSet(R.array.prefix_filterable_corpora);
+        }
+        return mPrefixFilterableCorpora.contains(corpus.getName());
+    }
+
     /**
      * The number of promoted sources.
      */
@@ -209,6 +224,20 @@ public class Config {
         return SOURCE_TIMEOUT_MILLIS;
     }
 
+    /**
+     * The maximum number of corpus results to keep in the query result cache.
+     */
+    public int getCorpusResultCacheSize() {
+        return CORPUS_RESULT_CACHE_SIZE;
+    }
+
+    /**
+     * How long a cached corpus result may be used for, in milliseconds.
+     */
+    public long getCorpusResultCacheTimeoutMillis() {
+        return CORPUS_RESULT_CACHE_TIMEOUT_MILLIS;
+    }
+
     /**
      * The priority of query threads.
      *
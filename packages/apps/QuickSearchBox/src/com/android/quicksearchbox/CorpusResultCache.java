@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import org.json.JSONException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded cache of recent corpus results, so that typing a character and deleting it
+ * again, or going back to an earlier query, does not query every corpus again.
+ *
+ * Results are copied into memory when they are added, since the original results are
+ * closed once the suggestions they were published to are closed. Entries expire after
+ * {@link Config#getCorpusResultCacheTimeoutMillis}.
+ *
+ * A query that is already running for the same corpus is waited for instead of being run a
+ * second time. For corpora that opt in with {@link Config#isCorpusPrefixFilterable}, a query
+ * can also be answered by filtering a complete cached result for a prefix of the query.
+ *
+ * This class is thread safe.
+ */
+public class CorpusResultCache {
+
+    private static final boolean DBG = false;
+    private static final String TAG = "QSB.CorpusResultCache";
+
+    private final Config mConfig;
+
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    // Keys of the queries that are running now
+    private final HashSet<String> mPending = new HashSet<String>();
+
+    private final HashMap<String, Stats> mStats = new HashMap<String, Stats>();
+
+    private static class Entry {
+        final ArrayList<SuggestionData> mSuggestions;
+        final int mLatency;
+        // Whether the corpus returned all of its results for the query
+        final boolean mComplete;
+        final long mTime;
+
+        Entry(ArrayList<SuggestionData> suggestions, int latency, boolean complete) {
+            mSuggestions = suggestions;
+            mLatency = latency;
+            mComplete = complete;
+            mTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Cache hit counts for a single corpus.
+     */
+    public static class Stats {
+        private int mHits;
+        private int mPrefixHits;
+        private int mMisses;
+
+        /**
+         * The number of queries that were answered with a cached result for the same query.
+         */
+        public int getHits() {
+            return mHits;
+        }
+
+        /**
+         * The number of queries that were answered by filtering a cached result.
+         */
+        public int getPrefixHits() {
+            return mPrefixHits;
+        }
+
+        /**
+         * The number of queries that had to go to the corpus.
+         */
+        public int getMisses() {
+            return mMisses;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + mHits + ",prefixHits=" + mPrefixHits + ",misses=" + mMisses;
+        }
+    }
+
+    private static class CachedResult extends ListSuggestionCursor implements CorpusResult {
+        private final Corpus mCorpus;
+        private final int mLatency;
+
+        CachedResult(Corpus corpus, String userQuery, int capacity, int latency) {
+            super(userQuery, capacity);
+            mCorpus = corpus;
+            mLatency = latency;
+        }
+
+        public Corpus getCorpus() {
+            return mCorpus;
+        }
+
+        public int getLatency() {
+            return mLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + getCorpus() + "[" + getUserQuery() + "]" + ";n=" + getCount() + "}";
+        }
+    }
+
+    public CorpusResultCache(Config config) {
+        mConfig = config;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mConfig.getCorpusResultCacheSize();
+            }
+        };
+    }
+
+    private static String makeKey(Corpus corpus, String query) {
+        return corpus.getName() + "#" + query;
+    }
+
+    /**
+     * Gets suggestions from a corpus, using a cached result if possible.
+     * May block while the same query to the same corpus is running on another thread.
+     *
+     * @return A result that the caller must close. Never {@code null}.
+     */
+    public CorpusResult getSuggestions(Corpus corpus, String query, int queryLimit,
+            boolean onlyCorpus) {
+        LatencyTracker latencyTracker = new LatencyTracker();
+        String key = makeKey(corpus, query);
+        synchronized (this) {
+            long end = SystemClock.uptimeMillis() + mConfig.getSourceTimeoutMillis();
+            while (mPending.contains(key)) {
+                long timeout = end - SystemClock.uptimeMillis();
+                // If the running query takes too long, just run our own
+                if (timeout <= 0) break;
+                if (DBG) Log.d(TAG, "Waiting for running query " + key);
+                try {
+                    wait(timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            Entry entry = getEntry(key);
+            if (entry != null) {
+                getStats(corpus).mHits++;
+                return createResult(corpus, query, entry, null, latencyTracker);
+            }
+            if (query.length() > 0 && mConfig.isCorpusPrefixFilterable(corpus)) {
+                for (int i = query.length() - 1; i > 0; i--) {
+                    entry = getEntry(makeKey(corpus, query.substring(0, i)));
+                    if (entry != null && entry.mComplete) {
+                        getStats(corpus).mPrefixHits++;
+                        return createResult(corpus, query, entry, query, latencyTracker);
+                    }
+                }
+            }
+            getStats(corpus).mMisses++;
+            mPending.add(key);
+        }
+
+        CorpusResult result = null;
+        try {
+            result = corpus.getSuggestions(query, queryLimit, onlyCorpus);
+            // The original result may be closed at any time once it has been published,
+            // so cache a copy.
+            Entry entry = new Entry(copySuggestions(result), result.getLatency(),
+                    result.getCount() < queryLimit);
+            synchronized (this) {
+                mEntries.put(key, entry);
+            }
+            return result;
+        } finally {
+            synchronized (this) {
+                mPending.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    private Entry getEntry(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) return null;
+        long age = SystemClock.uptimeMillis() - entry.mTime;
+        if (age > mConfig.getCorpusResultCacheTimeoutMillis()) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private Stats getStats(Corpus corpus) {
+        Stats stats = mStats.get(corpus.getName());
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(corpus.getName(), stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Gets a copy of the cache hit counts for a corpus.
+     */
+    public synchronized Stats getStats(String corpusName) {
+        Stats copy = new Stats();
+        Stats stats = mStats.get(corpusName);
+        if (stats != null) {
+            copy.mHits = stats.mHits;
+            copy.mPrefixHits = stats.mPrefixHits;
+            copy.mMisses = stats.mMisses;
+        }
+        return copy;
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Creates a new result from a cache entry.
+     *
+     * @param filter If not {@code null}, only include suggestions with a word in text 1
+     *        that starts with this.
+     */
+    private static CorpusResult createResult(Corpus corpus, String query, Entry entry,
+            String filter, LatencyTracker latencyTracker) {
+        if (DBG) Log.d(TAG, "Cache hit for " + corpus + "[" + query + "], filter=" + filter);
+        CachedResult result = new CachedResult(corpus, query, entry.mSuggestions.size(),
+                latencyTracker.getLatency());
+        String prefix = filter == null ? null : filter.toLowerCase(Locale.getDefault());
+        for (SuggestionData suggestion : entry.mSuggestions) {
+            if (prefix == null || hasWordStartingWith(suggestion.getSuggestionText1(), prefix)) {
+                result.add(suggestion);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasWordStartingWith(String text, String prefix) {
+        if (text == null) return false;
+        String lower = text.toLowerCase(Locale.getDefault());
+        return lower.startsWith(prefix) || lower.contains(" " + prefix);
+    }
+
+    private static ArrayList<SuggestionData> copySuggestions(SuggestionCursor cursor) {
+        int count = cursor.getCount();
+        ArrayList<SuggestionData> suggestions = new ArrayList<SuggestionData>(count);
+        for (int i = 0; i < count; i++) {
+            cursor.moveTo(i);
+            SuggestionData suggestion = new SuggestionData(cursor.getSuggestionSource())
+                    .setFormat(cursor.getSuggestionFormat())
+                    .setText1(cursor.getSuggestionText1())
+                    .setText2(cursor.getSuggestionText2())
+                    .setText2Url(cursor.getSuggestionText2Url())
+                    .setIcon1(cursor.getSuggestionIcon1())
+                    .setIcon2(cursor.getSuggestionIcon2())
+                    .setIntentAction(cursor.getSuggestionIntentAction())
+                    .setIntentData(cursor.getSuggestionIntentDataString())
+                    .setIntentExtraData(cursor.getSuggestionIntentExtraData())
+                    .setSuggestionQuery(cursor.getSuggestionQuery())
+                    .setShortcutId(cursor.getShortcutId())
+                    .setSpinnerWhileRefreshing(cursor.isSpinnerWhileRefreshing())
+                    .setSuggestionLogType(cursor.getSuggestionLogType())
+                    .setIsShortcut(cursor.isSuggestionShortcut())
+                    .setIsHistory(cursor.isHistorySuggestion());
+            SuggestionExtras extras = cursor.getExtras();
+            if (extras != null) {
+                try {
+                    suggestion.setExtras(new JsonBackedSuggestionExtras(extras));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Could not copy extras of " + suggestion, e);
+                }
+            }
+            suggestions.add(suggestion);
+        }
+        return suggestions;
+    }
+}
@@ -99,6 +99,13 @@ public class EventLogLogger implements Logger {
         EventLogTags.writeQsbLatency(corpusName, latency, numChars);
     }
 
+    public void logResultCacheStats(Corpus corpus, CorpusResultCache.Stats stats) {
+        if (!shouldLogLatency()) return;
+        String corpusName = getCorpusLogName(corpus);
+        EventLogTags.writeQsbResultCache(corpusName, stats.getHits(), stats.getPrefixHits(),
+                stats.getMisses());
+    }
+
     private boolean shouldLogLatency() {
         int freq = mConfig.getLatencyLogFrequency();
         return freq > mRandom.nextInt(1000);
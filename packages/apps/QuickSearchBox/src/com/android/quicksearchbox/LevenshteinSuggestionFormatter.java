@@ -18,6 +18,7 @@ package com.android.quicksearchbox;
 
 import com.android.quicksearchbox.util.LevenshteinDistance;
 import com.android.quicksearchbox.util.LevenshteinDistance.Token;
+import com.android.quicksearchbox.util.LevenshteinMatcher;
 import com.google.common.annotations.VisibleForTesting;
 
 import android.text.SpannableString;
@@ -27,11 +28,22 @@ import android.util.Log;
 /**
  * Suggestion formatter using the Levenshtein distance (minumum edit distance) to calculate the
  * formatting.
+ *
+ * Formatting is done for every visible suggestion on each keystroke, so it uses a
+ * {@link LevenshteinMatcher} per thread whose buffers are reused from one suggestion to the next.
  */
 public class LevenshteinSuggestionFormatter extends SuggestionFormatter {
     private static final boolean DBG = false;
     private static final String TAG = "QSB.LevenshteinSuggestionFormatter";
 
+    private final ThreadLocal<LevenshteinMatcher> mMatcher =
+            new ThreadLocal<LevenshteinMatcher>() {
+                @Override
+                protected LevenshteinMatcher initialValue() {
+                    return new LevenshteinMatcher();
+                }
+            };
+
     public LevenshteinSuggestionFormatter(TextAppearanceFactory spanFactory) {
         super(spanFactory);
     }
@@ -40,26 +52,26 @@ public class LevenshteinSuggestionFormatter extends SuggestionFormatter {
     public Spanned formatSuggestion(String query, String suggestion) {
         if (DBG) Log.d(TAG, "formatSuggestion('" + query + "', '" + suggestion + "')");
         query = normalizeQuery(query);
-        final Token[] queryTokens = tokenize(query);
-        final Token[] suggestionTokens = tokenize(suggestion);
-        final int[] matches = findMatches(queryTokens, suggestionTokens);
-        if (DBG){
-            Log.d(TAG, "source = " + queryTokens);
-            Log.d(TAG, "target = " + suggestionTokens);
-            Log.d(TAG, "matches = " + matches);
-        }
+        final LevenshteinMatcher matcher = mMatcher.get();
+        matcher.setSource(query);
+        matcher.setTarget(suggestion);
+        matcher.calculate();
+        final int[] matches = matcher.getTargetMatches();
         final SpannableString str = new SpannableString(suggestion);
 
-        final int matchesLen = matches.length;
-        for (int i = 0; i < matchesLen; ++i) {
-            final Token t = suggestionTokens[i];
+        final int targetLen = matcher.getTargetTokenCount();
+        for (int i = 0; i < targetLen; ++i) {
+            final int start = matcher.getTargetTokenStart(i);
+            final int end = matcher.getTargetTokenEnd(i);
             int sourceLen = 0;
             int thisMatch = matches[i];
+            if (DBG) Log.d(TAG, "target token " + i + " matches " + thisMatch);
             if (thisMatch >= 0) {
-                sourceLen = queryTokens[thisMatch].length();
+                sourceLen = matcher.getSourceTokenEnd(thisMatch)
+                        - matcher.getSourceTokenStart(thisMatch);
             }
-            applySuggestedTextStyle(str, t.mStart + sourceLen, t.mEnd);
-            applyQueryTextStyle(str, t.mStart, t.mStart + sourceLen);
+            applySuggestedTextStyle(str, start + sourceLen, end);
+            applyQueryTextStyle(str, start, start + sourceLen);
         }
 
         return str;
@@ -81,4 +81,9 @@ public interface Logger {
      */
     void logLatency(CorpusResult result);
 
+    /**
+     * Logs the hit counts of the corpus result cache for a corpus.
+     */
+    void logResultCacheStats(Corpus corpus, CorpusResultCache.Stats stats);
+
 }
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import com.android.quicksearchbox.ShortcutRepositoryImplLog.Shortcuts;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An in-memory copy of the shortcuts and click log kept by {@link ShortcutRepositoryImplLog},
+ * used to answer shortcut queries without going to SQLite on every keystroke.
+ *
+ * Clicks are kept sorted by the query they were made for, so the clicks for all queries that
+ * start with a given prefix are found with a single range lookup. Shortcuts are ranked the
+ * same way as by the SQL query: the shortcut with the most recent click comes first, and the
+ * rest are ordered by the sum of the ages (in seconds since the cut-off) of their clicks.
+ *
+ * The database stays the durable store. The index is filled from it by
+ * {@link #load(Cursor, Cursor)}, and after that every change written to the database must
+ * also be applied here. Changes made before the index is loaded are ignored, since loading
+ * picks them up from the database.
+ */
+class ShortcutIndex {
+
+    // How long expired clicks may stay around before they are swept out of the index.
+    // They are ignored by queries anyway; this just avoids a sweep for every click.
+    private static final long PRUNE_SLACK_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final int INTENT_KEY = Shortcuts.intent_key.ordinal();
+    private static final int SOURCE = Shortcuts.source.ordinal();
+    private static final int SHORTCUT_ID = Shortcuts.shortcut_id.ordinal();
+
+    private static class Click {
+        String mIntentKey;
+        final long mHitTime;
+
+        Click(String intentKey, long hitTime) {
+            mIntentKey = intentKey;
+            mHitTime = hitTime;
+        }
+    }
+
+    private static class Score {
+        final Object[] mRow;
+        long mLastHitTime;
+        long mTotal;
+
+        Score(Object[] row) {
+            mRow = row;
+        }
+    }
+
+    private final String[] mColumns;
+    private final long mMaxStatAgeMillis;
+
+    // Shortcut rows, indexed by Shortcuts ordinal, keyed by intent key
+    private final HashMap<String, Object[]> mShortcuts = new HashMap<String, Object[]>();
+    // Clicks keyed by the query they were made for; a null query is stored as ""
+    private final TreeMap<String, ArrayList<Click>> mClicks =
+            new TreeMap<String, ArrayList<Click>>();
+    private long mOldestHitTime = Long.MAX_VALUE;
+    private boolean mLoaded = false;
+
+    /**
+     * @param columns The names of the columns of the cursors returned by
+     *        {@link #query(String, long)}, in {@link Shortcuts} order.
+     * @param maxStatAgeMillis How long clicks count for.
+     */
+    public ShortcutIndex(String[] columns, long maxStatAgeMillis) {
+        mColumns = columns;
+        mMaxStatAgeMillis = maxStatAgeMillis;
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Fills the index from the database.
+     *
+     * @param shortcuts All shortcut rows, with the columns in {@link Shortcuts} order.
+     * @param clicks The clicks to index, with the columns intent key, query and hit time.
+     */
+    public synchronized void load(Cursor shortcuts, Cursor clicks) {
+        reset();
+        int columnCount = Shortcuts.values().length;
+        while (shortcuts.moveToNext()) {
+            Object[] row = new Object[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = shortcuts.getString(i);
+            }
+            mShortcuts.put((String) row[INTENT_KEY], row);
+        }
+        while (clicks.moveToNext()) {
+            addClickLocked(clicks.getString(0), clicks.getString(1), clicks.getLong(2));
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * Forgets everything; the index must be loaded again before it is used.
+     */
+    public synchronized void invalidate() {
+        reset();
+        mLoaded = false;
+    }
+
+    public synchronized void clear() {
+        reset();
+    }
+
+    private void reset() {
+        mShortcuts.clear();
+        mClicks.clear();
+        mOldestHitTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * Adds or replaces a shortcut and logs a click on it.
+     *
+     * @param shortcut The shortcut row, as written to the shortcuts table.
+     */
+    public synchronized void reportClick(ContentValues shortcut, String query, long hitTime) {
+        if (!mLoaded) return;
+        Object[] row = toRow(shortcut);
+        String intentKey = (String) row[INTENT_KEY];
+        mShortcuts.put(intentKey, row);
+        addClickLocked(intentKey, query, hitTime);
+        // Like the clicklog insert trigger, purge clicks that are too old to count
+        long cutOff = hitTime - mMaxStatAgeMillis;
+        if (mOldestHitTime < cutOff - PRUNE_SLACK_MILLIS) {
+            pruneClicks(cutOff);
+        }
+    }
+
+    /**
+     * Removes a shortcut and all clicks on it.
+     */
+    public synchronized void removeShortcut(String intentKey) {
+        if (!mLoaded) return;
+        if (mShortcuts.remove(intentKey) != null) {
+            moveClicks(Collections.singletonList(intentKey), null);
+        }
+    }
+
+    /**
+     * Removes the shortcuts with the given source and shortcut id, and all clicks on them.
+     */
+    public synchronized void removeShortcuts(String source, String shortcutId) {
+        if (!mLoaded) return;
+        ArrayList<String> removed = findShortcuts(source, shortcutId);
+        for (String intentKey : removed) {
+            mShortcuts.remove(intentKey);
+        }
+        moveClicks(removed, null);
+    }
+
+    /**
+     * Replaces the shortcuts with the given source and shortcut id with a new row. If the
+     * intent key changes, the clicks on the old shortcuts are moved to the new one.
+     */
+    public synchronized void updateShortcuts(String source, String shortcutId,
+            ContentValues shortcut) {
+        if (!mLoaded) return;
+        ArrayList<String> updated = findShortcuts(source, shortcutId);
+        if (updated.isEmpty()) return;
+        Object[] row = toRow(shortcut);
+        String intentKey = (String) row[INTENT_KEY];
+        for (String oldKey : updated) {
+            mShortcuts.remove(oldKey);
+        }
+        mShortcuts.put(intentKey, row);
+        updated.remove(intentKey);
+        moveClicks(updated, intentKey);
+    }
+
+    /**
+     * Gets the shortcuts for a query, best first.
+     *
+     * @param query The query. All clicks made for queries that start with it count.
+     * @param now The current time.
+     * @return A cursor with the columns given to the constructor, or {@code null} if there are
+     *         no shortcuts for the query.
+     */
+    public synchronized Cursor query(String query, long now) {
+        long cutOff = now - mMaxStatAgeMillis;
+        HashMap<String, Score> scores = new HashMap<String, Score>();
+        long lastHitTime = Long.MIN_VALUE;
+        for (Map.Entry<String, ArrayList<Click>> entry : mClicks.tailMap(query).entrySet()) {
+            if (!entry.getKey().startsWith(query)) break;
+            for (Click click : entry.getValue()) {
+                if (click.mHitTime < cutOff) continue;
+                lastHitTime = Math.max(lastHitTime, click.mHitTime);
+                Score score = scores.get(click.mIntentKey);
+                if (score == null) {
+                    Object[] row = mShortcuts.get(click.mIntentKey);
+                    if (row == null) continue;
+                    score = new Score(row);
+                    scores.put(click.mIntentKey, score);
+                }
+                score.mLastHitTime = Math.max(score.mLastHitTime, click.mHitTime);
+                // Same integer arithmetic as the SQL ordering expression
+                score.mTotal += (click.mHitTime - cutOff) / 1000;
+            }
+        }
+        if (scores.isEmpty()) return null;
+
+        ArrayList<Score> ranked = new ArrayList<Score>(scores.values());
+        Collections.sort(ranked, new ScoreComparator(lastHitTime));
+        MatrixCursor cursor = new MatrixCursor(mColumns, ranked.size());
+        for (Score score : ranked) {
+            cursor.addRow(score.mRow);
+        }
+        return cursor;
+    }
+
+    private static class ScoreComparator implements Comparator<Score> {
+        private final long mLastHitTime;
+
+        ScoreComparator(long lastHitTime) {
+            mLastHitTime = lastHitTime;
+        }
+
+        public int compare(Score a, Score b) {
+            boolean aLatest = a.mLastHitTime == mLastHitTime;
+            boolean bLatest = b.mLastHitTime == mLastHitTime;
+            if (aLatest != bLatest) return aLatest ? -1 : 1;
+            if (a.mTotal != b.mTotal) return a.mTotal > b.mTotal ? -1 : 1;
+            // Keep ties in a stable order
+            return ((String) a.mRow[INTENT_KEY]).compareTo((String) b.mRow[INTENT_KEY]);
+        }
+    }
+
+    private Object[] toRow(ContentValues shortcut) {
+        Shortcuts[] columns = Shortcuts.values();
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            row[i] = shortcut.get(columns[i].name());
+        }
+        return row;
+    }
+
+    private void addClickLocked(String intentKey, String query, long hitTime) {
+        if (query == null) query = "";
+        ArrayList<Click> clicks = mClicks.get(query);
+        if (clicks == null) {
+            clicks = new ArrayList<Click>(1);
+            mClicks.put(query, clicks);
+        }
+        clicks.add(new Click(intentKey, hitTime));
+        mOldestHitTime = Math.min(mOldestHitTime, hitTime);
+    }
+
+    private ArrayList<String> findShortcuts(String source, String shortcutId) {
+        ArrayList<String> found = new ArrayList<String>();
+        for (Object[] row : mShortcuts.values()) {
+            if (shortcutId.equals(row[SHORTCUT_ID]) && source.equals(row[SOURCE])) {
+                found.add((String) row[INTENT_KEY]);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Moves all clicks on the given shortcuts to another one, or removes them if
+     * {@code newKey} is {@code null}.
+     */
+    private void moveClicks(Collection<String> oldKeys, String newKey) {
+        if (oldKeys.isEmpty()) return;
+        Iterator<ArrayList<Click>> lists = mClicks.values().iterator();
+        while (lists.hasNext()) {
+            ArrayList<Click> clicks = lists.next();
+            for (int i = clicks.size() - 1; i >= 0; i--) {
+                Click click = clicks.get(i);
+                if (!oldKeys.contains(click.mIntentKey)) continue;
+                if (newKey == null) {
+                    clicks.remove(i);
+                } else {
+                    click.mIntentKey = newKey;
+                }
+            }
+            if (clicks.isEmpty()) lists.remove();
+        }
+    }
+
+    private void pruneClicks(long cutOff) {
+        long oldest = Long.MAX_VALUE;
+        Iterator<ArrayList<Click>> lists = mClicks.values().iterator();
+        while (lists.hasNext()) {
+            ArrayList<Click> clicks = lists.next();
+            for (int i = clicks.size() - 1; i >= 0; i--) {
+                long hitTime = clicks.get(i).mHitTime;
+                if (hitTime < cutOff) {
+                    clicks.remove(i);
+                } else {
+                    oldest = Math.min(oldest, hitTime);
+                }
+            }
+            if (clicks.isEmpty()) lists.remove();
+        }
+        mOldestHitTime = oldest;
+    }
+}
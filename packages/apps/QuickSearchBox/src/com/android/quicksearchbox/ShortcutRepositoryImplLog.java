@@ -80,6 +80,8 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     private final Executor mLogExecutor;
     private final DbOpenHelper mOpenHelper;
     private final String mSearchSpinner;
+    // In-memory copy of the shortcuts and click log, loaded on first use
+    private final ShortcutIndex mIndex;
 
     /**
      * Create an instance to the repo.
@@ -106,6 +108,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         mLogExecutor = logExecutor;
         mOpenHelper = new DbOpenHelper(context, name, DB_VERSION, config);
         buildShortcutQueries();
+        mIndex = new ShortcutIndex(SHORTCUT_CURSOR_COLUMNS, mConfig.getMaxStatAgeMillis());
 
         mSearchSpinner = Util.getResourceUri(mContext, R.drawable.search_spinner).toString();
     }
@@ -139,6 +142,17 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
             Shortcuts.custom_columns.fullName,
         };
 
+    // The names of the columns in the shortcut query results
+    private static final String[] SHORTCUT_CURSOR_COLUMNS = buildShortcutCursorColumns();
+
+    private static final String[] SHORTCUT_COLUMNS = Shortcuts.names();
+
+    private static final String[] CLICK_INDEX_COLUMNS = {
+            ClickLog.intent_key.name(),
+            ClickLog.query.name(),
+            ClickLog.hit_time.name(),
+        };
+
     // Avoid GLOB by using >= AND <, with some manipulation (see nextString(String)).
     // to figure out the upper bound (e.g. >= "abc" AND < "abd"
     // This allows us to use parameter binding and still take advantage of the
@@ -179,6 +193,17 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         if (DBG) Log.d(TAG, "Empty shortcut:\n" + mShortcutQuery);
     }
 
+    private static String[] buildShortcutCursorColumns() {
+        String[] columns = new String[SHORTCUT_QUERY_COLUMNS.length];
+        for (int i = 0; i < columns.length; i++) {
+            String column = SHORTCUT_QUERY_COLUMNS[i];
+            int as = column.lastIndexOf(AS);
+            columns[i] = as >= 0 ? column.substring(as + AS.length())
+                    : column.substring(column.lastIndexOf('.') + 1);
+        }
+        return columns;
+    }
+
     /**
      * @return sql that ranks sources by total clicks, filtering out sources
      *         without enough clicks.
@@ -235,6 +260,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
             public boolean performTransaction(SQLiteDatabase db) {
                 db.delete(Shortcuts.TABLE_NAME, Shortcuts.intent_key.fullName + " = ?",
                         new String[]{ intentKey });
+                mIndex.removeShortcut(intentKey);
                 return true;
             }
         });
@@ -247,6 +273,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
                 db.delete(ClickLog.TABLE_NAME, null, null);
                 db.delete(Shortcuts.TABLE_NAME, null, null);
                 db.delete(SourceStats.TABLE_NAME, null, null);
+                mIndex.clear();
                 return true;
             }
         });
@@ -255,6 +282,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     @VisibleForTesting
     public void deleteRepository() {
         getOpenHelper().deleteDatabase();
+        mIndex.invalidate();
     }
 
     public void close() {
@@ -316,13 +344,8 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     ShortcutCursor getShortcutsForQuery(String query, Collection<Corpus> allowedCorpora,
             boolean allowWebSearchShortcuts, long now) {
         if (DBG) Log.d(TAG, "getShortcutsForQuery(" + query + "," + allowedCorpora + ")");
-        String sql = query.length() == 0 ? mEmptyQueryShortcutQuery : mShortcutQuery;
-        String[] params = buildShortcutQueryParams(query, now);
-
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor cursor = db.rawQuery(sql, params);
-        if (cursor.getCount() == 0) {
-            cursor.close();
+        Cursor cursor = queryShortcuts(query, now);
+        if (cursor == null) {
             return null;
         }
 
@@ -339,6 +362,65 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
                 allowWebSearchShortcuts, mUiThread, mRefresher, this);
     }
 
+    /**
+     * Gets the shortcuts for a query from the in-memory index, loading it first if needed.
+     *
+     * @return A cursor with the shortcuts, best first, or {@code null} if there are none.
+     */
+    @VisibleForTesting
+    Cursor queryShortcuts(String query, long now) {
+        synchronized (mIndex) {
+            if (!mIndex.isLoaded()) {
+                loadIndex(mOpenHelper.getReadableDatabase(), now);
+            }
+            return mIndex.query(query, now);
+        }
+    }
+
+    /**
+     * Gets the shortcuts for a query from the click log in the database. This gives the same
+     * results as {@link #queryShortcuts}, except for the order of shortcuts that tie.
+     *
+     * @return A cursor with the shortcuts, best first, or {@code null} if there are none.
+     */
+    @VisibleForTesting
+    Cursor queryShortcutsFromLog(String query, long now) {
+        String sql = query.length() == 0 ? mEmptyQueryShortcutQuery : mShortcutQuery;
+        String[] params = buildShortcutQueryParams(query, now);
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery(sql, params);
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            return null;
+        }
+        return cursor;
+    }
+
+    private void loadIndex(SQLiteDatabase db, long now) {
+        long start = System.currentTimeMillis();
+        String cutOff = String.valueOf(now - mConfig.getMaxStatAgeMillis());
+        Cursor shortcuts = db.query(Shortcuts.TABLE_NAME, SHORTCUT_COLUMNS,
+                null, null, null, null, null);
+        try {
+            Cursor clicks = db.query(ClickLog.TABLE_NAME, CLICK_INDEX_COLUMNS,
+                    ClickLog.hit_time.name() + " >= ?", new String[]{ cutOff },
+                    null, null, null);
+            try {
+                mIndex.load(shortcuts, clicks);
+                if (DBG) {
+                    Log.d(TAG, "Loaded " + shortcuts.getCount() + " shortcuts and "
+                            + clicks.getCount() + " clicks in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                }
+            } finally {
+                clicks.close();
+            }
+        } finally {
+            shortcuts.close();
+        }
+    }
+
     @VisibleForTesting
     void refreshShortcut(Source source, final String shortcutId,
             SuggestionCursor refreshed) {
@@ -360,10 +442,12 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
                 if (shortcut == null) {
                     if (DBG) Log.d(TAG, "Deleting shortcut: " + shortcutId);
                     db.delete(Shortcuts.TABLE_NAME, SHORTCUT_BY_ID_WHERE, whereArgs);
+                    mIndex.removeShortcuts(whereArgs[1], shortcutId);
                 } else {
                     if (DBG) Log.d(TAG, "Updating shortcut: " + shortcut);
                     db.updateWithOnConflict(Shortcuts.TABLE_NAME, shortcut,
                             SHORTCUT_BY_ID_WHERE, whereArgs, SQLiteDatabase.CONFLICT_REPLACE);
+                    mIndex.updateShortcuts(whereArgs[1], shortcutId, shortcut);
                 }
                 return true;
             }
@@ -636,7 +720,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
 
     @VisibleForTesting
     void reportClickAtTime(SuggestionCursor suggestion,
-            int position, long now) {
+            int position, final long now) {
         suggestion.moveTo(position);
         if (DBG) {
             Log.d(TAG, "logClicked(" + suggestion + ")");
@@ -670,6 +754,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         click.put(ClickLog.query.name(), suggestion.getUserQuery());
         click.put(ClickLog.hit_time.name(), now);
         click.put(ClickLog.corpus.name(), corpus.getName());
+        final String query = suggestion.getUserQuery();
 
         runTransactionAsync(new SQLiteTransaction() {
             @Override
@@ -677,6 +762,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
                 if (DBG) Log.d(TAG, "Adding shortcut: " + shortcut);
                 db.replaceOrThrow(Shortcuts.TABLE_NAME, null, shortcut);
                 db.insertOrThrow(ClickLog.TABLE_NAME, null, click);
+                mIndex.reportClick(shortcut, query, now);
                 return true;
             }
         });
@@ -714,6 +800,15 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         Shortcuts() {
             fullName = TABLE_NAME + "." + name();
         }
+
+        static String[] names() {
+            Shortcuts[] vals = Shortcuts.values();
+            String[] names = new String[vals.length];
+            for (int i = 0; i < vals.length; i++) {
+                names[i] = vals[i].name();
+            }
+            return names;
+        }
     }
 
     /**
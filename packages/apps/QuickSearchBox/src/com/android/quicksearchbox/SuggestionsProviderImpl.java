@@ -31,7 +31,8 @@ import java.util.List;
  * Suggestions provider implementation.
  *
  * The provider will only handle a single query at a time. If a new query comes
- * in, the old one is cancelled.
+ * in, the old one is cancelled. Recent corpus results are kept in a
+ * {@link CorpusResultCache}, so repeated queries are answered without asking the corpora again.
  */
 public class SuggestionsProviderImpl implements SuggestionsProvider {
 
@@ -48,6 +49,8 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
 
     private final Logger mLogger;
 
+    private final CorpusResultCache mResultCache;
+
     private BatchingNamedTaskExecutor mBatchingExecutor;
 
     public SuggestionsProviderImpl(Config config,
@@ -59,10 +62,12 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
         mPublishThread = publishThread;
         mLogger = logger;
         mShouldQueryStrategy = new ShouldQueryStrategy(mConfig);
+        mResultCache = new CorpusResultCache(mConfig);
     }
 
     public void close() {
         cancelPendingTasks();
+        mResultCache.clear();
     }
 
     /**
@@ -135,8 +140,12 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
             suggestions.done();
         }
 
+        ArrayList<CachedCorpus> cachedCorpora = new ArrayList<CachedCorpus>(corporaToQuery.size());
+        for (Corpus corpus : corporaToQuery) {
+            cachedCorpora.add(new CachedCorpus(corpus));
+        }
         int maxResultsPerSource = mConfig.getMaxResultsPerSource();
-        QueryTask.startQueries(query, maxResultsPerSource, corporaToQuery, mBatchingExecutor,
+        QueryTask.startQueries(query, maxResultsPerSource, cachedCorpora, mBatchingExecutor,
                 mPublishThread, receiver, corporaToQuery.size() == 1);
         mBatchingExecutor.executeNextBatch(initialBatchSize);
 
@@ -164,6 +173,30 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
     }
 
 
+    /**
+     * Gets suggestions from a corpus through the result cache.
+     */
+    private class CachedCorpus implements SuggestionCursorProvider<CorpusResult> {
+        private final Corpus mCorpus;
+
+        public CachedCorpus(Corpus corpus) {
+            mCorpus = corpus;
+        }
+
+        public String getName() {
+            return mCorpus.getName();
+        }
+
+        public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyOne) {
+            return mResultCache.getSuggestions(mCorpus, query, queryLimit, onlyOne);
+        }
+
+        @Override
+        public String toString() {
+            return mCorpus.toString();
+        }
+    }
+
     private class SuggestionCursorReceiver implements Consumer<CorpusResult> {
         private final BatchingNamedTaskExecutor mExecutor;
         private final Suggestions mSuggestions;
@@ -214,6 +247,8 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
             }
             if (cursor != null && mLogger != null) {
                 mLogger.logLatency(cursor);
+                mLogger.logResultCacheStats(cursor.getCorpus(),
+                        mResultCache.getStats(cursor.getCorpus().getName()));
             }
             return true;
         }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+/**
+ * Matches the words of a source string against the words of a target string using the
+ * Levenshtein distance, in the same way as {@link LevenshteinDistance}, but without allocating
+ * anything once its buffers have grown large enough.
+ *
+ * Tokens are kept as start and end offsets into a reused character buffer instead of
+ * {@link LevenshteinDistance.Token} objects. The distances are computed in two rolling rows,
+ * and only the edit type of each cell is kept for tracing the path back through the matrix,
+ * one byte per cell in a reused buffer.
+ *
+ * Instances are not thread safe; use one per thread.
+ */
+public class LevenshteinMatcher {
+
+    private static final int INITIAL_LENGTH = 64;
+    private static final int INITIAL_TOKENS = 8;
+
+    private final Tokens mSource = new Tokens();
+    private final Tokens mTarget = new Tokens();
+
+    private int[] mPreviousRow = new int[INITIAL_TOKENS + 1];
+    private int[] mCurrentRow = new int[INITIAL_TOKENS + 1];
+    // Edit types, (target token count + 1) cells per source token
+    private byte[] mEditTypes = new byte[(INITIAL_TOKENS + 1) * (INITIAL_TOKENS + 1)];
+    private int[] mMatches = new int[INITIAL_TOKENS];
+
+    private static final class Tokens {
+        char[] mChars = new char[INITIAL_LENGTH];
+        int[] mStarts = new int[INITIAL_TOKENS];
+        int[] mEnds = new int[INITIAL_TOKENS];
+        int mCount;
+
+        void tokenize(String seq) {
+            final int len = seq.length();
+            if (mChars.length < len) {
+                mChars = new char[Math.max(len, mChars.length * 2)];
+            }
+            final char[] chars = mChars;
+            seq.getChars(0, len, chars, 0);
+            int pos = 0;
+            int count = 0;
+            while (pos < len) {
+                while (pos < len && (chars[pos] == ' ' || chars[pos] == '\t')) {
+                    pos++;
+                }
+                int start = pos;
+                while (pos < len && !(chars[pos] == ' ' || chars[pos] == '\t')) {
+                    pos++;
+                }
+                if (start != pos) {
+                    if (count == mStarts.length) {
+                        mStarts = grow(mStarts, count * 2);
+                        mEnds = grow(mEnds, count * 2);
+                    }
+                    mStarts[count] = start;
+                    mEnds[count] = pos;
+                    count++;
+                }
+            }
+            mCount = count;
+        }
+    }
+
+    /**
+     * Sets the source string, i.e. the user query, and splits it into tokens.
+     */
+    public void setSource(String source) {
+        mSource.tokenize(source);
+    }
+
+    /**
+     * Sets the target string, i.e. the suggestion, and splits it into tokens.
+     */
+    public void setTarget(String target) {
+        mTarget.tokenize(target);
+    }
+
+    public int getSourceTokenCount() {
+        return mSource.mCount;
+    }
+
+    public int getSourceTokenStart(int index) {
+        return mSource.mStarts[index];
+    }
+
+    public int getSourceTokenEnd(int index) {
+        return mSource.mEnds[index];
+    }
+
+    public int getTargetTokenCount() {
+        return mTarget.mCount;
+    }
+
+    public int getTargetTokenStart(int index) {
+        return mTarget.mStarts[index];
+    }
+
+    public int getTargetTokenEnd(int index) {
+        return mTarget.mEnds[index];
+    }
+
+    /**
+     * Calculates the Levenshtein distance between the source and target tokens. A source token
+     * is considered to be the same as a target token if it is a prefix of it.
+     *
+     * @return The Levenshtein distance.
+     */
+    public int calculate() {
+        final int sourceLen = mSource.mCount;
+        final int targetLen = mTarget.mCount;
+        final int width = targetLen + 1;
+        if (mPreviousRow.length < width) {
+            mPreviousRow = new int[width];
+            mCurrentRow = new int[width];
+        }
+        if (mEditTypes.length < (sourceLen + 1) * width) {
+            mEditTypes = new byte[(sourceLen + 1) * width];
+        }
+        final byte[] editTab = mEditTypes;
+        int[] prev = mPreviousRow;
+        int[] cur = mCurrentRow;
+
+        editTab[0] = LevenshteinDistance.EDIT_UNCHANGED;
+        prev[0] = 0;
+        for (int t = 1; t <= targetLen; ++t) {
+            editTab[t] = LevenshteinDistance.EDIT_INSERT;
+            prev[t] = t;
+        }
+        for (int s = 1; s <= sourceLen; ++s) {
+            final int row = s * width;
+            editTab[row] = LevenshteinDistance.EDIT_DELETE;
+            cur[0] = s;
+            for (int t = 1; t <= targetLen; ++t) {
+                int cost = isPrefix(s - 1, t - 1) ? 0 : 1;
+
+                // Same order of preference as LevenshteinDistance, so that ties are
+                // resolved the same way
+                int distance = prev[t] + 1;
+                byte type = LevenshteinDistance.EDIT_DELETE;
+
+                int d = cur[t - 1];
+                if (d + 1 < distance) {
+                    distance = d + 1;
+                    type = LevenshteinDistance.EDIT_INSERT;
+                }
+
+                d = prev[t - 1];
+                if (d + cost < distance) {
+                    distance = d + cost;
+                    type = (byte) (cost == 0 ? LevenshteinDistance.EDIT_UNCHANGED
+                            : LevenshteinDistance.EDIT_REPLACE);
+                }
+                cur[t] = distance;
+                editTab[row + t] = type;
+            }
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[targetLen];
+    }
+
+    /**
+     * Finds which target tokens match source tokens; {@link #calculate} must have been called
+     * before using this method.
+     *
+     * @return A buffer owned by this object, valid until the next call, holding at index i the
+     *      index of the source token that target token i matches, or a negative value if it does
+     *      not match any source token. Only the first {@link #getTargetTokenCount} values are
+     *      used.
+     */
+    public int[] getTargetMatches() {
+        final int targetLen = mTarget.mCount;
+        if (mMatches.length < targetLen) {
+            mMatches = new int[targetLen];
+        }
+        final int[] matches = mMatches;
+        final byte[] editTab = mEditTypes;
+        final int width = targetLen + 1;
+        int targetPos = targetLen;
+        int sourcePos = mSource.mCount;
+        while (targetPos > 0) {
+            switch (editTab[sourcePos * width + targetPos]) {
+                case LevenshteinDistance.EDIT_DELETE:
+                    sourcePos--;
+                    break;
+                case LevenshteinDistance.EDIT_INSERT:
+                    targetPos--;
+                    matches[targetPos] = -1;
+                    break;
+                case LevenshteinDistance.EDIT_REPLACE:
+                    targetPos--;
+                    sourcePos--;
+                    matches[targetPos] = -1;
+                    break;
+                case LevenshteinDistance.EDIT_UNCHANGED:
+                    targetPos--;
+                    sourcePos--;
+                    matches[targetPos] = sourcePos;
+                    break;
+            }
+        }
+        return matches;
+    }
+
+    private boolean isPrefix(int sourceIndex, int targetIndex) {
+        final Tokens source = mSource;
+        final Tokens target = mTarget;
+        final int sourceStart = source.mStarts[sourceIndex];
+        final int targetStart = target.mStarts[targetIndex];
+        final int len = source.mEnds[sourceIndex] - sourceStart;
+        if (len > target.mEnds[targetIndex] - targetStart) return false;
+        final char[] sourceChars = source.mChars;
+        final char[] targetChars = target.mChars;
+        for (int i = 0; i < len; ++i) {
+            if (sourceChars[sourceStart + i] != targetChars[targetStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[size];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CorpusResultCache}.
+ */
+@MediumTest
+public class CorpusResultCacheTest extends AndroidTestCase {
+
+    private static final int QUERY_LIMIT = 10;
+
+    private static final String[] WORDS = { "apple", "big apricot", "avocado", "Apricot jam" };
+
+    private static class TestConfig extends Config {
+        boolean mPrefixFilterable = false;
+        long mTimeoutMillis = 60000;
+
+        TestConfig(AndroidTestCase test) {
+            super(test.getContext());
+        }
+
+        @Override
+        public boolean isCorpusPrefixFilterable(Corpus corpus) {
+            return mPrefixFilterable;
+        }
+
+        @Override
+        public long getCorpusResultCacheTimeoutMillis() {
+            return mTimeoutMillis;
+        }
+    }
+
+    /**
+     * Returns the words that contain the query, and counts how often it is queried.
+     */
+    private static class CountingCorpus extends MockCorpus {
+        int mQueryCount = 0;
+        CountDownLatch mGate;
+
+        CountingCorpus() {
+            super(MockSource.SOURCE_1);
+        }
+
+        @Override
+        public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyCorpus) {
+            synchronized (this) {
+                mQueryCount++;
+            }
+            if (mGate != null) {
+                try {
+                    mGate.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Just return the results
+                }
+            }
+            Result result = new Result(query);
+            for (String word : WORDS) {
+                if (result.getCount() < queryLimit && word.toLowerCase().contains(query)) {
+                    result.add(MockSource.SOURCE_1.createSuggestion(word));
+                }
+            }
+            return result;
+        }
+
+        synchronized int getQueryCount() {
+            return mQueryCount;
+        }
+
+        private class Result extends ListSuggestionCursor implements CorpusResult {
+            Result(String userQuery) {
+                super(userQuery);
+            }
+
+            public Corpus getCorpus() {
+                return CountingCorpus.this;
+            }
+
+            public int getLatency() {
+                return 0;
+            }
+        }
+    }
+
+    private TestConfig mConfig;
+    private CountingCorpus mCorpus;
+    private CorpusResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mConfig = new TestConfig(this);
+        mCorpus = new CountingCorpus();
+        mCache = new CorpusResultCache(mConfig);
+    }
+
+    private CorpusResult query(String query) {
+        return mCache.getSuggestions(mCorpus, query, QUERY_LIMIT, false);
+    }
+
+    private void assertQuery(String query, String... expected) {
+        CorpusResult result = query(query);
+        try {
+            assertEquals(query, result.getUserQuery());
+            assertEquals(mCorpus, result.getCorpus());
+            assertEquals(expected.length, result.getCount());
+            for (int i = 0; i < expected.length; i++) {
+                result.moveTo(i);
+                assertEquals(expected[i], result.getSuggestionText1());
+            }
+        } finally {
+            result.close();
+        }
+    }
+
+    public void testRepeatedQueryIsCached() {
+        assertQuery("ap", "apple", "big apricot", "Apricot jam");
+        assertQuery("ap", "apple", "big apricot", "Apricot jam");
+        assertEquals(1, mCorpus.getQueryCount());
+
+        CorpusResultCache.Stats stats = mCache.getStats(mCorpus.getName());
+        assertEquals(1, stats.getHits());
+        assertEquals(0, stats.getPrefixHits());
+        assertEquals(1, stats.getMisses());
+    }
+
+    public void testCachedResultCopiesSuggestions() {
+        CorpusResult original = query("avo");
+        original.close();
+        CorpusResult cached = query("avo");
+        try {
+            SuggestionCursorUtil.assertSameSuggestions(
+                    new ListSuggestionCursor("avo",
+                            MockSource.SOURCE_1.createSuggestion("avocado")),
+                    cached);
+        } finally {
+            cached.close();
+        }
+    }
+
+    public void testDifferentQueriesAreNotShared() {
+        assertQuery("a", WORDS);
+        assertQuery("ap", "apple", "big apricot", "Apricot jam");
+        assertEquals(2, mCorpus.getQueryCount());
+        assertEquals(0, mCache.getStats(mCorpus.getName()).getPrefixHits());
+    }
+
+    public void testExpiredEntriesAreNotUsed() {
+        mConfig.mTimeoutMillis = -1;
+        assertQuery("ap", "apple", "big apricot", "Apricot jam");
+        assertQuery("ap", "apple", "big apricot", "Apricot jam");
+        assertEquals(2, mCorpus.getQueryCount());
+    }
+
+    public void testClear() {
+        assertQuery("ap", "apple", "big apricot", "Apricot jam");
+        mCache.clear();
+        assertQuery("ap", "apple", "big apricot", "Apricot jam");
+        assertEquals(2, mCorpus.getQueryCount());
+    }
+
+    public void testPrefixFiltering() {
+        mConfig.mPrefixFilterable = true;
+        assertQuery("a", WORDS);
+        // Word prefix matches only, ignoring case
+        assertQuery("apr", "big apricot", "Apricot jam");
+        assertEquals(1, mCorpus.getQueryCount());
+        assertEquals(1, mCache.getStats(mCorpus.getName()).getPrefixHits());
+    }
+
+    public void testPrefixFilteringNeedsCompleteResult() {
+        mConfig.mPrefixFilterable = true;
+        CorpusResult result = mCache.getSuggestions(mCorpus, "a", 2, false);
+        result.close();
+        assertQuery("ap", "apple", "big apricot", "Apricot jam");
+        assertEquals(2, mCorpus.getQueryCount());
+    }
+
+    public void testRunningQueryIsShared() throws Exception {
+        mCorpus.mGate = new CountDownLatch(1);
+        final CorpusResult[] results = new CorpusResult[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = query("avo");
+                }
+            };
+            threads[i].start();
+        }
+        // Give both threads a chance to get to the cache
+        Thread.sleep(100);
+        mCorpus.mGate.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(1, mCorpus.getQueryCount());
+        for (CorpusResult result : results) {
+            assertEquals(1, result.getCount());
+            result.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import com.android.quicksearchbox.util.LevenshteinDistance.Token;
+import com.android.quicksearchbox.util.LevenshteinMatcher;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Matches 50 suggestions against every prefix of a query, as is done when formatting the
+ * suggestions list on each keystroke, and logs the time taken and the number of objects
+ * allocated with {@link Token} arrays and with a reused {@link LevenshteinMatcher}.
+ */
+@LargeTest
+public class LevenshteinFormatterBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "LevenshteinFormatterBenchmarkTest";
+
+    private static final String QUERY = "hitchhiker's guide to the galaxy";
+    private static final int SUGGESTION_COUNT = 50;
+    private static final int ROUNDS = 20;
+
+    private LevenshteinSuggestionFormatter mFormatter;
+    private String[] mSuggestions;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFormatter = new LevenshteinSuggestionFormatter(new MockTextAppearanceFactory());
+        String[] words = QUERY.split(" ");
+        Random random = new Random(42);
+        mSuggestions = new String[SUGGESTION_COUNT];
+        for (int i = 0; i < SUGGESTION_COUNT; i++) {
+            StringBuilder suggestion = new StringBuilder();
+            int wordCount = 1 + random.nextInt(8);
+            for (int j = 0; j < wordCount; j++) {
+                if (j > 0) suggestion.append(' ');
+                suggestion.append(words[random.nextInt(words.length)]);
+            }
+            mSuggestions[i] = suggestion.toString();
+        }
+    }
+
+    private int matchWithTokens() {
+        int matched = 0;
+        for (int i = 1; i <= QUERY.length(); i++) {
+            Token[] queryTokens = mFormatter.tokenize(QUERY.substring(0, i));
+            for (String suggestion : mSuggestions) {
+                Token[] suggestionTokens = mFormatter.tokenize(suggestion);
+                int[] matches = mFormatter.findMatches(queryTokens, suggestionTokens);
+                for (int match : matches) {
+                    if (match >= 0) matched++;
+                }
+            }
+        }
+        return matched;
+    }
+
+    private int matchWithMatcher(LevenshteinMatcher matcher) {
+        int matched = 0;
+        for (int i = 1; i <= QUERY.length(); i++) {
+            matcher.setSource(QUERY.substring(0, i));
+            for (String suggestion : mSuggestions) {
+                matcher.setTarget(suggestion);
+                matcher.calculate();
+                int[] matches = matcher.getTargetMatches();
+                for (int j = 0; j < matcher.getTargetTokenCount(); j++) {
+                    if (matches[j] >= 0) matched++;
+                }
+            }
+        }
+        return matched;
+    }
+
+    public void testBenchmark() {
+        LevenshteinMatcher matcher = new LevenshteinMatcher();
+        // Warm up, and grow the matcher buffers
+        assertEquals(matchWithTokens(), matchWithMatcher(matcher));
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                matchWithTokens();
+            }
+            long tokensTime = (System.nanoTime() - start) / ROUNDS;
+            int tokensAllocs = Debug.getThreadAllocCount() / ROUNDS;
+
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                matchWithMatcher(matcher);
+            }
+            long matcherTime = (System.nanoTime() - start) / ROUNDS;
+            int matcherAllocs = Debug.getThreadAllocCount() / ROUNDS;
+
+            Log.i(TAG, SUGGESTION_COUNT + " suggestions x " + QUERY.length() + " keystrokes: "
+                    + "tokens=" + tokensTime / 1000 + "us/" + tokensAllocs + " objects, "
+                    + "matcher=" + matcherTime / 1000 + "us/" + matcherAllocs + " objects");
+            // Only the query substrings should be allocated
+            assertTrue("matcher allocated " + matcherAllocs, matcherAllocs < tokensAllocs);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public void testFormatSuggestionBenchmark() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (int j = 1; j <= QUERY.length(); j++) {
+                String query = QUERY.substring(0, j);
+                for (String suggestion : mSuggestions) {
+                    mFormatter.formatSuggestion(query, suggestion);
+                }
+            }
+        }
+        long time = (System.nanoTime() - start) / (ROUNDS * QUERY.length());
+        Log.i(TAG, "formatSuggestion: " + time / 1000 + "us per keystroke");
+    }
+}
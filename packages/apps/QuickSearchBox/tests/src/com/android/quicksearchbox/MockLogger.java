@@ -48,4 +48,7 @@ public class MockLogger implements Logger {
     public void logLatency(CorpusResult result) {
     }
 
+    public void logResultCacheStats(Corpus corpus, CorpusResultCache.Stats stats) {
+    }
+
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import com.android.quicksearchbox.ShortcutRepositoryImplLog.ClickLog;
+import com.android.quicksearchbox.ShortcutRepositoryImplLog.Shortcuts;
+import com.android.quicksearchbox.util.MockExecutor;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Fills the click log with 10000 clicks on 500 shortcuts, checks that the in-memory shortcut
+ * index gives the same shortcuts as the SQL query on it, and logs how long each takes.
+ */
+@LargeTest
+public class ShortcutIndexBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "ShortcutIndexBenchmarkTest";
+
+    private static final long NOW = ShortcutRepositoryTest.NOW;
+    private static final int SHORTCUT_COUNT = 500;
+    private static final int CLICK_COUNT = 10000;
+    private static final int WORD_COUNT = 200;
+    private static final int ROUNDS = 20;
+
+    private static final Source SOURCE = ShortcutRepositoryTest.APP_SOURCE;
+
+    private ShortcutRepositoryImplLog mRepo;
+    private String[] mQueries;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Config config = new Config(getContext());
+        MockCorpora corpora = new MockCorpora();
+        corpora.addCorpus(ShortcutRepositoryTest.APP_CORPUS);
+        mRepo = new ShortcutRepositoryImplLog(getContext(), config, corpora,
+                new MockShortcutRefresher(), new MockHandler(), new MockExecutor(),
+                "test-shortcuts-benchmark.db");
+
+        Random random = new Random(42);
+        String[] words = new String[WORD_COUNT];
+        for (int i = 0; i < WORD_COUNT; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+
+        SQLiteOpenHelper helper = mRepo.getOpenHelper();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < SHORTCUT_COUNT; i++) {
+                ContentValues shortcut = new ContentValues();
+                shortcut.put(Shortcuts.intent_key.name(), SOURCE.getName() + "#apps/" + i);
+                shortcut.put(Shortcuts.source.name(), SOURCE.getName());
+                shortcut.put(Shortcuts.source_version_code.name(), SOURCE.getVersionCode());
+                shortcut.put(Shortcuts.title.name(), "app" + i);
+                shortcut.put(Shortcuts.intent_data.name(), "apps/" + i);
+                shortcut.put(Shortcuts.shortcut_id.name(), "shortcut_" + i);
+                db.insertOrThrow(Shortcuts.TABLE_NAME, null, shortcut);
+            }
+            for (int i = 0; i < CLICK_COUNT; i++) {
+                // Every click was made for some prefix of a word, at a different time
+                String word = words[random.nextInt(WORD_COUNT)];
+                ContentValues click = new ContentValues();
+                click.put(ClickLog.intent_key.name(),
+                        SOURCE.getName() + "#apps/" + random.nextInt(SHORTCUT_COUNT));
+                click.put(ClickLog.query.name(), word.substring(0, 1 + random.nextInt(3)));
+                click.put(ClickLog.hit_time.name(), NOW - (CLICK_COUNT - i) * 7919L);
+                click.put(ClickLog.corpus.name(), ShortcutRepositoryTest.APP_CORPUS.getName());
+                db.insertOrThrow(ClickLog.TABLE_NAME, null, click);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mQueries = new String[] { "", "a", "e", "q", "z", words[0].substring(0, 2),
+                words[1].substring(0, 2), words[2].substring(0, 3), "nomatch" };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRepo.deleteRepository();
+        super.tearDown();
+    }
+
+    public void testIndexMatchesLog() {
+        for (String query : mQueries) {
+            Cursor expected = mRepo.queryShortcutsFromLog(query, NOW);
+            Cursor observed = mRepo.queryShortcuts(query, NOW);
+            try {
+                if (expected == null) {
+                    assertNull(query, observed);
+                    continue;
+                }
+                assertNotNull(query, observed);
+                assertEquals(query, expected.getCount(), observed.getCount());
+                // Only the most recent shortcut is certain to be in the same place;
+                // the SQL query leaves the order of ties undefined.
+                assertEquals(query, getIntentKeys(expected, 1), getIntentKeys(observed, 1));
+                assertEquals(query, getIntentKeys(expected, Integer.MAX_VALUE),
+                        getIntentKeys(observed, Integer.MAX_VALUE));
+            } finally {
+                if (expected != null) expected.close();
+                if (observed != null) observed.close();
+            }
+        }
+    }
+
+    public void testBenchmark() {
+        // Build the index outside of the timed loop
+        closeCursor(mRepo.queryShortcuts("", NOW));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String query : mQueries) {
+                closeCursor(mRepo.queryShortcutsFromLog(query, NOW));
+            }
+        }
+        long log = (System.nanoTime() - start) / (ROUNDS * mQueries.length);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String query : mQueries) {
+                closeCursor(mRepo.queryShortcuts(query, NOW));
+            }
+        }
+        long index = (System.nanoTime() - start) / (ROUNDS * mQueries.length);
+
+        Log.i(TAG, CLICK_COUNT + " clicks: log=" + log / 1000 + "us index=" + index / 1000
+                + "us per query");
+    }
+
+    private static HashSet<String> getIntentKeys(Cursor cursor, int max) {
+        HashSet<String> keys = new HashSet<String>();
+        int column = cursor.getColumnIndex(Shortcuts.intent_key.name());
+        cursor.moveToPosition(-1);
+        while (keys.size() < max && cursor.moveToNext()) {
+            keys.add(cursor.getString(column));
+        }
+        return keys;
+    }
+
+    private static void closeCursor(Cursor cursor) {
+        if (cursor != null) {
+            // Make sure the SQL query has actually run
+            cursor.getCount();
+            cursor.close();
+        }
+    }
+}
@@ -592,6 +592,36 @@ public class ShortcutRepositoryTest extends AndroidTestCase {
                 "app", mApp2, mApp1);
     }
 
+    public void testClearHistoryRemovesShortcuts() {
+        reportClick("app", mApp1);
+        assertShortcuts("app", mApp1);
+
+        mRepo.clearHistory();
+        mLogExecutor.runNext();
+        assertNoShortcuts("expected no shortcuts after clearing history", "");
+    }
+
+    public void testShortcutsLoadedFromLog() {
+        reportClick("app", mApp1);
+        reportClick("app", mApp2);
+        reportClick("app", mApp2);
+        assertShortcuts("app", mApp2, mApp1);
+
+        // A new instance has to build its index from the database
+        ShortcutRepositoryImplLog repo = createShortcutRepository();
+        try {
+            SuggestionCursor cursor = repo.getShortcutsForQuery("a", mAllowedCorpora, true, NOW);
+            try {
+                SuggestionCursorUtil.assertSameSuggestions("expected shortcuts from the log",
+                        new ListSuggestionCursor("a", mApp2, mApp1), cursor);
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+        } finally {
+            repo.close();
+        }
+    }
+
     public void testShortcutsAllowedCorpora() {
         reportClick("a", mApp1);
         reportClick("a", mContact1);
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import com.android.quicksearchbox.util.LevenshteinDistance.EditOperation;
+import com.android.quicksearchbox.util.LevenshteinDistance.Token;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests for class {@link LevenshteinMatcher}, checking it against {@link LevenshteinDistance}.
+ */
+@SmallTest
+public class LevenshteinMatcherTest extends AndroidTestCase {
+
+    private static final String[] WORDS = { "a", "ab", "abc", "b", "ba", "dem", "dry", "bones" };
+
+    private LevenshteinMatcher mMatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMatcher = new LevenshteinMatcher();
+    }
+
+    private void verifySameAsLevenshteinDistance(String source, String target) {
+        Token[] sourceTokens = makeTokens(source);
+        Token[] targetTokens = makeTokens(target);
+        LevenshteinDistance distance = new LevenshteinDistance(sourceTokens, targetTokens);
+        int expectedDistance = distance.calculate();
+        EditOperation[] ops = distance.getTargetOperations();
+
+        mMatcher.setSource(source);
+        mMatcher.setTarget(target);
+        String message = "'" + source + "' -> '" + target + "'";
+        assertEquals(message, sourceTokens.length, mMatcher.getSourceTokenCount());
+        assertEquals(message, targetTokens.length, mMatcher.getTargetTokenCount());
+        assertEquals(message, expectedDistance, mMatcher.calculate());
+        int[] matches = mMatcher.getTargetMatches();
+        for (int i = 0; i < targetTokens.length; ++i) {
+            assertEquals(message, targetTokens[i].mStart, mMatcher.getTargetTokenStart(i));
+            assertEquals(message, targetTokens[i].mEnd, mMatcher.getTargetTokenEnd(i));
+            if (ops[i].getType() == LevenshteinDistance.EDIT_UNCHANGED) {
+                assertEquals(message + " token " + i, ops[i].getPosition(), matches[i]);
+            } else {
+                assertTrue(message + " token " + i, matches[i] < 0);
+            }
+        }
+    }
+
+    private Token[] makeTokens(String str) {
+        char[] chars = str.toCharArray();
+        ArrayList<Token> tokens = new ArrayList<Token>();
+        int pos = 0;
+        while (pos < chars.length) {
+            while (pos < chars.length && (chars[pos] == ' ' || chars[pos] == '\t')) pos++;
+            int start = pos;
+            while (pos < chars.length && chars[pos] != ' ' && chars[pos] != '\t') pos++;
+            if (start != pos) tokens.add(new Token(chars, start, pos));
+        }
+        return tokens.toArray(new Token[tokens.size()]);
+    }
+
+    public void testEmpty() {
+        verifySameAsLevenshteinDistance("", "");
+        verifySameAsLevenshteinDistance("", "goo ball");
+        verifySameAsLevenshteinDistance("delete me", "");
+        verifySameAsLevenshteinDistance(" \t ", "  ");
+    }
+
+    public void testPrefixes() {
+        verifySameAsLevenshteinDistance("hitch", "hitchhiker's guide");
+        verifySameAsLevenshteinDistance("hos pital", "hospital waiting times");
+        verifySameAsLevenshteinDistance("dimsum london", "dim sum london yummy");
+    }
+
+    public void testDuplicateTokens() {
+        verifySameAsLevenshteinDistance("badger", "badger badger badger");
+        verifySameAsLevenshteinDistance("dem dry bones", "dry bones dem dry bones dem dry bones");
+    }
+
+    public void testReuseWithDifferentSizes() {
+        verifySameAsLevenshteinDistance("a b c d e f g h i j k l", "l k j i h g f e d c b a x y z");
+        verifySameAsLevenshteinDistance("a", "b a");
+        verifySameAsLevenshteinDistance("a\tb", "a  b");
+    }
+
+    public void testRandom() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            verifySameAsLevenshteinDistance(makeSentence(random, 6), makeSentence(random, 20));
+        }
+    }
+
+    private static String makeSentence(Random random, int maxWords) {
+        StringBuilder sentence = new StringBuilder();
+        int words = random.nextInt(maxWords + 1);
+        for (int i = 0; i < words; i++) {
+            sentence.append(random.nextBoolean() ? " " : "\t ");
+            sentence.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sentence.toString();
+    }
+}
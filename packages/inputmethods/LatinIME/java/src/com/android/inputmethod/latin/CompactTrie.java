@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import java.util.Arrays;
+
+/**
+ * Array-backed trie used by {@link ExpandableDictionary}.
+ *
+ * Nodes and bigrams are identified by int indices into flat primitive arrays instead of being
+ * allocated as individual objects, so that a user dictionary of a few thousand words does not
+ * create tens of thousands of small objects for the garbage collector to trace. Children are
+ * stored as first-child/next-sibling chains in insertion order, which keeps traversal order
+ * identical to the former NodeArray representation.
+ *
+ * Index 0 is a virtual root node that carries no character.
+ *
+ * This class is not thread-safe. Callers that read it from one thread while another writes
+ * to it must synchronize externally; nothing makes a write visible to other threads, or
+ * keeps the arrays consistent with each other while they grow.
+ */
+/* package */ final class CompactTrie {
+    public static final int ROOT = 0;
+    public static final int NOT_A_NODE = -1;
+    public static final int NOT_A_BIGRAM = -1;
+
+    // Unigram frequencies are capped at 255 by addWord, so the terminal flag fits in a short.
+    private static final int TERMINAL_FLAG = 0x100;
+    private static final int FREQUENCY_MASK = 0xFF;
+    private static final int MAX_UNIGRAM_FREQUENCY = 255;
+
+    private static final int INITIAL_NODE_CAPACITY = 64;
+    private static final int INITIAL_BIGRAM_CAPACITY = 16;
+
+    // Per-node data
+    private char[] mCodes;
+    private short[] mAttributes;
+    private int[] mParents;
+    // Per-node links
+    private int[] mFirstChildren;
+    private int[] mNextSiblings;
+    private int[] mFirstBigrams;
+    private int mNodeCount;
+
+    // Per-bigram data
+    private int[] mBigramTargets;
+    private int[] mBigramFrequencies;
+    // Per-bigram links
+    private int[] mNextBigrams;
+    private int mBigramCount;
+
+    public CompactTrie() {
+        mCodes = new char[INITIAL_NODE_CAPACITY];
+        mAttributes = new short[INITIAL_NODE_CAPACITY];
+        mParents = new int[INITIAL_NODE_CAPACITY];
+        mFirstChildren = new int[INITIAL_NODE_CAPACITY];
+        mNextSiblings = new int[INITIAL_NODE_CAPACITY];
+        mFirstBigrams = new int[INITIAL_NODE_CAPACITY];
+        mBigramTargets = new int[INITIAL_BIGRAM_CAPACITY];
+        mBigramFrequencies = new int[INITIAL_BIGRAM_CAPACITY];
+        mNextBigrams = new int[INITIAL_BIGRAM_CAPACITY];
+        mNodeCount = 0;
+        mBigramCount = 0;
+        newNode(NOT_A_NODE, (char)0);
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    public int getBigramCount() {
+        return mBigramCount;
+    }
+
+    public char getCode(int node) {
+        return mCodes[node];
+    }
+
+    public int getFrequency(int node) {
+        return mAttributes[node] & FREQUENCY_MASK;
+    }
+
+    public boolean isTerminal(int node) {
+        return (mAttributes[node] & TERMINAL_FLAG) != 0;
+    }
+
+    public int getParent(int node) {
+        return mParents[node];
+    }
+
+    public int getFirstChild(int node) {
+        return mFirstChildren[node];
+    }
+
+    public int getNextSibling(int node) {
+        return mNextSiblings[node];
+    }
+
+    public int getFirstBigram(int node) {
+        return mFirstBigrams[node];
+    }
+
+    public int getBigramTarget(int bigram) {
+        return mBigramTargets[bigram];
+    }
+
+    public int getBigramFrequency(int bigram) {
+        return mBigramFrequencies[bigram];
+    }
+
+    public int getNextBigram(int bigram) {
+        return mNextBigrams[bigram];
+    }
+
+    /**
+     * Adds a word, keeping the maximum of the existing and new frequency, capped at 255.
+     * Empty words are ignored.
+     */
+    public void addWord(String word, int frequency) {
+        final int wordLength = word.length();
+        if (wordLength == 0) return;
+        int node = ROOT;
+        for (int i = 0; i < wordLength; i++) {
+            node = findOrAddChild(node, word.charAt(i));
+        }
+        int newFrequency = Math.max(frequency, getFrequency(node));
+        if (newFrequency > MAX_UNIGRAM_FREQUENCY) newFrequency = MAX_UNIGRAM_FREQUENCY;
+        mAttributes[node] = (short)(TERMINAL_FLAG | newFrequency);
+    }
+
+    /**
+     * Searches for the word and adds it if it does not exist. The frequency of an existing
+     * word is left untouched; a newly added word has a frequency of 0.
+     * @param word the word to search for, must not be empty.
+     * @return Returns the terminal node of the word.
+     */
+    public int searchOrAddWord(String word) {
+        final int wordLength = word.length();
+        int node = ROOT;
+        for (int i = 0; i < wordLength; i++) {
+            node = findOrAddChild(node, word.charAt(i));
+        }
+        mAttributes[node] |= TERMINAL_FLAG;
+        return node;
+    }
+
+    /**
+     * Searches for the terminal node of the word.
+     * @param word the word to search for. Only read [0..length] so there may be trailing chars
+     * @param length the length of the input word.
+     * @return Returns the terminal node of the word, or {@link #NOT_A_NODE} if the word does
+     * not exist.
+     */
+    public int searchNode(CharSequence word, int length) {
+        if (length == 0) return NOT_A_NODE;
+        int node = ROOT;
+        for (int i = 0; i < length; i++) {
+            node = findChild(node, word.charAt(i));
+            if (node == NOT_A_NODE) return NOT_A_NODE;
+        }
+        return isTerminal(node) ? node : NOT_A_NODE;
+    }
+
+    /**
+     * Adds a bigram from one terminal node to another.
+     * @param addFrequency if true, it adds to current frequency capped at maxFrequency, else
+     * it overwrites the old value
+     * @return returns the final frequency
+     */
+    public int addOrSetBigram(int firstWord, int secondWord, int frequency,
+            boolean addFrequency, int maxFrequency) {
+        int last = NOT_A_BIGRAM;
+        for (int b = mFirstBigrams[firstWord]; b != NOT_A_BIGRAM; b = mNextBigrams[b]) {
+            if (mBigramTargets[b] == secondWord) {
+                if (addFrequency) {
+                    int newFrequency = mBigramFrequencies[b] + frequency;
+                    if (newFrequency > maxFrequency) newFrequency = maxFrequency;
+                    mBigramFrequencies[b] = newFrequency;
+                } else {
+                    mBigramFrequencies[b] = frequency;
+                }
+                return mBigramFrequencies[b];
+            }
+            last = b;
+        }
+        final int bigram = newBigram(secondWord, frequency);
+        if (last == NOT_A_BIGRAM) {
+            mFirstBigrams[firstWord] = bigram;
+        } else {
+            mNextBigrams[last] = bigram;
+        }
+        return frequency;
+    }
+
+    /**
+     * Returns the number of bytes held by the backing arrays, excluding array headers.
+     */
+    public int getHeapSize() {
+        final int nodeCapacity = mCodes.length;
+        final int bigramCapacity = mBigramTargets.length;
+        // char + short + 4 ints per node, 3 ints per bigram.
+        return nodeCapacity * (2 + 2 + 4 * 4) + bigramCapacity * (3 * 4);
+    }
+
+    private int findChild(int parent, char c) {
+        for (int n = mFirstChildren[parent]; n != NOT_A_NODE; n = mNextSiblings[n]) {
+            if (mCodes[n] == c) return n;
+        }
+        return NOT_A_NODE;
+    }
+
+    private int findOrAddChild(int parent, char c) {
+        int last = NOT_A_NODE;
+        for (int n = mFirstChildren[parent]; n != NOT_A_NODE; n = mNextSiblings[n]) {
+            if (mCodes[n] == c) return n;
+            last = n;
+        }
+        final int child = newNode(parent, c);
+        if (last == NOT_A_NODE) {
+            mFirstChildren[parent] = child;
+        } else {
+            mNextSiblings[last] = child;
+        }
+        return child;
+    }
+
+    private int newNode(int parent, char c) {
+        if (mNodeCount == mCodes.length) {
+            final int newCapacity = mNodeCount + (mNodeCount >> 1);
+            mCodes = Arrays.copyOf(mCodes, newCapacity);
+            mAttributes = Arrays.copyOf(mAttributes, newCapacity);
+            mParents = Arrays.copyOf(mParents, newCapacity);
+            mFirstChildren = Arrays.copyOf(mFirstChildren, newCapacity);
+            mNextSiblings = Arrays.copyOf(mNextSiblings, newCapacity);
+            mFirstBigrams = Arrays.copyOf(mFirstBigrams, newCapacity);
+        }
+        final int node = mNodeCount;
+        mCodes[node] = c;
+        mAttributes[node] = 0;
+        mParents[node] = parent;
+        mFirstChildren[node] = NOT_A_NODE;
+        mNextSiblings[node] = NOT_A_NODE;
+        mFirstBigrams[node] = NOT_A_BIGRAM;
+        mNodeCount++;
+        return node;
+    }
+
+    private int newBigram(int target, int frequency) {
+        if (mBigramCount == mBigramTargets.length) {
+            final int newCapacity = mBigramCount + (mBigramCount >> 1);
+            mBigramTargets = Arrays.copyOf(mBigramTargets, newCapacity);
+            mBigramFrequencies = Arrays.copyOf(mBigramFrequencies, newCapacity);
+            mNextBigrams = Arrays.copyOf(mNextBigrams, newCapacity);
+        }
+        final int bigram = mBigramCount;
+        mBigramTargets[bigram] = target;
+        mBigramFrequencies[bigram] = frequency;
+        mNextBigrams[bigram] = NOT_A_BIGRAM;
+        mBigramCount++;
+        return bigram;
+    }
+}
@@ -21,8 +21,6 @@ import android.content.Context;
 import com.android.inputmethod.keyboard.Keyboard;
 import com.android.inputmethod.keyboard.ProximityInfo;
 
-import java.util.LinkedList;
-
 /**
  * Base class for an in-memory dictionary that can grow dynamically and can
  * be searched for suggestions and valid words.
@@ -50,62 +48,7 @@ public class ExpandableDictionary extends Dictionary {
     // Use this lock before touching mUpdatingDictionary & mRequiresDownload
     private Object mUpdatingLock = new Object();
 
-    private static class Node {
-        char mCode;
-        int mFrequency;
-        boolean mTerminal;
-        Node mParent;
-        NodeArray mChildren;
-        LinkedList<NextWord> mNGrams; // Supports ngram
-    }
-
-    private static class NodeArray {
-        Node[] mData;
-        int mLength = 0;
-        private static final int INCREMENT = 2;
-
-        NodeArray() {
-            mData = new Node[INCREMENT];
-        }
-
-        void add(Node n) {
-            if (mLength + 1 > mData.length) {
-                Node[] tempData = new Node[mLength + INCREMENT];
-                if (mLength > 0) {
-                    System.arraycopy(mData, 0, tempData, 0, mLength);
-                }
-                mData = tempData;
-            }
-            mData[mLength++] = n;
-        }
-    }
-
-    private static class NextWord {
-        public final Node mWord;
-        private int mFrequency;
-
-        public NextWord(Node word, int frequency) {
-            mWord = word;
-            mFrequency = frequency;
-        }
-
-        public int getFrequency() {
-            return mFrequency;
-        }
-
-        public int setFrequency(int freq) {
-            mFrequency = freq;
-            return mFrequency;
-        }
-
-        public int addFrequency(int add) {
-            mFrequency += add;
-            if (mFrequency > BIGRAM_MAX_FREQUENCY) mFrequency = BIGRAM_MAX_FREQUENCY;
-            return mFrequency;
-        }
-    }
-
-    private NodeArray mRoots;
+    private CompactTrie mTrie;
 
     private int[][] mCodes;
 
@@ -154,41 +97,7 @@ public class ExpandableDictionary extends Dictionary {
     }
 
     public void addWord(String word, int frequency) {
-        addWordRec(mRoots, word, 0, frequency, null);
-    }
-
-    private void addWordRec(NodeArray children, final String word, final int depth,
-            final int frequency, Node parentNode) {
-        final int wordLength = word.length();
-        if (wordLength <= depth) return;
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.mLength;
-        Node childNode = null;
-        for (int i = 0; i < childrenLength; i++) {
-            final Node node = children.mData[i];
-            if (node.mCode == c) {
-                childNode = node;
-                break;
-            }
-        }
-        if (childNode == null) {
-            childNode = new Node();
-            childNode.mCode = c;
-            childNode.mParent = parentNode;
-            children.add(childNode);
-        }
-        if (wordLength == depth + 1) {
-            // Terminate this word
-            childNode.mTerminal = true;
-            childNode.mFrequency = Math.max(frequency, childNode.mFrequency);
-            if (childNode.mFrequency > 255) childNode.mFrequency = 255;
-            return;
-        }
-        if (childNode.mChildren == null) {
-            childNode.mChildren = new NodeArray();
-        }
-        addWordRec(childNode.mChildren, word, depth + 1, frequency, childNode);
+        mTrie.addWord(word, frequency);
     }
 
     @Override
@@ -212,9 +121,11 @@ public class ExpandableDictionary extends Dictionary {
             mCodes[i] = codes.getCodesAt(i);
         }
         mMaxDepth = mInputLength * 3;
-        getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
+        // Hold on to the current trie so that a concurrent reload cannot swap it mid-traversal.
+        final CompactTrie trie = mTrie;
+        getWordsRec(trie, CompactTrie.ROOT, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
         for (int i = 0; i < mInputLength; i++) {
-            getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, i, callback);
+            getWordsRec(trie, CompactTrie.ROOT, codes, mWordBuilder, 0, false, 1, 0, i, callback);
         }
     }
 
@@ -233,8 +144,9 @@ public class ExpandableDictionary extends Dictionary {
      */
     protected int getWordFrequency(CharSequence word) {
         // Case-sensitive search
-        Node node = searchNode(mRoots, word, 0, word.length());
-        return (node == null) ? -1 : node.mFrequency;
+        final CompactTrie trie = mTrie;
+        final int node = trie.searchNode(word, word.length());
+        return (node == CompactTrie.NOT_A_NODE) ? -1 : trie.getFrequency(node);
     }
 
     private static int computeSkippedWordFinalFreq(int freq, int snr, int inputLength) {
@@ -253,7 +165,8 @@ public class ExpandableDictionary extends Dictionary {
      * character is actually an array of multiple possible candidates. This function is not
      * optimized for speed, assuming that the user dictionary will only be a few hundred words in
      * size.
-     * @param roots node whose children have to be search for matches
+     * @param trie the trie to search in
+     * @param parent node whose children have to be search for matches
      * @param codes the input character codes
      * @param word the word being composed as a possible match
      * @param depth the depth of traversal - the length of the word being composed thus far
@@ -267,10 +180,9 @@ public class ExpandableDictionary extends Dictionary {
      * @param callback the callback class for adding a word
      */
     // TODO: Share this routine with the native code for BinaryDictionary
-    protected void getWordsRec(NodeArray roots, final WordComposer codes, final char[] word,
-            final int depth, final boolean completion, int snr, int inputIndex, int skipPos,
-            WordCallback callback) {
-        final int count = roots.mLength;
+    protected void getWordsRec(final CompactTrie trie, final int parent, final WordComposer codes,
+            final char[] word, final int depth, final boolean completion, int snr, int inputIndex,
+            int skipPos, WordCallback callback) {
         final int codeSize = mInputLength;
         // Optimization: Prune out words that are too long compared to how much was typed.
         if (depth > mMaxDepth) {
@@ -283,13 +195,13 @@ public class ExpandableDictionary extends Dictionary {
             currentChars = mCodes[inputIndex];
         }
 
-        for (int i = 0; i < count; i++) {
-            final Node node = roots.mData[i];
-            final char c = node.mCode;
+        for (int node = trie.getFirstChild(parent); node != CompactTrie.NOT_A_NODE;
+                node = trie.getNextSibling(node)) {
+            final char c = trie.getCode(node);
             final char lowerC = toLowerCase(c);
-            final boolean terminal = node.mTerminal;
-            final NodeArray children = node.mChildren;
-            final int freq = node.mFrequency;
+            final boolean terminal = trie.isTerminal(node);
+            final boolean hasChildren = trie.getFirstChild(node) != CompactTrie.NOT_A_NODE;
+            final int freq = trie.getFrequency(node);
             if (completion || currentChars == null) {
                 word[depth] = c;
                 if (terminal) {
@@ -304,16 +216,16 @@ public class ExpandableDictionary extends Dictionary {
                         return;
                     }
                 }
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, true, snr, inputIndex,
+                if (hasChildren) {
+                    getWordsRec(trie, node, codes, word, depth + 1, true, snr, inputIndex,
                             skipPos, callback);
                 }
             } else if ((c == Keyboard.CODE_SINGLE_QUOTE
                     && currentChars[0] != Keyboard.CODE_SINGLE_QUOTE) || depth == skipPos) {
                 // Skip the ' and continue deeper
                 word[depth] = c;
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex,
+                if (hasChildren) {
+                    getWordsRec(trie, node, codes, word, depth + 1, completion, snr, inputIndex,
                             skipPos, callback);
                 }
             } else {
@@ -344,13 +256,13 @@ public class ExpandableDictionary extends Dictionary {
                                             DataType.UNIGRAM);
                                 }
                             }
-                            if (children != null) {
-                                getWordsRec(children, codes, word, depth + 1,
+                            if (hasChildren) {
+                                getWordsRec(trie, node, codes, word, depth + 1,
                                         true, snr * addedAttenuation, inputIndex + 1,
                                         skipPos, callback);
                             }
-                        } else if (children != null) {
-                            getWordsRec(children, codes, word, depth + 1,
+                        } else if (hasChildren) {
+                            getWordsRec(trie, node, codes, word, depth + 1,
                                     false, snr * addedAttenuation, inputIndex + 1,
                                     skipPos, callback);
                         }
@@ -379,59 +291,11 @@ public class ExpandableDictionary extends Dictionary {
         // word. We do want however to return the correct case for the right hand side.
         // So we want to squash the case of the left hand side, and preserve that of the right
         // hand side word.
-        Node firstWord = searchWord(mRoots, word1.toLowerCase(), 0, null);
-        Node secondWord = searchWord(mRoots, word2, 0, null);
-        LinkedList<NextWord> bigram = firstWord.mNGrams;
-        if (bigram == null || bigram.size() == 0) {
-            firstWord.mNGrams = new LinkedList<NextWord>();
-            bigram = firstWord.mNGrams;
-        } else {
-            for (NextWord nw : bigram) {
-                if (nw.mWord == secondWord) {
-                    if (addFrequency) {
-                        return nw.addFrequency(frequency);
-                    } else {
-                        return nw.setFrequency(frequency);
-                    }
-                }
-            }
-        }
-        firstWord.mNGrams.add(new NextWord(secondWord, frequency));
-        return frequency;
-    }
-
-    /**
-     * Searches for the word and add the word if it does not exist.
-     * @return Returns the terminal node of the word we are searching for.
-     */
-    private Node searchWord(NodeArray children, String word, int depth, Node parentNode) {
-        final int wordLength = word.length();
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.mLength;
-        Node childNode = null;
-        for (int i = 0; i < childrenLength; i++) {
-            final Node node = children.mData[i];
-            if (node.mCode == c) {
-                childNode = node;
-                break;
-            }
-        }
-        if (childNode == null) {
-            childNode = new Node();
-            childNode.mCode = c;
-            childNode.mParent = parentNode;
-            children.add(childNode);
-        }
-        if (wordLength == depth + 1) {
-            // Terminate this word
-            childNode.mTerminal = true;
-            return childNode;
-        }
-        if (childNode.mChildren == null) {
-            childNode.mChildren = new NodeArray();
-        }
-        return searchWord(childNode.mChildren, word, depth + 1, childNode);
+        final CompactTrie trie = mTrie;
+        final int firstWord = trie.searchOrAddWord(word1.toLowerCase());
+        final int secondWord = trie.searchOrAddWord(word2);
+        return trie.addOrSetBigram(firstWord, secondWord, frequency, addFrequency,
+                BIGRAM_MAX_FREQUENCY);
     }
 
     // @VisibleForTesting
@@ -448,10 +312,11 @@ public class ExpandableDictionary extends Dictionary {
             final WordCallback callback) {
         // Search for the lowercase version of the word only, because that's where bigrams
         // store their sons.
-        Node prevWord = searchNode(mRoots, previousWord.toString().toLowerCase(), 0,
+        final CompactTrie trie = mTrie;
+        final int prevWord = trie.searchNode(previousWord.toString().toLowerCase(),
                 previousWord.length());
-        if (prevWord != null && prevWord.mNGrams != null) {
-            reverseLookUp(prevWord.mNGrams, callback);
+        if (prevWord != CompactTrie.NOT_A_NODE) {
+            reverseLookUp(trie, trie.getFirstBigram(prevWord), callback);
         }
     }
 
@@ -488,62 +353,29 @@ public class ExpandableDictionary extends Dictionary {
     /**
      * reverseLookUp retrieves the full word given a list of terminal nodes and adds those words
      * through callback.
-     * @param terminalNodes list of terminal nodes we want to add
+     * @param trie the trie the bigram list belongs to
+     * @param firstBigram head of the list of bigrams whose terminal nodes we want to add
      */
-    private void reverseLookUp(LinkedList<NextWord> terminalNodes,
+    private void reverseLookUp(final CompactTrie trie, final int firstBigram,
             final WordCallback callback) {
-        Node node;
-        int freq;
-        for (NextWord nextWord : terminalNodes) {
-            node = nextWord.mWord;
-            freq = nextWord.getFrequency();
+        for (int bigram = firstBigram; bigram != CompactTrie.NOT_A_BIGRAM;
+                bigram = trie.getNextBigram(bigram)) {
+            int node = trie.getBigramTarget(bigram);
+            final int freq = trie.getBigramFrequency(bigram);
             int index = MAX_WORD_LENGTH;
             do {
                 --index;
-                mLookedUpString[index] = node.mCode;
-                node = node.mParent;
-            } while (node != null);
+                mLookedUpString[index] = trie.getCode(node);
+                node = trie.getParent(node);
+            } while (node != CompactTrie.ROOT);
 
             callback.addWord(mLookedUpString, index, MAX_WORD_LENGTH - index, freq, mDicTypeId,
                     DataType.BIGRAM);
         }
     }
 
-    /**
-     * Recursively search for the terminal node of the word.
-     *
-     * One iteration takes the full word to search for and the current index of the recursion.
-     *
-     * @param children the node of the trie to search under.
-     * @param word the word to search for. Only read [offset..length] so there may be trailing chars
-     * @param offset the index in {@code word} this recursion should operate on.
-     * @param length the length of the input word.
-     * @return Returns the terminal node of the word if the word exists
-     */
-    private Node searchNode(final NodeArray children, final CharSequence word, final int offset,
-            final int length) {
-        final int count = children.mLength;
-        final char currentChar = word.charAt(offset);
-        for (int j = 0; j < count; j++) {
-            final Node node = children.mData[j];
-            if (node.mCode == currentChar) {
-                if (offset == length - 1) {
-                    if (node.mTerminal) {
-                        return node;
-                    }
-                } else {
-                    if (node.mChildren != null) {
-                        Node returnNode = searchNode(node.mChildren, word, offset + 1, length);
-                        if (returnNode != null) return returnNode;
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
     protected void clearDictionary() {
-        mRoots = new NodeArray();
+        mTrie = new CompactTrie();
     }
 
     private class LoadDictionaryTask extends Thread {
@@ -2387,6 +2387,8 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         p.println("  mSoundOn=" + mSettingsValues.mSoundOn);
         p.println("  mVibrateOn=" + mSettingsValues.mVibrateOn);
         p.println("  mKeyPreviewPopupOn=" + mSettingsValues.mKeyPreviewPopupOn);
+        p.println("  UserBigramDictionary writes: "
+                + UserBigramDictionary.getWriteStatistics());
     }
 
     // Characters per second measurement
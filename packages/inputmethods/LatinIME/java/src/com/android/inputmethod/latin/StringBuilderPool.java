@@ -16,55 +16,73 @@
 
 package com.android.inputmethod.latin;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A pool of string builders to be used from anywhere.
+ *
+ * The pool is a fixed array of slots that are claimed and released with atomic operations, so
+ * it is safe to use from several threads at once without locking. It holds at most
+ * {@link #MAX_POOL_SIZE} builders; builders recycled into a full pool are left to the garbage
+ * collector.
  */
 public class StringBuilderPool {
     // Singleton
     private static final StringBuilderPool sInstance = new StringBuilderPool();
     private static final boolean DEBUG = false;
+    // Enough for 100 suggestions (the maximum allowed by Suggest) plus the bigram candidates.
+    /* package */ static final int MAX_POOL_SIZE = 192;
     private StringBuilderPool() {}
-    // TODO: Make this a normal array with a size of 20, or a ConcurrentQueue
-    private final List<StringBuilder> mPool =
-            Collections.synchronizedList(new ArrayList<StringBuilder>());
+    private final AtomicReferenceArray<StringBuilder> mPool =
+            new AtomicReferenceArray<StringBuilder>(MAX_POOL_SIZE);
 
     public static StringBuilder getStringBuilder(final int initialSize) {
-        // TODO: although the pool is synchronized, the following is not thread-safe.
-        // Two threads entering this at the same time could take the same size of the pool and the
-        // second to attempt removing this index from the pool would crash with an
-        // IndexOutOfBoundsException.
-        // At the moment this pool is only used in Suggest.java and only in one thread so it's
-        // okay. The simplest thing to do here is probably to replace the ArrayList with a
-        // ConcurrentQueue.
-        final int poolSize = sInstance.mPool.size();
-        final StringBuilder sb = poolSize > 0 ? (StringBuilder) sInstance.mPool.remove(poolSize - 1)
-                : new StringBuilder(initialSize);
-        sb.setLength(0);
-        return sb;
+        final AtomicReferenceArray<StringBuilder> pool = sInstance.mPool;
+        for (int i = 0; i < MAX_POOL_SIZE; ++i) {
+            // Cheap read first to avoid a write to every empty slot.
+            if (pool.get(i) == null) continue;
+            final StringBuilder sb = pool.getAndSet(i, null);
+            if (sb != null) {
+                sb.setLength(0);
+                return sb;
+            }
+        }
+        return new StringBuilder(initialSize);
     }
 
     public static void recycle(final StringBuilder garbage) {
+        final AtomicReferenceArray<StringBuilder> pool = sInstance.mPool;
         if (DEBUG) {
-            final int gid = garbage.hashCode();
-            for (final StringBuilder q : sInstance.mPool) {
-                if (gid == q.hashCode()) throw new RuntimeException("Duplicate id " + gid);
+            for (int i = 0; i < MAX_POOL_SIZE; ++i) {
+                if (garbage == pool.get(i)) {
+                    throw new RuntimeException("Duplicate id " + garbage.hashCode());
+                }
             }
         }
-        sInstance.mPool.add(garbage);
+        for (int i = 0; i < MAX_POOL_SIZE; ++i) {
+            if (pool.get(i) == null && pool.compareAndSet(i, null, garbage)) return;
+        }
     }
 
     public static void ensureCapacity(final int capacity, final int initialSize) {
-        for (int i = sInstance.mPool.size(); i < capacity; ++i) {
-            final StringBuilder sb = new StringBuilder(initialSize);
-            sInstance.mPool.add(sb);
+        final AtomicReferenceArray<StringBuilder> pool = sInstance.mPool;
+        int size = getSize();
+        for (int i = 0; i < MAX_POOL_SIZE && size < capacity; ++i) {
+            if (pool.get(i) != null) continue;
+            if (pool.compareAndSet(i, null, new StringBuilder(initialSize))) ++size;
         }
     }
 
+    /**
+     * Returns the number of builders in the pool. This is only a snapshot when other threads are
+     * using the pool concurrently.
+     */
     public static int getSize() {
-        return sInstance.mPool.size();
+        final AtomicReferenceArray<StringBuilder> pool = sInstance.mPool;
+        int size = 0;
+        for (int i = 0; i < MAX_POOL_SIZE; ++i) {
+            if (pool.get(i) != null) ++size;
+        }
+        return size;
     }
 }
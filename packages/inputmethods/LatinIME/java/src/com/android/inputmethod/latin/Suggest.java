@@ -18,7 +18,6 @@ package com.android.inputmethod.latin;
 
 import android.content.Context;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.android.inputmethod.keyboard.ProximityInfo;
 
@@ -99,8 +98,12 @@ public class Suggest implements Dictionary.WordCallback {
     private int[] mScores = new int[mPrefMaxSuggestions];
     private int[] mBigramScores = new int[PREF_MAX_BIGRAMS];
 
-    private ArrayList<CharSequence> mSuggestions = new ArrayList<CharSequence>();
-    ArrayList<CharSequence> mBigramSuggestions  = new ArrayList<CharSequence>();
+    // Candidate lists are cleared and refilled on each keystroke; their backing arrays and the
+    // pooled StringBuilders used while collecting candidates are reused. The words handed out
+    // in a SuggestedWords are Strings, as it may still be shown or read after the next call.
+    private ArrayList<CharSequence> mSuggestions =
+            new ArrayList<CharSequence>(mPrefMaxSuggestions + 2);
+    ArrayList<CharSequence> mBigramSuggestions  = new ArrayList<CharSequence>(PREF_MAX_BIGRAMS);
     private CharSequence mTypedWord;
 
     // TODO: Remove these member variables by passing more context to addWord() callback method
@@ -124,7 +127,8 @@ public class Suggest implements Dictionary.WordCallback {
         mWhiteListDictionary = new WhitelistDictionary(context, locale);
         addOrReplaceDictionary(mUnigramDictionaries, DICT_KEY_WHITELIST, mWhiteListDictionary);
         mAutoCorrection = new AutoCorrection();
-        StringBuilderPool.ensureCapacity(mPrefMaxSuggestions, getApproxMaxWordLength());
+        StringBuilderPool.ensureCapacity(mPrefMaxSuggestions + PREF_MAX_BIGRAMS,
+                getApproxMaxWordLength());
     }
 
     private void initAsynchronously(final Context context, final int dictionaryResId,
@@ -240,11 +244,14 @@ public class Suggest implements Dictionary.WordCallback {
         if (maxSuggestions < 1 || maxSuggestions > 100) {
             throw new IllegalArgumentException("maxSuggestions must be between 1 and 100");
         }
-        mPrefMaxSuggestions = maxSuggestions;
-        mScores = new int[mPrefMaxSuggestions];
-        mBigramScores = new int[PREF_MAX_BIGRAMS];
-        collectGarbage(mSuggestions, mPrefMaxSuggestions);
-        StringBuilderPool.ensureCapacity(mPrefMaxSuggestions, getApproxMaxWordLength());
+        if (mPrefMaxSuggestions != maxSuggestions) {
+            mPrefMaxSuggestions = maxSuggestions;
+            mScores = new int[mPrefMaxSuggestions];
+            mSuggestions.ensureCapacity(mPrefMaxSuggestions + 2);
+        }
+        collectGarbage(mSuggestions);
+        StringBuilderPool.ensureCapacity(mPrefMaxSuggestions + PREF_MAX_BIGRAMS,
+                getApproxMaxWordLength());
     }
 
     /**
@@ -266,14 +273,16 @@ public class Suggest implements Dictionary.WordCallback {
         final StringBuilder sb = StringBuilderPool.getStringBuilder(getApproxMaxWordLength());
         // TODO: Must pay attention to locale when changing case.
         if (all) {
-            sb.append(word.toString().toUpperCase());
+            Utils.appendUpperCase(sb, word);
         } else if (first) {
             sb.append(Character.toUpperCase(word.charAt(0)));
             if (wordLength > 1) {
                 sb.append(word.subSequence(1, wordLength));
             }
         }
-        return sb;
+        final String capitalized = sb.toString();
+        StringBuilderPool.recycle(sb);
+        return capitalized;
     }
 
     protected void addBigramToSuggestions(CharSequence bigram) {
@@ -295,7 +304,7 @@ public class Suggest implements Dictionary.WordCallback {
         mAutoCorrection.init();
         mIsFirstCharCapitalized = wordComposer.isFirstCharCapitalized();
         mIsAllUpperCase = wordComposer.isAllUpperCase();
-        collectGarbage(mSuggestions, mPrefMaxSuggestions);
+        collectGarbage(mSuggestions);
         Arrays.fill(mScores, 0);
 
         // Save a lowercase version of the original word
@@ -311,7 +320,7 @@ public class Suggest implements Dictionary.WordCallback {
                 || mCorrectionMode == CORRECTION_BASIC)) {
             // At first character typed, search only the bigrams
             Arrays.fill(mBigramScores, 0);
-            collectGarbage(mBigramSuggestions, PREF_MAX_BIGRAMS);
+            collectGarbage(mBigramSuggestions);
 
             if (!TextUtils.isEmpty(prevWordForBigram)) {
                 CharSequence lowerPrevWord = prevWordForBigram.toString().toLowerCase();
@@ -357,6 +366,10 @@ public class Suggest implements Dictionary.WordCallback {
                 dictionary.getWords(wordComposer, this, proximityInfo);
             }
         }
+        // The builders in mSuggestions go back to the pool on the next call, while the words
+        // handed out from here may still be shown, so replace them with Strings now.
+        freezeSuggestions(mSuggestions);
+
         final String typedWordString = typedWord == null ? null : typedWord.toString();
 
         CharSequence whitelistedWord = capitalizeWord(mIsAllUpperCase, mIsFirstCharCapitalized,
@@ -428,7 +441,7 @@ public class Suggest implements Dictionary.WordCallback {
             // TODO: remove this surrounding if clause and move this logic to
             // getSuggestedWordBuilder.
             if (suggestions.size() > 0) {
-                final String currentHighestWord = suggestions.get(0).toString();
+                final CharSequence currentHighestWord = suggestions.get(0);
                 // If the current highest word is also equal to typed word, we need to compare
                 // frequency to determine the insertion position. This does not ensure strictly
                 // correct ordering, but ensures the top score is on top which is enough for
@@ -477,7 +490,7 @@ public class Suggest implements Dictionary.WordCallback {
         final StringBuilder sb = StringBuilderPool.getStringBuilder(getApproxMaxWordLength());
         // TODO: Must pay attention to locale when changing case.
         if (mIsAllUpperCase) {
-            sb.append(new String(word, offset, length).toUpperCase());
+            Utils.appendUpperCase(sb, word, offset, length);
         } else if (mIsFirstCharCapitalized) {
             sb.append(Character.toUpperCase(word[offset]));
             if (length > 1) {
@@ -518,19 +531,24 @@ public class Suggest implements Dictionary.WordCallback {
         return -1;
     }
 
-    private void collectGarbage(ArrayList<CharSequence> suggestions, int prefMaxSuggestions) {
-        int poolSize = StringBuilderPool.getSize();
-        int garbageSize = suggestions.size();
-        while (poolSize < prefMaxSuggestions && garbageSize > 0) {
-            final CharSequence garbage = suggestions.get(garbageSize - 1);
+    private static void freezeSuggestions(ArrayList<CharSequence> suggestions) {
+        for (int i = suggestions.size() - 1; i >= 0; --i) {
+            final CharSequence word = suggestions.get(i);
+            if (word instanceof StringBuilder) {
+                suggestions.set(i, word.toString());
+                StringBuilderPool.recycle((StringBuilder)word);
+            }
+        }
+    }
+
+    private static void collectGarbage(ArrayList<CharSequence> suggestions) {
+        // The pool is bounded, so every builder can be handed back; the ones that do not fit
+        // are simply dropped.
+        for (int i = suggestions.size() - 1; i >= 0; --i) {
+            final CharSequence garbage = suggestions.get(i);
             if (garbage instanceof StringBuilder) {
                 StringBuilderPool.recycle((StringBuilder)garbage);
-                poolSize++;
             }
-            garbageSize--;
-        }
-        if (poolSize == prefMaxSuggestions + 1) {
-            Log.w("Suggest", "String pool got too big: " + poolSize);
         }
         suggestions.clear();
     }
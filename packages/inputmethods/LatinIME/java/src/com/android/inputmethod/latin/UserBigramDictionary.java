@@ -16,19 +16,23 @@
 
 package com.android.inputmethod.latin;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
-import android.os.AsyncTask;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Stores all the pairs user types in databases. Prune the database if the size
@@ -45,14 +49,14 @@ public class UserBigramDictionary extends ExpandableDictionary {
     private static final int FREQUENCY_MAX = 127;
 
     /** Maximum number of pairs. Pruning will start when databases goes above this number. */
-    private static int sMaxUserBigrams = 10000;
+    private static final int MAX_USER_BIGRAMS = 10000;
 
     /**
      * When it hits maximum bigram pair, it will delete until you are left with
-     * only (sMaxUserBigrams - sDeleteUserBigrams) pairs.
+     * only (MAX_USER_BIGRAMS - DELETE_USER_BIGRAMS) pairs.
      * Do not keep this number small to avoid deleting too often.
      */
-    private static int sDeleteUserBigrams = 1000;
+    private static final int DELETE_USER_BIGRAMS = 1000;
 
     /**
      * Database version should increase if the database structure changes
@@ -83,7 +87,6 @@ public class UserBigramDictionary extends ExpandableDictionary {
 
     private HashSet<Bigram> mPendingWrites = new HashSet<Bigram>();
     private final Object mPendingWritesLock = new Object();
-    private static volatile boolean sUpdatingDB = false;
 
     private final static HashMap<String, String> sDictProjectionMap;
 
@@ -100,6 +103,11 @@ public class UserBigramDictionary extends ExpandableDictionary {
     }
 
     private static DatabaseHelper sOpenHelper = null;
+    private static BigramWriter sWriter = null;
+
+    // The shared database and writer above, or ones of this dictionary's own
+    private final DatabaseHelper mOpenHelper;
+    private final BigramWriter mWriter;
 
     private static class Bigram {
         public final String mWord1;
@@ -120,24 +128,42 @@ public class UserBigramDictionary extends ExpandableDictionary {
 
         @Override
         public int hashCode() {
-            return (mWord1 + " " + mWord2).hashCode();
+            return mWord1.hashCode() * 31 + mWord2.hashCode();
         }
     }
 
     public void setDatabaseMax(int maxUserBigram) {
-        sMaxUserBigrams = maxUserBigram;
+        mWriter.mMaxUserBigrams = maxUserBigram;
     }
 
     public void setDatabaseDelete(int deleteUserBigram) {
-        sDeleteUserBigrams = deleteUserBigram;
+        mWriter.mDeleteUserBigrams = deleteUserBigram;
     }
 
     public UserBigramDictionary(Context context, LatinIME ime, String locale, int dicTypeId) {
+        this(context, ime, locale, dicTypeId, null);
+    }
+
+    /**
+     * @param databaseName The database to keep the pairs in, or null for the one shared by
+     *        all the user bigram dictionaries of the process. A dictionary with a database of
+     *        its own closes it when it is closed.
+     */
+    /* package for test */ UserBigramDictionary(Context context, LatinIME ime, String locale,
+            int dicTypeId, String databaseName) {
         super(context, dicTypeId);
         mIme = ime;
         mLocale = locale;
-        if (sOpenHelper == null) {
-            sOpenHelper = new DatabaseHelper(getContext());
+        if (databaseName == null) {
+            if (sOpenHelper == null) {
+                sOpenHelper = new DatabaseHelper(getContext(), DATABASE_NAME);
+                sWriter = new BigramWriter(sOpenHelper);
+            }
+            mOpenHelper = sOpenHelper;
+            mWriter = sWriter;
+        } else {
+            mOpenHelper = new DatabaseHelper(getContext(), databaseName);
+            mWriter = new BigramWriter(mOpenHelper);
         }
         if (mLocale != null && mLocale.length() > 1) {
             loadDictionary();
@@ -151,6 +177,11 @@ public class UserBigramDictionary extends ExpandableDictionary {
         // Also, the database is written to somewhat frequently, so it needs to be kept alive
         // throughout the life of the process.
         // mOpenHelper.close();
+        if (mOpenHelper != sOpenHelper) {
+            mWriter.waitUntilIdle();
+            mWriter.shutdown();
+            mOpenHelper.close();
+        }
         super.close();
     }
 
@@ -170,43 +201,50 @@ public class UserBigramDictionary extends ExpandableDictionary {
         int freq = super.addBigram(word1, word2, FREQUENCY_FOR_TYPED);
         if (freq > FREQUENCY_MAX) freq = FREQUENCY_MAX;
         synchronized (mPendingWritesLock) {
-            if (freq == FREQUENCY_FOR_TYPED || mPendingWrites.isEmpty()) {
-                mPendingWrites.add(new Bigram(word1, word2, freq));
-            } else {
-                Bigram bi = new Bigram(word1, word2, freq);
-                mPendingWrites.remove(bi);
-                mPendingWrites.add(bi);
-            }
+            // Only the latest frequency of a pair needs to reach the database.
+            final Bigram bi = new Bigram(word1, word2, freq);
+            mPendingWrites.remove(bi);
+            mPendingWrites.add(bi);
         }
 
         return freq;
     }
 
     /**
-     * Schedules a background thread to write any pending words to the database.
+     * Hands any pending words to the background writer. Writes that are queued while the
+     * writer is busy are coalesced with each other and applied together in the next batch.
      */
     public void flushPendingWrites() {
         synchronized (mPendingWritesLock) {
             // Nothing pending? Return
             if (mPendingWrites.isEmpty()) return;
-            // Create a background thread to write the pending entries
-            new UpdateDbTask(sOpenHelper, mPendingWrites, mLocale).execute();
-            // Create a new map for writing new entries into while the old one is written to db
+            mWriter.enqueue(mLocale, mPendingWrites);
+            // Create a new set for writing new entries into while the old one is written to db
             mPendingWrites = new HashSet<Bigram>();
         }
     }
 
     /** Used for testing purpose **/
     void waitUntilUpdateDBDone() {
-        synchronized (mPendingWritesLock) {
-            while (sUpdatingDB) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                }
-            }
-            return;
-        }
+        mWriter.waitUntilIdle();
+    }
+
+    /** Used for testing purpose **/
+    long getDatabaseRowCount() {
+        return DatabaseUtils.queryNumEntries(mOpenHelper.getReadableDatabase(), FREQ_TABLE_NAME);
+    }
+
+    /** Used for testing purpose **/
+    int getLastWriteBatchSize() {
+        return mWriter.getLastBatchSize();
+    }
+
+    /**
+     * Returns a one-line summary of the background writer's flush latency and batch sizes.
+     */
+    public static String getWriteStatistics() {
+        final BigramWriter writer = sWriter;
+        return writer == null ? "not started" : writer.getStatistics();
     }
 
     @Override
@@ -249,7 +287,7 @@ public class UserBigramDictionary extends ExpandableDictionary {
         qb.setProjectionMap(sDictProjectionMap);
 
         // Get the database and run the query
-        SQLiteDatabase db = sOpenHelper.getReadableDatabase();
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         Cursor c = qb.query(db,
                 new String[] { MAIN_COLUMN_WORD1, MAIN_COLUMN_WORD2, FREQ_COLUMN_FREQUENCY },
                 selection, selectionArgs, null, null, null);
@@ -261,8 +299,8 @@ public class UserBigramDictionary extends ExpandableDictionary {
      */
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
-        DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
         }
 
         @Override
@@ -294,105 +332,262 @@ public class UserBigramDictionary extends ExpandableDictionary {
     }
 
     /**
-     * Async task to write pending words to the database so that it stays in sync with
-     * the in-memory trie.
+     * Write-behind engine that keeps the database in sync with the in-memory trie.
+     *
+     * Pending bigrams are coalesced per locale until the single writer thread picks them up.
+     * Each batch is applied in one transaction with precompiled statements, and pruning is
+     * driven by an in-memory count of the frequency rows instead of a scan of the whole table.
+     * A batch that fails to be written is queued again, to be retried with the next flush.
      */
-    private static class UpdateDbTask extends AsyncTask<Void, Void, Void> {
-        private final HashSet<Bigram> mMap;
-        private final DatabaseHelper mDbHelper;
-        private final String mLocale;
+    private static class BigramWriter implements Runnable {
+        // A batch is dropped after failing to be written this many times in a row.
+        private static final int MAX_WRITE_ATTEMPTS = 3;
 
-        public UpdateDbTask(DatabaseHelper openHelper, HashSet<Bigram> pendingWrites,
-                String locale) {
-            mMap = pendingWrites;
-            mLocale = locale;
+        private final DatabaseHelper mDbHelper;
+        private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+        private final Object mLock = new Object();
+
+        // The following are guarded by mLock.
+        private HashMap<String, HashSet<Bigram>> mQueued = new HashMap<String, HashSet<Bigram>>();
+        private boolean mBusy = false;
+        private int mFlushCount = 0;
+        private long mTotalBatchSize = 0;
+        private int mLastBatchSize = 0;
+        private int mMaxBatchSize = 0;
+        private long mTotalFlushTimeMs = 0;
+        private long mLastFlushTimeMs = 0;
+        private long mMaxFlushTimeMs = 0;
+        private int mFailedWrites = 0;
+
+        // Pruning starts above mMaxUserBigrams pairs, and leaves
+        // (mMaxUserBigrams - mDeleteUserBigrams) of them.
+        volatile int mMaxUserBigrams = MAX_USER_BIGRAMS;
+        volatile int mDeleteUserBigrams = DELETE_USER_BIGRAMS;
+
+        // Number of rows in the frequency table, or -1 if not known yet. Only written by the
+        // writer thread; volatile so that getStatistics() can read it.
+        private volatile long mRowCount = -1;
+
+        public BigramWriter(DatabaseHelper openHelper) {
             mDbHelper = openHelper;
         }
 
-        /** Prune any old data if the database is getting too big. */
-        private void checkPruneData(SQLiteDatabase db) {
-            db.execSQL("PRAGMA foreign_keys = ON;");
-            Cursor c = db.query(FREQ_TABLE_NAME, new String[] { FREQ_COLUMN_PAIR_ID },
-                    null, null, null, null, null);
-            try {
-                int totalRowCount = c.getCount();
-                // prune out old data if we have too much data
-                if (totalRowCount > sMaxUserBigrams) {
-                    int numDeleteRows = (totalRowCount - sMaxUserBigrams) + sDeleteUserBigrams;
-                    int pairIdColumnId = c.getColumnIndex(FREQ_COLUMN_PAIR_ID);
-                    c.moveToFirst();
-                    int count = 0;
-                    while (count < numDeleteRows && !c.isAfterLast()) {
-                        String pairId = c.getString(pairIdColumnId);
-                        // Deleting from MAIN table will delete the frequencies
-                        // due to FOREIGN KEY .. ON DELETE CASCADE
-                        db.delete(MAIN_TABLE_NAME, MAIN_COLUMN_ID + "=?",
-                            new String[] { pairId });
-                        c.moveToNext();
-                        count++;
+        public void enqueue(String locale, HashSet<Bigram> pendingWrites) {
+            synchronized (mLock) {
+                final HashSet<Bigram> queued = mQueued.get(locale);
+                if (queued == null) {
+                    mQueued.put(locale, pendingWrites);
+                } else {
+                    for (final Bigram bi : pendingWrites) {
+                        // Keep the newer frequency.
+                        queued.remove(bi);
+                        queued.add(bi);
                     }
                 }
-            } finally {
-                c.close();
+                if (!mBusy) {
+                    mBusy = true;
+                    mExecutor.execute(this);
+                }
             }
         }
 
-        @Override
-        protected void onPreExecute() {
-            sUpdatingDB = true;
+        public void shutdown() {
+            mExecutor.shutdown();
+        }
+
+        public void waitUntilIdle() {
+            synchronized (mLock) {
+                while (mBusy) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        public int getLastBatchSize() {
+            synchronized (mLock) {
+                return mLastBatchSize;
+            }
+        }
+
+        public String getStatistics() {
+            synchronized (mLock) {
+                final long avgTime = mFlushCount == 0 ? 0 : mTotalFlushTimeMs / mFlushCount;
+                final long avgSize = mFlushCount == 0 ? 0 : mTotalBatchSize / mFlushCount;
+                return "flushes=" + mFlushCount
+                        + " batch(last/avg/max)=" + mLastBatchSize + "/" + avgSize + "/"
+                        + mMaxBatchSize
+                        + " latencyMs(last/avg/max)=" + mLastFlushTimeMs + "/" + avgTime + "/"
+                        + mMaxFlushTimeMs
+                        + " rows=" + mRowCount;
+            }
         }
 
         @Override
-        protected Void doInBackground(Void... v) {
-            SQLiteDatabase db = mDbHelper.getWritableDatabase();
-            db.execSQL("PRAGMA foreign_keys = ON;");
-            // Write all the entries to the db
-            Iterator<Bigram> iterator = mMap.iterator();
-            while (iterator.hasNext()) {
-                Bigram bi = iterator.next();
-
-                // find pair id
-                Cursor c = db.query(MAIN_TABLE_NAME, new String[] { MAIN_COLUMN_ID },
-                        MAIN_COLUMN_WORD1 + "=? AND " + MAIN_COLUMN_WORD2 + "=? AND "
-                        + MAIN_COLUMN_LOCALE + "=?",
-                        new String[] { bi.mWord1, bi.mWord2, mLocale }, null, null, null);
-
-                int pairId;
-                if (c.moveToFirst()) {
-                    // existing pair
-                    pairId = c.getInt(c.getColumnIndex(MAIN_COLUMN_ID));
-                    db.delete(FREQ_TABLE_NAME, FREQ_COLUMN_PAIR_ID + "=?",
-                            new String[] { Integer.toString(pairId) });
-                } else {
-                    // new pair
-                    Long pairIdLong = db.insert(MAIN_TABLE_NAME, null,
-                            getContentValues(bi.mWord1, bi.mWord2, mLocale));
-                    pairId = pairIdLong.intValue();
+        public void run() {
+            while (true) {
+                final HashMap<String, HashSet<Bigram>> batch;
+                synchronized (mLock) {
+                    if (mQueued.isEmpty()) {
+                        mBusy = false;
+                        mLock.notifyAll();
+                        return;
+                    }
+                    batch = mQueued;
+                    mQueued = new HashMap<String, HashSet<Bigram>>();
+                }
+                final long startTime = SystemClock.uptimeMillis();
+                int batchSize = 0;
+                boolean failed = false;
+                try {
+                    batchSize = writeBatch(batch);
+                } catch (RuntimeException e) {
+                    // Don't let a bad database kill the writer; the pairs stay in memory.
+                    Log.e(TAG, "Failed to write user bigrams", e);
+                    mRowCount = -1;
+                    failed = true;
+                }
+                final long elapsed = SystemClock.uptimeMillis() - startTime;
+                synchronized (mLock) {
+                    mFlushCount++;
+                    mTotalBatchSize += batchSize;
+                    mLastBatchSize = batchSize;
+                    mMaxBatchSize = Math.max(mMaxBatchSize, batchSize);
+                    mTotalFlushTimeMs += elapsed;
+                    mLastFlushTimeMs = elapsed;
+                    mMaxFlushTimeMs = Math.max(mMaxFlushTimeMs, elapsed);
+                    if (!failed) {
+                        mFailedWrites = 0;
+                    } else if (++mFailedWrites < MAX_WRITE_ATTEMPTS) {
+                        requeueLocked(batch);
+                        // Try again with the next flush, rather than straight away.
+                        mBusy = false;
+                        mLock.notifyAll();
+                        return;
+                    } else {
+                        Log.e(TAG, "Dropping " + countBigrams(batch) + " user bigrams after "
+                                + mFailedWrites + " failed writes");
+                        mFailedWrites = 0;
+                    }
                 }
-                c.close();
+            }
+        }
 
-                // insert new frequency
-                db.insert(FREQ_TABLE_NAME, null, getFrequencyContentValues(pairId, bi.mFrequency));
+        /**
+         * Puts back a batch that failed to be written. Pairs queued since then are newer, so
+         * they are kept rather than the ones from the batch.
+         */
+        private void requeueLocked(HashMap<String, HashSet<Bigram>> batch) {
+            for (final Map.Entry<String, HashSet<Bigram>> entry : batch.entrySet()) {
+                final HashSet<Bigram> queued = mQueued.get(entry.getKey());
+                if (queued == null) {
+                    mQueued.put(entry.getKey(), entry.getValue());
+                } else {
+                    for (final Bigram bi : entry.getValue()) {
+                        // Does nothing if the pair is queued already.
+                        queued.add(bi);
+                    }
+                }
             }
-            checkPruneData(db);
-            sUpdatingDB = false;
+        }
 
-            return null;
+        private static int countBigrams(HashMap<String, HashSet<Bigram>> batch) {
+            int count = 0;
+            for (final HashSet<Bigram> bigrams : batch.values()) {
+                count += bigrams.size();
+            }
+            return count;
         }
 
-        private ContentValues getContentValues(String word1, String word2, String locale) {
-            ContentValues values = new ContentValues(3);
-            values.put(MAIN_COLUMN_WORD1, word1);
-            values.put(MAIN_COLUMN_WORD2, word2);
-            values.put(MAIN_COLUMN_LOCALE, locale);
-            return values;
+        private int writeBatch(HashMap<String, HashSet<Bigram>> batch) {
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            // Foreign keys can't be turned on inside a transaction. They are needed so that
+            // deleting a pair also deletes its frequency.
+            db.execSQL("PRAGMA foreign_keys = ON;");
+            if (mRowCount < 0) {
+                mRowCount = DatabaseUtils.queryNumEntries(db, FREQ_TABLE_NAME);
+            }
+            final SQLiteStatement findPair = db.compileStatement(
+                    "SELECT " + MAIN_COLUMN_ID + " FROM " + MAIN_TABLE_NAME
+                    + " WHERE " + MAIN_COLUMN_WORD1 + "=? AND " + MAIN_COLUMN_WORD2 + "=? AND "
+                    + MAIN_COLUMN_LOCALE + "=?");
+            final SQLiteStatement insertPair = db.compileStatement(
+                    "INSERT INTO " + MAIN_TABLE_NAME + " (" + MAIN_COLUMN_WORD1 + ","
+                    + MAIN_COLUMN_WORD2 + "," + MAIN_COLUMN_LOCALE + ") VALUES (?,?,?)");
+            final SQLiteStatement deleteFrequency = db.compileStatement(
+                    "DELETE FROM " + FREQ_TABLE_NAME + " WHERE " + FREQ_COLUMN_PAIR_ID + "=?");
+            final SQLiteStatement insertFrequency = db.compileStatement(
+                    "INSERT INTO " + FREQ_TABLE_NAME + " (" + FREQ_COLUMN_PAIR_ID + ","
+                    + FREQ_COLUMN_FREQUENCY + ") VALUES (?,?)");
+            int batchSize = 0;
+            long rowCount = mRowCount;
+            db.beginTransaction();
+            try {
+                for (final Map.Entry<String, HashSet<Bigram>> entry : batch.entrySet()) {
+                    final String locale = entry.getKey();
+                    for (final Bigram bi : entry.getValue()) {
+                        findPair.bindString(1, bi.mWord1);
+                        findPair.bindString(2, bi.mWord2);
+                        findPair.bindString(3, locale);
+                        long pairId;
+                        try {
+                            // existing pair: the frequency row is re-inserted below so that
+                            // it moves to the end of the pruning order.
+                            pairId = findPair.simpleQueryForLong();
+                            deleteFrequency.bindLong(1, pairId);
+                            deleteFrequency.execute();
+                        } catch (SQLiteDoneException e) {
+                            // new pair
+                            insertPair.bindString(1, bi.mWord1);
+                            insertPair.bindString(2, bi.mWord2);
+                            insertPair.bindString(3, locale);
+                            pairId = insertPair.executeInsert();
+                            rowCount++;
+                        }
+                        insertFrequency.bindLong(1, pairId);
+                        insertFrequency.bindLong(2, bi.mFrequency);
+                        insertFrequency.executeInsert();
+                        batchSize++;
+                    }
+                }
+                rowCount = checkPruneData(db, rowCount);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                findPair.close();
+                insertPair.close();
+                deleteFrequency.close();
+                insertFrequency.close();
+            }
+            mRowCount = rowCount;
+            return batchSize;
         }
 
-        private ContentValues getFrequencyContentValues(int pairId, int frequency) {
-           ContentValues values = new ContentValues(2);
-           values.put(FREQ_COLUMN_PAIR_ID, pairId);
-           values.put(FREQ_COLUMN_FREQUENCY, frequency);
-           return values;
+        /**
+         * Prune the least recently written pairs if the database is getting too big.
+         * @return the number of rows left in the frequency table.
+         */
+        private long checkPruneData(SQLiteDatabase db, long rowCount) {
+            final int maxUserBigrams = mMaxUserBigrams;
+            if (rowCount <= maxUserBigrams) return rowCount;
+            final long numDeleteRows = (rowCount - maxUserBigrams) + mDeleteUserBigrams;
+            // Deleting from MAIN table will delete the frequencies
+            // due to FOREIGN KEY .. ON DELETE CASCADE
+            final SQLiteStatement prune = db.compileStatement(
+                    "DELETE FROM " + MAIN_TABLE_NAME + " WHERE " + MAIN_COLUMN_ID + " IN ("
+                    + "SELECT " + FREQ_COLUMN_PAIR_ID + " FROM " + FREQ_TABLE_NAME
+                    + " ORDER BY " + FREQ_COLUMN_ID + " LIMIT ?)");
+            try {
+                prune.bindLong(1, numDeleteRows);
+                prune.execute();
+            } finally {
+                prune.close();
+            }
+            return Math.max(0, rowCount - numDeleteRows);
         }
     }
 
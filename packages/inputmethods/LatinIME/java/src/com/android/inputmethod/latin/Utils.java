@@ -698,6 +698,66 @@ public class Utils {
         return true;
     }
 
+    /**
+     * Appends s in upper case to sb, as {@link String#toUpperCase()} would, but without
+     * allocating a String in the usual case.
+     * @param sb the builder to append to
+     * @param s CharSequence to append in upper case
+     */
+    public static void appendUpperCase(StringBuilder sb, CharSequence s) {
+        final int length = s.length();
+        boolean simple = !hasLocaleSpecificUpperCase();
+        for (int i = 0; simple && i < length; i++) {
+            simple = hasSingleCharUpperCase(s.charAt(i));
+        }
+        if (!simple) {
+            sb.append(s.toString().toUpperCase());
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            sb.append(Character.toUpperCase(s.charAt(i)));
+        }
+    }
+
+    /**
+     * Appends characters of an array in upper case to sb, as {@link String#toUpperCase()}
+     * would, but without allocating a String in the usual case.
+     * @param sb the builder to append to
+     * @param s character array to append in upper case
+     * @param offset start offset of array s
+     * @param length length of characters in array s
+     */
+    public static void appendUpperCase(StringBuilder sb, char[] s, int offset, int length) {
+        boolean simple = !hasLocaleSpecificUpperCase();
+        for (int i = offset; simple && i < offset + length; i++) {
+            simple = hasSingleCharUpperCase(s[i]);
+        }
+        if (!simple) {
+            sb.append(new String(s, offset, length).toUpperCase());
+            return;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            sb.append(Character.toUpperCase(s[i]));
+        }
+    }
+
+    // Whether the default locale upper-cases some letters differently, like the dotless i
+    // in Turkish, so that they can't be upper-cased one char at a time.
+    private static boolean hasLocaleSpecificUpperCase() {
+        final String language = Locale.getDefault().getLanguage();
+        return "tr".equals(language) || "az".equals(language) || "lt".equals(language);
+    }
+
+    // Whether c's upper case is a single char, unlike the German sharp s ("SS"), the Latin
+    // ligatures, and the Greek letters with iota subscripts and some accents.
+    private static boolean hasSingleCharUpperCase(char c) {
+        if (c < '\u00df') return true;
+        return c != '\u00df' && c != '\u0149' && c != '\u01f0' && c != '\u0390'
+                && c != '\u03b0' && c != '\u0587'
+                && (c < '\u1e96' || c > '\u1e9a') && (c < '\u1f50' || c > '\u1f56')
+                && (c < '\u1f80' || c > '\u1fff') && (c < '\ufb00' || c > '\ufb17');
+    }
+
     public static float getDipScale(Context context) {
         final float scale = context.getResources().getDisplayMetrics().density;
         return scale;
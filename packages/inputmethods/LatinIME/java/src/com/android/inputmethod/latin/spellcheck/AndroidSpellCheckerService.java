@@ -124,6 +124,8 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         private final double mLikelyThreshold;
         private final int mMaxLength;
         private int mLength = 0;
+        // Candidates are scored in this builder; it belongs to this gatherer only
+        private final StringBuilder mCandidate = new StringBuilder();
 
         // The two following attributes are only ever filled if the requested max length
         // is 0 (or less, which is treated the same).
@@ -172,14 +174,18 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
             }
 
             // Compute the normalized score and skip this word if it's normalized score does not
-            // make the threshold.
-            final String wordString = new String(word, wordOffset, wordLength);
+            // make the threshold. Most candidates are rejected here, so score them on a reused
+            // builder and only create a String for the ones that are kept.
+            final StringBuilder candidate = mCandidate;
+            candidate.setLength(0);
+            candidate.append(word, wordOffset, wordLength);
             final double normalizedScore =
-                    Utils.calcNormalizedScore(mOriginalText, wordString, score);
+                    Utils.calcNormalizedScore(mOriginalText, candidate, score);
             if (normalizedScore < mSuggestionThreshold) {
-                if (DBG) Log.i(TAG, wordString + " does not make the score threshold");
+                if (DBG) Log.i(TAG, candidate + " does not make the score threshold");
                 return true;
             }
+            final String wordString = candidate.toString();
 
             if (mLength < mMaxLength) {
                 final int copyLen = mLength - insertIndex;
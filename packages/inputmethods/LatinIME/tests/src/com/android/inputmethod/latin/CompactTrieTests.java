@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+public class CompactTrieTests extends AndroidTestCase {
+    // Object layout of the former ExpandableDictionary Node graph on a 32-bit VM: 8-byte object
+    // header, 4-byte references, objects padded to 8 bytes, 12-byte array header.
+    private static final int NODE_SIZE = 32;
+    private static final int NODE_ARRAY_SIZE = 16;
+    private static final int NODE_ARRAY_INCREMENT = 2;
+    private static final int LINKED_LIST_SIZE = 24 + 24;
+    private static final int NEXT_WORD_SIZE = 16 + 24;
+
+    private static final int WORD_COUNT = 3000;
+    private static final int BIGRAM_COUNT = 3000;
+
+    private CompactTrie mTrie;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTrie = new CompactTrie();
+    }
+
+    public void testAddWord() {
+        mTrie.addWord("hello", 100);
+        mTrie.addWord("help", 50);
+        mTrie.addWord("hello", 20);
+        final int hello = mTrie.searchNode("hello", 5);
+        assertTrue("hello", hello != CompactTrie.NOT_A_NODE);
+        assertEquals("keeps max frequency", 100, mTrie.getFrequency(hello));
+        assertEquals("not a word", CompactTrie.NOT_A_NODE, mTrie.searchNode("hel", 3));
+        assertEquals("prefix of argument", mTrie.searchNode("help", 4),
+                mTrie.searchNode("helpful", 4));
+        mTrie.addWord("huge", 1000);
+        assertEquals("capped frequency", 255, mTrie.getFrequency(mTrie.searchNode("huge", 4)));
+        mTrie.addWord("", 10);
+        assertEquals("empty word", CompactTrie.NOT_A_NODE, mTrie.searchNode("", 0));
+    }
+
+    public void testChildrenKeepInsertionOrder() {
+        mTrie.addWord("c", 1);
+        mTrie.addWord("a", 1);
+        mTrie.addWord("b", 1);
+        final StringBuilder sb = new StringBuilder();
+        for (int n = mTrie.getFirstChild(CompactTrie.ROOT); n != CompactTrie.NOT_A_NODE;
+                n = mTrie.getNextSibling(n)) {
+            sb.append(mTrie.getCode(n));
+        }
+        assertEquals("cab", sb.toString());
+    }
+
+    public void testBigrams() {
+        final int first = mTrie.searchOrAddWord("good");
+        final int second = mTrie.searchOrAddWord("morning");
+        assertEquals("new word has no frequency", 0, mTrie.getFrequency(first));
+        assertEquals(10, mTrie.addOrSetBigram(first, second, 10, true, 255));
+        assertEquals(25, mTrie.addOrSetBigram(first, second, 15, true, 255));
+        assertEquals(255, mTrie.addOrSetBigram(first, second, 1000, true, 255));
+        assertEquals(3, mTrie.addOrSetBigram(first, second, 3, false, 255));
+        assertEquals("single bigram", 1, mTrie.getBigramCount());
+
+        final int bigram = mTrie.getFirstBigram(first);
+        assertEquals(second, mTrie.getBigramTarget(bigram));
+        assertEquals(CompactTrie.NOT_A_BIGRAM, mTrie.getNextBigram(bigram));
+        final StringBuilder sb = new StringBuilder();
+        for (int n = mTrie.getBigramTarget(bigram); n != CompactTrie.ROOT;
+                n = mTrie.getParent(n)) {
+            sb.insert(0, mTrie.getCode(n));
+        }
+        assertEquals("morning", sb.toString());
+    }
+
+    public void testHeapSizeAgainstNodeGraph() {
+        final Random random = new Random(42);
+        final String[] words = new String[WORD_COUNT];
+        for (int i = 0; i < WORD_COUNT; i++) {
+            final int length = 3 + random.nextInt(8);
+            final char[] chars = new char[length];
+            for (int j = 0; j < length; j++) {
+                chars[j] = (char)('a' + random.nextInt(26));
+            }
+            words[i] = new String(chars);
+            mTrie.addWord(words[i], random.nextInt(256));
+        }
+        for (int i = 0; i < BIGRAM_COUNT; i++) {
+            final int first = mTrie.searchOrAddWord(words[random.nextInt(WORD_COUNT)]);
+            final int second = mTrie.searchOrAddWord(words[random.nextInt(WORD_COUNT)]);
+            mTrie.addOrSetBigram(first, second, 1, true, 255);
+        }
+
+        final int compactSize = mTrie.getHeapSize();
+        final int nodeGraphSize = estimateNodeGraphHeapSize(mTrie);
+        assertTrue("compact " + compactSize + " vs node graph " + nodeGraphSize,
+                compactSize * 2 < nodeGraphSize);
+    }
+
+    /**
+     * Estimates the heap the same content would take as a graph of Node, NodeArray and
+     * LinkedList<NextWord> objects.
+     */
+    private static int estimateNodeGraphHeapSize(CompactTrie trie) {
+        int size = 0;
+        for (int node = 0; node < trie.getNodeCount(); node++) {
+            if (node != CompactTrie.ROOT) size += NODE_SIZE;
+            int childCount = 0;
+            for (int n = trie.getFirstChild(node); n != CompactTrie.NOT_A_NODE;
+                    n = trie.getNextSibling(n)) {
+                childCount++;
+            }
+            if (childCount > 0) {
+                final int capacity = Math.max(NODE_ARRAY_INCREMENT,
+                        (childCount + 1) / NODE_ARRAY_INCREMENT * NODE_ARRAY_INCREMENT);
+                size += NODE_ARRAY_SIZE + align(12 + 4 * capacity);
+            }
+            if (trie.getFirstBigram(node) != CompactTrie.NOT_A_BIGRAM) {
+                size += LINKED_LIST_SIZE;
+            }
+        }
+        return size + trie.getBigramCount() * NEXT_WORD_SIZE;
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class StringBuilderPoolTests extends AndroidTestCase {
+    private static final int THREAD_COUNT = 4;
+    private static final int ITERATIONS = 10000;
+
+    public void testRecycledBuilderIsReusedAndCleared() {
+        StringBuilderPool.ensureCapacity(1, 32);
+        final StringBuilder sb = StringBuilderPool.getStringBuilder(32);
+        sb.append("garbage");
+        StringBuilderPool.recycle(sb);
+        final StringBuilder reused = StringBuilderPool.getStringBuilder(32);
+        assertEquals("cleared", 0, reused.length());
+        StringBuilderPool.recycle(reused);
+    }
+
+    public void testPoolIsBounded() {
+        for (int i = 0; i < StringBuilderPool.MAX_POOL_SIZE * 2; ++i) {
+            StringBuilderPool.recycle(new StringBuilder());
+        }
+        assertEquals(StringBuilderPool.MAX_POOL_SIZE, StringBuilderPool.getSize());
+        StringBuilderPool.ensureCapacity(StringBuilderPool.MAX_POOL_SIZE * 2, 32);
+        assertEquals(StringBuilderPool.MAX_POOL_SIZE, StringBuilderPool.getSize());
+    }
+
+    public void testNoBuilderIsHandedOutTwice() throws InterruptedException {
+        final IdentityHashMap<StringBuilder, Thread> owners =
+                new IdentityHashMap<StringBuilder, Thread>();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(THREAD_COUNT);
+        for (int t = 0; t < THREAD_COUNT; ++t) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ITERATIONS; ++i) {
+                        final StringBuilder sb = StringBuilderPool.getStringBuilder(32);
+                        synchronized (owners) {
+                            if (owners.put(sb, this) != null) failed.set(true);
+                        }
+                        synchronized (owners) {
+                            owners.remove(sb);
+                        }
+                        StringBuilderPool.recycle(sb);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertFalse("a builder was held by two threads at once", failed.get());
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.content.Context;
+import android.os.Debug;
+
+import com.android.inputmethod.keyboard.KeyboardId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replays keystroke sequences through {@link Suggest} and measures the latency and allocation
+ * of each {@link Suggest#getSuggestions} call.
+ *
+ * On top of the main dictionary and the whitelist that {@link Suggest} always uses, a synthetic
+ * user dictionary and a synthetic bigram dictionary of configurable size are installed, both
+ * going through {@link DictionaryCollection} and {@link ExpandableDictionary}.
+ */
+public class SuggestBenchmarkHelper extends SuggestHelper {
+    private static final int WARMUP_ROUNDS = 1;
+
+    public static class Result {
+        public final int mCorrectionMode;
+        public final int mKeystrokes;
+        public final long mP50Nanos;
+        public final long mP99Nanos;
+        public final long mMaxNanos;
+        public final long mAllocBytesPerKeystroke;
+        public final long mAllocCountPerKeystroke;
+
+        Result(int correctionMode, long[] latencies, long allocBytes, long allocCount) {
+            mCorrectionMode = correctionMode;
+            mKeystrokes = latencies.length;
+            Arrays.sort(latencies);
+            mP50Nanos = percentile(latencies, 50);
+            mP99Nanos = percentile(latencies, 99);
+            mMaxNanos = mKeystrokes == 0 ? 0 : latencies[mKeystrokes - 1];
+            mAllocBytesPerKeystroke = mKeystrokes == 0 ? 0 : allocBytes / mKeystrokes;
+            mAllocCountPerKeystroke = mKeystrokes == 0 ? 0 : allocCount / mKeystrokes;
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            if (sorted.length == 0) return 0;
+            final int index = (int)Math.ceil(sorted.length * percent / 100.0) - 1;
+            return sorted[Math.max(0, index)];
+        }
+
+        @Override
+        public String toString() {
+            return "mode=" + correctionModeToString(mCorrectionMode)
+                    + " keystrokes=" + mKeystrokes
+                    + " p50=" + mP50Nanos / 1000 + "us"
+                    + " p99=" + mP99Nanos / 1000 + "us"
+                    + " max=" + mMaxNanos / 1000 + "us"
+                    + " alloc/keystroke=" + mAllocBytesPerKeystroke + "B"
+                    + " (" + mAllocCountPerKeystroke + " objects)";
+        }
+    }
+
+    /**
+     * In-memory dictionary filled with random words and bigrams.
+     */
+    private static class SyntheticDictionary extends ExpandableDictionary {
+        public SyntheticDictionary(Context context, String[] words, int bigramCount,
+                Random random) {
+            super(context, Suggest.DIC_USER);
+            for (final String word : words) {
+                addWord(word, 1 + random.nextInt(250));
+            }
+            for (int i = 0; i < bigramCount; i++) {
+                setBigram(words[random.nextInt(words.length)], words[random.nextInt(words.length)],
+                        1 + random.nextInt(Suggest.MAXIMUM_BIGRAM_FREQUENCY));
+            }
+        }
+    }
+
+    private final String[] mWords;
+
+    public SuggestBenchmarkHelper(final Context context, final File dictionaryPath,
+            final long startOffset, final long length, final KeyboardId keyboardId,
+            final Locale locale, final int syntheticWordCount, final int syntheticBigramCount,
+            final long seed) {
+        super(context, dictionaryPath, startOffset, length, keyboardId, locale);
+        final Random random = new Random(seed);
+        mWords = createWords(syntheticWordCount, random);
+        mSuggest.setUserDictionary(new DictionaryCollection(
+                new SyntheticDictionary(context, mWords, 0, random)));
+        mSuggest.setUserBigramDictionary(new DictionaryCollection(
+                new SyntheticDictionary(context, mWords, syntheticBigramCount, random)));
+    }
+
+    private static String[] createWords(int count, Random random) {
+        final String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            final int length = 2 + random.nextInt(10);
+            final char[] chars = new char[length];
+            for (int j = 0; j < length; j++) {
+                chars[j] = (char)('a' + random.nextInt(26));
+            }
+            words[i] = new String(chars);
+        }
+        return words;
+    }
+
+    /**
+     * Splits recorded text into the list of words to replay, one keystroke per character.
+     */
+    public static List<String> parseKeystrokes(CharSequence recording) {
+        final ArrayList<String> words = new ArrayList<String>();
+        for (final String word : recording.toString().split("\\s+")) {
+            if (word.length() > 0) words.add(word);
+        }
+        return words;
+    }
+
+    /**
+     * Replays the words once to warm up and then once more while measuring.
+     */
+    public Result run(int correctionMode, List<String> words) {
+        setCorrectionMode(correctionMode);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            replay(words, null);
+        }
+        int keystrokes = 0;
+        for (final String word : words) {
+            keystrokes += word.length();
+        }
+        final long[] latencies = new long[keystrokes];
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        replay(words, latencies);
+        final long allocBytes = Debug.getThreadAllocSize();
+        final long allocCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        return new Result(correctionMode, latencies, allocBytes, allocCount);
+    }
+
+    private void replay(List<String> words, long[] latencies) {
+        final WordComposer composer = new WordComposer();
+        CharSequence previous = null;
+        int keystroke = 0;
+        for (final String word : words) {
+            composer.reset();
+            for (int i = 0; i < word.length(); i++) {
+                addKeyInfo(composer, word.charAt(i));
+                final long start = System.nanoTime();
+                mSuggest.getSuggestions(composer, previous, mKeyboard.getProximityInfo());
+                final long elapsed = System.nanoTime() - start;
+                if (latencies != null) latencies[keystroke++] = elapsed;
+            }
+            previous = word;
+        }
+    }
+
+    public static String correctionModeToString(int correctionMode) {
+        switch (correctionMode) {
+        case Suggest.CORRECTION_NONE: return "none";
+        case Suggest.CORRECTION_BASIC: return "basic";
+        case Suggest.CORRECTION_FULL: return "full";
+        case Suggest.CORRECTION_FULL_BIGRAM: return "full_bigram";
+        default: return "unknown(" + correctionMode + ")";
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.latin.tests.R;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Configuration;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keystroke-to-suggestion latency benchmark. Results are written to the log under the
+ * {@link #TAG} tag, one line per correction mode and dictionary size.
+ */
+@LargeTest
+public class SuggestBenchmarkTests extends SuggestTestsBase {
+    private static final String TAG = SuggestBenchmarkTests.class.getSimpleName();
+
+    private static final int[] CORRECTION_MODES = {
+        Suggest.CORRECTION_BASIC, Suggest.CORRECTION_FULL, Suggest.CORRECTION_FULL_BIGRAM
+    };
+    private static final long SEED = 0x5eed;
+
+    private List<String> mKeystrokes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKeystrokes = SuggestBenchmarkHelper.parseKeystrokes(readRawText(R.raw.keystrokes));
+    }
+
+    private String readRawText(int resId) throws IOException {
+        final InputStream in = openTestRawResource(resId);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private void runBenchmark(int wordCount, int bigramCount) {
+        final AssetFileDescriptor dict = openTestRawResourceFd(R.raw.test);
+        final Locale locale = Locale.US;
+        final SuggestBenchmarkHelper helper = new SuggestBenchmarkHelper(
+                getContext(), mTestPackageFile, dict.getStartOffset(), dict.getLength(),
+                createKeyboardId(locale, Configuration.ORIENTATION_PORTRAIT), locale,
+                wordCount, bigramCount, SEED);
+        for (final int mode : CORRECTION_MODES) {
+            final SuggestBenchmarkHelper.Result result = helper.run(mode, mKeystrokes);
+            Log.i(TAG, "words=" + wordCount + " bigrams=" + bigramCount + " " + result);
+            assertTrue("every keystroke measured", result.mKeystrokes > 0);
+        }
+    }
+
+    public void testSmallUserDictionary() {
+        runBenchmark(500, 500);
+    }
+
+    public void testLargeUserDictionary() {
+        runBenchmark(5000, 5000);
+    }
+}
@@ -65,7 +65,7 @@ public class SuggestHelper {
         return mSuggest.hasMainDictionary();
     }
 
-    private void addKeyInfo(WordComposer word, char c) {
+    protected void addKeyInfo(WordComposer word, char c) {
         for (final Key key : mKeyboard.mKeys) {
             if (key.mCode == c) {
                 final int x = key.mX + key.mWidth / 2;
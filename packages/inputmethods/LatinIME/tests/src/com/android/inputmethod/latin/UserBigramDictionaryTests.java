@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for writing the user bigrams to the database in batches.
+ */
+public class UserBigramDictionaryTests extends AndroidTestCase {
+    private static final String TEST_LOCALE = "xx_TEST";
+    // Keep the user's learned pairs out of reach of the pruning tests
+    private static final String TEST_DATABASE_NAME = "userbigram_dict_test.db";
+    private static final String WORD = "test";
+
+    private UserBigramDictionary mDictionary;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        mDictionary = new UserBigramDictionary(getContext(), null, TEST_LOCALE,
+                Suggest.DIC_USER_BIGRAM, TEST_DATABASE_NAME);
+        mDictionary.waitForDictionaryLoading();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDictionary.close();
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private void flush() {
+        mDictionary.flushPendingWrites();
+        mDictionary.waitUntilUpdateDBDone();
+    }
+
+    /**
+     * Test pairs are only written when flushed
+     */
+    public void testWritesWaitForFlush() {
+        mDictionary.addBigrams(WORD, "one");
+        mDictionary.addBigrams(WORD, "two");
+        assertEquals(0, mDictionary.getDatabaseRowCount());
+
+        flush();
+        assertEquals(2, mDictionary.getDatabaseRowCount());
+    }
+
+    /**
+     * Test a pair added several times between flushes is written once
+     */
+    public void testRepeatedPairsAreBatchedTogether() {
+        for (int i = 0; i < 5; i++) {
+            mDictionary.addBigrams(WORD, "same");
+        }
+        mDictionary.addBigrams(WORD, "other");
+
+        flush();
+        assertEquals(2, mDictionary.getLastWriteBatchSize());
+        assertEquals(2, mDictionary.getDatabaseRowCount());
+
+        // Writing a pair again replaces its frequency rather than adding a row
+        mDictionary.addBigrams(WORD, "same");
+        flush();
+        assertEquals(1, mDictionary.getLastWriteBatchSize());
+        assertEquals(2, mDictionary.getDatabaseRowCount());
+    }
+
+    /**
+     * Test the oldest pairs are pruned once the database is over its maximum
+     */
+    public void testPruning() {
+        mDictionary.setDatabaseMax(20);
+        mDictionary.setDatabaseDelete(10);
+        for (int i = 0; i < 20; i++) {
+            mDictionary.addBigrams(WORD, "word" + i);
+        }
+        flush();
+        assertEquals(20, mDictionary.getDatabaseRowCount());
+
+        // Going over the maximum leaves (maximum - delete) pairs
+        for (int i = 20; i < 25; i++) {
+            mDictionary.addBigrams(WORD, "word" + i);
+        }
+        flush();
+        assertEquals(10, mDictionary.getDatabaseRowCount());
+    }
+}
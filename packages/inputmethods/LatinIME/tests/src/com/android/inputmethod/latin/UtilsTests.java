@@ -64,4 +64,29 @@ public class UtilsTests extends AndroidTestCase {
         assertNull(EditingUtils.getThisWord("abc def.", sSeparators));
         assertNull(EditingUtils.getThisWord("abc def .", sSeparators));
     }
+
+    private static void assertAppendUpperCase(String s) {
+        final StringBuilder sb = new StringBuilder("<");
+        Utils.appendUpperCase(sb, s);
+        assertEquals("<" + s.toUpperCase(), sb.toString());
+
+        final char[] chars = ("ab" + s + "cd").toCharArray();
+        sb.setLength(0);
+        Utils.appendUpperCase(sb, chars, 2, s.length());
+        assertEquals(s.toUpperCase(), sb.toString());
+    }
+
+    /**
+     * Test for upper-casing words into a builder
+     */
+    public void testAppendUpperCase() {
+        assertAppendUpperCase("");
+        assertAppendUpperCase("hello");
+        assertAppendUpperCase("Hello World 123");
+        assertAppendUpperCase("\u00e9t\u00e9");
+        assertAppendUpperCase("\u03b1\u03b2\u03b3");
+        // These become longer in upper case
+        assertAppendUpperCase("stra\u00dfe");
+        assertAppendUpperCase("\ufb01x");
+    }
 }